@@ -1,28 +1,72 @@
 package org.geowebcache.arcgis.compact;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.geowebcache.io.Resource;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Abstract base class for ArcGIS compact caches.
  *
+ * Bundles are memory-mapped when first accessed and kept open for the following requests, up to a
+ * maximum number of bundles. Once the maximum is reached the least recently used bundle is
+ * closed and unmapped, as soon as the lookups in progress on it are done. Open bundles are checked
+ * against the modification time and length of their files at most once per
+ * {@link #STAMP_CHECK_INTERVAL} milliseconds, and mapped again if they were rewritten on disk.
+ *
  * @author Bjoern Saxe
  */
 
 public abstract class ArcGISCompactCache {
+    private static final Log log = LogFactory.getLog(ArcGISCompactCache.class);
+
+    /**
+     * Default maximum number of bundles kept open.
+     */
+    public static final int DEFAULT_MAX_OPEN_BUNDLES = 256;
+
     protected static final String BUNDLX_EXT = ".bundlx";
 
     protected static final String BUNDLE_EXT = ".bundle";
 
     protected static final int BUNDLX_MAXIDX = 128;
 
+    /**
+     * Milliseconds during which an open bundle is not checked again for changes on disk.
+     */
+    static final long STAMP_CHECK_INTERVAL = 1000;
+
     protected String pathToCacheRoot = "";
 
+    private final Cache<String, MappedBundle> openBundles;
+
+    long stampCheckInterval = STAMP_CHECK_INTERVAL;
+
+    /**
+     * @param maxOpenBundles Maximum number of bundles kept memory-mapped.
+     */
+    protected ArcGISCompactCache(int maxOpenBundles) {
+        if (maxOpenBundles <= 0)
+            throw new IllegalArgumentException("maxOpenBundles must be positive: " + maxOpenBundles);
+
+        openBundles = CacheBuilder.newBuilder().maximumSize(maxOpenBundles)
+                .removalListener(new RemovalListener<String, MappedBundle>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, MappedBundle> notification) {
+                        notification.getValue().close();
+                    }
+                }).build();
+    }
+
     /**
      * Get Resource object for tile.
      *
@@ -33,6 +77,45 @@ public abstract class ArcGISCompactCache {
      */
     public abstract Resource getBundleFileResource(int zoom, int row, int col);
 
+    /**
+     * Get an open bundle, opening it if not already open.
+     *
+     * @param pathToBundleFile Path to the .bundle file, used as key for the open bundles.
+     * @param opener Opens the bundle, only called if the bundle is not already open. Returns null
+     *               if the bundle does not exist.
+     * @return The bundle, to be {@link MappedBundle#release() released} once done with it; null if
+     *         it does not exist or could not be opened.
+     */
+    protected MappedBundle getBundle(String pathToBundleFile, Callable<MappedBundle> opener) {
+        try {
+            while (true) {
+                MappedBundle bundle = openBundles.get(pathToBundleFile, opener);
+                if (!bundle.isCurrent(stampCheckInterval)) {
+                    // rewritten since mapped, a truncated file would make the old mapping fail
+                    openBundles.asMap().remove(pathToBundleFile, bundle);
+                    bundle = openBundles.get(pathToBundleFile, opener);
+                }
+                if (bundle.acquire()) {
+                    return bundle;
+                }
+                // closed by a concurrent eviction, already out of the open bundles
+            }
+        } catch (InvalidCacheLoadException e) {
+            // missing bundle, not remembered as it may be created later on
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            log.error("Unable to open bundle " + pathToBundleFile, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @return Number of bundles currently open.
+     */
+    protected long getOpenBundleCount() {
+        return openBundles.size();
+    }
+
     /**
      * Build path to a bundle from zoom, col, and row without file extension.
      *
@@ -69,34 +152,4 @@ public abstract class ArcGISCompactCache {
 
         return bundlePath.toString();
     }
-
-    /**
-     * Read from a file that uses little endian byte order.
-     *
-     * @param filePath Path to file
-     * @param offset   Read at offset
-     * @param length   Read length bytes
-     * @return ByteBuffer that contains read bytes and has byte order set to little endian.
-     * The length of the byte buffer is multiple of 4, so getInt() and getLong() can be used
-     * even when fewer bytes are read.
-     */
-    protected ByteBuffer readFromLittleEndianFile(String filePath, long offset, int length) {
-        ByteBuffer result = null;
-
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
-            file.seek(offset);
-            // pad to multiples of 4 so we can use getInt() and getLong()
-            int padding = 4 - (length % 4);
-            byte data[] = new byte[length + padding];
-
-            if (file.read(data, 0, length) != length)
-                throw new IOException("not enough bytes read or reached end of file");
-
-            result = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
-        } catch (IOException e) {
-            System.err.println(e);
-        }
-
-        return result;
-    }
 }
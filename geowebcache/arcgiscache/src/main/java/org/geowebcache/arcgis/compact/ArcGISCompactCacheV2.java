@@ -3,8 +3,8 @@ package org.geowebcache.arcgis.compact;
 import org.geowebcache.io.Resource;
 
 import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Implementation of ArcGIS compact caches for ArcGIS 10.3
@@ -21,10 +21,6 @@ import java.nio.ByteOrder;
  * @author Bjoern Saxe
  */
 public class ArcGISCompactCacheV2 extends ArcGISCompactCache {
-    private static final int COMPACT_CACHE_HEADER_LENGTH = 64;
-
-    private BundlxCache indexCache;
-
     /**
      * Constructs new ArcGIS 10.3 compact cache.
      *
@@ -32,62 +28,47 @@ public class ArcGISCompactCacheV2 extends ArcGISCompactCache {
      *                        directories for zoom levels (named "Lxx").
      */
     public ArcGISCompactCacheV2(String pathToCacheRoot) {
+        this(pathToCacheRoot, DEFAULT_MAX_OPEN_BUNDLES);
+    }
+
+    /**
+     * Constructs new ArcGIS 10.3 compact cache.
+     *
+     * @param pathToCacheRoot Path to compact cache directory (usually ".../_alllayers/"). Path must contain
+     *                        directories for zoom levels (named "Lxx").
+     * @param maxOpenBundles  Maximum number of bundles kept memory-mapped.
+     */
+    public ArcGISCompactCacheV2(String pathToCacheRoot, int maxOpenBundles) {
+        super(maxOpenBundles);
+
         if (pathToCacheRoot.endsWith("" + File.separatorChar))
             this.pathToCacheRoot = pathToCacheRoot;
         else
             this.pathToCacheRoot = pathToCacheRoot + File.separatorChar;
-
-        indexCache = new BundlxCache(10000);
     }
 
     @Override public Resource getBundleFileResource(int zoom, int row, int col) {
         if (zoom < 0 || col < 0 || row < 0)
             return null;
 
-        BundlxCache.CacheKey key = new BundlxCache.CacheKey(zoom, row, col);
-        BundlxCache.CacheEntry entry = null;
-
-        Resource res = null;
-
-        if ((entry = indexCache.get(key)) != null) {
-            if (entry.size > 0)
-                res = new BundleFileResource(entry.pathToBundleFile, entry.offset, entry.size);
-        } else {
-
-            String basePath = buildBundleFilePath(zoom, row, col);
-            String pathToBundleFile = basePath + BUNDLE_EXT;
+        String basePath = buildBundleFilePath(zoom, row, col);
+        final String pathToBundleFile = basePath + BUNDLE_EXT;
 
+        MappedBundle bundle = getBundle(pathToBundleFile, () -> {
             if (!(new File(pathToBundleFile)).exists())
                 return null;
+            return MappedBundle.openV2(pathToBundleFile);
+        });
 
-            entry = createCacheEntry(pathToBundleFile, row, col);
-
-            if (entry.size > 0)
-                res = new BundleFileResource(pathToBundleFile, entry.offset, entry.size);
+        if (bundle == null)
+            return null;
 
-            indexCache.put(key, entry);
+        try {
+            return bundle.getResource(row, col);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            bundle.release();
         }
-
-        return res;
-    }
-
-    private BundlxCache.CacheEntry createCacheEntry(String bundleFile, int row, int col) {
-        // col and row are inverted for 10.3 caches
-        int index = BUNDLX_MAXIDX * (row % BUNDLX_MAXIDX) + (col % BUNDLX_MAXIDX);
-
-        // to save one addtional read, we read all 8 bytes in one read
-        ByteBuffer offsetAndSize = readFromLittleEndianFile(bundleFile,
-            (index * 8) + COMPACT_CACHE_HEADER_LENGTH, 8);
-
-        byte[] offsetBytes = new byte[8];
-        byte[] sizeBytes = new byte[4];
-
-        offsetAndSize.get(offsetBytes, 0, 5);
-        offsetAndSize.get(sizeBytes, 0, 3);
-
-        long tileOffset = ByteBuffer.wrap(offsetBytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
-        int tileSize = ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
-
-        return new BundlxCache.CacheEntry(bundleFile, tileOffset, tileSize);
     }
 }
@@ -5,10 +5,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.geowebcache.io.Resource;
 
 /**
@@ -24,10 +26,32 @@ public class BundleFileResource implements Resource {
 
     private final int tileSize;
 
+    // image data read from the memory mapped bundle, null if the bundle file has to be read
+    private final ByteBuffer tileData;
+
+    private final long lastModified;
+
     public BundleFileResource(String bundleFilePath, long tileOffset, int tileSize) {
         this.bundleFilePath = bundleFilePath;
         this.tileOffset = tileOffset;
         this.tileSize = tileSize;
+        this.tileData = null;
+        this.lastModified = -1;
+    }
+
+    /**
+     * Resource for image data of a memory mapped bundle.
+     *
+     * @param bundleFilePath Path to the .bundle file.
+     * @param tileData Image data of the tile, copied from the mapped bundle.
+     * @param lastModified Last modification time of the bundle file.
+     */
+    BundleFileResource(String bundleFilePath, ByteBuffer tileData, long lastModified) {
+        this.bundleFilePath = bundleFilePath;
+        this.tileOffset = -1;
+        this.tileSize = tileData.remaining();
+        this.tileData = tileData;
+        this.lastModified = lastModified;
     }
 
     /**
@@ -41,10 +65,17 @@ public class BundleFileResource implements Resource {
      * @see org.geowebcache.io.Resource#transferTo()
      */
     public long transferTo(WritableByteChannel target) throws IOException {
+        if (tileData != null) {
+            // each call gets its own position and limit over the shared data
+            ByteBuffer data = tileData.duplicate();
+            while (data.hasRemaining())
+                target.write(data);
+            return tileSize;
+        }
         try (FileChannel in = new FileInputStream(new File(bundleFilePath)).getChannel()) {
             final long size = tileSize;
             long written = 0;
-            while ((written += in.transferTo(tileOffset + written, size, target)) < size)
+            while ((written += in.transferTo(tileOffset + written, size - written, target)) < size)
                 ;
             return size;
         }
@@ -64,10 +95,13 @@ public class BundleFileResource implements Resource {
      * @see org.geowebcache.io.Resource#getInputStream()
      */
     public InputStream getInputStream() throws IOException {
+        if (tileData != null)
+            return new ByteBufferInputStream(tileData.duplicate());
+
         FileInputStream fis = new FileInputStream(bundleFilePath);
         fis.skip(tileOffset);
 
-        return fis;
+        return new BoundedInputStream(fis, tileSize);
     }
 
     /**
@@ -84,9 +118,46 @@ public class BundleFileResource implements Resource {
      * @see org.geowebcache.io.Resource#getLastModified()
      */
     public long getLastModified() {
+        if (tileData != null)
+            return lastModified;
+
         File f = new File(bundleFilePath);
 
         return f.lastModified();
     }
 
-}
\ No newline at end of file
+    /**
+     * Input stream over the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override public int available() {
+            return buffer.remaining();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,316 @@
+package org.geowebcache.arcgis.compact;
+
+import org.geowebcache.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact cache bundle whose index and image data are memory-mapped.
+ *
+ * The index is mapped and loaded into memory when the bundle is opened, so looking up the offset
+ * and size of a tile is a read from memory. The image data of the bundle is mapped as a whole and
+ * tiles are served from slices of it. Bundles too big to be mapped in a single buffer are served
+ * reading the bundle file instead.
+ *
+ * The image data of the tiles is copied out of the mapping, so that the mappings can be released
+ * as soon as the bundle is {@link #close() closed}, once the lookups in progress are done with
+ * them, instead of waiting for the garbage collector.
+ *
+ * The modification time and length of the mapped files are recorded before mapping them, so that
+ * a bundle rewritten or truncated on disk can be detected through {@link #isCurrent(long)} and
+ * mapped again instead of being served from a stale mapping.
+ *
+ * @author Bjoern Saxe
+ */
+abstract class MappedBundle {
+
+    /**
+     * Modification time and length of a file when it was mapped
+     */
+    private static final class FileStamp {
+
+        final File file;
+
+        final long lastModified;
+
+        final long length;
+
+        FileStamp(String filePath) {
+            this.file = new File(filePath);
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean isCurrent() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    protected final String bundleFilePath;
+
+    protected final long lastModified;
+
+    protected final ByteBuffer index;
+
+    // null if the bundle is too big to be mapped
+    protected final ByteBuffer data;
+
+    private final FileStamp bundleStamp;
+
+    private final FileStamp indexStamp;
+
+    // time after which the stamps have to be checked again
+    private volatile long nextStampCheck;
+
+    // number of lookups in progress, the sign bit is set once closed
+    private final AtomicInteger users = new AtomicInteger();
+
+    private MappedBundle(String bundleFilePath, FileStamp indexStamp, ByteBuffer index)
+            throws IOException {
+        this.bundleFilePath = bundleFilePath;
+        this.indexStamp = indexStamp;
+        this.bundleStamp = bundleFilePath.equals(indexStamp.file.getPath()) ? indexStamp
+                : new FileStamp(bundleFilePath);
+        this.lastModified = bundleStamp.lastModified;
+        this.index = index;
+        this.data = mapData(bundleFilePath);
+    }
+
+    /**
+     * Opens a bundle of an ArcGIS 10.0 - 10.2 compact cache, with its index in a separate .bundlx
+     * file.
+     */
+    static MappedBundle openV1(String bundlxFilePath, String bundleFilePath) throws IOException {
+        FileStamp indexStamp = new FileStamp(bundlxFilePath);
+        return new V1(bundleFilePath, indexStamp, mapIndex(bundlxFilePath, Long.MAX_VALUE));
+    }
+
+    /**
+     * Opens a bundle of an ArcGIS 10.3 compact cache, with its index in the header of the .bundle
+     * file.
+     */
+    static MappedBundle openV2(String bundleFilePath) throws IOException {
+        FileStamp stamp = new FileStamp(bundleFilePath);
+        return new V2(bundleFilePath, stamp, mapIndex(bundleFilePath, V2.INDEX_END));
+    }
+
+    /**
+     * @param checkInterval milliseconds during which the files are assumed unchanged after being
+     *        checked
+     * @return {@code false} if the bundle or its index were modified, truncated or removed since
+     *         they were mapped, in which case the bundle has to be opened again
+     */
+    boolean isCurrent(long checkInterval) {
+        long now = System.currentTimeMillis();
+        if (now < nextStampCheck) {
+            return true;
+        }
+        if (bundleStamp.isCurrent() && (indexStamp == bundleStamp || indexStamp.isCurrent())) {
+            nextStampCheck = now + checkInterval;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Registers a lookup, to be followed by {@link #release()} once done with the bundle.
+     *
+     * @return {@code false} if the bundle is closed and can no longer be used
+     */
+    boolean acquire() {
+        while (true) {
+            int count = users.get();
+            if (count < 0) {
+                return false;
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a lookup started by {@link #acquire()}, unmapping the bundle if it was closed meanwhile
+     */
+    void release() {
+        if (users.decrementAndGet() == Integer.MIN_VALUE) {
+            unmap();
+        }
+    }
+
+    /**
+     * Closes the bundle, its mappings are released right away or by the last lookup in progress
+     */
+    void close() {
+        while (true) {
+            int count = users.get();
+            if (count < 0) {
+                return;
+            }
+            if (users.compareAndSet(count, count | Integer.MIN_VALUE)) {
+                if (count == 0) {
+                    unmap();
+                }
+                return;
+            }
+        }
+    }
+
+    private void unmap() {
+        unmap(index);
+        if (data != null) {
+            unmap(data);
+        }
+    }
+
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // not a mapping this JVM lets us release, the garbage collector will
+        }
+    }
+
+    private static ByteBuffer mapIndex(String filePath, long maxLength) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), maxLength));
+            // the whole index will be read sooner or later, better to do it in one go
+            index.load();
+            return index.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static ByteBuffer mapData(String bundleFilePath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(bundleFilePath, "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Get Resource object for tile.
+     *
+     * @param row Row of tile.
+     * @param col Column of tile.
+     * @return Resource object associated with tile image data if tile exists; null otherwise.
+     */
+    abstract Resource getResource(int row, int col) throws IOException;
+
+    /**
+     * Reads a 5 bytes little endian offset from the index.
+     *
+     * @return the offset, or -1 if the position is outside of the index
+     */
+    protected final long readIndexOffset(int position) {
+        if (position < 0 || position + 5 > index.capacity()) {
+            return -1;
+        }
+        return (index.getInt(position) & 0xFFFFFFFFL) | ((index.get(position + 4) & 0xFFL) << 32);
+    }
+
+    /**
+     * Builds the resource for the image data at the provided offset of the bundle.
+     */
+    protected final Resource resource(long tileOffset, int tileSize) {
+        if (tileSize <= 0 || tileOffset < 0) {
+            return null;
+        }
+        if (data == null) {
+            return new BundleFileResource(bundleFilePath, tileOffset, tileSize);
+        }
+        if (tileOffset + tileSize > data.capacity()) {
+            // broken index entry
+            return null;
+        }
+        ByteBuffer tile = data.duplicate();
+        tile.limit((int) tileOffset + tileSize);
+        tile.position((int) tileOffset);
+        // copied, the resource may outlive the mapping
+        byte[] tileData = new byte[tileSize];
+        tile.get(tileData);
+        return new BundleFileResource(bundleFilePath, ByteBuffer.wrap(tileData), lastModified);
+    }
+
+    private static final class V1 extends MappedBundle {
+
+        private static final int HEADER_LENGTH = 16;
+
+        V1(String bundleFilePath, FileStamp indexStamp, ByteBuffer index) throws IOException {
+            super(bundleFilePath, indexStamp, index);
+        }
+
+        @Override
+        Resource getResource(int row, int col) throws IOException {
+            int entry = ArcGISCompactCache.BUNDLX_MAXIDX * (col % ArcGISCompactCache.BUNDLX_MAXIDX)
+                    + (row % ArcGISCompactCache.BUNDLX_MAXIDX);
+            long sizeOffset = readIndexOffset(HEADER_LENGTH + entry * 5);
+            if (sizeOffset < 0) {
+                return null;
+            }
+            // the image data size is the 4 byte word preceding the image data
+            int tileSize;
+            if (data != null) {
+                if (sizeOffset + 4 > data.capacity()) {
+                    return null;
+                }
+                tileSize = data.getInt((int) sizeOffset);
+            } else {
+                tileSize = readSize(sizeOffset);
+            }
+            return resource(sizeOffset + 4, tileSize);
+        }
+
+        private int readSize(long sizeOffset) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(bundleFilePath, "r")) {
+                file.seek(sizeOffset);
+                // RandomAccessFile reads big endian integers
+                return Integer.reverseBytes(file.readInt());
+            }
+        }
+    }
+
+    private static final class V2 extends MappedBundle {
+
+        private static final int HEADER_LENGTH = 64;
+
+        static final long INDEX_END = HEADER_LENGTH
+                + 8L * ArcGISCompactCache.BUNDLX_MAXIDX * ArcGISCompactCache.BUNDLX_MAXIDX;
+
+        V2(String bundleFilePath, FileStamp indexStamp, ByteBuffer index) throws IOException {
+            super(bundleFilePath, indexStamp, index);
+        }
+
+        @Override
+        Resource getResource(int row, int col) {
+            // col and row are inverted for 10.3 caches
+            int entry = ArcGISCompactCache.BUNDLX_MAXIDX * (row % ArcGISCompactCache.BUNDLX_MAXIDX)
+                    + (col % ArcGISCompactCache.BUNDLX_MAXIDX);
+            int position = HEADER_LENGTH + entry * 8;
+            if (position + 8 > index.capacity()) {
+                return null;
+            }
+            // the first 5 bytes of the word are the offset, the next 3 bytes the size
+            long word = index.getLong(position);
+            return resource(word & 0xFFFFFFFFFFL, (int) (word >>> 40));
+        }
+    }
+}
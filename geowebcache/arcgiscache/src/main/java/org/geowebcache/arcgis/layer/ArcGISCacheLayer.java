@@ -59,6 +59,12 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
      */
     private Boolean hexZoom;
 
+    /**
+     * Optional, maximum number of compact cache bundles kept memory-mapped. If not provided
+     * defaults to {@link ArcGISCompactCache#DEFAULT_MAX_OPEN_BUNDLES}
+     */
+    private Integer maxOpenBundles;
+
     private transient CacheInfo cacheInfo;
 
     private transient BoundingBox layerBounds;
@@ -116,6 +122,18 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
         this.hexZoom = hexZoom;
     }
 
+    /**
+     * Returns the maximum number of compact cache bundles kept memory-mapped, or {@code null} if
+     * not provided, in which case defaults to {@link ArcGISCompactCache#DEFAULT_MAX_OPEN_BUNDLES}
+     */
+    public Integer getMaxOpenBundles() {
+        return maxOpenBundles;
+    }
+
+    public void setMaxOpenBundles(Integer maxOpenBundles) {
+        this.maxOpenBundles = maxOpenBundles;
+    }
+
     /**
      * @return {@code true} if success. Note this method's return type should be void. It's not
      * checked anywhere
@@ -160,13 +178,15 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
                 String pathToCacheRoot = tilingScheme.getParent() + "/_alllayers";
                 if (tileCachePath != null)
                     pathToCacheRoot = tileCachePath.getAbsolutePath();
+                int maxOpenBundles = this.maxOpenBundles == null
+                    ? ArcGISCompactCache.DEFAULT_MAX_OPEN_BUNDLES : this.maxOpenBundles;
 
                 if (storageFormat.equals(CacheStorageInfo.COMPACT_FORMAT_CODE)) {
                     log.info(getName() + " uses compact format (ArcGIS 10.0 - 10.2)");
-                    compactCache = new ArcGISCompactCacheV1(pathToCacheRoot);
+                    compactCache = new ArcGISCompactCacheV1(pathToCacheRoot, maxOpenBundles);
                 } else if (storageFormat.equals(CacheStorageInfo.COMPACT_FORMAT_CODE_V2)) {
                     log.info(getName() + " uses compact format (ArcGIS 10.3)");
-                    compactCache = new ArcGISCompactCacheV2(pathToCacheRoot);
+                    compactCache = new ArcGISCompactCacheV2(pathToCacheRoot, maxOpenBundles);
                 }
             }
         } catch (FileNotFoundException e) {
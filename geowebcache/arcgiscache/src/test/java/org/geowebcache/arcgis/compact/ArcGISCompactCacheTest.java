@@ -3,10 +3,18 @@ package org.geowebcache.arcgis.compact;
 import junit.framework.TestCase;
 import org.geowebcache.io.Resource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 /**
  * Unit test for ArcGIS compact cache classes. Available data in supplied test caches:
@@ -158,6 +166,92 @@ public class ArcGISCompactCacheTest extends TestCase {
         f.delete();
     }
 
+    public void testBundleFileResourceInputStream() throws Exception {
+        URL url = getClass().getResource("/compactcache/_alllayers/");
+        ArcGISCompactCache cache = new ArcGISCompactCacheV1(url.toURI().getPath());
+        assertSameContents(cache.getBundleFileResource(5, 12, 7), 6342);
+
+        url = getClass().getResource("/compactcacheV2/_alllayers/");
+        cache = new ArcGISCompactCacheV2(url.toURI().getPath());
+        assertSameContents(cache.getBundleFileResource(5, 11, 5), 6055);
+    }
+
+    public void testMaxOpenBundles() throws Exception {
+        URL url = getClass().getResource("/compactcacheV2/_alllayers/");
+        ArcGISCompactCache cache = new ArcGISCompactCacheV2(url.toURI().getPath(), 1);
+
+        Resource resource = cache.getBundleFileResource(4, 5, 4);
+        assertEquals(1, cache.getOpenBundleCount());
+
+        // opening another bundle closes the first one
+        assertNotNull(cache.getBundleFileResource(5, 11, 5));
+        assertEquals(1, cache.getOpenBundleCount());
+
+        // resources of closed bundles can still be read
+        assertSameContents(resource, 7288);
+        assertSameContents(cache.getBundleFileResource(4, 5, 4), 7288);
+
+        // missing bundles are not kept open
+        assertNull(cache.getBundleFileResource(6, 13, 11));
+        assertEquals(1, cache.getOpenBundleCount());
+    }
+
+    public void testRewrittenBundleIsMappedAgain() throws Exception {
+        // files can't be truncated while mapped on Windows
+        if (File.separatorChar == '\\') {
+            return;
+        }
+        File original = new File(getClass()
+                .getResource("/compactcacheV2/_alllayers/L04/R0000C0000.bundle").toURI());
+        File root = Files.createTempDirectory("compactcache").toFile();
+        File bundle = new File(root, "L04" + File.separator + "R0000C0000.bundle");
+        try {
+            assertTrue(bundle.getParentFile().mkdirs());
+            Files.copy(original.toPath(), bundle.toPath());
+
+            ArcGISCompactCache cache = new ArcGISCompactCacheV2(root.getAbsolutePath());
+            // checked on each access
+            cache.stampCheckInterval = 0;
+            assertSameContents(cache.getBundleFileResource(4, 5, 4), 7288);
+
+            // truncated to its index, the tile data is gone
+            try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+                file.setLength(64 + 8 * 128 * 128);
+            }
+            assertNull(cache.getBundleFileResource(4, 5, 4));
+            assertEquals(1, cache.getOpenBundleCount());
+
+            Files.copy(original.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            assertTrue(bundle.setLastModified(bundle.lastModified() + 2000));
+            assertSameContents(cache.getBundleFileResource(4, 5, 4), 7288);
+
+            assertTrue(bundle.delete());
+            assertNull(cache.getBundleFileResource(4, 5, 4));
+            assertEquals(0, cache.getOpenBundleCount());
+        } finally {
+            bundle.delete();
+            bundle.getParentFile().delete();
+            root.delete();
+        }
+    }
+
+    private void assertSameContents(Resource resource, int size) throws Exception {
+        assertNotNull(resource);
+        assertEquals(size, resource.getSize());
+
+        byte[] streamed = new byte[size];
+        try (InputStream is = resource.getInputStream()) {
+            new DataInputStream(is).readFully(streamed);
+            assertEquals(-1, is.read());
+        }
+
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        assertEquals(size, resource.transferTo(Channels.newChannel(transferred)));
+
+        assertTrue(Arrays.equals(streamed, transferred.toByteArray()));
+        assertTrue(Arrays.equals(JFIFHeader, Arrays.copyOf(streamed, JFIFHeader.length)));
+    }
+
     private boolean startsWithJPEGHeader(File f) {
         try {
             FileInputStream fis = new FileInputStream(f);
@@ -49,6 +49,8 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.service.HttpErrorCodeException;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
+import org.geowebcache.stats.RequestTrace;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.CompositeBlobStore;
@@ -329,25 +331,44 @@ public class GeoWebCacheDispatcher extends AbstractController {
     private void handleServiceRequest(String serviceStr, HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
+        final long start = System.nanoTime();
+        final RequestTrace trace = runtimeStats == null ? null : runtimeStats.startTrace();
         Conveyor conv = null;
+        String layerName = null;
+        try {
+            // 1) Figure out what Service should handle this request
+            long stageStart = RequestTrace.start();
+            Service service = findService(serviceStr);
+            RequestTrace.stop(Stage.DISPATCH, stageStart);
+
+            // 2) Find out what layer will be used and how
+            stageStart = RequestTrace.start();
+            conv = service.getConveyor(request, response);
+            RequestTrace.stop(Stage.CONVEYOR, stageStart);
+            conv.setTrace(trace);
+            layerName = conv.getLayerId();
+            if (layerName != null && !tileLayerDispatcher.getTileLayer(layerName).isEnabled()) {
+                throw new OWSException(400, "InvalidParameterValue", "LAYERS", "Layer '"
+                        + layerName + "' is disabled");
+            }
 
-        // 1) Figure out what Service should handle this request
-        Service service = findService(serviceStr);
-
-        // 2) Find out what layer will be used and how
-        conv = service.getConveyor(request, response);
-        final String layerName = conv.getLayerId();
-        if (layerName != null && !tileLayerDispatcher.getTileLayer(layerName).isEnabled()) {
-            throw new OWSException(400, "InvalidParameterValue", "LAYERS", "Layer '" + layerName
-                    + "' is disabled");
-        }
+            // Check where this should be dispatched
+            if (conv.reqHandler == Conveyor.RequestHandler.SERVICE) {
+                // A3 The service object takes it from here
+                service.handleRequest(conv);
+            } else {
+                ResponseUtils.writeTile(conv, layerName, tileLayerDispatcher,
+                        defaultStorageFinder, runtimeStats);
+            }
 
-        // Check where this should be dispatched
-        if (conv.reqHandler == Conveyor.RequestHandler.SERVICE) {
-            // A3 The service object takes it from here
-            service.handleRequest(conv);
-        } else {
-            ResponseUtils.writeTile(conv, layerName, tileLayerDispatcher, defaultStorageFinder, runtimeStats);
+            if (runtimeStats != null) {
+                runtimeStats.logLatency(serviceStr, layerName, conv.getCacheResult(),
+                        System.nanoTime() - start);
+            }
+        } finally {
+            if (runtimeStats != null) {
+                runtimeStats.endTrace(trace, serviceStr, layerName);
+            }
         }
     }
 
@@ -132,4 +132,19 @@ public interface Configuration {
     public void addLayer(TileLayer tl) throws IllegalArgumentException;
 
     public boolean containsLayer(String tileLayerId);
+
+    /**
+     * Registers a listener to be notified of the changes to the layers of this configuration,
+     * including the ones not made through the {@link TileLayerDispatcher}
+     *
+     * @return {@code true} if this configuration reports its changes, {@code false} if it does
+     *         not, in which case its layers have to be looked up each time they are used
+     */
+    public default boolean addConfigurationListener(ConfigurationListener listener) {
+        return false;
+    }
+
+    public default boolean removeConfigurationListener(ConfigurationListener listener) {
+        return false;
+    }
 }
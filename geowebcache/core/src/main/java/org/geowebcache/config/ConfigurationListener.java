@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.config;
+
+import java.util.EventListener;
+
+/**
+ * Notified of the changes to the layers served by a {@link Configuration}, whoever makes them
+ *
+ * @see Configuration#addConfigurationListener(ConfigurationListener)
+ */
+public interface ConfigurationListener extends EventListener {
+
+    /**
+     * A layer has been added, modified or removed, or is no longer served
+     *
+     * @param configuration the configuration serving the layer
+     * @param layerName the name of the layer
+     */
+    void layerChanged(Configuration configuration, String layerName);
+
+    /**
+     * Any layer of the configuration may have changed, e.g. because it has been reloaded
+     *
+     * @param configuration the configuration
+     */
+    void layersChanged(Configuration configuration);
+
+}
@@ -0,0 +1,137 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.config;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.blobstore.dedup.DedupBlobStore;
+
+/**
+ * Configuration and factory for {@link DedupBlobStore}, a blob store keeping a single copy of
+ * identical tiles.
+ *
+ * @see BlobStoreConfig
+ */
+public class DedupBlobStoreConfig extends BlobStoreConfig {
+
+    private static final long serialVersionUID = -2170591851386428265L;
+
+    static final int DEFAULT_SEGMENT_SIZE_MB = 64;
+
+    static final int DEFAULT_COMPACTION_INTERVAL = 300;
+
+    static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private String baseDirectory;
+
+    private Integer segmentSizeMB;
+
+    private Integer compactionIntervalSeconds;
+
+    private Double compactionThreshold;
+
+    public DedupBlobStoreConfig() {
+        super();
+    }
+
+    public DedupBlobStoreConfig(String id) {
+        super(id);
+    }
+
+    /**
+     * @return the directory holding the tile payloads and the index of the tiles
+     */
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    public void setBaseDirectory(String baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * @return the size, in megabytes, past which tile payloads are written to a new segment file,
+     *         defaults to 64
+     */
+    public int getSegmentSizeMB() {
+        return segmentSizeMB == null ? DEFAULT_SEGMENT_SIZE_MB : segmentSizeMB;
+    }
+
+    public void setSegmentSizeMB(Integer segmentSizeMB) {
+        this.segmentSizeMB = segmentSizeMB;
+    }
+
+    /**
+     * @return the time, in seconds, between background compactions, defaults to 300, {@code 0}
+     *         disables them
+     */
+    public int getCompactionIntervalSeconds() {
+        return compactionIntervalSeconds == null ? DEFAULT_COMPACTION_INTERVAL
+                : compactionIntervalSeconds;
+    }
+
+    public void setCompactionIntervalSeconds(Integer compactionIntervalSeconds) {
+        this.compactionIntervalSeconds = compactionIntervalSeconds;
+    }
+
+    /**
+     * @return the fraction of a segment file no longer referenced by any tile past which it is
+     *         compacted, defaults to 0.5
+     */
+    public double getCompactionThreshold() {
+        return compactionThreshold == null ? DEFAULT_COMPACTION_THRESHOLD : compactionThreshold;
+    }
+
+    public void setCompactionThreshold(Double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("DedupBlobStore[id:").append(getId()).append(", enabled:")
+                .append(isEnabled()).append(", baseDirectory:").append(baseDirectory)
+                .append(", segmentSizeMB:").append(getSegmentSizeMB())
+                .append(", compactionIntervalSeconds:").append(getCompactionIntervalSeconds())
+                .append(", compactionThreshold:").append(getCompactionThreshold()).append(']')
+                .toString();
+    }
+
+    @Override
+    public BlobStore createInstance(TileLayerDispatcher layers, LockProvider lockProvider)
+            throws StorageException {
+        checkState(getId() != null, "id not set");
+        checkState(isEnabled(),
+                "Can't call DedupBlobStoreConfig.createInstance() is blob store is not enabled");
+        checkState(baseDirectory != null, "baseDirectory not provided");
+        checkState(getSegmentSizeMB() > 0, "segmentSizeMB must be a positive integer: %s",
+                getSegmentSizeMB());
+        checkState(getCompactionIntervalSeconds() >= 0,
+                "compactionIntervalSeconds can't be negative: %s", getCompactionIntervalSeconds());
+        checkState(getCompactionThreshold() > 0 && getCompactionThreshold() <= 1,
+                "compactionThreshold must be greater than 0 and at most 1: %s",
+                getCompactionThreshold());
+        return new DedupBlobStore(baseDirectory, getSegmentSizeMB() * 1024L * 1024L,
+                getCompactionIntervalSeconds(), getCompactionThreshold());
+    }
+
+    @Override
+    public String getLocation() {
+        return getBaseDirectory();
+    }
+}
@@ -39,6 +39,14 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
 
     private int fileSystemBlockSize;
 
+    private Integer deleteThreads;
+
+    private Double maxDeletesPerSecond;
+
+    private Integer tileIndexDirectories;
+
+    private Integer tileIndexExpiration;
+
     public FileBlobStoreConfig() {
         super();
     }
@@ -80,6 +88,54 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
         this.fileSystemBlockSize = fileSystemBlockSize;
     }
 
+    /**
+     * The number of threads deleting the directories of truncated layers, gridsets and parameters
+     * in the background, {@code null} for the default of 1.
+     */
+    public Integer getDeleteThreads() {
+        return deleteThreads;
+    }
+
+    public void setDeleteThreads(Integer deleteThreads) {
+        this.deleteThreads = deleteThreads;
+    }
+
+    /**
+     * The maximum number of files deleted per second in the background, {@code null} or {@code 0}
+     * for no limit.
+     */
+    public Double getMaxDeletesPerSecond() {
+        return maxDeletesPerSecond;
+    }
+
+    public void setMaxDeletesPerSecond(Double maxDeletesPerSecond) {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+
+    /**
+     * The maximum number of tile directories held in the in memory index of cached tiles,
+     * {@code null} or {@code 0} to disable the index.
+     */
+    public Integer getTileIndexDirectories() {
+        return tileIndexDirectories;
+    }
+
+    public void setTileIndexDirectories(Integer tileIndexDirectories) {
+        this.tileIndexDirectories = tileIndexDirectories;
+    }
+
+    /**
+     * The time in seconds after which an indexed tile directory is listed again, {@code null} for
+     * the default of 300 seconds.
+     */
+    public Integer getTileIndexExpiration() {
+        return tileIndexExpiration;
+    }
+
+    public void setTileIndexExpiration(Integer tileIndexExpiration) {
+        this.tileIndexExpiration = tileIndexExpiration;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder("FileBlobStore[id:").append(getId()).append(", enabled:")
@@ -95,10 +151,28 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
         checkState(baseDirectory != null, "baseDirectory not provided");
         checkState(fileSystemBlockSize >= 0, "fileSystemBlockSize must be a positive integer: %s",
                 fileSystemBlockSize);
+        checkState(deleteThreads == null || deleteThreads > 0,
+                "deleteThreads must be a positive integer: %s", deleteThreads);
+        checkState(maxDeletesPerSecond == null || maxDeletesPerSecond >= 0,
+                "maxDeletesPerSecond must be positive or zero: %s", maxDeletesPerSecond);
+        checkState(tileIndexDirectories == null || tileIndexDirectories >= 0,
+                "tileIndexDirectories must be positive or zero: %s", tileIndexDirectories);
+        checkState(tileIndexExpiration == null || tileIndexExpiration > 0,
+                "tileIndexExpiration must be a positive integer: %s", tileIndexExpiration);
         FileBlobStore fileBlobStore = new FileBlobStore(baseDirectory);
         if(fileSystemBlockSize > 0){
             fileBlobStore.setBlockSize(fileSystemBlockSize);
         }
+        if (deleteThreads != null) {
+            fileBlobStore.setDeleteThreads(deleteThreads);
+        }
+        if (maxDeletesPerSecond != null) {
+            fileBlobStore.setMaxDeletesPerSecond(maxDeletesPerSecond);
+        }
+        if (tileIndexDirectories != null && tileIndexDirectories > 0) {
+            fileBlobStore.setTileIndex(tileIndexDirectories,
+                    tileIndexExpiration == null ? 300 : tileIndexExpiration);
+        }
         return fileBlobStore;
     }
 
@@ -0,0 +1,149 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.config;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheBlobStore;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheBlobStore.EvictionPolicy;
+
+/**
+ * Configuration and factory for {@link LocalCacheBlobStore}, a local disk cache in front of the
+ * {@link #getRemote() remote} blob store configured inside it.
+ *
+ * @see BlobStoreConfig
+ */
+public class LocalCacheBlobStoreConfig extends BlobStoreConfig {
+
+    private static final long serialVersionUID = 4384251287470392105L;
+
+    private BlobStoreConfig remote;
+
+    private String baseDirectory;
+
+    private int maxSizeMB;
+
+    private EvictionPolicy evictionPolicy;
+
+    private int revalidateAfterSeconds;
+
+    public LocalCacheBlobStoreConfig() {
+        super();
+    }
+
+    public LocalCacheBlobStoreConfig(String id) {
+        super(id);
+    }
+
+    /**
+     * @return the configuration of the blob store the local cache is kept for
+     */
+    public BlobStoreConfig getRemote() {
+        return remote;
+    }
+
+    public void setRemote(BlobStoreConfig remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * @return the directory where the local copy of the tiles is kept
+     */
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    public void setBaseDirectory(String baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * @return the maximum size of the local copy of the tiles, in megabytes
+     */
+    public int getMaxSizeMB() {
+        return maxSizeMB;
+    }
+
+    public void setMaxSizeMB(int maxSizeMB) {
+        this.maxSizeMB = maxSizeMB;
+    }
+
+    /**
+     * @return the policy to choose the tiles to remove from the local cache once it's full,
+     *         defaults to {@link EvictionPolicy#LRU LRU}
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy == null ? EvictionPolicy.LRU : evictionPolicy;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * @return the age, in seconds, after which a locally cached tile is checked against the remote
+     *         blob store, or {@code 0} (the default) to never check
+     */
+    public int getRevalidateAfterSeconds() {
+        return revalidateAfterSeconds;
+    }
+
+    public void setRevalidateAfterSeconds(int revalidateAfterSeconds) {
+        this.revalidateAfterSeconds = revalidateAfterSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("LocalCacheBlobStore[id:").append(getId()).append(", enabled:")
+                .append(isEnabled()).append(", baseDirectory:").append(baseDirectory)
+                .append(", maxSizeMB:").append(maxSizeMB).append(", evictionPolicy:")
+                .append(getEvictionPolicy()).append(", revalidateAfterSeconds:")
+                .append(revalidateAfterSeconds).append(", remote:").append(remote).append(']')
+                .toString();
+    }
+
+    @Override
+    public BlobStore createInstance(TileLayerDispatcher layers, LockProvider lockProvider)
+            throws StorageException {
+        checkState(getId() != null, "id not set");
+        checkState(isEnabled(), "Can't call LocalCacheBlobStoreConfig.createInstance() "
+                + "is blob store is not enabled");
+        checkState(remote != null, "remote blob store not provided");
+        checkState(remote.isEnabled(), "remote blob store is not enabled");
+        checkState(baseDirectory != null, "baseDirectory not provided");
+        checkState(maxSizeMB > 0, "maxSizeMB must be a positive integer: %s", maxSizeMB);
+        checkState(revalidateAfterSeconds >= 0, "revalidateAfterSeconds can't be negative: %s",
+                revalidateAfterSeconds);
+
+        BlobStore remoteStore = remote.createInstance(layers, lockProvider);
+        try {
+            return new LocalCacheBlobStore(remoteStore, baseDirectory, maxSizeMB * 1024L * 1024L,
+                    getEvictionPolicy(), revalidateAfterSeconds);
+        } catch (StorageException | RuntimeException e) {
+            remoteStore.destroy();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getLocation() {
+        return String.format("%s, caching %s", baseDirectory,
+                remote == null ? null : remote.getLocation());
+    }
+}
@@ -34,6 +34,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -74,6 +83,9 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.meta.ContactInformation;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.GeoRSSFeedDefinition;
+import org.geowebcache.layer.wms.BalancedWMSHttpHelper;
+import org.geowebcache.layer.wms.StaleTileRefresher;
+import org.geowebcache.layer.wms.WMSBackendPool;
 import org.geowebcache.layer.wms.WMSHttpHelper;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.locks.LockProvider;
@@ -83,6 +95,7 @@ import org.geowebcache.seed.TruncateLayerRequest;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.util.ApplicationContextProvider;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
 import org.springframework.web.context.WebApplicationContext;
 import org.w3c.dom.Document;
@@ -116,7 +129,7 @@ public class XMLConfiguration implements Configuration, InitializingBean {
 
     private GeoWebCacheConfiguration gwcConfig;
 
-    private transient Map<String, TileLayer> layers;
+    private transient volatile Map<String, TileLayer> layers;
 
     private GridSetBroker gridSetBroker;
 
@@ -127,6 +140,29 @@ public class XMLConfiguration implements Configuration, InitializingBean {
      */
     private boolean reloadConfigOnInit = true;
 
+    private int initializationThreads = Runtime.getRuntime().availableProcessors();
+
+    private boolean lazyLayerInitialization = false;
+
+    private transient WMSBackendPool backendPool;
+
+    private transient StaleTileRefresher staleTileRefresher;
+
+    /**
+     * Initialization of the layers still running in the background when
+     * {@link #setLazyLayerInitialization(boolean) lazy}, by layer name
+     */
+    private transient volatile Map<String, LayerInitialization> pendingLayers = Collections
+            .emptyMap();
+
+    /**
+     * Layers whose lazy initialization failed, by layer name. They are not served, but kept in
+     * {@link #gwcConfig} so that saving the configuration does not drop them.
+     */
+    private final transient Map<String, TileLayer> failedLayers = new ConcurrentHashMap<String, TileLayer>();
+
+    private final transient CopyOnWriteArrayList<ConfigurationListener> listeners = new CopyOnWriteArrayList<ConfigurationListener>();
+
     /**
      * Base Constructor with custom ConfiguratioNResourceProvider
      *  
@@ -340,24 +376,35 @@ public class XMLConfiguration implements Configuration, InitializingBean {
                         + " ! continuing WITHOUT proxy!", e);
             }
 
-            final WMSHttpHelper sourceHelper;
-
+            final String httpUsername;
+            final String httpPassword;
             if (wl.getHttpUsername() != null) {
-                sourceHelper = new WMSHttpHelper(wl.getHttpUsername(), wl.getHttpPassword(),
-                        proxyUrl);
+                httpUsername = wl.getHttpUsername();
+                httpPassword = wl.getHttpPassword();
                 log.debug("Using per-layer HTTP credentials for " + wl.getName() + ", "
                         + "username " + wl.getHttpUsername());
             } else if (gwcConfig.getHttpUsername() != null) {
-                sourceHelper = new WMSHttpHelper(gwcConfig.getHttpUsername(),
-                        gwcConfig.getHttpPassword(), proxyUrl);
+                httpUsername = gwcConfig.getHttpUsername();
+                httpPassword = gwcConfig.getHttpPassword();
                 log.debug("Using global HTTP credentials for " + wl.getName());
             } else {
-                sourceHelper = new WMSHttpHelper(null, null, proxyUrl);
+                httpUsername = null;
+                httpPassword = null;
                 log.debug("Not using HTTP credentials for " + wl.getName());
             }
 
+            // balance the requests of layers with several backends, if asked to
+            final WMSHttpHelper sourceHelper;
+            if (wl.isBalanceBackends() && wl.getWMSurl() != null && wl.getWMSurl().length > 1) {
+                sourceHelper = new BalancedWMSHttpHelper(httpUsername, httpPassword, proxyUrl,
+                        getBackendPool());
+            } else {
+                sourceHelper = new WMSHttpHelper(httpUsername, httpPassword, proxyUrl);
+            }
+
             wl.setSourceHelper(sourceHelper);
             wl.setLockProvider(gwcConfig.getLockProvider());
+            wl.setStaleTileRefresher(getStaleTileRefresher());
         }
     }
 
@@ -394,6 +441,8 @@ public class XMLConfiguration implements Configuration, InitializingBean {
         if (!resourceProvider.hasOutput()) {
             return;
         }
+        // don't persist layers half way through their initialization
+        awaitInitialization();
         
         try {
             resourceProvider.backup();
@@ -451,6 +500,8 @@ public class XMLConfiguration implements Configuration, InitializingBean {
 
         xs.alias("blobStores", new ArrayList<BlobStoreConfig>().getClass());
         xs.alias("FileBlobStore", FileBlobStoreConfig.class);
+        xs.alias("LocalCacheBlobStore", LocalCacheBlobStoreConfig.class);
+        xs.alias("DedupBlobStore", DedupBlobStoreConfig.class);
         xs.aliasAttribute(BlobStoreConfig.class, "_default", "default");
 
         // These two are for 1.1.x compatibility
@@ -574,8 +625,10 @@ public class XMLConfiguration implements Configuration, InitializingBean {
         }
 
         initialize(tl);
+        removeFailedLayer(tl.getName());
         gwcConfig.getLayers().add(tl);
         updateLayers();
+        fireLayerChanged(tl.getName());
     }
 
     /**
@@ -588,14 +641,19 @@ public class XMLConfiguration implements Configuration, InitializingBean {
      */
     public synchronized void modifyLayer(TileLayer tl) throws NoSuchElementException {
         TileLayer previous = getTileLayer(tl.getName());
+        if (null == previous) {
+            previous = failedLayers.get(tl.getName());
+        }
         if (null == previous) {
             throw new NoSuchElementException("Layer " + tl.getName() + " does not exist");
         }
 
         gwcConfig.getLayers().remove(previous);
+        failedLayers.remove(tl.getName());
         initialize(tl);
         gwcConfig.getLayers().add(tl);
         updateLayers();
+        fireLayerChanged(tl.getName());
     }
 
     /**
@@ -605,18 +663,52 @@ public class XMLConfiguration implements Configuration, InitializingBean {
     public synchronized boolean removeLayer(final String layerName) {
         final TileLayer tileLayer = getTileLayer(layerName);
         if (tileLayer == null) {
-            return false;
+            return removeFailedLayer(layerName);
         }
 
         boolean removed = false;
         removed = gwcConfig.getLayers().remove(tileLayer);
         if (removed) {
             updateLayers();
-            
+            fireLayerChanged(layerName);
         }
         return removed;
     }
 
+    /**
+     * @see org.geowebcache.config.Configuration#addConfigurationListener(ConfigurationListener)
+     */
+    @Override
+    public boolean addConfigurationListener(ConfigurationListener listener) {
+        listeners.addIfAbsent(listener);
+        return true;
+    }
+
+    @Override
+    public boolean removeConfigurationListener(ConfigurationListener listener) {
+        return listeners.remove(listener);
+    }
+
+    private void fireLayerChanged(String layerName) {
+        for (ConfigurationListener listener : listeners) {
+            try {
+                listener.layerChanged(this, layerName);
+            } catch (RuntimeException e) {
+                log.error("Error notifying change of layer " + layerName, e);
+            }
+        }
+    }
+
+    private void fireLayersChanged() {
+        for (ConfigurationListener listener : listeners) {
+            try {
+                listener.layersChanged(this);
+            } catch (RuntimeException e) {
+                log.error("Error notifying change of the layers of " + getIdentifier(), e);
+            }
+        }
+    }
+
     /**
      * @param gridSet
      * @throws GeoWebCacheException
@@ -851,6 +943,67 @@ public class XMLConfiguration implements Configuration, InitializingBean {
         return result.getNode();
     }
 
+    /**
+     * Sets the number of threads initializing the layers in parallel, defaults to the number of
+     * processors. A value of {@code 1} initializes them one after the other in the calling thread.
+     */
+    public void setInitializationThreads(int initializationThreads) {
+        Assert.isTrue(initializationThreads > 0, "initializationThreads shall be positive");
+        this.initializationThreads = initializationThreads;
+    }
+
+    /**
+     * Whether {@link #initialize(GridSetBroker)} returns before the layers are initialized,
+     * leaving their initialization to the background threads. A layer looked up before its turn
+     * comes is initialized on the spot; listing the layers or saving the configuration waits for
+     * all of them. Defaults to {@code false}.
+     */
+    public void setLazyLayerInitialization(boolean lazyLayerInitialization) {
+        this.lazyLayerInitialization = lazyLayerInitialization;
+    }
+
+    /**
+     * Sets the pool tracking the health and load of the WMS backends of the layers with several
+     * WMS URLs. When not set the configuration uses a pool of its own.
+     */
+    public synchronized void setBackendPool(WMSBackendPool backendPool) {
+        this.backendPool = backendPool;
+    }
+
+    private synchronized WMSBackendPool getBackendPool() {
+        if (backendPool == null) {
+            backendPool = new WMSBackendPool();
+        }
+        return backendPool;
+    }
+
+    public synchronized void setStaleTileRefresher(StaleTileRefresher staleTileRefresher) {
+        this.staleTileRefresher = staleTileRefresher;
+    }
+
+    private synchronized StaleTileRefresher getStaleTileRefresher() {
+        if (staleTileRefresher == null) {
+            staleTileRefresher = new StaleTileRefresher();
+        }
+        return staleTileRefresher;
+    }
+
+    /**
+     * @return the number of layers whose initialization has not completed yet, {@code 0} once the
+     *         configuration is ready to serve all of its layers
+     */
+    public int getPendingLayerCount() {
+        return pendingLayers.size();
+    }
+
+    /**
+     * @return the number of layers whose {@link #setLazyLayerInitialization(boolean) lazy}
+     *         initialization failed, and which are not served
+     */
+    public int getFailedLayerCount() {
+        return failedLayers.size();
+    }
+
     /**
      * @see org.geowebcache.config.Configuration#initialize(org.geowebcache.grid.GridSetBroker)
      */
@@ -868,24 +1021,171 @@ public class XMLConfiguration implements Configuration, InitializingBean {
 
         log.info("Initializing layers from " + getIdentifier());
 
-        // Loop over the layers and set appropriate values
-        for (TileLayer layer : gwcConfig.getLayers()) {
+        failedLayers.clear();
+        Map<String, LayerInitialization> tasks = new ConcurrentHashMap<String, LayerInitialization>();
+        for (final TileLayer layer : gwcConfig.getLayers()) {
             if (layer == null) {
                 throw new IllegalStateException(getIdentifier() + " contains a null layer");
             }
-            initialize(layer);
+            tasks.put(layer.getName(), new LayerInitialization(layer));
+        }
+
+        if (lazyLayerInitialization) {
+            this.pendingLayers = tasks;
+            updateLayers();
+            startInitialization(tasks);
+        } else {
+            startInitialization(tasks);
+            // the pool drops the tasks it completes, iterate over a copy to check them all
+            for (LayerInitialization task : new ArrayList<LayerInitialization>(tasks.values())) {
+                task.run();
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new GeoWebCacheException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GeoWebCacheException(e);
+                }
+            }
+            this.pendingLayers = Collections.emptyMap();
+            updateLayers();
         }
 
-        updateLayers();
-        
         this.reloadConfigOnInit = true;
+        fireLayersChanged();
 
         return getTileLayerCount();
     }
 
+    /**
+     * Queues the layer initialization tasks on a pool of {@link #setInitializationThreads(int)}
+     * threads, which goes away once they are all done. Each task is removed from the
+     * {@link #pendingLayers} once run. The tasks can as well be run directly by threads that
+     * need the layer before its turn comes, in which case the pool skips them.
+     */
+    private void startInitialization(final Map<String, LayerInitialization> tasks) {
+        final int threads = Math.min(initializationThreads, tasks.size());
+        if (threads <= 1 && !lazyLayerInitialization) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                "GWC Layer Initializer-");
+        threadFactory.setDaemon(true);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(threads, 1),
+                Math.max(threads, 1), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        for (final Map.Entry<String, LayerInitialization> entry : tasks.entrySet()) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    LayerInitialization task = entry.getValue();
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        // when not lazy, initialize() reports the failure of the configuration
+                        if (tasks == pendingLayers) {
+                            initializationFailed(task.layer, e.getCause());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    initializationDone(tasks, entry.getKey(), task);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the initialization of the layer if still pending, running it in the calling
+     * thread if it hasn't started yet
+     * 
+     * @return the layer, or {@code null} if its initialization failed
+     */
+    private TileLayer awaitInitialization(final TileLayer layer) {
+        if (layer == null) {
+            return null;
+        }
+        final Map<String, LayerInitialization> tasks = pendingLayers;
+        LayerInitialization task = tasks.get(layer.getName());
+        if (task != null && task.layer == layer) {
+            task.run();
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                initializationFailed(layer, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return layer;
+            }
+            initializationDone(tasks, layer.getName(), task);
+            if (failedLayers.get(layer.getName()) == layer) {
+                return null;
+            }
+        }
+        return layer;
+    }
+
+    /**
+     * Stops serving a layer whose lazy initialization failed. The layer is still kept in
+     * {@link #gwcConfig}, it is served again once fixed through {@link #addLayer(TileLayer)} or
+     * {@link #modifyLayer(TileLayer)}, or a reload of the configuration.
+     */
+    private synchronized void initializationFailed(final TileLayer layer, final Throwable cause) {
+        // the initializer thread and the threads looking up the layer may all report it
+        if (layers.get(layer.getName()) != layer) {
+            return;
+        }
+        log.error("Failed to initialize layer " + layer.getName() + ", it won't be served", cause);
+        failedLayers.put(layer.getName(), layer);
+        updateLayers();
+        fireLayerChanged(layer.getName());
+    }
+
+    /**
+     * Drops a completed initialization task, notifying the listeners once all the layers of a
+     * lazy initialization are ready, as they may only index the layers once initialized
+     */
+    private void initializationDone(final Map<String, LayerInitialization> tasks,
+            final String layerName, final LayerInitialization task) {
+        if (tasks.remove(layerName, task) && tasks.isEmpty() && tasks == pendingLayers) {
+            fireLayersChanged();
+        }
+    }
+
+    /**
+     * Removes the layer that failed to initialize under the given name from {@link #gwcConfig},
+     * if any
+     */
+    private boolean removeFailedLayer(final String layerName) {
+        TileLayer failed = failedLayers.remove(layerName);
+        return failed != null && gwcConfig.getLayers().remove(failed);
+    }
+
+    /**
+     * @return the layers of {@link #gwcConfig} that are served, that is all but the ones that
+     *         failed to initialize
+     */
+    private List<TileLayer> getServedLayers() {
+        if (failedLayers.isEmpty()) {
+            return Collections.unmodifiableList(gwcConfig.getLayers());
+        }
+        List<TileLayer> served = new ArrayList<TileLayer>(gwcConfig.getLayers());
+        served.removeAll(failedLayers.values());
+        return Collections.unmodifiableList(served);
+    }
+
+    private void awaitInitialization() {
+        for (String layerName : pendingLayers.keySet()) {
+            awaitInitialization(layers.get(layerName));
+        }
+    }
+
     private void updateLayers() {
         Map<String, TileLayer> buff = new HashMap<String, TileLayer>();
-        for (TileLayer layer : gwcConfig.getLayers()) {
+        for (TileLayer layer : getServedLayers()) {
             buff.put(layer.getName(), layer);
         }
         this.layers = buff;
@@ -937,21 +1237,23 @@ public class XMLConfiguration implements Configuration, InitializingBean {
      * @see org.geowebcache.config.Configuration#getTileLayers()
      */
     public List<TileLayer> getTileLayers() {
-        return Collections.unmodifiableList(gwcConfig.getLayers());
+        awaitInitialization();
+        return getServedLayers();
     }
 
     /**
      * @see org.geowebcache.config.Configuration#getLayers()
      */
     public Iterable<TileLayer> getLayers() {
-        return Collections.unmodifiableList(gwcConfig.getLayers());
+        awaitInitialization();
+        return getServedLayers();
     }
 
     /**
      * @see org.geowebcache.config.Configuration#getTileLayer(java.lang.String)
      */
     public TileLayer getTileLayer(String layerName) {
-        return layers.get(layerName);
+        return awaitInitialization(layers.get(layerName));
     }
 
     /**
@@ -959,7 +1261,7 @@ public class XMLConfiguration implements Configuration, InitializingBean {
      */
     public TileLayer getTileLayerById(String layerId) {
         // this configuration does not differentiate between identifier and identity yet
-        return layers.get(layerId);
+        return awaitInitialization(layers.get(layerId));
     }
 
     /**
@@ -1007,4 +1309,21 @@ public class XMLConfiguration implements Configuration, InitializingBean {
         return gwcConfig.getLockProvider();
     }
 
+    /**
+     * The pending initialization of a layer
+     */
+    private class LayerInitialization extends FutureTask<TileLayer> {
+
+        private final TileLayer layer;
+
+        LayerInitialization(final TileLayer layer) {
+            super(new Callable<TileLayer>() {
+                public TileLayer call() {
+                    initialize(layer);
+                    return layer;
+                }
+            });
+            this.layer = layer;
+        }
+    }
 }
@@ -4,6 +4,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.stats.RequestTrace;
 import org.geowebcache.storage.StorageBroker;
 
 /**
@@ -19,7 +20,7 @@ public abstract class Conveyor {
     };
 
     public static enum CacheResult {
-        HIT, MISS, WMS, OTHER
+        HIT, MISS, WMS, OTHER, STALE
     };
 
     private String layerId = null;
@@ -51,6 +52,9 @@ public abstract class Conveyor {
 
     protected CacheResult cacheResult;
 
+    // Set if the request was sampled for tracing
+    protected RequestTrace trace;
+
     protected Conveyor(String layerId, StorageBroker sb, HttpServletRequest srq,
             HttpServletResponse srp) {
         this.layerId = layerId;
@@ -67,6 +71,14 @@ public abstract class Conveyor {
         this.error = true;
     }
 
+    /**
+     * Clears the error flag and message, once the request is answered in spite of the error
+     */
+    public void clearError() {
+        this.error = false;
+        this.errorMsg = null;
+    }
+
     public boolean getError() {
         return error;
     }
@@ -120,6 +132,17 @@ public abstract class Conveyor {
         this.cacheResult = cacheResult;
     }
 
+    /**
+     * @return the trace of the request, or {@code null} if it is not traced
+     */
+    public RequestTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
+
     // public abstract boolean persist() throws GeoWebCacheException;
 
     // public abstract boolean retrieve(int maxAge) throws GeoWebCacheException;
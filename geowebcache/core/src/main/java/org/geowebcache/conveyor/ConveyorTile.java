@@ -71,6 +71,8 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
 
     private boolean isMetaTileCacheOnly;
 
+    private long staleness = -1;
+
     public ConveyorTile(StorageBroker sb, String layerId, HttpServletRequest servletReq,
             HttpServletResponse servletResp) {
         super(layerId, sb, servletReq, servletResp);
@@ -236,7 +238,16 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
         }
     }
 
+    /**
+     * Looks the tile up in the cache.
+     * <p>
+     * A tile older than {@code maxAge} is reported as missing, but its contents are loaded
+     * nonetheless and {@link #getStaleness()} tells how long ago it expired, so that the caller may
+     * still decide to serve it.
+     * </p>
+     */
     public boolean retrieve(long maxAge) throws GeoWebCacheException {
+        staleness = -1;
         try {
             if (isMetaTileCacheOnly) {
                 boolean cached = storageBroker.getTransient((TileObject) stObj);
@@ -246,8 +257,12 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
             boolean ret = storageBroker.get((TileObject) stObj);
 
             // Do we use expiration, and if so, is the tile recent enough ?
-            if (ret && maxAge > 0 && stObj.getCreated() + maxAge < System.currentTimeMillis()) {
-                ret = false;
+            if (ret && maxAge > 0) {
+                long expired = System.currentTimeMillis() - (stObj.getCreated() + maxAge);
+                if (expired > 0) {
+                    staleness = expired;
+                    ret = false;
+                }
             }
 
             if (ret) {
@@ -299,4 +314,12 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
     public boolean isMetaTileCacheOnly() {
         return isMetaTileCacheOnly;
     }
+
+    /**
+     * @return how long ago, in milliseconds, the tile found by the last {@link #retrieve(long)}
+     *         expired, or {@code -1} if no expired tile was found
+     */
+    public long getStaleness() {
+        return staleness;
+    }
 }
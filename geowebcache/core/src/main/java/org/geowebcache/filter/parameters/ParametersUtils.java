@@ -22,7 +22,9 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
@@ -33,7 +35,34 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class ParametersUtils {
+
+    /**
+     * Maximum number of distinct parameter maps whose identifier and KVP are remembered
+     */
+    static final int CACHE_SIZE = 10000;
+
+    /*
+     * Both the identifier and the KVP are a pure function of the contents of the map, so they can
+     * be shared by all layers and stores and never need invalidating. Lookups work with any map
+     * implementation as map equality and hash codes are based on contents only.
+     */
+    private static final Cache<Map<String, String>, String> IDS = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE).build();
+
+    private static final Cache<Map<String, String>, String> KVPS = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE).build();
+
+    /**
+     * Copies the map before using it as a cache key, so later changes to the original map do not
+     * affect the cache
+     */
+    private static Map<String, String> cacheKey(Map<String, String> parameters) {
+        return Collections.unmodifiableMap(new HashMap<String, String>(parameters));
+    }
     
     /**
      * 
@@ -93,6 +122,15 @@ public class ParametersUtils {
      * @return
      */
     public static String getKvp(Map<String, String> parameters) {
+        String kvp = KVPS.getIfPresent(parameters);
+        if (kvp == null) {
+            kvp = computeKvp(parameters);
+            KVPS.put(cacheKey(parameters), kvp);
+        }
+        return kvp;
+    }
+
+    private static String computeKvp(Map<String, String> parameters) {
         return parameters.entrySet().stream()
             .sorted(derivedComparator(Entry::getKey))
             .map(e->String.join("=", encUTF8(e.getKey()), encUTF8(e.getValue())))
@@ -117,7 +155,9 @@ public class ParametersUtils {
     
     
     /**
-     * Returns the parameters identifier for the given parameters map
+     * Returns the parameters identifier for the given parameters map. The identifiers of the most
+     * recently used maps are cached, as computing them is relatively expensive and happens on
+     * every tile request.
      * @param parameters
      * @return
      */
@@ -125,8 +165,13 @@ public class ParametersUtils {
         if(parameters == null || parameters.size() == 0) {
             return null;
         }
-        String parametersKvp = getLegacyParametersKvp(parameters);
-        return ParametersUtils.buildKey(parametersKvp);
+        String id = IDS.getIfPresent(parameters);
+        if (id == null) {
+            String parametersKvp = getLegacyParametersKvp(parameters);
+            id = ParametersUtils.buildKey(parametersKvp);
+            IDS.put(cacheKey(parameters), id);
+        }
+        return id;
     }
 
     public static String buildKey(String parametersKvp) {
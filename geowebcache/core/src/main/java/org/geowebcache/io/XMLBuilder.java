@@ -73,6 +73,51 @@ public class XMLBuilder {
         return this;
     }
     
+    /**
+     * Writes a self contained part of a document, made of complete elements
+     */
+    public interface Fragment {
+        void write(XMLBuilder xml) throws IOException;
+    }
+
+    /**
+     * Writes a fragment at the current position of this builder, returning its output instead of
+     * appending it, so that it can be reused later with {@link #appendFragment(String)} at the
+     * same position of another document.
+     * 
+     * @param fragment writes complete elements only
+     * @return the output of the fragment
+     * @throws IOException thrown if the underlying Appendable throws IOException
+     */
+    public String captureFragment(Fragment fragment) throws IOException {
+        if(startOfElement) appendUnescaped(">");
+        startOfElement=false;
+        Appendable original = builder;
+        StringBuilder captured = new StringBuilder();
+        builder = captured;
+        try {
+            fragment.write(this);
+        } finally {
+            builder = original;
+        }
+        return captured.toString();
+    }
+
+    /**
+     * Appends the output of {@link #captureFragment(Fragment)}, taken at the same position in an
+     * equivalent document
+     * 
+     * @param fragment the captured output
+     * @return
+     * @throws IOException thrown if the underlying Appendable throws IOException
+     */
+    public XMLBuilder appendFragment(String fragment) throws IOException {
+        if(startOfElement) appendUnescaped(">");
+        startOfElement=false;
+        if(!fragment.isEmpty() && !nodeStack.isEmpty()) nodeStack.peek().containsIndented=true;
+        return appendUnescaped(fragment);
+    }
+
     /**
      * Start an XML Element on a new line indented for its depth
      * @param name name of the element
@@ -52,6 +52,8 @@ import org.geowebcache.layer.meta.MetadataURL;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.stats.RequestTrace;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
@@ -691,7 +693,9 @@ public abstract class TileLayer {
                 }
 
                 try {
+                    long encodeStart = RequestTrace.start();
                     boolean completed = metaTile.writeTileToStream(i, resource);
+                    RequestTrace.stop(Stage.ENCODE, encodeStart);
                     if (!completed) {
                         log.error("metaTile.writeTileToStream returned false, no tiles saved");
                     }
@@ -18,15 +18,21 @@ package org.geowebcache.layer;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.GeoWebCacheExtensions;
 import org.geowebcache.config.Configuration;
+import org.geowebcache.config.ConfigurationListener;
 import org.geowebcache.config.XMLConfiguration;
 import org.geowebcache.config.XMLGridSet;
 import org.geowebcache.config.meta.ServiceInformation;
@@ -41,6 +47,15 @@ import com.google.common.base.Preconditions;
 
 /**
  * Serves tile layers from the {@link Configuration}s available in the application context.
+ * <p>
+ * Layer lookups go through an immutable index of layer names to the configuration serving them,
+ * built on first use and dropped whenever layers or configurations change, so that a lookup is a
+ * single hash probe without locking rather than a query to each configuration. Configurations
+ * that {@link Configuration#addConfigurationListener(ConfigurationListener) report their changes}
+ * drop the index themselves, however they are changed, and have their layers held by the index.
+ * The layers of the other configurations are obtained from the configuration on each lookup, and
+ * a lookup the index can't answer falls back to querying all the configurations, dropping the
+ * index if the layer turns out to have been added or moved behind the dispatcher's back.
  */
 public class TileLayerDispatcher implements DisposableBean {
 
@@ -52,6 +67,76 @@ public class TileLayerDispatcher implements DisposableBean {
 
     private ServiceInformation serviceInformation;
 
+    private final List<TileLayerDispatcherListener> listeners = new CopyOnWriteArrayList<TileLayerDispatcherListener>();
+
+    /**
+     * The configurations reporting their changes to {@link #configurationListener}
+     */
+    private volatile Set<Configuration> listenedConfigs = Collections.emptySet();
+
+    /**
+     * Drops the index, and forwards the changes made directly on the configurations to the
+     * listeners of this dispatcher
+     */
+    private final ConfigurationListener configurationListener = new ConfigurationListener() {
+
+        @Override
+        public void layerChanged(Configuration configuration, String layerName) {
+            invalidateIndex();
+            fireLayerChanged(layerName);
+        }
+
+        @Override
+        public void layersChanged(Configuration configuration) {
+            invalidateIndex();
+            fireConfigurationChanged();
+        }
+    };
+
+    /**
+     * Incremented on each change, an index built from an older version is stale
+     */
+    private final AtomicInteger indexVersion = new AtomicInteger();
+
+    /**
+     * Layer name index, {@code null} until built
+     */
+    private volatile LayerIndex layerIndex;
+
+    /**
+     * Serializes index builds. Invalidations don't take it, so that configurations can drop the
+     * index while holding their own locks.
+     */
+    private final Object indexLock = new Object();
+
+    /**
+     * Where to find a layer: the configuration serving it, and the layer itself if the
+     * configuration reports its changes
+     */
+    private static final class IndexEntry {
+
+        final Configuration configuration;
+
+        final TileLayer layer;
+
+        IndexEntry(Configuration configuration, TileLayer layer) {
+            this.configuration = configuration;
+            this.layer = layer;
+        }
+    }
+
+    private static final class LayerIndex {
+
+        final int version;
+
+        final Map<String, IndexEntry> entries;
+
+        LayerIndex(int version, Map<String, IndexEntry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+
     /**
      * @deprecated use {@link #TileLayerDispatcher(GridSetBroker)} instead, configurations are
      *             loaded from the application context, this {@code config} parameter will be
@@ -61,6 +146,7 @@ public class TileLayerDispatcher implements DisposableBean {
         this.gridSetBroker = gridSetBroker;
         this.configs = configs == null ? new ArrayList<Configuration>() : configs;
         initialize();
+        listenToConfigurations();
     }
 
     public TileLayerDispatcher(GridSetBroker gridSetBroker) {
@@ -73,17 +159,64 @@ public class TileLayerDispatcher implements DisposableBean {
         List<Configuration> newList = new ArrayList<Configuration>(configs);
         newList.add(config);
         this.configs = newList;
+        listenToConfigurations();
+        invalidateIndex();
+        fireConfigurationChanged();
     }
 
-    public boolean layerExists(final String layerName) {
-        for (int i = 0; i < configs.size(); i++) {
-            Configuration configuration = configs.get(i);
-            TileLayer layer = configuration.getTileLayer(layerName);
-            if (layer != null) {
-                return true;
+    /**
+     * Registers {@link #configurationListener} on the current configurations, once they are
+     * initialized
+     */
+    private synchronized void listenToConfigurations() {
+        Set<Configuration> listened = Collections
+                .newSetFromMap(new IdentityHashMap<Configuration, Boolean>());
+        for (Configuration config : listenedConfigs) {
+            if (!configs.contains(config)) {
+                config.removeConfigurationListener(configurationListener);
+            }
+        }
+        for (Configuration config : configs) {
+            if (config.addConfigurationListener(configurationListener)) {
+                listened.add(config);
+            }
+        }
+        this.listenedConfigs = listened;
+    }
+
+    /**
+     * Registers a listener to be notified of the changes made through this dispatcher
+     */
+    public void addListener(TileLayerDispatcherListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(TileLayerDispatcherListener listener) {
+        return listeners.remove(listener);
+    }
+
+    private void fireLayerChanged(String layerName) {
+        for (TileLayerDispatcherListener listener : listeners) {
+            try {
+                listener.layerChanged(layerName);
+            } catch (RuntimeException e) {
+                log.error("Error notifying change of layer " + layerName, e);
             }
         }
-        return false;
+    }
+
+    private void fireConfigurationChanged() {
+        for (TileLayerDispatcherListener listener : listeners) {
+            try {
+                listener.configurationChanged();
+            } catch (RuntimeException e) {
+                log.error("Error notifying configuration change", e);
+            }
+        }
+    }
+
+    public boolean layerExists(final String layerName) {
+        return findTileLayer(layerName) != null;
     }
 
     /**
@@ -95,16 +228,94 @@ public class TileLayerDispatcher implements DisposableBean {
     public TileLayer getTileLayer(final String layerName) throws GeoWebCacheException {
         Preconditions.checkNotNull(layerName, "layerName is null");
 
+        TileLayer layer = findTileLayer(layerName);
+        if (layer != null) {
+            return layer;
+        }
+        throw new GeoWebCacheException("Thread " + Thread.currentThread().getId()
+                + " Unknown layer " + layerName + ". Check the logfiles,"
+                + " it may not have loaded properly.");
+    }
+
+    private TileLayer findTileLayer(final String layerName) {
+        if (layerName == null) {
+            return null;
+        }
+        IndexEntry indexed = getLayerIndex().get(layerName);
+        if (indexed != null) {
+            if (indexed.layer != null) {
+                return indexed.layer;
+            }
+            TileLayer layer = indexed.configuration.getTileLayer(layerName);
+            if (layer != null) {
+                return layer;
+            }
+        }
+        // not where the index says, either unknown or changed directly on a configuration
+        final List<Configuration> configs = this.configs;
         for (int i = 0; i < configs.size(); i++) {
             Configuration configuration = configs.get(i);
             TileLayer layer = configuration.getTileLayer(layerName);
             if (layer != null) {
+                invalidateIndex();
                 return layer;
             }
         }
-        throw new GeoWebCacheException("Thread " + Thread.currentThread().getId()
-                + " Unknown layer " + layerName + ". Check the logfiles,"
-                + " it may not have loaded properly.");
+        if (indexed != null) {
+            invalidateIndex();
+        }
+        return null;
+    }
+
+    private Map<String, IndexEntry> getLayerIndex() {
+        LayerIndex index = layerIndex;
+        if (index == null || index.version != indexVersion.get()) {
+            synchronized (indexLock) {
+                // read before building, so that a change made meanwhile makes it stale
+                final int version = indexVersion.get();
+                index = layerIndex;
+                if (index == null || index.version != version) {
+                    index = new LayerIndex(version, buildIndex());
+                    layerIndex = index;
+                }
+            }
+        }
+        return index.entries;
+    }
+
+    private Map<String, IndexEntry> buildIndex() {
+        final List<Configuration> configs = this.configs;
+        final Set<Configuration> listened = this.listenedConfigs;
+        Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+        for (Configuration configuration : configs) {
+            // layers still initializing in the background are obtained from the configuration
+            boolean holdLayers = listened.contains(configuration)
+                    && !(configuration instanceof XMLConfiguration
+                            && ((XMLConfiguration) configuration).getPendingLayerCount() > 0);
+            if (holdLayers) {
+                for (TileLayer layer : configuration.getLayers()) {
+                    // as for the lookups, the first configuration containing the layer wins
+                    if (!index.containsKey(layer.getName())) {
+                        index.put(layer.getName(), new IndexEntry(configuration, layer));
+                    }
+                }
+            } else {
+                for (String name : configuration.getTileLayerNames()) {
+                    if (!index.containsKey(name)) {
+                        index.put(name, new IndexEntry(configuration, null));
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Drops the layer index, to be rebuilt on the next lookup. Called whenever layers or
+     * configurations change.
+     */
+    private void invalidateIndex() {
+        indexVersion.incrementAndGet();
     }
 
     /***
@@ -119,24 +330,50 @@ public class TileLayerDispatcher implements DisposableBean {
         List<Configuration> extensions = GeoWebCacheExtensions.extensions(Configuration.class);
         this.configs = new ArrayList<Configuration>(extensions);
         initialize();
+        listenToConfigurations();
+        invalidateIndex();
+        fireConfigurationChanged();
     }
 
     public int getLayerCount() {
+        return getLayerIndex().size();
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the names of the layers served by this dispatcher
+     */
+    public Set<String> getLayerNames() {
+        return getLayerIndex().keySet();
+    }
+
+    /**
+     * @return the number of layers still being initialized in the background, {@code 0} once all
+     *         the layers are ready to be served
+     * @see XMLConfiguration#setLazyLayerInitialization(boolean)
+     */
+    public int getPendingLayerCount() {
         int count = 0;
-        for (int i = 0; i < configs.size(); i++) {
-            Configuration configuration = configs.get(i);
-            count += configuration.getTileLayerCount();
+        for (Configuration c : configs) {
+            if (c instanceof XMLConfiguration) {
+                count += ((XMLConfiguration) c).getPendingLayerCount();
+            }
         }
         return count;
     }
 
-    public Set<String> getLayerNames() {
-        Set<String> names = new HashSet<String>();
-        for (int i = 0; i < configs.size(); i++) {
-            Configuration configuration = configs.get(i);
-            names.addAll(configuration.getTileLayerNames());
+    /**
+     * @return the number of layers whose background initialization failed, and which are not
+     *         served
+     * @see XMLConfiguration#setLazyLayerInitialization(boolean)
+     */
+    public int getFailedLayerCount() {
+        int count = 0;
+        for (Configuration c : configs) {
+            if (c instanceof XMLConfiguration) {
+                count += ((XMLConfiguration) c).getFailedLayerCount();
+            }
         }
-        return names;
+        return count;
     }
 
     /**
@@ -214,7 +451,9 @@ public class TileLayerDispatcher implements DisposableBean {
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     public void destroy() throws Exception {
-        //
+        for (Configuration config : listenedConfigs) {
+            config.removeConfigurationListener(configurationListener);
+        }
     }
 
     /**
@@ -231,16 +470,27 @@ public class TileLayerDispatcher implements DisposableBean {
      * @return the Configuration from which the layer has been removed, or {@code null} if no
      *         configuration contained such a layer
      */
-    public synchronized Configuration removeLayer(final String layerName)
-            throws IllegalArgumentException {
+    public Configuration removeLayer(final String layerName) throws IllegalArgumentException {
         for (Configuration config : configs) {
             if (config.removeLayer(layerName)) {
+                layerChanged(config, layerName);
                 return config;
             }
         }
         return null;
     }
 
+    /**
+     * Drops the index and notifies the change of a layer made through this dispatcher, unless the
+     * configuration reported it already
+     */
+    private void layerChanged(Configuration config, String layerName) {
+        if (!listenedConfigs.contains(config)) {
+            invalidateIndex();
+            fireLayerChanged(layerName);
+        }
+    }
+
     /**
      * Adds a layer and returns (but doesn't save) the {@link Configuration} to which the layer was
      * added.
@@ -253,10 +503,11 @@ public class TileLayerDispatcher implements DisposableBean {
      *             if the given tile layer can't be added to any configuraion managed by this tile
      *             layer dispatcher.
      */
-    public synchronized Configuration addLayer(final TileLayer tl) throws IllegalArgumentException {
+    public Configuration addLayer(final TileLayer tl) throws IllegalArgumentException {
         for (Configuration c : configs) {
             if (c.canSave(tl)) {
                 c.addLayer(tl);
+                layerChanged(c, tl.getName());
                 return c;
             }
         }
@@ -270,9 +521,10 @@ public class TileLayerDispatcher implements DisposableBean {
      * @param tl
      * @throws IllegalArgumentException
      */
-    public synchronized Configuration modify(final TileLayer tl) throws IllegalArgumentException {
+    public Configuration modify(final TileLayer tl) throws IllegalArgumentException {
         Configuration config = getConfiguration(tl);
         config.modifyLayer(tl);
+        layerChanged(config, tl.getName());
         return config;
     }
 
@@ -329,6 +581,7 @@ public class TileLayerDispatcher implements DisposableBean {
         GridSet removed = gridSetBroker.remove(gridSetName);
         Assert.notNull(removed != null);
         Assert.notNull(persistingConfig.removeGridset(gridSetName));
+        fireConfigurationChanged();
 
         return persistingConfig;
     }
@@ -346,6 +599,7 @@ public class TileLayerDispatcher implements DisposableBean {
         persistingConfig.addOrReplaceGridSet(new XMLGridSet(gridSet));
         persistingConfig.save();
         gridSetBroker.put(gridSet);
+        fireConfigurationChanged();
     }
 
     private XMLConfiguration getXmlConfiguration() throws IllegalStateException {
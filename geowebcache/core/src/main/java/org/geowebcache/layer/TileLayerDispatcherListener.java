@@ -0,0 +1,37 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.EventListener;
+
+/**
+ * Notified of the changes made to layers and gridsets through a {@link TileLayerDispatcher}
+ */
+public interface TileLayerDispatcherListener extends EventListener {
+
+    /**
+     * A layer has been added, modified or removed
+     * 
+     * @param layerName the name of the layer
+     */
+    void layerChanged(String layerName);
+
+    /**
+     * A change potentially affecting any layer happened, such as a gridset being added or removed,
+     * or the configurations being reloaded
+     */
+    void configurationChanged();
+
+}
@@ -0,0 +1,467 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileResponseReceiver;
+import org.geowebcache.layer.wms.WMSBackendPool.Backend;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.ServiceException;
+import org.springframework.util.Assert;
+
+/**
+ * {@link WMSHttpHelper} spreading the requests of a layer with several WMS URLs over its
+ * backends, according to their health and load as tracked by a {@link WMSBackendPool}.
+ * <p>
+ * Each request goes to the available backend with the least outstanding requests, and fails over
+ * to the next ones in the same order. Ejected backends are only tried once the others failed. When
+ * the pool {@link WMSBackendPool#setHedgePercentile(int) hedges} requests, a request still waiting
+ * for its backend past the backend's latency percentile is sent to the next backend as well, and
+ * the first successful response is used, the other one being aborted. Hedged requests are read in
+ * pooled buffers, the others directly in the target resource.
+ * </p>
+ */
+public class BalancedWMSHttpHelper extends WMSHttpHelper {
+
+    /** reusable buffers for the responses of hedged requests */
+    private static final LinkedBlockingQueue<ByteArrayResource> BUFFERS = new LinkedBlockingQueue<ByteArrayResource>(
+            64);
+
+    /** the hedged attempt run by the current thread, for its request to be abortable */
+    private static final ThreadLocal<Attempt> CURRENT_ATTEMPT = new ThreadLocal<Attempt>();
+
+    private final WMSBackendPool pool;
+
+    public BalancedWMSHttpHelper(String httpUsername, String httpPassword, URL proxyUrl,
+            WMSBackendPool pool) {
+        super(httpUsername, httpPassword, proxyUrl);
+        Assert.notNull(pool, "pool is null");
+        this.pool = pool;
+    }
+
+    @Override
+    protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+            Map<String, String> wmsParams, MimeType expectedMimeType, Resource target)
+            throws GeoWebCacheException {
+        Assert.notNull(target, "Target resource can't be null");
+        Assert.isTrue(target.getSize() == 0, "Target resource is not empty");
+
+        final List<Backend> backends = pool.select(layer.getWMSurl());
+        final Integer backendTimeout = layer.getBackendTimeout();
+
+        GeoWebCacheException fetchException = null;
+        String lastUrl = null;
+        int tries = 0;
+        while (target.getSize() == 0 && tries < backends.size()) {
+            Backend backend = backends.get(tries);
+            long hedgeDelay = tries + 1 < backends.size() ? pool.getHedgeDelay(backend) : -1;
+            try {
+                if (hedgeDelay > 0) {
+                    Backend hedge = backends.get(tries + 1);
+                    tries += 2;
+                    lastUrl = hedge.getUrl();
+                    requestHedged(tileRespRecv, backend, hedge, hedgeDelay, wmsParams,
+                            expectedMimeType, backendTimeout, target);
+                } else {
+                    tries++;
+                    lastUrl = backend.getUrl();
+                    request(tileRespRecv, backend, wmsParams, expectedMimeType, backendTimeout,
+                            target);
+                }
+            } catch (GeoWebCacheException e) {
+                fetchException = e;
+            }
+        }
+
+        if (target.getSize() == 0) {
+            String msg = "All backends (" + tries + ") failed.";
+            if (fetchException != null) {
+                msg += " Reason: " + fetchException.getMessage() + ". ";
+            }
+            msg += " Last request: '" + lastUrl + "'. "
+                    + (tileRespRecv.getErrorMessage() == null ? "" : tileRespRecv.getErrorMessage());
+
+            tileRespRecv.setError();
+            tileRespRecv.setErrorMessage(msg);
+            throw new GeoWebCacheException(msg);
+        }
+    }
+
+    /**
+     * Requests a single backend, reading the response straight into the target
+     */
+    private void request(TileResponseReceiver tileRespRecv, Backend backend,
+            Map<String, String> wmsParams, MimeType expectedMimeType, Integer backendTimeout,
+            Resource target) throws GeoWebCacheException {
+        URL url = toURL(backend);
+        long start = System.nanoTime();
+        backend.started();
+        boolean healthy = false;
+        boolean badRequest = false;
+        try {
+            connectAndCheckHeaders(tileRespRecv, url, wmsParams, expectedMimeType,
+                    backendTimeout, target);
+            // the backend answered, even if with an empty tile
+            healthy = true;
+        } catch (ServiceException e) {
+            badRequest = isBadRequest(tileRespRecv.getStatus());
+            throw e;
+        } finally {
+            record(backend, healthy, badRequest, start);
+        }
+    }
+
+    /**
+     * Requests the first backend and, if it didn't answer after the hedge delay, the second one as
+     * well, using the first successful response. When the threads running hedged requests are all
+     * busy, the backends are requested one after the other by the calling thread instead.
+     */
+    private void requestHedged(final TileResponseReceiver tileRespRecv, final Backend first,
+            final Backend second, final long hedgeDelay, final Map<String, String> wmsParams,
+            final MimeType expectedMimeType, final Integer backendTimeout, final Resource target)
+            throws GeoWebCacheException {
+
+        CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(
+                pool.getHedgeExecutor());
+        List<Attempt> attempts = new ArrayList<Attempt>(2);
+        List<Future<Attempt>> futures = new ArrayList<Future<Attempt>>(2);
+        try {
+            Attempt attempt = new Attempt(tileRespRecv, first, wmsParams, expectedMimeType,
+                    backendTimeout);
+            try {
+                futures.add(completion.submit(attempt));
+            } catch (RejectedExecutionException e) {
+                requestInTurn(tileRespRecv, wmsParams, expectedMimeType, backendTimeout, target,
+                        first, second);
+                return;
+            }
+            attempts.add(attempt);
+
+            boolean hedged = false;
+            Future<Attempt> done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done == null || !done.get().succeeded()) {
+                // slow or failed, fire the second request
+                attempt = new Attempt(tileRespRecv, second, wmsParams, expectedMimeType,
+                        backendTimeout);
+                try {
+                    futures.add(completion.submit(attempt));
+                    attempts.add(attempt);
+                    hedged = true;
+                } catch (RejectedExecutionException e) {
+                    // all the threads are busy, the second backend is requested in turn below
+                }
+            }
+            if (done != null && done.get().succeeded()) {
+                done.get().copyTo(tileRespRecv, target);
+                return;
+            }
+
+            GeoWebCacheException failure = null;
+            int pending = (done == null ? 1 : 0) + (hedged ? 1 : 0);
+            while (pending-- > 0) {
+                Attempt result = completion.take().get();
+                if (result.succeeded()) {
+                    result.copyTo(tileRespRecv, target);
+                    return;
+                }
+                failure = result.failure;
+            }
+            if (!hedged) {
+                requestInTurn(tileRespRecv, wmsParams, expectedMimeType, backendTimeout, target,
+                        second);
+                return;
+            }
+            if (done != null && failure == null) {
+                failure = done.get().failure;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException(e);
+        } catch (ExecutionException e) {
+            throw new GeoWebCacheException(e.getCause());
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.abandon();
+            }
+            for (Future<Attempt> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Requests the backends one after the other from the calling thread, until one of them
+     * returns some content
+     */
+    private void requestInTurn(TileResponseReceiver tileRespRecv, Map<String, String> wmsParams,
+            MimeType expectedMimeType, Integer backendTimeout, Resource target,
+            Backend... backends) throws GeoWebCacheException {
+        GeoWebCacheException failure = null;
+        for (Backend backend : backends) {
+            if (target.getSize() > 0) {
+                return;
+            }
+            try {
+                request(tileRespRecv, backend, wmsParams, expectedMimeType, backendTimeout, target);
+            } catch (GeoWebCacheException e) {
+                failure = e;
+            }
+        }
+        if (target.getSize() == 0 && failure != null) {
+            throw failure;
+        }
+    }
+
+    private static boolean isBadRequest(int status) {
+        return status >= 400 && status < 500;
+    }
+
+    private static void record(Backend backend, boolean healthy, boolean badRequest, long start) {
+        if (healthy) {
+            backend.succeeded(System.nanoTime() - start);
+        } else if (badRequest) {
+            // the request was bad, not the backend
+            backend.cancelled();
+        } else {
+            backend.failed();
+        }
+    }
+
+    private static URL toURL(Backend backend) throws GeoWebCacheException {
+        try {
+            return new URL(backend.getUrl());
+        } catch (MalformedURLException maue) {
+            throw new GeoWebCacheException("Malformed URL: " + backend.getUrl() + " "
+                    + maue.getMessage());
+        }
+    }
+
+    /**
+     * Registers the request with the hedged attempt run by the current thread, if any, so that it
+     * can be aborted
+     */
+    @Override
+    public GetMethod executeRequest(final URL url, final Map<String, String> queryParams,
+            final Integer backendTimeout) throws HttpException, IOException {
+        Attempt attempt = CURRENT_ATTEMPT.get();
+        if (attempt == null) {
+            return super.executeRequest(url, queryParams, backendTimeout);
+        }
+        getHttpClient();
+        GetMethod getMethod = createRequest(url, queryParams);
+        if (!attempt.setMethod(getMethod)) {
+            throw new IOException("Request to " + url + " aborted");
+        }
+        getHttpClient().executeMethod(getMethod);
+        return getMethod;
+    }
+
+    /**
+     * A request to one of the backends of a hedged request, read into a pooled buffer
+     */
+    private class Attempt implements Callable<Attempt>, TileResponseReceiver {
+
+        private final TileResponseReceiver receiver;
+
+        private final Backend backend;
+
+        private final Map<String, String> wmsParams;
+
+        private final MimeType expectedMimeType;
+
+        private final Integer backendTimeout;
+
+        private ByteArrayResource buffer;
+
+        private GetMethod method;
+
+        /** the caller gave up on this attempt, abort and release the buffer once finished */
+        private boolean abandoned;
+
+        private boolean finished;
+
+        private GeoWebCacheException failure;
+
+        private int status;
+
+        private long expires;
+
+        private boolean error;
+
+        private String errorMessage;
+
+        Attempt(TileResponseReceiver receiver, Backend backend, Map<String, String> wmsParams,
+                MimeType expectedMimeType, Integer backendTimeout) {
+            this.receiver = receiver;
+            this.backend = backend;
+            this.wmsParams = wmsParams;
+            this.expectedMimeType = expectedMimeType;
+            this.backendTimeout = backendTimeout;
+            this.expires = receiver.getExpiresHeader();
+        }
+
+        public Attempt call() {
+            buffer = BUFFERS.poll();
+            if (buffer == null) {
+                buffer = new ByteArrayResource(16 * 1024);
+            }
+            long start = System.nanoTime();
+            backend.started();
+            boolean healthy = false;
+            boolean badRequest = false;
+            CURRENT_ATTEMPT.set(this);
+            try {
+                connectAndCheckHeaders(this, toURL(backend), wmsParams, expectedMimeType,
+                        backendTimeout, buffer);
+                healthy = true;
+            } catch (ServiceException e) {
+                badRequest = isBadRequest(status);
+                failure = e;
+            } catch (GeoWebCacheException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new GeoWebCacheException(e);
+            } finally {
+                CURRENT_ATTEMPT.remove();
+                boolean wasAbandoned;
+                synchronized (this) {
+                    wasAbandoned = abandoned;
+                    method = null;
+                    finished = true;
+                    if (abandoned) {
+                        release();
+                    }
+                }
+                if (wasAbandoned && !healthy) {
+                    // aborted by us, says nothing of the backend
+                    backend.cancelled();
+                } else {
+                    record(backend, healthy, badRequest, start);
+                }
+            }
+            return this;
+        }
+
+        boolean succeeded() {
+            return failure == null && buffer != null && buffer.getSize() > 0;
+        }
+
+        synchronized boolean setMethod(GetMethod method) {
+            this.method = method;
+            return !abandoned;
+        }
+
+        /**
+         * Aborts the request if still running, the buffer being released once it's finished
+         */
+        synchronized void abandon() {
+            abandoned = true;
+            if (method != null) {
+                method.abort();
+            }
+            if (finished) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (buffer != null) {
+                buffer.truncate();
+                BUFFERS.offer(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Hands the response over to the actual receiver and target, and the buffer back to the
+         * pool
+         */
+        void copyTo(TileResponseReceiver tileRespRecv, Resource target)
+                throws GeoWebCacheException {
+            tileRespRecv.setStatus(status);
+            if (expires != receiver.getExpiresHeader()) {
+                tileRespRecv.setExpiresHeader(expires);
+            }
+            if (error) {
+                tileRespRecv.setError();
+                tileRespRecv.setErrorMessage(errorMessage);
+            }
+            try {
+                target.transferFrom(Channels.newChannel(buffer.getInputStream()));
+            } catch (IOException e) {
+                throw new GeoWebCacheException(e);
+            } finally {
+                synchronized (this) {
+                    release();
+                }
+            }
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+            this.expires = seconds;
+        }
+
+        public long getExpiresHeader() {
+            return expires;
+        }
+
+        public void setError() {
+            this.error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
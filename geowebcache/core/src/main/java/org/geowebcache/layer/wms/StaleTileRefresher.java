@@ -0,0 +1,159 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Renders again, in the background, the expired tiles a {@link WMSLayer} served stale while
+ * revalidating them.
+ * <p>
+ * Refreshes are identified by the lock key of their metatile, so that all the tiles of a metatile
+ * requested while it is stale result in a single backend request. Refreshes are dropped rather than
+ * queued when more than {@link #setMaxRefreshesPerSecond(double) maxRefreshesPerSecond} are asked
+ * for, or when {@link #setMaxQueued(int) maxQueued} are already waiting: the tile is still stale,
+ * so the next request for it schedules the refresh again.
+ * </p>
+ */
+public class StaleTileRefresher {
+
+    private static Log log = LogFactory.getLog(StaleTileRefresher.class);
+
+    private final Set<String> pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile int maxQueued = 1000;
+
+    private volatile RateLimiter rateLimiter;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    public StaleTileRefresher() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                "GWC Stale Tile Refresher-");
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Number of refreshes running at the same time, defaults to {@code 2}
+     */
+    public void setThreads(int threads) {
+        Assert.isTrue(threads > 0, "threads shall be positive");
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Number of refreshes waiting for a thread above which new ones are dropped, defaults to
+     * {@code 1000}
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Upper bound of the refreshes started per second, defaults to {@code 0}, unlimited
+     */
+    public void setMaxRefreshesPerSecond(double maxRefreshesPerSecond) {
+        this.rateLimiter = maxRefreshesPerSecond > 0 ? RateLimiter.create(maxRefreshesPerSecond)
+                : null;
+    }
+
+    /**
+     * @return the number of refreshes waiting or running
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of refreshes dropped because of the rate or queue limits
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Schedules a refresh, unless one with the same key is already pending or the limits are
+     * exceeded
+     *
+     * @return whether the refresh was scheduled
+     */
+    public boolean schedule(final String key, final Runnable refresh) {
+        if (pending.contains(key)) {
+            return false;
+        }
+        RateLimiter limiter = this.rateLimiter;
+        if (executor.getQueue().size() >= maxQueued
+                || (limiter != null && !limiter.tryAcquire())) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (!pending.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        refresh.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Failed to refresh stale tiles " + key, e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the refreshes, the pending ones are dropped
+     */
+    public void destroy() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Health and load of the WMS backends used by the {@link BalancedWMSHttpHelper}s, shared by all
+ * the layers so that what is learned about a backend serving a layer benefits the others.
+ * <p>
+ * A backend failing {@link #setFailureThreshold(int) failureThreshold} requests in a row is ejected
+ * from the rotation for {@link #setEjectionTime(int) ejectionTime} seconds, doubled on each
+ * consecutive ejection up to {@link #setMaxEjectionTime(int) maxEjectionTime}. Once the ejection
+ * expires the backend is given requests again, and a single failure ejects it anew until it
+ * succeeds. A backend with {@link #setMaxRequests(int) maxRequests} outstanding requests is skipped
+ * as well while others are available.
+ * </p>
+ * <p>
+ * The pool is a bean of the application context, given to the layers by the
+ * {@link org.geowebcache.config.XMLConfiguration}.
+ * </p>
+ */
+public class WMSBackendPool {
+
+    private static Log log = LogFactory.getLog(WMSBackendPool.class);
+
+    /** number of latencies a backend keeps to compute its percentiles */
+    static final int LATENCY_SAMPLES = 128;
+
+    private final ConcurrentMap<String, Backend> backends = new ConcurrentHashMap<String, Backend>();
+
+    private volatile int failureThreshold = 5;
+
+    private volatile int ejectionTime = 30;
+
+    private volatile int maxEjectionTime = 300;
+
+    private volatile int maxRequests = 0;
+
+    private volatile int hedgePercentile = 0;
+
+    private volatile int hedgeThreads = 4 * Runtime.getRuntime().availableProcessors();
+
+    private ThreadPoolExecutor hedgeExecutor;
+
+    /**
+     * Number of consecutive failed requests ejecting a backend, defaults to {@code 5}
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        Assert.isTrue(failureThreshold > 0, "failureThreshold shall be positive");
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Seconds a backend is ejected for the first time, defaults to {@code 30}
+     */
+    public void setEjectionTime(int ejectionTime) {
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * Upper bound of the ejection time of a backend failing repeatedly, in seconds, defaults to
+     * {@code 300}
+     */
+    public void setMaxEjectionTime(int maxEjectionTime) {
+        this.maxEjectionTime = maxEjectionTime;
+    }
+
+    /**
+     * Outstanding requests above which a backend is passed over if another one is available,
+     * defaults to {@code 0}, unlimited
+     */
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Latency percentile of a backend after which a request still waiting for it is sent to the
+     * next backend as well, the first response being used. Defaults to {@code 0}, no hedged
+     * requests. A value like {@code 95} makes one request out of twenty or so go to two backends.
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        Assert.isTrue(hedgePercentile >= 0 && hedgePercentile < 100,
+                "hedgePercentile shall be between 0 and 99");
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Maximum number of threads running hedged requests, defaults to four times the number of
+     * processors. Requests coming while they are all busy are not hedged, but run by the thread
+     * asking for the tile.
+     */
+    public synchronized void setHedgeThreads(int hedgeThreads) {
+        Assert.isTrue(hedgeThreads > 0, "hedgeThreads shall be positive");
+        this.hedgeThreads = hedgeThreads;
+        if (hedgeExecutor != null) {
+            hedgeExecutor.setMaximumPoolSize(hedgeThreads);
+        }
+    }
+
+    public int getHedgeThreads() {
+        return hedgeThreads;
+    }
+
+    /**
+     * @return the state of the backend
+     */
+    public Backend getBackend(String url) {
+        return backends.computeIfAbsent(url, Backend::new);
+    }
+
+    /**
+     * @return the backends known to the pool
+     */
+    public Collection<Backend> getBackends() {
+        return Collections.unmodifiableCollection(backends.values());
+    }
+
+    /**
+     * Orders the backends in which they should be tried: the available ones first, those with the
+     * least outstanding requests first, then the saturated ones, and last the ejected ones, those
+     * coming back the soonest first.
+     */
+    public List<Backend> select(String[] urls) {
+        final long now = System.currentTimeMillis();
+        final int maxRequests = this.maxRequests;
+        List<Backend> ordered = new ArrayList<Backend>(urls.length);
+        for (String url : urls) {
+            ordered.add(getBackend(url));
+        }
+        if (ordered.size() > 1) {
+            // spread the load among equally loaded backends
+            Collections.rotate(ordered, ThreadLocalRandom.current().nextInt(ordered.size()));
+            final int[] rank = new int[ordered.size()];
+            final long[] key = new long[ordered.size()];
+            for (int i = 0; i < rank.length; i++) {
+                Backend b = ordered.get(i);
+                int outstanding = b.getOutstanding();
+                if (!b.isAvailable(now)) {
+                    rank[i] = 2;
+                    key[i] = b.getEjectedUntil();
+                } else if (maxRequests > 0 && outstanding >= maxRequests) {
+                    rank[i] = 1;
+                    key[i] = outstanding;
+                } else {
+                    key[i] = outstanding;
+                }
+            }
+            Integer[] indexes = new Integer[rank.length];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = i;
+            }
+            // stable sort, ties keep the rotated order
+            Arrays.sort(indexes, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    if (rank[a] != rank[b]) {
+                        return rank[a] - rank[b];
+                    }
+                    return Long.compare(key[a], key[b]);
+                }
+            });
+            List<Backend> sorted = new ArrayList<Backend>(ordered.size());
+            for (Integer i : indexes) {
+                sorted.add(ordered.get(i));
+            }
+            ordered = sorted;
+        }
+        return ordered;
+    }
+
+    /**
+     * @return how long to wait for the backend before hedging the request, in nanoseconds, or
+     *         {@code -1} if requests shall not be hedged
+     */
+    long getHedgeDelay(Backend backend) {
+        int percentile = hedgePercentile;
+        if (percentile == 0) {
+            return -1;
+        }
+        return backend.getLatencyPercentile(percentile);
+    }
+
+    synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                    "GWC WMS Hedged Request-");
+            threadFactory.setDaemon(true);
+            // no queue, tasks are rejected as soon as all the threads are busy
+            hedgeExecutor = new ThreadPoolExecutor(0, hedgeThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory,
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return hedgeExecutor;
+    }
+
+    /**
+     * Health and load of a backend
+     */
+    public final class Backend {
+
+        private final String url;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private final AtomicInteger ejections = new AtomicInteger();
+
+        private volatile long ejectedUntil;
+
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+
+        // a long does not wrap around in the lifetime of the backend
+        private final AtomicLong latencyCount = new AtomicLong();
+
+        private volatile long cachedPercentile = -1;
+
+        private volatile long cachedPercentileCount;
+
+        Backend(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getEjectedUntil() {
+            return ejectedUntil;
+        }
+
+        public boolean isAvailable(long now) {
+            return ejectedUntil <= now;
+        }
+
+        void started() {
+            outstanding.incrementAndGet();
+        }
+
+        void succeeded(long nanos) {
+            outstanding.decrementAndGet();
+            consecutiveFailures.set(0);
+            if (ejections.get() != 0) {
+                ejections.set(0);
+                log.info("WMS backend " + url + " is back");
+            }
+            long i = latencyCount.getAndIncrement();
+            latencies[(int) (i & (LATENCY_SAMPLES - 1))] = nanos;
+        }
+
+        /**
+         * Request abandoned for a reason that says nothing of the backend health, like a hedged
+         * request that lost the race
+         */
+        void cancelled() {
+            outstanding.decrementAndGet();
+        }
+
+        void failed() {
+            outstanding.decrementAndGet();
+            int failures = consecutiveFailures.incrementAndGet();
+            // a backend back from an ejection is ejected again on its first failure
+            if (failures >= failureThreshold || (ejections.get() > 0 && isAvailable(System
+                    .currentTimeMillis()))) {
+                consecutiveFailures.set(0);
+                int count = Math.min(ejections.incrementAndGet(), 16);
+                long seconds = Math.min((long) ejectionTime << (count - 1), maxEjectionTime);
+                ejectedUntil = System.currentTimeMillis() + seconds * 1000;
+                log.warn("WMS backend " + url + " ejected for " + seconds + "s after "
+                        + failures + " failed requests");
+            }
+        }
+
+        /**
+         * @return the latency below which the given percentage of the recent requests fall, in
+         *         nanoseconds, or {@code -1} if not enough requests succeeded yet
+         */
+        long getLatencyPercentile(int percentile) {
+            long count = latencyCount.get();
+            if (count < LATENCY_SAMPLES / 4) {
+                return -1;
+            }
+            // recompute once in a while, the requests of a percentile don't change that fast
+            if (cachedPercentile < 0 || count - cachedPercentileCount >= LATENCY_SAMPLES / 8) {
+                int size = (int) Math.min(count, LATENCY_SAMPLES);
+                long[] sorted = Arrays.copyOf(latencies, size);
+                Arrays.sort(sorted);
+                cachedPercentile = sorted[Math.min(size - 1, size * percentile / 100)];
+                cachedPercentileCount = count;
+            }
+            return cachedPercentile;
+        }
+
+        @Override
+        public String toString() {
+            return url + "[outstanding=" + outstanding + ", ejectedUntil=" + ejectedUntil + "]";
+        }
+    }
+}
@@ -153,7 +153,7 @@ public class WMSHttpHelper extends WMSSourceHelper {
      * @return
      * @throws GeoWebCacheException
      */
-    private void connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
+    protected void connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
             Map<String, String> wmsParams, MimeType requestMimeType, Integer backendTimeout,
             Resource target) throws GeoWebCacheException {
 
@@ -288,6 +288,20 @@ public class WMSHttpHelper extends WMSSourceHelper {
         HttpClient httpClient = getHttpClient();
         
         // prepare the request
+        GetMethod getMethod = createRequest(url, queryParams);
+
+        // fire!
+        if (log.isDebugEnabled()) {
+        	log.trace( getMethod.getURI().getURI() );
+        }
+        httpClient.executeMethod(getMethod);
+        return getMethod;
+    }
+
+    /**
+     * Sets up a HTTP GET request to a URL and configures authentication, without executing it
+     */
+    protected GetMethod createRequest(final URL url, final Map<String, String> queryParams) {
         GetMethod getMethod = new GetMethod(url.toString());
         if (queryParams != null && queryParams.size() > 0) {
             NameValuePair[] params = new NameValuePair[queryParams.size()];
@@ -299,12 +313,6 @@ public class WMSHttpHelper extends WMSSourceHelper {
             getMethod.setQueryString(params);
         }
         getMethod.setDoAuthentication(doAuthentication);
-
-        // fire!
-        if (log.isDebugEnabled()) {
-        	log.trace( getMethod.getURI().getURI() );
-        }
-        httpClient.executeMethod(getMethod);
         return getMethod;
     }
 }
\ No newline at end of file
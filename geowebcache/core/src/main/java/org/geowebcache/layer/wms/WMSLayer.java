@@ -57,6 +57,8 @@ import org.geowebcache.locks.LockProvider.Lock;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
+import org.geowebcache.stats.RequestTrace;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.geowebcache.util.GWCVars;
 
 /**
@@ -122,6 +124,14 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
     private LegendsRawInfo legends;
 
+    private Integer staleWhileRevalidate;
+
+    private Integer staleIfError;
+
+    private Boolean balanceBackends;
+
+    private transient StaleTileRefresher staleTileRefresher;
+
     WMSLayer() {
         //default constructor for XStream
     }
@@ -302,10 +312,28 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         try {
             if (tryCacheFetch(tile)) {
                 returnTile = finalizeTile(tile);
-            } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-                returnTile = getMetatilingReponse(tile, true);
+            } else if (staleTileRefresher != null && isServableStale(tile, staleWhileRevalidate)) {
+                scheduleRefresh(tile);
+                tile.setCacheResult(CacheResult.STALE);
+                returnTile = finalizeTile(tile);
             } else {
-                returnTile = getNonMetatilingReponse(tile, true);
+                try {
+                    if (mime.supportsTiling()) { // Okay, so we need to go to the backend
+                        returnTile = getMetatilingReponse(tile, true);
+                    } else {
+                        returnTile = getNonMetatilingReponse(tile, true);
+                    }
+                } catch (GeoWebCacheException e) {
+                    // the expired tile loaded by the last cache check is better than nothing
+                    if (!isServableStale(tile, staleIfError)) {
+                        throw e;
+                    }
+                    log.warn("Serving stale " + tile + " after backend failure: " + e.getMessage());
+                    tile.clearError();
+                    tile.setCacheResult(CacheResult.STALE);
+                    tile.setStatus(200);
+                    returnTile = finalizeTile(tile);
+                }
             }
         } finally {
             cleanUpThreadLocals();
@@ -344,21 +372,7 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
     private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache)
             throws GeoWebCacheException {
 
-        // int idx = this.getSRSIndex(tile.getSRS());
-        long[] gridLoc = tile.getTileIndex();
-
-        GridSubset gridSubset = subSets.get(tile.getGridSetId());
-
-        // GridCalculator gridCalc = getGrid(tile.getSRS()).getGridCalculator();
-
-        MimeType mimeType = tile.getMimeType();
-        Map<String, String> fullParameters = tile.getFilteringParameters();
-        if (fullParameters.isEmpty()) {
-            fullParameters = getDefaultParameterFilters();
-        }
-        WMSMetaTile metaTile = new WMSMetaTile(this, gridSubset, mimeType,
-                this.getFormatModifier(tile.getMimeType()), gridLoc, metaWidthHeight[0],
-                metaWidthHeight[1], fullParameters);
+        WMSMetaTile metaTile = createMetaTile(tile);
 
         // Leave a hint to save expiration, if necessary
         if (saveExpirationHeaders) {
@@ -369,7 +383,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
+            long lockStart = RequestTrace.start();
             lock = lockProvider.getLock(metaKey);
+            RequestTrace.stop(Stage.LOCK_WAIT, lockStart);
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
                 // Someone got it already, return lock and we're done
@@ -389,7 +405,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
             long requestTime = System.currentTimeMillis();
+            long backendStart = RequestTrace.start();
             sourceHelper.makeRequest(metaTile, buffer);
+            RequestTrace.stop(Stage.BACKEND, backendStart);
 
             if (metaTile.getError()) {
                 throw new GeoWebCacheException("Empty metatile, error message: "
@@ -401,7 +419,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
 
+            long decodeStart = RequestTrace.start();
             metaTile.setImageBytes(buffer);
+            RequestTrace.stop(Stage.DECODE, decodeStart);
 
             saveTiles(metaTile, tile, requestTime);
 
@@ -415,6 +435,60 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         return finalizeTile(tile);
     }
 
+    private WMSMetaTile createMetaTile(ConveyorTile tile) {
+        long[] gridLoc = tile.getTileIndex();
+
+        GridSubset gridSubset = subSets.get(tile.getGridSetId());
+
+        MimeType mimeType = tile.getMimeType();
+        Map<String, String> fullParameters = tile.getFilteringParameters();
+        if (fullParameters.isEmpty()) {
+            fullParameters = getDefaultParameterFilters();
+        }
+        return new WMSMetaTile(this, gridSubset, mimeType,
+                this.getFormatModifier(tile.getMimeType()), gridLoc, metaWidthHeight[0],
+                metaWidthHeight[1], fullParameters);
+    }
+
+    /**
+     * Whether the tile was found expired by the last cache check, less than {@code maxStale}
+     * seconds ago
+     */
+    private static boolean isServableStale(ConveyorTile tile, Integer maxStale) {
+        long staleness = tile.getStaleness();
+        return maxStale != null && staleness >= 0
+                && (maxStale < 0 || staleness <= maxStale * 1000L);
+    }
+
+    /**
+     * Renders again in the background the metatile of a tile served stale
+     */
+    private void scheduleRefresh(final ConveyorTile stale) {
+        final ConveyorTile refresh = new ConveyorTile(stale.getStorageBroker(),
+                stale.getLayerId(), stale.getGridSetId(), stale.getTileIndex(),
+                stale.getMimeType(), stale.getFilteringParameters(), null, null);
+        refresh.setTileLayer(this);
+
+        final boolean metaTiling = refresh.getMimeType().supportsTiling();
+        String key = buildLockKey(refresh, metaTiling ? createMetaTile(refresh) : null);
+        getStaleTileRefresher().schedule(key, new Runnable() {
+            public void run() {
+                try {
+                    // checks the cache again, the tile may have been refreshed meanwhile
+                    if (metaTiling) {
+                        getMetatilingReponse(refresh, true);
+                    } else {
+                        getNonMetatilingReponse(refresh, true);
+                    }
+                } catch (GeoWebCacheException e) {
+                    log.warn("Failed to refresh stale " + refresh + ": " + e.getMessage());
+                } finally {
+                    cleanUpThreadLocals();
+                }
+            }
+        });
+    }
+
     private String buildLockKey(ConveyorTile tile, WMSMetaTile metaTile) {
         StringBuilder metaKey = new StringBuilder();
         
@@ -459,7 +533,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
+            long lockStart = RequestTrace.start();
             lock = lockProvider.getLock(lockKey);
+            RequestTrace.stop(Stage.LOCK_WAIT, lockStart);
             
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
@@ -513,7 +589,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         tile.setTileLayer(this);
 
         ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+        long backendStart = RequestTrace.start();
         sourceHelper.makeRequest(tile, buffer);
+        RequestTrace.stop(Stage.BACKEND, backendStart);
 
         if (tile.getError() || buffer.getSize() == 0) {
             throw new GeoWebCacheException("Empty tile, error message: " + tile.getErrorMessage());
@@ -859,6 +937,57 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         
     }
 
+    /**
+     * @return for how many seconds after its expiration a tile is still served while it is
+     *         rendered again in the background, {@code -1} meaning forever, or {@code null} if
+     *         expired tiles are rendered again before being served
+     */
+    public Integer getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public void setStaleWhileRevalidate(Integer staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * @return for how many seconds after its expiration a tile is still served when the backend
+     *         fails to render it again, {@code -1} meaning forever, or {@code null} if backend
+     *         failures are reported to the client
+     */
+    public Integer getStaleIfError() {
+        return staleIfError;
+    }
+
+    public void setStaleIfError(Integer staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * @return whether the requests are spread over the WMS URLs according to the health and load
+     *         of their backends, instead of going to the URLs in turn, failing over to the next
+     *         one. Defaults to {@code false}.
+     */
+    public boolean isBalanceBackends() {
+        return balanceBackends != null && balanceBackends.booleanValue();
+    }
+
+    public void setBalanceBackends(Boolean balanceBackends) {
+        this.balanceBackends = balanceBackends;
+    }
+
+    private StaleTileRefresher getStaleTileRefresher() {
+        return staleTileRefresher;
+    }
+
+    /**
+     * Sets the refresher rendering again the tiles served stale, without one expired tiles are
+     * rendered right away regardless of {@link #getStaleWhileRevalidate() staleWhileRevalidate}
+     */
+    public void setStaleTileRefresher(StaleTileRefresher staleTileRefresher) {
+        this.staleTileRefresher = staleTileRefresher;
+    }
+
     public LegendsRawInfo getLegends() {
         return legends;
     }
@@ -0,0 +1,418 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.TileLayerDispatcherListener;
+import org.geowebcache.layer.TileLayerListener;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Reseeds in the background the popular tiles about to expire, so that they are not rendered again
+ * on the request path.
+ * <p>
+ * The refresher listens to the tiles requested from the layers with an expiration rule, keeping a
+ * hit count per metatile, halved at each run so that it reflects the recent popularity. Every
+ * {@link #setInterval(int) interval} the metatiles hit at least {@link #setMinHits(int) minHits}
+ * times and expiring within {@link #setRefreshAhead(int) refreshAhead} seconds are reseeded
+ * through the {@link TileBreeder}, most popular first, up to {@link #setMaxRefreshesPerRun(int)
+ * maxRefreshesPerRun} metatiles. At most {@link #setMaxConcurrentRefreshes(int)
+ * maxConcurrentRefreshes} of them are reseeded at the same time, the others waiting for their
+ * turn, and a run is skipped while the reseeds of the previous one are not finished, which bounds
+ * the load put on the backends.
+ * </p>
+ * <p>
+ * At most {@link #setMaxTracked(int) maxTracked} metatiles are tracked, the ones requested once
+ * the limit is reached are ignored until the counts decay.
+ * </p>
+ */
+public class CacheRefresher implements TileLayerListener, TileLayerDispatcherListener,
+        InitializingBean, DisposableBean {
+
+    private static Log log = LogFactory.getLog(CacheRefresher.class);
+
+    private final TileBreeder breeder;
+
+    private final TileLayerDispatcher layerDispatcher;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final List<GWCTask> dispatched = new ArrayList<GWCTask>();
+
+    /** reseeds of the current run waiting for their turn, guarded by {@link #dispatched} */
+    private final LinkedList<GWCTask[]> queued = new LinkedList<GWCTask[]>();
+
+    private final AtomicLong refreshed = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private int interval = 60;
+
+    private int refreshAhead = 120;
+
+    private volatile int minHits = 4;
+
+    private volatile int maxRefreshesPerRun = 20;
+
+    private volatile int maxConcurrentRefreshes = 2;
+
+    private volatile int maxTracked = 100000;
+
+    /**
+     * A metatile requested since the last runs
+     */
+    static class Entry {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final MimeType mimeType;
+
+        final Map<String, String> parameters;
+
+        final long[] tileIndex;
+
+        final AtomicInteger hits = new AtomicInteger();
+
+        volatile long expiresAt;
+
+        Entry(String layerName, String gridSetId, MimeType mimeType,
+                Map<String, String> parameters, long[] tileIndex) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.mimeType = mimeType;
+            this.parameters = parameters;
+            this.tileIndex = tileIndex;
+        }
+    }
+
+    public CacheRefresher(TileBreeder breeder, TileLayerDispatcher layerDispatcher) {
+        Assert.notNull(breeder, "breeder is null");
+        Assert.notNull(layerDispatcher, "layerDispatcher is null");
+        this.breeder = breeder;
+        this.layerDispatcher = layerDispatcher;
+    }
+
+    /**
+     * @param interval seconds between two runs, defaults to 60
+     */
+    public void setInterval(int interval) {
+        Assert.isTrue(interval > 0, "interval shall be positive");
+        this.interval = interval;
+    }
+
+    /**
+     * @param refreshAhead how many seconds before their expiration tiles are reseeded, defaults to
+     *        120. Shall be larger than the {@link #setInterval(int) interval} for the tiles to be
+     *        reseeded before they expire.
+     */
+    public void setRefreshAhead(int refreshAhead) {
+        Assert.isTrue(refreshAhead >= 0, "refreshAhead shall be positive or zero");
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * @param minHits the decayed hit count from which a metatile is reseeded, defaults to 4
+     */
+    public void setMinHits(int minHits) {
+        Assert.isTrue(minHits > 0, "minHits shall be positive");
+        this.minHits = minHits;
+    }
+
+    /**
+     * @param maxRefreshesPerRun maximum number of metatiles reseeded by a run, defaults to 20
+     */
+    public void setMaxRefreshesPerRun(int maxRefreshesPerRun) {
+        Assert.isTrue(maxRefreshesPerRun > 0, "maxRefreshesPerRun shall be positive");
+        this.maxRefreshesPerRun = maxRefreshesPerRun;
+    }
+
+    /**
+     * @param maxConcurrentRefreshes maximum number of metatiles reseeded at the same time,
+     *        defaults to 2
+     */
+    public void setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+        Assert.isTrue(maxConcurrentRefreshes > 0, "maxConcurrentRefreshes shall be positive");
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+    }
+
+    /**
+     * @param maxTracked maximum number of metatiles tracked, defaults to 100000
+     */
+    public void setMaxTracked(int maxTracked) {
+        Assert.isTrue(maxTracked > 0, "maxTracked shall be positive");
+        this.maxTracked = maxTracked;
+    }
+
+    /**
+     * @return the number of metatiles currently tracked
+     */
+    public int getTrackedCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of metatiles reseeded since startup
+     */
+    public long getRefreshedCount() {
+        return refreshed.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        layerDispatcher.addListener(this);
+        listenToLayers();
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                "GWC Cache Refresher-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.error("Cache refresh failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    dispatchQueued();
+                } catch (RuntimeException e) {
+                    log.error("Cache refresh failed", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        layerDispatcher.removeListener(this);
+        for (TileLayer layer : layerDispatcher.getLayerList()) {
+            layer.removeLayerListener(this);
+        }
+        entries.clear();
+    }
+
+    private void listenToLayers() {
+        for (TileLayer layer : layerDispatcher.getLayerList()) {
+            layer.addLayerListener(this);
+        }
+    }
+
+    public void layerChanged(String layerName) {
+        TileLayer layer;
+        try {
+            layer = layerDispatcher.getTileLayer(layerName);
+        } catch (GeoWebCacheException e) {
+            // removed, its entries are dropped by the next run
+            return;
+        }
+        layer.addLayerListener(this);
+    }
+
+    public void configurationChanged() {
+        listenToLayers();
+    }
+
+    public void tileRequested(TileLayer layer, ConveyorTile tile) {
+        if (tile.getError()) {
+            return;
+        }
+        final long[] index = tile.getTileIndex();
+        final int z = (int) index[2];
+        final int expire = layer.getExpireCache(z);
+        if (expire <= 0) {
+            return;
+        }
+        final int[] metaTiling = layer.getMetaTilingFactors();
+        final MimeType mimeType = tile.getMimeType();
+        final String key = layer.getName() + '/' + tile.getGridSetId() + '/'
+                + mimeType.getFormat() + '/' + tile.getParametersId() + '/'
+                + index[0] / metaTiling[0] + '/' + index[1] / metaTiling[1] + '/' + z;
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= maxTracked) {
+                return;
+            }
+            entry = new Entry(layer.getName(), tile.getGridSetId(), mimeType,
+                    tile.getFilteringParameters(), index.clone());
+            Entry previous = entries.putIfAbsent(key, entry);
+            if (previous != null) {
+                entry = previous;
+            }
+        }
+        entry.hits.incrementAndGet();
+
+        TileObject stored = tile.getStorageObject();
+        long created = stored == null ? 0 : stored.getCreated();
+        if (tile.getCacheResult() == CacheResult.HIT && created > 0) {
+            entry.expiresAt = created + expire * 1000L;
+        } else if (tile.getCacheResult() == CacheResult.MISS || entry.expiresAt == 0) {
+            entry.expiresAt = currentTimeMillis() + expire * 1000L;
+        }
+    }
+
+    /**
+     * Reseeds the popular metatiles about to expire, then decays the hit counts
+     */
+    void refresh() {
+        synchronized (dispatched) {
+            removeFinished();
+            if (!dispatched.isEmpty() || !queued.isEmpty()) {
+                log.debug("Skipping cache refresh, " + (dispatched.size() + queued.size())
+                        + " reseeds of the previous run are not finished");
+                return;
+            }
+        }
+
+        final long now = currentTimeMillis();
+        final long horizon = now + refreshAhead * 1000L;
+        final int minHits = this.minHits;
+        List<Entry> due = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.hits.get() >= minHits && entry.expiresAt <= horizon) {
+                due.add(entry);
+            }
+        }
+        Collections.sort(due, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e2.hits.get() - e1.hits.get();
+            }
+        });
+
+        int budget = maxRefreshesPerRun;
+        for (Iterator<Entry> it = due.iterator(); it.hasNext() && budget > 0;) {
+            Entry entry = it.next();
+            if (reseed(entry, now)) {
+                budget--;
+            }
+        }
+        dispatchQueued();
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            int hits = entry.hits.get();
+            while (!entry.hits.compareAndSet(hits, hits / 2)) {
+                hits = entry.hits.get();
+            }
+            if (hits / 2 == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean reseed(Entry entry, long now) {
+        final long[] index = entry.tileIndex;
+        final int z = (int) index[2];
+        final TileLayer layer;
+        try {
+            layer = layerDispatcher.getTileLayer(entry.layerName);
+        } catch (GeoWebCacheException e) {
+            entry.hits.set(0);
+            return false;
+        }
+        final int expire = layer.getExpireCache(z);
+        if (expire <= 0) {
+            entry.hits.set(0);
+            return false;
+        }
+
+        long[][] bounds = { { index[0], index[1], index[0], index[1], z } };
+        TileRange range = new TileRange(entry.layerName, entry.gridSetId, z, z, bounds,
+                entry.mimeType, entry.parameters);
+        GWCTask[] tasks;
+        try {
+            tasks = breeder.createTasks(range, layer, GWCTask.TYPE.RESEED, 1, false);
+        } catch (GeoWebCacheException e) {
+            log.warn("Unable to refresh " + range + ": " + e.getMessage());
+            entry.hits.set(0);
+            return false;
+        }
+        synchronized (dispatched) {
+            queued.add(tasks);
+        }
+        entry.expiresAt = now + expire * 1000L;
+        refreshed.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Refreshing " + entry.layerName + " " + entry.gridSetId + " "
+                    + entry.mimeType.getFormat() + " tile " + index[0] + "," + index[1] + ","
+                    + z + " with " + entry.hits.get() + " hits");
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the queued reseeds, as long as less than {@link #setMaxConcurrentRefreshes(int)
+     * maxConcurrentRefreshes} are running
+     */
+    void dispatchQueued() {
+        synchronized (dispatched) {
+            removeFinished();
+            while (!queued.isEmpty() && dispatched.size() < maxConcurrentRefreshes) {
+                GWCTask[] tasks = queued.removeFirst();
+                breeder.dispatchTasks(tasks);
+                Collections.addAll(dispatched, tasks);
+            }
+        }
+    }
+
+    private void removeFinished() {
+        for (Iterator<GWCTask> it = dispatched.iterator(); it.hasNext();) {
+            GWCTask.STATE state = it.next().getState();
+            if (state == GWCTask.STATE.DONE || state == GWCTask.STATE.DEAD) {
+                it.remove();
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
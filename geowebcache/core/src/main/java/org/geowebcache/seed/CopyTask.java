@@ -0,0 +1,784 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.CompositeBlobStore;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Copies the tiles of a range, or of a whole layer, from a blob store to another, to move the
+ * cache of a layer between the stores of a {@link CompositeBlobStore} without seeding it again
+ * from the backend.
+ * <p>
+ * A whole layer is copied as one range per tile set, that is per gridset, format and parameters
+ * cached in the source, each covering all the zoom levels of the gridset. Each range is walked
+ * tile by tile, so a whole layer copy reads every tile position of the gridsets' coverage.
+ * </p>
+ * <p>
+ * The task thread walks the range in order and hands the tiles to a pool of readers, which pass
+ * the tiles found in the source to a pool of writers, so that reads and writes overlap while at
+ * most {@link #setMaxInFlight(int) maxInFlight} tiles are held in memory. When
+ * {@link #setVerify(boolean) verifying}, each written tile is read back from the target and its
+ * CRC32 compared to the one of the source tile.
+ * </p>
+ * <p>
+ * Progress is checkpointed in the target store, as layer metadata, every
+ * {@link #setCheckpointInterval(long) checkpointInterval} tiles, for each range: a copy of the
+ * same range started again resumes after the last tile known to be copied along with all the
+ * previous ones. Once the whole range is copied its checkpoint is marked complete, and a later
+ * copy starts over.
+ * </p>
+ * <p>
+ * Once the copy of a whole layer is complete the layer can be
+ * {@link #setSwitchBlobStore(CompositeBlobStore, String) switched} to the target store. The tiles
+ * stored or deleted in the source meanwhile are tracked, and copied again while the composite
+ * store holds the tile operations, right before switching. The layer is not switched if any tile
+ * failed to be copied, if tiles of a tile set that was not copied were stored in the source
+ * meanwhile, or if the source holds parameters it has no mapping for, as their tiles can't be
+ * copied. A copy switching the layer does not resume from a checkpoint, as the changes made in
+ * the source before it started are not known.
+ * </p>
+ */
+public class CopyTask extends GWCTask {
+
+    private static Log log = LogFactory.getLog(CopyTask.class);
+
+    /**
+     * Prefix of the layer metadata key of the checkpoints in the target store
+     */
+    static final String CHECKPOINT_PREFIX = "copy.checkpoint.";
+
+    /**
+     * Value of the checkpoint of a range copied entirely
+     */
+    static final String CHECKPOINT_COMPLETE = "complete";
+
+    private final List<TileRange> ranges;
+
+    /**
+     * Whether the ranges cover all the tile sets of the layer
+     */
+    private final boolean wholeLayer;
+
+    /**
+     * Ids of the parameters cached in the source that can't be copied, for lack of a mapping
+     */
+    private final Set<String> unmappedParameters;
+
+    private final BlobStore source;
+
+    private final BlobStore target;
+
+    private int readThreads = 4;
+
+    private int writeThreads = 4;
+
+    private int maxInFlight = 256;
+
+    private boolean verify = true;
+
+    private boolean resume = true;
+
+    private long checkpointInterval = 10000;
+
+    private int maxChanges = 100000;
+
+    private CompositeBlobStore compositeStore;
+
+    private String targetStoreId;
+
+    private boolean switchBlobStore;
+
+    private final AtomicLong tilesCopied = new AtomicLong();
+
+    private final AtomicLong tilesMissing = new AtomicLong();
+
+    private final AtomicLong tilesFailed = new AtomicLong();
+
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    private volatile long startTime;
+
+    private long skipped;
+
+    private Semaphore inFlight;
+
+    private ExecutorService readers;
+
+    private ExecutorService writers;
+
+    /**
+     * Number of tiles of the current range, in range order, copied along with all the previous
+     * ones
+     */
+    private long watermark;
+
+    /**
+     * Tiles copied beyond the {@link #watermark}
+     */
+    private final Set<Long> completedAhead = new HashSet<Long>();
+
+    /**
+     * The first tile that failed, the watermark does not advance past it
+     */
+    private long firstFailure = Long.MAX_VALUE;
+
+    /**
+     * Tiles changed in the source since the copy started, as "range index,x,y,z"
+     */
+    private final Set<String> changes = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean changesOverflow;
+
+    private final BlobStoreListener changeListener = new ChangeListener();
+
+    /**
+     * @param tr the tiles to copy
+     * @param tl the layer of the tiles
+     * @param source the store to read the tiles from
+     * @param target the store to write the tiles to
+     */
+    public CopyTask(TileRange tr, TileLayer tl, BlobStore source, BlobStore target) {
+        this(Collections.singletonList(tr), false, Collections.<String> emptySet(), tl, source,
+                target);
+        Assert.notNull(tr, "tile range is null");
+    }
+
+    /**
+     * Copies all the tile sets of a layer cached in the source, as required to
+     * {@link #setSwitchBlobStore(CompositeBlobStore, String) switch} it to the target store
+     *
+     * @param tl the layer to copy
+     * @param source the store to read the tiles from
+     * @param target the store to write the tiles to
+     */
+    public CopyTask(TileLayer tl, BlobStore source, BlobStore target) {
+        this(new ArrayList<TileRange>(), true, new HashSet<String>(), tl, source, target);
+        Map<String, Optional<Map<String, String>>> mapping = source
+                .getParametersMapping(tl.getName());
+        for (String gridSetId : tl.getGridSubsets()) {
+            GridSubset gridSubset = tl.getGridSubset(gridSetId);
+            for (MimeType mimeType : tl.getMimeTypes()) {
+                ranges.add(new TileRange(tl.getName(), gridSetId, gridSubset.getZoomStart(),
+                        gridSubset.getZoomStop(), gridSubset.getCoverages(), mimeType, null,
+                        null));
+                for (Map.Entry<String, Optional<Map<String, String>>> parameters : mapping
+                        .entrySet()) {
+                    if (parameters.getKey() == null) {
+                        continue;
+                    }
+                    if (!parameters.getValue().isPresent()) {
+                        unmappedParameters.add(parameters.getKey());
+                        continue;
+                    }
+                    ranges.add(new TileRange(tl.getName(), gridSetId, gridSubset.getZoomStart(),
+                            gridSubset.getZoomStop(), gridSubset.getCoverages(), mimeType,
+                            parameters.getValue().get(), parameters.getKey()));
+                }
+            }
+        }
+    }
+
+    private CopyTask(List<TileRange> ranges, boolean wholeLayer, Set<String> unmappedParameters,
+            TileLayer tl, BlobStore source, BlobStore target) {
+        Assert.notNull(tl, "layer is null");
+        Assert.notNull(source, "source is null");
+        Assert.notNull(target, "target is null");
+        Assert.isTrue(source != target, "source and target are the same store");
+        this.ranges = ranges;
+        this.wholeLayer = wholeLayer;
+        this.unmappedParameters = unmappedParameters;
+        this.source = source;
+        this.target = target;
+
+        super.parsedType = GWCTask.TYPE.COPY;
+        super.layerName = tl.getName();
+        super.state = GWCTask.STATE.READY;
+    }
+
+    /**
+     * @param readThreads number of threads reading from the source, defaults to 4
+     */
+    public void setReadThreads(int readThreads) {
+        Assert.isTrue(readThreads > 0, "readThreads shall be positive");
+        this.readThreads = readThreads;
+    }
+
+    /**
+     * @param writeThreads number of threads writing to the target, defaults to 4
+     */
+    public void setWriteThreads(int writeThreads) {
+        Assert.isTrue(writeThreads > 0, "writeThreads shall be positive");
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * @param maxInFlight maximum number of tiles being read or written at a time, defaults to 256
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        Assert.isTrue(maxInFlight > 0, "maxInFlight shall be positive");
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param verify whether to read back the written tiles to compare their checksum, defaults to
+     *        {@code true}
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @param resume whether to resume from the checkpoint of a previous copy of the same range,
+     *        defaults to {@code true}
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @param checkpointInterval number of tiles between two checkpoints, defaults to 10000
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        Assert.isTrue(checkpointInterval > 0, "checkpointInterval shall be positive");
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param maxChanges maximum number of tiles changed in the source during the copy that are
+     *        tracked to be copied again before switching, defaults to 100000. The layer is not
+     *        switched if more tiles changed.
+     */
+    public void setMaxChanges(int maxChanges) {
+        Assert.isTrue(maxChanges >= 0, "maxChanges shall be positive or zero");
+        this.maxChanges = maxChanges;
+    }
+
+    /**
+     * Switches the layer to the target store once the copy is complete. Only a copy of the
+     * {@link #CopyTask(TileLayer, BlobStore, BlobStore) whole layer} can switch it, the tile sets
+     * left out of a range would be lost to the layer.
+     *
+     * @param compositeStore the store the layer's tiles go through
+     * @param targetStoreId the id of the target store, {@code null} for the default one
+     * @throws IllegalStateException if this task copies a single range
+     */
+    public void setSwitchBlobStore(CompositeBlobStore compositeStore,
+            @Nullable String targetStoreId) {
+        Assert.notNull(compositeStore, "compositeStore is null");
+        Assert.state(wholeLayer, "Only the copy of a whole layer can switch its blob store");
+        this.compositeStore = compositeStore;
+        this.targetStoreId = targetStoreId;
+        this.switchBlobStore = true;
+    }
+
+    public long getTilesCopied() {
+        return tilesCopied.get();
+    }
+
+    /**
+     * @return the number of tiles of the range not found in the source
+     */
+    public long getTilesMissing() {
+        return tilesMissing.get();
+    }
+
+    /**
+     * @return the number of tiles that failed to be read, written or verified
+     */
+    public long getTilesFailed() {
+        return tilesFailed.get();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * @return the number of tiles processed per second since the task started, skipped ones
+     *         excluded
+     */
+    public double getTilesPerSecond() {
+        long processed = tilesCopied.get() + tilesMissing.get() + tilesFailed.get();
+        return processed / elapsedSeconds();
+    }
+
+    /**
+     * @return the number of bytes copied per second since the task started
+     */
+    public double getBytesPerSecond() {
+        return bytesCopied.get() / elapsedSeconds();
+    }
+
+    private double elapsedSeconds() {
+        long start = startTime;
+        if (start == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(1, System.currentTimeMillis() - start) / 1000d;
+    }
+
+    @Override
+    protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
+        super.state = GWCTask.STATE.RUNNING;
+        Thread.currentThread().setPriority(
+                (java.lang.Thread.NORM_PRIORITY + java.lang.Thread.MIN_PRIORITY) / 2);
+        checkInterrupted();
+
+        final long[] resumeFrom = new long[ranges.size()];
+        long total = 0;
+        skipped = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            total += SeedTask.tileCount(ranges.get(i));
+            resumeFrom[i] = resume ? readCheckpoint(checkpointKey(ranges.get(i))) : 0;
+            skipped += resumeFrom[i];
+        }
+        super.tilesTotal = total;
+        if (switchBlobStore && !unmappedParameters.isEmpty()) {
+            super.state = GWCTask.STATE.DEAD;
+            throw new GeoWebCacheException("Can't switch layer " + layerName
+                    + ", the source store has no mapping for the parameters "
+                    + unmappedParameters + " so their tiles can't be copied");
+        }
+        if (skipped > 0 && switchBlobStore) {
+            super.state = GWCTask.STATE.DEAD;
+            throw new GeoWebCacheException("Can't switch layer " + layerName
+                    + " after resuming its copy, the tiles changed in the source before resuming"
+                    + " are unknown. Copy it again without resuming.");
+        }
+        if (skipped > 0) {
+            log.info("Resuming copy of layer " + layerName + " after " + skipped + " tiles");
+        }
+        if (switchBlobStore) {
+            source.addListener(changeListener);
+        }
+
+        inFlight = new Semaphore(maxInFlight);
+        readers = Executors.newFixedThreadPool(readThreads, threadFactory("GWC Copy Reader-"));
+        writers = Executors.newFixedThreadPool(writeThreads, threadFactory("GWC Copy Writer-"));
+        startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < ranges.size() && !terminate; i++) {
+            copyRange(i, resumeFrom[i]);
+        }
+        updateStatusInfo();
+
+        if (tilesFailed.get() > 0) {
+            log.error("Copy of layer " + layerName + " finished with " + tilesFailed.get()
+                    + " tiles failed, run it again to resume from the first failure");
+            super.state = GWCTask.STATE.DEAD;
+            return;
+        }
+        if (terminate) {
+            log.info("Copy of layer " + layerName + " was terminated after " + tilesDone
+                    + " tiles");
+        } else {
+            log.info("Copied " + tilesCopied.get() + " tiles of layer " + layerName + ", "
+                    + tilesMissing.get() + " missing in the source, in " + timeSpent
+                    + " seconds");
+            if (switchBlobStore && !switchBlobStore()) {
+                super.state = GWCTask.STATE.DEAD;
+                return;
+            }
+        }
+        super.state = GWCTask.STATE.DONE;
+    }
+
+    private void copyRange(int index, long skip) throws InterruptedException {
+        final TileRange tr = ranges.get(index);
+        final String checkpointKey = checkpointKey(tr);
+        final long total = SeedTask.tileCount(tr);
+        final long failedBefore = tilesFailed.get();
+        synchronized (this) {
+            watermark = skip;
+            completedAhead.clear();
+            firstFailure = Long.MAX_VALUE;
+        }
+
+        TileRangeIterator trIter = new TileRangeIterator(tr, new int[] { 1, 1 });
+        long lastCheckpoint = skip;
+        long seq = 0;
+        long[] gridLoc = trIter.nextMetaGridLocation(new long[3]);
+        while (gridLoc != null && !terminate) {
+            checkInterrupted();
+            if (seq >= skip) {
+                acquire(1);
+                final long tileSeq = seq;
+                final long[] xyz = gridLoc.clone();
+                try {
+                    readers.execute(() -> read(tr, tileSeq, xyz));
+                } catch (RuntimeException e) {
+                    completed(tileSeq, false);
+                    throw e;
+                }
+            }
+            seq++;
+            long copied = currentWatermark();
+            if (copied - lastCheckpoint >= checkpointInterval) {
+                writeCheckpoint(checkpointKey, copied, total);
+                lastCheckpoint = copied;
+            }
+            updateStatusInfo();
+            gridLoc = trIter.nextMetaGridLocation(gridLoc);
+        }
+
+        // wait for the tiles in flight
+        acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        if (terminate || tilesFailed.get() > failedBefore) {
+            writeCheckpoint(checkpointKey, currentWatermark(), total);
+        } else {
+            // nothing left to resume, a later copy of the range starts over
+            writeCheckpoint(checkpointKey, CHECKPOINT_COMPLETE);
+        }
+    }
+
+    private void acquire(int permits) throws InterruptedException {
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            super.state = GWCTask.STATE.DEAD;
+            throw e;
+        }
+    }
+
+    private CustomizableThreadFactory threadFactory(String prefix) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(prefix);
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.currentThread().getPriority());
+        return threadFactory;
+    }
+
+    private void read(TileRange tr, long seq, long[] xyz) {
+        boolean handedOver = false;
+        boolean ok = false;
+        try {
+            TileObject tile = queryTile(tr, xyz);
+            if (!source.get(tile)) {
+                tilesMissing.incrementAndGet();
+                ok = true;
+                return;
+            }
+            final byte[] bytes = toBytes(tile.getBlob());
+            final long checksum = checksum(bytes);
+            writers.execute(() -> write(tr, seq, xyz, bytes, checksum));
+            handedOver = true;
+        } catch (Exception e) {
+            log.warn("Failed to read tile " + Arrays.toString(xyz) + " of layer " + layerName
+                    + " from the source: " + e.getMessage());
+        } finally {
+            if (!handedOver) {
+                completed(seq, ok);
+            }
+        }
+    }
+
+    private void write(TileRange tr, long seq, long[] xyz, byte[] bytes, long checksum) {
+        boolean ok = false;
+        try {
+            TileObject tile = TileObject.createCompleteTileObject(layerName, xyz,
+                    tr.getGridSetId(), tr.getMimeType().getFormat(), tr.getParameters(),
+                    new ByteArrayResource(bytes));
+            target.put(tile);
+            if (verify) {
+                TileObject written = queryTile(tr, xyz);
+                if (!target.get(written) || checksum(toBytes(written.getBlob())) != checksum) {
+                    log.warn("Tile " + Arrays.toString(xyz) + " of layer " + layerName
+                            + " read back from the target does not match the source");
+                    return;
+                }
+            }
+            tilesCopied.incrementAndGet();
+            bytesCopied.addAndGet(bytes.length);
+            ok = true;
+        } catch (Exception e) {
+            log.warn("Failed to write tile " + Arrays.toString(xyz) + " of layer " + layerName
+                    + " to the target: " + e.getMessage());
+        } finally {
+            completed(seq, ok);
+        }
+    }
+
+    private synchronized void completed(long seq, boolean ok) {
+        if (!ok) {
+            tilesFailed.incrementAndGet();
+            if (seq < firstFailure) {
+                firstFailure = seq;
+                completedAhead.removeIf(s -> s > seq);
+            }
+        } else if (seq < firstFailure) {
+            if (seq == watermark) {
+                watermark++;
+                while (completedAhead.remove(watermark)) {
+                    watermark++;
+                }
+            } else {
+                completedAhead.add(seq);
+            }
+        }
+        inFlight.release();
+    }
+
+    private synchronized long currentWatermark() {
+        return watermark;
+    }
+
+    private TileObject queryTile(TileRange tr, long[] xyz) {
+        return TileObject.createQueryTileObject(layerName, xyz, tr.getGridSetId(), tr
+                .getMimeType().getFormat(), tr.getParameters());
+    }
+
+    private static byte[] toBytes(Resource blob) throws IOException {
+        try (InputStream in = blob.getInputStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Identifies the range, so that a checkpoint is only used to resume the copy of the same one
+     */
+    static String checkpointKey(TileRange tr) {
+        int hash = Objects.hash(tr.getGridSetId(), tr.getMimeType().getFormat(),
+                tr.getParametersId(), tr.getZoomStart(), tr.getZoomStop());
+        for (int z = tr.getZoomStart(); z <= tr.getZoomStop(); z++) {
+            hash = 31 * hash + Arrays.hashCode(tr.rangeBounds(z));
+        }
+        return CHECKPOINT_PREFIX + Integer.toHexString(hash);
+    }
+
+    private long readCheckpoint(String key) {
+        String value = target.getLayerMetadata(layerName, key);
+        if (value == null || CHECKPOINT_COMPLETE.equals(value)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid copy checkpoint " + key + "=" + value + " of layer "
+                    + layerName);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(String key, long copied, long total) {
+        writeCheckpoint(key, String.valueOf(copied));
+        if (log.isInfoEnabled()) {
+            log.info(String.format(
+                    "Copied %d of %d tiles of a range of layer %s, %.1f tiles/s, %.1f KiB/s",
+                    copied, total, layerName, getTilesPerSecond(), getBytesPerSecond() / 1024));
+        }
+    }
+
+    private void writeCheckpoint(String key, String value) {
+        try {
+            target.putLayerMetadata(layerName, key, value);
+        } catch (RuntimeException e) {
+            log.warn("Failed to checkpoint the copy of layer " + layerName + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void updateStatusInfo() {
+        long processed = tilesCopied.get() + tilesMissing.get() + tilesFailed.get();
+        this.tilesDone = skipped + processed;
+        this.timeSpent = (System.currentTimeMillis() - startTime) / 1000;
+        if (tilesTotal > 0 && processed > 0) {
+            double rate = getTilesPerSecond();
+            this.timeRemaining = Math.round((tilesTotal - tilesDone) / rate);
+        }
+    }
+
+    /**
+     * Copies again the tiles changed in the source during the copy, and switches the layer to the
+     * target store
+     *
+     * @return whether the layer has been switched
+     */
+    private boolean switchBlobStore() {
+        try {
+            // most changes are copied while the tile operations go on
+            copyChanges();
+            compositeStore.switchBlobStore(layerName, targetStoreId, () -> {
+                source.removeListener(changeListener);
+                copyChanges();
+            });
+        } catch (GeoWebCacheException | IOException e) {
+            log.error("Failed to switch layer " + layerName + " to blob store " + targetStoreId,
+                    e);
+            return false;
+        }
+        log.info("Switched layer " + layerName + " to blob store " + targetStoreId);
+        return true;
+    }
+
+    private void copyChanges() throws StorageException {
+        if (changesOverflow) {
+            throw new StorageException("Too many changes, new tile sets, or the layer changed as "
+                    + "a whole, in the source store during the copy");
+        }
+        for (Iterator<String> it = changes.iterator(); it.hasNext();) {
+            String change = it.next();
+            it.remove();
+            String[] parts = change.split(",");
+            TileRange tr = ranges.get(Integer.parseInt(parts[0]));
+            long[] xyz = { Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]) };
+            TileObject tile = queryTile(tr, xyz);
+            if (source.get(tile)) {
+                try {
+                    tile.setBlob(new ByteArrayResource(toBytes(tile.getBlob())));
+                } catch (IOException e) {
+                    throw new StorageException("Failed to read tile " + change, e);
+                }
+                target.put(tile);
+            } else {
+                target.delete(queryTile(tr, xyz));
+            }
+        }
+    }
+
+    @Override
+    protected void dispose() {
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+        if (writers != null) {
+            writers.shutdownNow();
+        }
+        if (switchBlobStore) {
+            source.removeListener(changeListener);
+        }
+    }
+
+    /**
+     * Tracks the tiles of the ranges changed in the source
+     */
+    private class ChangeListener implements BlobStoreListener {
+
+        private boolean matches(TileRange tr, String gridSetId, String blobFormat,
+                String parametersId) {
+            return tr.getGridSetId().equals(gridSetId)
+                    && tr.getMimeType().getFormat().equals(blobFormat)
+                    && Objects.equals(tr.getParametersId(), parametersId);
+        }
+
+        private void changed(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z) {
+            if (!CopyTask.this.layerName.equals(layerName)) {
+                return;
+            }
+            boolean tileSetCopied = false;
+            for (int i = 0; i < ranges.size(); i++) {
+                TileRange tr = ranges.get(i);
+                if (matches(tr, gridSetId, blobFormat, parametersId)) {
+                    tileSetCopied = true;
+                    if (tr.contains(x, y, z)) {
+                        if (changes.size() >= maxChanges) {
+                            changesOverflow = true;
+                        } else {
+                            changes.add(i + "," + x + "," + y + "," + z);
+                        }
+                        return;
+                    }
+                }
+            }
+            if (!tileSetCopied && wholeLayer) {
+                // a tile set new to the source, it would be left behind
+                changesOverflow = true;
+            }
+        }
+
+        private void changedAll(String layerName) {
+            if (CopyTask.this.layerName.equals(layerName)) {
+                changesOverflow = true;
+            }
+        }
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            changed(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            changed(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            changed(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+        }
+
+        public void layerDeleted(String layerName) {
+            changedAll(layerName);
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+            changedAll(oldLayerName);
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+            changedAll(layerName);
+        }
+
+        public void parametersDeleted(String layerName, String parametersId) {
+            changedAll(layerName);
+        }
+    }
+}
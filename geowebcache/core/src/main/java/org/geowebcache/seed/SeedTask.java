@@ -229,7 +229,7 @@ class SeedTask extends GWCTask {
      * @param tr
      * @return -1 if too many
      */
-    private long tileCount(TileRange tr) {
+    static long tileCount(TileRange tr) {
 
         final int startZoom = tr.getZoomStart();
         final int stopZoom = tr.getZoomStop();
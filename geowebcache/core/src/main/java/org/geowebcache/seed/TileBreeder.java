@@ -243,10 +243,15 @@ public class TileBreeder implements ApplicationContextAware {
      * @param filterUpdate // TODO: What does this do?
      * @return Array of tasks.  Will have length threadCount or 1.
      * @throws GeoWebCacheException
+     * @throws IllegalArgumentException if type is {@link GWCTask.TYPE#COPY}
      */
     public GWCTask[] createTasks(TileRange tr, TileLayer tl, GWCTask.TYPE type, int threadCount,
             boolean filterUpdate) throws GeoWebCacheException {
 
+        if (type == GWCTask.TYPE.COPY) {
+            throw new IllegalArgumentException("Copy tasks can't be created from a tile range "
+                    + "alone, they need a source and a target blob store, see CopyTask");
+        }
         if (type == GWCTask.TYPE.TRUNCATE || threadCount < 1) {
             log.trace("Forcing thread count to 1");
             threadCount = 1;
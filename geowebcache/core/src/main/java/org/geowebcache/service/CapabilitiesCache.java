@@ -0,0 +1,372 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.XMLBuilder;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.TileLayerDispatcherListener;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of capabilities documents shared by the services.
+ * <p>
+ * Documents are cached by a key provided by the service, which shall include everything the
+ * document depends on besides the layers, like the service name and the base URLs. Within a
+ * document the XML of each layer is cached separately, so that a change to a layer only requires
+ * that layer to be encoded again, while the rest of the document is assembled from the cached
+ * fragments.
+ * <p>
+ * Cached contents are invalidated by the changes made through the {@link TileLayerDispatcher},
+ * changes made behind its back are picked up once the documents reach their {@link #setMaxAge(int)
+ * maximum age}.
+ * <p>
+ * Cached documents are served with an ETag, answering conditional requests with a 304, and gzip
+ * compressed to the clients accepting it.
+ */
+public class CapabilitiesCache implements TileLayerDispatcherListener, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(CapabilitiesCache.class);
+
+    /**
+     * Maximum number of distinct documents, e.g. the same service requested through different
+     * base URLs
+     */
+    static final int MAX_DOCUMENTS = 100;
+
+    /**
+     * Generates a capabilities document to the provided output, encoding its layers through the
+     * provided {@link LayerFragments}
+     */
+    public interface Generator {
+        void generate(Appendable out, LayerFragments fragments) throws IOException;
+    }
+
+    /**
+     * Encodes the parts of a document that depend on a single layer, reusing the cached output
+     * when available
+     */
+    public static class LayerFragments {
+
+        private final Entry entry;
+
+        private final long generation;
+
+        private LayerFragments(Entry entry, long generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        /**
+         * @return fragments that are never cached, for when caching is disabled
+         */
+        public static LayerFragments uncached() {
+            return new LayerFragments(null, 0);
+        }
+
+        /**
+         * Appends a part of a document that depends only on the given layer
+         *
+         * @param xml the document being generated
+         * @param layerName the layer the fragment depends on
+         * @param part identifies the fragment among the ones of the same layer in the document
+         * @param fragment writes the fragment when not cached
+         */
+        public void append(XMLBuilder xml, String layerName, String part,
+                XMLBuilder.Fragment fragment) throws IOException {
+            if (entry == null) {
+                fragment.write(xml);
+                return;
+            }
+            Map<String, String> parts = entry.fragments.get(layerName);
+            String captured = parts == null ? null : parts.get(part);
+            if (captured == null) {
+                captured = xml.captureFragment(fragment);
+                entry.putFragment(layerName, part, captured, generation);
+            }
+            xml.appendFragment(captured);
+        }
+    }
+
+    /**
+     * A generated document
+     */
+    public static class Document {
+
+        private final byte[] body;
+
+        private final String eTag;
+
+        private final Charset encoding;
+
+        private final long generation;
+
+        private final long created;
+
+        private volatile byte[] gzipped;
+
+        Document(byte[] body, Charset encoding, long generation, long created) {
+            this.body = body;
+            this.encoding = encoding;
+            this.generation = generation;
+            this.created = created;
+            this.eTag = '"' + DigestUtils.sha1Hex(body) + '"';
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public Charset getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * @return the entity tag of the document, quoted as expected in HTTP headers
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the gzip compressed body, compressed on first use
+         */
+        public byte[] getGzipped() throws IOException {
+            byte[] compressed = gzipped;
+            if (compressed == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(body);
+                }
+                compressed = out.toByteArray();
+                gzipped = compressed;
+            }
+            return compressed;
+        }
+    }
+
+    /**
+     * The cached contents for a document key
+     */
+    private class Entry {
+
+        volatile Document document;
+
+        final ConcurrentMap<String, Map<String, String>> fragments = new ConcurrentHashMap<String, Map<String, String>>();
+
+        void putFragment(String layerName, String part, String captured, long generation) {
+            if (generation != CapabilitiesCache.this.generation.get()) {
+                return;
+            }
+            Map<String, String> parts = fragments.get(layerName);
+            if (parts == null) {
+                parts = new ConcurrentHashMap<String, String>();
+                Map<String, String> existing = fragments.putIfAbsent(layerName, parts);
+                if (existing != null) {
+                    parts = existing;
+                }
+            }
+            parts.put(part, captured);
+            // the layer may have changed while encoding, drop what could be stale. Invalidation
+            // bumps the generation before removing fragments, so one of the two will catch it
+            if (generation != CapabilitiesCache.this.generation.get()) {
+                fragments.remove(layerName);
+            }
+        }
+    }
+
+    private final TileLayerDispatcher tld;
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DOCUMENTS).build();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long maxAgeMillis = TimeUnit.SECONDS.toMillis(300);
+
+    public CapabilitiesCache(TileLayerDispatcher tld) {
+        this.tld = checkNotNull(tld);
+        tld.addListener(this);
+    }
+
+    /**
+     * Sets the maximum age of the cached documents, to pick up changes not made through the
+     * {@link TileLayerDispatcher}. Defaults to 300 seconds, 0 means no limit.
+     *
+     * @param maxAge age in seconds
+     */
+    public void setMaxAge(int maxAge) {
+        checkArgument(maxAge >= 0, "maxAge can't be negative");
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAge);
+    }
+
+    /**
+     * Returns the document for the given key, generating it if not cached or outdated
+     *
+     * @param key identifies the document, including everything it depends on but the layers
+     * @param encoding the encoding of the document
+     * @param generator generates the document when needed
+     */
+    public Document getDocument(String key, Charset encoding, Generator generator)
+            throws IOException {
+        final long currentGeneration = generation.get();
+        final long now = System.currentTimeMillis();
+
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            entry = new Entry();
+            Entry existing = entries.asMap().putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+
+        Document document = entry.document;
+        if (document != null && document.generation == currentGeneration) {
+            if (maxAgeMillis == 0 || now - document.created < maxAgeMillis) {
+                return document;
+            }
+            // expired, encode everything again
+            entry.fragments.clear();
+        }
+
+        // encode straight to bytes, the previous document size is a good guess for the new one
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                document == null ? CapabilitiesWriter.BUFFER_SIZE : document.body.length);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(bytes, encoding),
+                CapabilitiesWriter.BUFFER_SIZE);
+        generator.generate(writer, new LayerFragments(entry, currentGeneration));
+        writer.flush();
+        document = new Document(bytes.toByteArray(), encoding, currentGeneration, now);
+        if (generation.get() == currentGeneration) {
+            entry.document = document;
+        }
+        return document;
+    }
+
+    /**
+     * Writes a document to the response, answering with a 304 if the client already has it and
+     * compressing it if the client accepts gzip
+     *
+     * @return the number of bytes written
+     */
+    public static int writeResponse(Document document, HttpServletRequest request,
+            HttpServletResponse response, String contentType, String fileName) throws IOException {
+        response.setHeader("ETag", document.getETag());
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matchesETag(request.getHeader("If-None-Match"), document.getETag())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return 0;
+        }
+
+        byte[] data = document.getBody();
+        if (acceptsGzip(request)) {
+            data = document.getGzipped();
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setCharacterEncoding(document.getEncoding().name());
+        response.setContentLength(data.length);
+        response.setHeader("content-disposition", "inline;filename=" + fileName);
+
+        OutputStream os = response.getOutputStream();
+        os.write(data);
+        os.flush();
+        return data.length;
+    }
+
+    static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<String> values = request.getHeaders("Accept-Encoding");
+        while (values != null && values.hasMoreElements()) {
+            for (String coding : values.nextElement().split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    // gzip;q=0 means not acceptable
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void layerChanged(String layerName) {
+        generation.incrementAndGet();
+        for (Entry entry : entries.asMap().values()) {
+            entry.document = null;
+            entry.fragments.remove(layerName);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated cached capabilities of layer " + layerName);
+        }
+    }
+
+    @Override
+    public void configurationChanged() {
+        generation.incrementAndGet();
+        entries.invalidateAll();
+        log.debug("Invalidated all cached capabilities");
+    }
+
+    @Override
+    public void destroy() {
+        tld.removeListener(this);
+        entries.invalidateAll();
+    }
+}
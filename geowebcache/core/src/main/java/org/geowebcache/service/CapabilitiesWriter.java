@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Streams capabilities documents straight to the servlet output, so that the memory used does not
+ * depend on the size of the document.
+ * <p>
+ * The document is written through a buffer of {@link #BUFFER_SIZE} characters and gzip compressed
+ * for the clients accepting it. As the response is committed while the document is still being
+ * generated, errors can't be turned into exception reports once the first buffer is flushed.
+ */
+public class CapabilitiesWriter {
+
+    /**
+     * Size of the output buffer, in characters
+     */
+    public static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Writes the body of a document
+     */
+    public interface Body {
+        void write(Appendable out) throws IOException;
+    }
+
+    private CapabilitiesWriter() {
+        // utility class
+    }
+
+    /**
+     * Streams a document to the response
+     *
+     * @param request the request, used to check whether the client accepts gzip, may be
+     *        {@code null}
+     * @return the number of bytes written to the response
+     */
+    public static long writeResponse(HttpServletRequest request, HttpServletResponse response,
+            String contentType, Charset encoding, String fileName, Body body) throws IOException {
+        final boolean gzip = request != null && CapabilitiesCache.acceptsGzip(request);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setCharacterEncoding(encoding.name());
+        response.setHeader("content-disposition", "inline;filename=" + fileName);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        CountingOutputStream counting = new CountingOutputStream(response.getOutputStream());
+        OutputStream out = gzip ? new GZIPOutputStream(counting, BUFFER_SIZE) : counting;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, encoding), BUFFER_SIZE);
+        body.write(writer);
+        writer.flush();
+        if (gzip) {
+            ((GZIPOutputStream) out).finish();
+        }
+        counting.flush();
+        return counting.getByteCount();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies, in microseconds.
+ * <p>
+ * Values are counted in log-linear buckets, as HDR histograms do: each power of two is split in
+ * {@link #SUB_BUCKETS} linear buckets, so a value is known within 1/{@link #SUB_BUCKETS} of its
+ * magnitude whatever the magnitude. Values above {@link #MAX_VALUE} are counted in the last bucket.
+ * <p>
+ * Counts are spread over a number of stripes, picked by the recording thread, so that threads
+ * recording the same latency don't contend on the same counter.
+ */
+final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest value with its own bucket, a bit more than two minutes
+     */
+    static final long MAX_VALUE = (1L << 27) - 1;
+
+    static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+    private final AtomicLongArray[] stripes;
+
+    private final int stripeMask;
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    LatencyHistogram(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << (stripes > 1 ? 1 : 0);
+        this.stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = count - 1;
+    }
+
+    /**
+     * Index of the bucket counting the given value
+     */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value counted by a bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lowest = (1L << magnitude) + ((long) sub << (magnitude - SUB_BUCKET_BITS));
+        return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    void record(long nanos) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        stripes[stripe].incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * Moves the counts of this histogram to the given array, leaving this histogram empty. Values
+     * recorded meanwhile are either moved or left for the next drain, never lost.
+     *
+     * @return the number of values moved
+     */
+    long drainTo(long[] counts) {
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                if (stripe.get(i) != 0) {
+                    long count = stripe.getAndSet(i, 0);
+                    counts[i] += count;
+                    total += count;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Value below which the given fraction of the counted values fall, in microseconds
+     *
+     * @param counts counts per bucket
+     * @param total sum of the counts
+     * @param fraction between 0 and 1
+     */
+    static long valueAt(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+}
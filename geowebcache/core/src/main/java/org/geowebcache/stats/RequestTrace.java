@@ -0,0 +1,172 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+/**
+ * Time spent in each stage of the tile pipeline by a sampled request.
+ * <p>
+ * A trace is started by {@link RuntimeStats#startTrace()}, which binds it to the request thread,
+ * and is carried along by the {@link org.geowebcache.conveyor.Conveyor}. The instrumented code
+ * brackets each stage with {@link #start()} and {@link #stop(Stage, long)}, which do nothing but a
+ * thread local lookup when the request is not traced:
+ *
+ * <pre>
+ * long start = RequestTrace.start();
+ * lock = lockProvider.getLock(key);
+ * RequestTrace.stop(Stage.LOCK_WAIT, start);
+ * </pre>
+ *
+ * A stage entered several times, like the blob store puts of a meta tile, accumulates its time.
+ */
+public final class RequestTrace {
+
+    public static enum Stage {
+        /** finding the service to dispatch to */
+        DISPATCH,
+        /** parsing the request into a conveyor */
+        CONVEYOR,
+        /** applying the layer request filters */
+        FILTERS,
+        /** waiting for the meta tile lock */
+        LOCK_WAIT,
+        /** backend request */
+        BACKEND,
+        /** decoding the meta tile */
+        DECODE,
+        /** cropping and encoding the tiles of the meta tile */
+        ENCODE,
+        /** reading from the blob store */
+        BLOBSTORE_GET,
+        /** writing to the blob store */
+        BLOBSTORE_PUT,
+        /** writing the response */
+        RESPONSE_WRITE
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>();
+
+    private final long startTime = System.nanoTime();
+
+    private final long[] nanos = new long[STAGES.length];
+
+    private final int[] counts = new int[STAGES.length];
+
+    RequestTrace() {
+    }
+
+    /**
+     * @return the trace bound to the current thread, or {@code null} if the request is not traced
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the trace to the current thread, for work done on behalf of the request in another
+     * thread, like the tile fetches of the WMS tile fuser or the link checks of the KML service
+     *
+     * @param trace the trace, or {@code null} to unbind the current one
+     */
+    public static void bind(RequestTrace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    /**
+     * @return the start time of a stage, or {@code 0} if the current request is not traced
+     */
+    public static long start() {
+        return CURRENT.get() == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Adds the time elapsed since {@code start} to the stage of the current trace
+     *
+     * @param start the value returned by {@link #start()}
+     */
+    public static void stop(Stage stage, long start) {
+        if (start != 0) {
+            RequestTrace trace = CURRENT.get();
+            if (trace != null) {
+                trace.add(stage, System.nanoTime() - start);
+            }
+        }
+    }
+
+    void add(Stage stage, long elapsed) {
+        // stages may run in parallel threads bound to the same trace
+        synchronized (nanos) {
+            nanos[stage.ordinal()] += elapsed;
+            counts[stage.ordinal()]++;
+        }
+    }
+
+    /**
+     * @return the time spent in the stage, in nanoseconds
+     */
+    public long getNanos(Stage stage) {
+        synchronized (nanos) {
+            return nanos[stage.ordinal()];
+        }
+    }
+
+    /**
+     * @return how many times the request went through the stage
+     */
+    public int getCount(Stage stage) {
+        synchronized (nanos) {
+            return counts[stage.ordinal()];
+        }
+    }
+
+    /**
+     * @return the time elapsed since the start of the request, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return the time spent in each stage the request went through, like
+     *         {@code LOCK_WAIT=12.5ms, BACKEND(2)=340.1ms}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (nanos) {
+            for (Stage stage : STAGES) {
+                int count = counts[stage.ordinal()];
+                if (count == 0) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(stage);
+                if (count > 1) {
+                    sb.append('(').append(count).append(')');
+                }
+                sb.append('=').append(Math.round(nanos[stage.ordinal()] / 100000.0) / 10.0)
+                        .append("ms");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -17,13 +17,32 @@
 package org.geowebcache.stats;
 
 import java.time.Clock;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.geowebcache.util.ServletUtils;
 
+/**
+ * Runtime statistics of the responses: bytes and requests over fixed intervals, and response time
+ * percentiles per service, layer and cache result over sliding windows.
+ * <p>
+ * Responses are recorded with striped counters and histograms, so that concurrent requests don't
+ * contend with each other. The counters are aggregated every poll interval by a background thread.
+ * <p>
+ * A sample of the requests can also be traced through the tile pipeline, see {@link RequestTrace},
+ * to break their response time down per stage and to log the slow ones.
+ */
 public class RuntimeStats {    
     private static Log log = LogFactory.getLog(RuntimeStats.class);
     
@@ -36,9 +55,9 @@ public class RuntimeStats {
     
     final String[] intervalDescs;
     
-    int curBytes = 0;
+    final LongAdder curBytes = new LongAdder();
     
-    int curRequests = 0;
+    final LongAdder curRequests = new LongAdder();
     
     long peakBytesTime = 0;
     
@@ -52,11 +71,11 @@ public class RuntimeStats {
     
     long totalRequests = 0;
     
-    long totalHits;
+    final LongAdder totalHits = new LongAdder();
     
-    long totalMisses;
+    final LongAdder totalMisses = new LongAdder();
 
-    long totalWMS;
+    final LongAdder totalWMS = new LongAdder();
     
     final int[] bytes;
     
@@ -66,6 +85,21 @@ public class RuntimeStats {
     
     RuntimeStatsThread statsThread;
 
+    final ConcurrentMap<String, WindowedLatency> serviceLatencies = new ConcurrentHashMap<>();
+
+    final ConcurrentMap<String, WindowedLatency> layerLatencies = new ConcurrentHashMap<>();
+
+    final ConcurrentMap<CacheResult, WindowedLatency> cacheResultLatencies = new ConcurrentHashMap<>();
+
+    final ConcurrentMap<Stage, WindowedLatency> stageLatencies = new ConcurrentHashMap<>();
+
+    private volatile double traceSampleRate = 0;
+
+    private volatile long slowRequestThreshold = 0;
+
+    // services and cache results are few and hot, layers many and each less contended
+    private final int stripes = Runtime.getRuntime().availableProcessors();
+
     final private Clock clock;
     
     /**
@@ -137,30 +171,184 @@ public class RuntimeStats {
     
     public void log(int size, CacheResult cacheResult) {
         if(this.statsThread != null) {
-            synchronized(bytes) {
-                curBytes += size;
-                curRequests += 1;
-                
-                if(cacheResult == CacheResult.HIT) {
-                    totalHits++;
-                } else if(cacheResult == CacheResult.MISS) {
-                    totalMisses++;
-                } else if(cacheResult == CacheResult.WMS) {
-                    totalWMS++;
-                }
+            curBytes.add(size);
+            curRequests.increment();
+            
+            if(cacheResult == CacheResult.HIT) {
+                totalHits.increment();
+            } else if(cacheResult == CacheResult.MISS) {
+                totalMisses.increment();
+            } else if(cacheResult == CacheResult.WMS) {
+                totalWMS.increment();
+            }
+        }
+    }
+
+    /**
+     * Records the time taken to answer a request
+     * 
+     * @param service the service that handled the request
+     * @param layer the requested layer, or {@code null}
+     * @param cacheResult how the request was answered, or {@code null}
+     * @param nanos the response time, in nanoseconds
+     */
+    public void logLatency(String service, String layer, CacheResult cacheResult, long nanos) {
+        if(this.statsThread != null) {
+            if(service != null) {
+                latency(serviceLatencies, service, stripes).record(nanos);
+            }
+            if(layer != null) {
+                latency(layerLatencies, layer, 1).record(nanos);
+            }
+            if(cacheResult != null) {
+                latency(cacheResultLatencies, cacheResult, stripes).record(nanos);
+            }
+        }
+    }
+
+    /**
+     * @param traceSampleRate the fraction of the requests to trace, from 0 (none, the default) to 1
+     * (all)
+     */
+    public void setTraceSampleRate(double traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    /**
+     * @param slowRequestThreshold the response time, in milliseconds, above which traced requests
+     * are logged along with their breakdown per stage. 0, the default, disables the log.
+     */
+    public void setSlowRequestThreshold(long slowRequestThreshold) {
+        this.slowRequestThreshold = slowRequestThreshold;
+    }
+
+    public long getSlowRequestThreshold() {
+        return slowRequestThreshold;
+    }
+
+    /**
+     * Decides whether to trace the current request and if so binds a new trace to the current
+     * thread. The caller must hand the trace back to {@link #endTrace} once the request is done.
+     * 
+     * @return the trace, or {@code null} if the request is not sampled
+     */
+    public RequestTrace startTrace() {
+        final double sampleRate = traceSampleRate;
+        if(this.statsThread == null || sampleRate <= 0
+                || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return null;
+        }
+        RequestTrace trace = new RequestTrace();
+        RequestTrace.bind(trace);
+        return trace;
+    }
+
+    /**
+     * Unbinds the trace from the current thread, records the time of each of its stages and logs
+     * it if it was slow
+     * 
+     * @param trace the trace returned by {@link #startTrace()}, may be {@code null}
+     * @param service the service that handled the request
+     * @param layer the requested layer, or {@code null}
+     */
+    public void endTrace(RequestTrace trace, String service, String layer) {
+        if(trace == null) {
+            return;
+        }
+        RequestTrace.bind(null);
+        for(Stage stage : Stage.values()) {
+            if(trace.getCount(stage) > 0) {
+                latency(stageLatencies, stage, stripes).record(trace.getNanos(stage));
             }
         }
+        final long threshold = slowRequestThreshold;
+        final long elapsed = trace.getElapsedNanos();
+        if(threshold > 0 && elapsed >= threshold * 1000000L) {
+            log.warn("Slow " + service + " request" + (layer == null ? "" : " on " + layer)
+                    + " took " + (elapsed / 1000000L) + "ms: " + trace);
+        }
+    }
+
+    private <K> WindowedLatency latency(ConcurrentMap<K, WindowedLatency> latencies, K key,
+            int stripes) {
+        WindowedLatency latency = latencies.get(key);
+        if(latency == null) {
+            latency = latencies.computeIfAbsent(key, k -> new WindowedLatency(bytes.length, stripes));
+        }
+        return latency;
     }
     
     protected int[] popIntervalData() {
-        synchronized(bytes) {
-            int[] ret = {curBytes, curRequests};
-        
-            curBytes = 0;
-            curRequests = 0;
-        
-            return ret;
+        return new int[] {(int) curBytes.sumThenReset(), (int) curRequests.sumThenReset()};
+    }
+
+    /**
+     * @return the intervals statistics are reported for, in seconds
+     */
+    public int[] getIntervals() {
+        return intervals.clone();
+    }
+
+    /**
+     * @return the descriptions of the {@link #getIntervals() intervals}
+     */
+    public String[] getIntervalDescriptions() {
+        return intervalDescs.clone();
+    }
+
+    /**
+     * Response time percentiles per service
+     * 
+     * @param interval one of the {@link #getIntervals() intervals}
+     */
+    public SortedMap<String, LatencyPercentiles> getServiceLatencies(int interval) {
+        return percentiles(serviceLatencies, interval);
+    }
+
+    /**
+     * Response time percentiles per layer, for the layers requested in the last
+     * {@link #getIntervals() interval}
+     * 
+     * @param interval one of the {@link #getIntervals() intervals}
+     */
+    public SortedMap<String, LatencyPercentiles> getLayerLatencies(int interval) {
+        return percentiles(layerLatencies, interval);
+    }
+
+    /**
+     * Response time percentiles per cache result
+     * 
+     * @param interval one of the {@link #getIntervals() intervals}
+     */
+    public SortedMap<String, LatencyPercentiles> getCacheResultLatencies(int interval) {
+        return percentiles(cacheResultLatencies, interval);
+    }
+
+    /**
+     * Percentiles of the time spent in each stage of the tile pipeline, by the traced requests that
+     * went through it
+     * 
+     * @param interval one of the {@link #getIntervals() intervals}
+     */
+    public SortedMap<String, LatencyPercentiles> getStageLatencies(int interval) {
+        return percentiles(stageLatencies, interval);
+    }
+
+    private <K> SortedMap<String, LatencyPercentiles> percentiles(
+            Map<K, WindowedLatency> latencies, int interval) {
+        int slots = Math.max(1, interval / pollInterval);
+        SortedMap<String, LatencyPercentiles> result = new TreeMap<>();
+        for(Map.Entry<K, WindowedLatency> entry : latencies.entrySet()) {
+            LatencyPercentiles percentiles = entry.getValue().percentiles(slots);
+            if(percentiles.getCount() > 0) {
+                result.put(entry.getKey().toString(), percentiles);
+            }
         }
+        return Collections.unmodifiableSortedMap(result);
     }
 
     public String getHTMLStats() {
@@ -182,8 +370,8 @@ public class RuntimeStats {
                 str.append(" (" + totalRequests / (runningTime) +"/s ) ");
                 str.append("</td></tr>\n");
                 
-                str.append("<tr><th colspan=\"2\" scope=\"row\">Total number of untiled WMS requests:</th><td colspan=\"3\">"+totalWMS);
-                str.append(" (" + totalWMS / (runningTime) +"/s ) ");
+                str.append("<tr><th colspan=\"2\" scope=\"row\">Total number of untiled WMS requests:</th><td colspan=\"3\">"+totalWMS.sum());
+                str.append(" (" + totalWMS.sum() / (runningTime) +"/s ) ");
                 str.append("</td></tr>\n");
                 
                 str.append("<tr><th colspan=\"2\" scope=\"row\">Total number of bytes:</th><td colspan=\"3\">"+totalBytes);
@@ -198,6 +386,10 @@ public class RuntimeStats {
                 str.append("<tbody>");
             }
                 
+            final long totalHits = this.totalHits.sum();
+            final long totalMisses = this.totalMisses.sum();
+            final long totalWMS = this.totalWMS.sum();
+            
             str.append("<tr><th colspan=\"2\" scope=\"row\">Cache hit ratio:</th><td colspan=\"3\">");
             if(totalHits + totalMisses > 0) {
                 double hitPercentage = (totalHits * 100.0) / (totalHits + totalMisses);
@@ -273,6 +465,23 @@ public class RuntimeStats {
             str.append("</tbody>");
             str.append("<tbody>");
             
+            int latencyInterval = intervals[intervals.length - 1];
+            str.append("<tr><th scope=\"col\">Service</th><th scope=\"col\">Requests</th><th scope=\"col\">Median</th><th scope=\"col\">95th percentile</th><th scope=\"col\">99th percentile</th></tr>\n");
+            for(Map.Entry<String, LatencyPercentiles> entry : getServiceLatencies(latencyInterval).entrySet()) {
+                LatencyPercentiles percentiles = entry.getValue();
+                str.append("<tr><td>"
+                        +entry.getKey()+"</td><td>"
+                        +percentiles.getCount()+"</td><td>"
+                        +formatMicros(percentiles.getP50())+"</td><td>"
+                        +formatMicros(percentiles.getP95())+"</td><td>"
+                        +formatMicros(percentiles.getP99())+"</td>"
+                        +"</tr>\n");
+            }
+            str.append("<tr><td colspan=\"5\">Response times over the last "+intervalDescs[intervals.length - 1]+", from the request to the end of the response</td></tr>");
+            
+            str.append("</tbody>");
+            str.append("<tbody>");
+            
             str.append("<tr><td colspan=\"5\">All figures are "+pollInterval+" second(s) delayed and do not include HTTP overhead</td></tr>");
             
             str.append("<tr><td colspan=\"5\">The cache hit ratio does not account for metatiling</td></tr>");
@@ -345,6 +554,35 @@ public class RuntimeStats {
         return avg;
     }
     
+    /**
+     * Closes the current poll interval of the response time histograms
+     */
+    void rotateLatencies() {
+        rotate(serviceLatencies);
+        rotate(cacheResultLatencies);
+        rotate(stageLatencies);
+        rotate(layerLatencies);
+        // forget about the layers no longer requested, a latency recorded while removing
+        // the layer may get lost
+        layerLatencies.values().removeIf(WindowedLatency::isIdle);
+    }
+    
+    private void rotate(Map<?, WindowedLatency> latencies) {
+        for(WindowedLatency latency : latencies.values()) {
+            latency.rotate();
+        }
+    }
+    
+    private String formatMicros(long micros) {
+        if(micros >= 1000000) {
+            return (Math.round(micros / 100000.0) / 10.0) + "&nbsp;s";
+        } else if(micros >= 1000) {
+            return (Math.round(micros / 100.0) / 10.0) + "&nbsp;ms";
+        } else {
+            return micros + "&nbsp;&micro;s";
+        }
+    }
+    
     private String formatTimeDiff(long seconds) {
         if(seconds < 3600) {
             return (seconds / 60) + " minutes";
@@ -399,6 +637,8 @@ public class RuntimeStats {
                 
                 ringPos = (ringPos + 1) % bytes.length;
             }
+            
+            stats.rotateLatencies();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.stats;
+
+/**
+ * Latencies over a sliding window, made of a ring of poll intervals.
+ * <p>
+ * Latencies are recorded in the histogram of the current interval, which {@link #rotate()} moves
+ * to the ring at the end of each poll interval. The ring keeps only the non empty buckets, so idle
+ * or lightly used keys stay cheap.
+ * <p>
+ * Recording is lock free, {@link #rotate()} and {@link #percentiles(int)} are meant to be called by
+ * a single thread at a time.
+ */
+final class WindowedLatency {
+
+    /**
+     * Non empty buckets of the histogram of a poll interval
+     */
+    private static final class Slot {
+
+        final int[] buckets;
+
+        final long[] counts;
+
+        final long total;
+
+        Slot(long[] histogram, long total) {
+            int size = 0;
+            for (long count : histogram) {
+                if (count != 0) {
+                    size++;
+                }
+            }
+            buckets = new int[size];
+            counts = new long[size];
+            for (int i = 0, j = 0; i < histogram.length; i++) {
+                if (histogram[i] != 0) {
+                    buckets[j] = i;
+                    counts[j++] = histogram[i];
+                }
+            }
+            this.total = total;
+        }
+    }
+
+    private final LatencyHistogram current;
+
+    private final Slot[] ring;
+
+    private int ringPos = 0;
+
+    /**
+     * @param slots number of poll intervals in the window
+     * @param stripes number of stripes of the histogram of the current interval
+     */
+    WindowedLatency(int slots, int stripes) {
+        this.current = new LatencyHistogram(stripes);
+        this.ring = new Slot[slots];
+    }
+
+    void record(long nanos) {
+        current.record(nanos);
+    }
+
+    /**
+     * Closes the current poll interval
+     */
+    synchronized void rotate() {
+        long[] histogram = new long[LatencyHistogram.BUCKETS];
+        long total = current.drainTo(histogram);
+        ring[ringPos] = total == 0 ? null : new Slot(histogram, total);
+        ringPos = (ringPos + 1) % ring.length;
+    }
+
+    /**
+     * @return whether no latency was recorded over the whole window
+     */
+    synchronized boolean isIdle() {
+        for (Slot slot : ring) {
+            if (slot != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Percentiles of the latencies of the last poll intervals
+     *
+     * @param slots number of poll intervals to include
+     */
+    synchronized LatencyPercentiles percentiles(int slots) {
+        long[] histogram = new long[LatencyHistogram.BUCKETS];
+        long total = 0;
+        int pos = ringPos;
+        for (int i = 0; i < Math.min(slots, ring.length); i++) {
+            pos = (pos - 1 + ring.length) % ring.length;
+            Slot slot = ring[pos];
+            if (slot != null) {
+                for (int j = 0; j < slot.buckets.length; j++) {
+                    histogram[slot.buckets[j]] += slot.counts[j];
+                }
+                total += slot.total;
+            }
+        }
+        return new LatencyPercentiles(total,
+                LatencyHistogram.valueAt(histogram, total, 0.50),
+                LatencyHistogram.valueAt(histogram, total, 0.95),
+                LatencyHistogram.valueAt(histogram, total, 0.99));
+    }
+}
@@ -0,0 +1,542 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileEvent.Type;
+import org.springframework.util.Assert;
+
+/**
+ * Delivers the blob store events to another listener from a background thread, in batches, so
+ * that the threads storing and deleting tiles do not wait for it.
+ * <p>
+ * Register it instead of the listener itself, as in
+ * {@code storageBroker.addBlobStoreListener(new AsyncBlobStoreListener(listener))}. Events are
+ * delivered in the order they were sent, the tile events of a batch going at once to the
+ * {@link BatchBlobStoreListener} methods if the listener implements them.
+ * </p>
+ * <p>
+ * What happens when more than {@code capacity} events are waiting depends on the
+ * {@link OverflowPolicy}. Layer, gridset and parameters events are never dropped nor merged, the
+ * sending thread waits for room in the queue if need be.
+ * </p>
+ */
+public class AsyncBlobStoreListener implements BlobStoreListener {
+
+    private static Log log = LogFactory.getLog(AsyncBlobStoreListener.class);
+
+    public static enum OverflowPolicy {
+        /** the sending thread waits for room in the queue */
+        BLOCK,
+        /** tile events are dropped, and counted */
+        DROP,
+        /**
+         * tile events for a tile already in the queue are merged with it, as in a tile stored then
+         * deleted being no event at all, the sending thread waiting for room in the queue
+         * otherwise
+         */
+        COALESCE
+    }
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final BlobStoreListener delegate;
+
+    private final int capacity;
+
+    private final int batchSize;
+
+    private final OverflowPolicy policy;
+
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+
+    /** the queued tile events that may still be merged, when coalescing */
+    private final Map<TileKey, Pending> mergeable = new HashMap<TileKey, Pending>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition idle = lock.newCondition();
+
+    private boolean delivering;
+
+    private boolean disposed;
+
+    private Thread worker;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * A queued event, either a tile event or any other event
+     */
+    private static class Pending {
+
+        final TileKey key;
+
+        /** {@code null} once merged into nothing */
+        TileEvent event;
+
+        final Runnable other;
+
+        Pending(TileKey key, TileEvent event) {
+            this.key = key;
+            this.event = event;
+            this.other = null;
+        }
+
+        Pending(Runnable other) {
+            this.key = null;
+            this.other = other;
+        }
+    }
+
+    private static final class TileKey {
+
+        final TileEvent e;
+
+        TileKey(TileEvent e) {
+            this.e = e;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileEvent o = ((TileKey) obj).e;
+            return e.getX() == o.getX() && e.getY() == o.getY() && e.getZ() == o.getZ()
+                    && Objects.equals(e.getLayerName(), o.getLayerName())
+                    && Objects.equals(e.getGridSetId(), o.getGridSetId())
+                    && Objects.equals(e.getBlobFormat(), o.getBlobFormat())
+                    && Objects.equals(e.getParametersId(), o.getParametersId());
+        }
+    }
+
+    public AsyncBlobStoreListener(BlobStoreListener delegate) {
+        this(delegate, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param delegate the listener to deliver the events to
+     * @param capacity number of events waiting for delivery above which the overflow policy
+     *        applies
+     * @param batchSize maximum number of events delivered at once
+     * @param policy what to do with the events sent while the queue is full
+     */
+    public AsyncBlobStoreListener(BlobStoreListener delegate, int capacity, int batchSize,
+            OverflowPolicy policy) {
+        Assert.notNull(delegate, "delegate can't be null");
+        Assert.notNull(policy, "policy can't be null");
+        Assert.isTrue(capacity > 0, "capacity shall be positive");
+        Assert.isTrue(batchSize > 0, "batchSize shall be positive");
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.policy = policy;
+    }
+
+    public BlobStoreListener getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return the number of events waiting for delivery
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tile events dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of tile events merged with a queued event for the same tile
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Waits for all the events sent so far to be delivered
+     *
+     * @return {@code false} if they were not within the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!queue.isEmpty() || delivering) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = idle.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the pending events and stops the background thread, events sent afterwards being
+     * delivered on the sending thread
+     */
+    public void dispose() {
+        Thread t;
+        lock.lock();
+        try {
+            disposed = true;
+            notEmpty.signalAll();
+            t = worker;
+        } finally {
+            lock.unlock();
+        }
+        if (t != null) {
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        sendTile(new TileEvent(Type.STORED, layerName, gridSetId, blobFormat, parametersId, x, y,
+                z, blobSize, 0));
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        sendTile(new TileEvent(Type.DELETED, layerName, gridSetId, blobFormat, parametersId, x,
+                y, z, blobSize, 0));
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        sendTile(new TileEvent(Type.UPDATED, layerName, gridSetId, blobFormat, parametersId, x,
+                y, z, blobSize, oldSize));
+    }
+
+    public void layerDeleted(final String layerName) {
+        send(new Runnable() {
+            public void run() {
+                delegate.layerDeleted(layerName);
+            }
+        });
+    }
+
+    public void layerRenamed(final String oldLayerName, final String newLayerName) {
+        send(new Runnable() {
+            public void run() {
+                delegate.layerRenamed(oldLayerName, newLayerName);
+            }
+        });
+    }
+
+    public void gridSubsetDeleted(final String layerName, final String gridSetId) {
+        send(new Runnable() {
+            public void run() {
+                delegate.gridSubsetDeleted(layerName, gridSetId);
+            }
+        });
+    }
+
+    public void parametersDeleted(final String layerName, final String parametersId) {
+        send(new Runnable() {
+            public void run() {
+                delegate.parametersDeleted(layerName, parametersId);
+            }
+        });
+    }
+
+    private void sendTile(TileEvent event) {
+        lock.lock();
+        try {
+            if (disposed && worker == null) {
+                lock.unlock();
+                try {
+                    deliver(event);
+                } finally {
+                    lock.lock();
+                }
+                return;
+            }
+            TileKey key = null;
+            if (policy == OverflowPolicy.COALESCE) {
+                key = new TileKey(event);
+                Pending queued = mergeable.get(key);
+                if (queued != null && merge(queued, event)) {
+                    coalesced.incrementAndGet();
+                    if (queued.event == null) {
+                        mergeable.remove(key);
+                    }
+                    return;
+                }
+            }
+            if (queue.size() >= capacity && policy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (!awaitRoom()) {
+                return;
+            }
+            Pending pending = new Pending(key, event);
+            queue.add(pending);
+            if (key != null) {
+                mergeable.put(key, pending);
+            }
+            signalWorker();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Runnable event) {
+        lock.lock();
+        try {
+            if (disposed && worker == null) {
+                lock.unlock();
+                try {
+                    event.run();
+                } finally {
+                    lock.lock();
+                }
+                return;
+            }
+            if (!awaitRoom()) {
+                return;
+            }
+            // later tile events shall not be merged with those sent before this one
+            mergeable.clear();
+            queue.add(new Pending(event));
+            signalWorker();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges {@code event} into the queued event for the same tile, if their combined effect can
+     * be expressed as a single event, or none
+     */
+    private static boolean merge(Pending queued, TileEvent event) {
+        TileEvent q = queued.event;
+        switch (q.getType()) {
+        case STORED:
+            if (event.getType() == Type.UPDATED) {
+                queued.event = q.with(Type.STORED, event.getBlobSize(), 0);
+                return true;
+            } else if (event.getType() == Type.DELETED) {
+                queued.event = null;
+                return true;
+            }
+            return false;
+        case UPDATED:
+            if (event.getType() == Type.UPDATED) {
+                queued.event = q.with(Type.UPDATED, event.getBlobSize(), q.getOldSize());
+                return true;
+            } else if (event.getType() == Type.DELETED) {
+                queued.event = q.with(Type.DELETED, q.getOldSize(), 0);
+                return true;
+            }
+            return false;
+        case DELETED:
+            if (event.getType() == Type.STORED) {
+                queued.event = q.with(Type.UPDATED, event.getBlobSize(), q.getBlobSize());
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Shall be called holding the lock
+     *
+     * @return {@code false} if interrupted while waiting
+     */
+    private boolean awaitRoom() {
+        while (queue.size() >= capacity) {
+            try {
+                notFull.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting to queue a blob store event, dropping it");
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shall be called holding the lock
+     */
+    private void signalWorker() {
+        if (worker == null) {
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    deliverQueued();
+                }
+            }, "GWC BlobStore Events-" + delegate.getClass().getSimpleName());
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notEmpty.signal();
+    }
+
+    private void deliverQueued() {
+        List<Pending> batch = new ArrayList<Pending>(Math.min(batchSize, 1024));
+        while (true) {
+            lock.lock();
+            try {
+                while (queue.isEmpty()) {
+                    delivering = false;
+                    idle.signalAll();
+                    if (disposed) {
+                        worker = null;
+                        return;
+                    }
+                    notEmpty.awaitUninterruptibly();
+                }
+                delivering = true;
+                while (batch.size() < batchSize && !queue.isEmpty()) {
+                    Pending pending = queue.poll();
+                    if (pending.key != null && mergeable.get(pending.key) == pending) {
+                        mergeable.remove(pending.key);
+                    }
+                    batch.add(pending);
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            deliverBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Delivers the batch, the consecutive tile events of the same type at once
+     */
+    private void deliverBatch(List<Pending> batch) {
+        List<TileEvent> run = new ArrayList<TileEvent>();
+        for (Pending pending : batch) {
+            if (pending.other != null) {
+                deliverRun(run);
+                run.clear();
+                try {
+                    pending.other.run();
+                } catch (RuntimeException e) {
+                    log.error("Error delivering blob store event to " + delegate, e);
+                }
+            } else if (pending.event != null) {
+                if (!run.isEmpty() && run.get(0).getType() != pending.event.getType()) {
+                    deliverRun(run);
+                    run.clear();
+                }
+                run.add(pending.event);
+            }
+        }
+        deliverRun(run);
+    }
+
+    private void deliverRun(List<TileEvent> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        try {
+            if (delegate instanceof BatchBlobStoreListener) {
+                BatchBlobStoreListener batchListener = (BatchBlobStoreListener) delegate;
+                switch (run.get(0).getType()) {
+                case STORED:
+                    batchListener.tilesStored(run);
+                    break;
+                case DELETED:
+                    batchListener.tilesDeleted(run);
+                    break;
+                case UPDATED:
+                    batchListener.tilesUpdated(run);
+                    break;
+                }
+            } else {
+                for (TileEvent e : run) {
+                    deliver(e);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error delivering blob store events to " + delegate, e);
+        }
+    }
+
+    private void deliver(TileEvent e) {
+        switch (e.getType()) {
+        case STORED:
+            delegate.tileStored(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize());
+            break;
+        case DELETED:
+            delegate.tileDeleted(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize());
+            break;
+        case UPDATED:
+            delegate.tileUpdated(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize(),
+                    e.getOldSize());
+            break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncBlobStoreListener[" + delegate + "]";
+    }
+}
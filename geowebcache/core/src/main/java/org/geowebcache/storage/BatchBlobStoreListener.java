@@ -0,0 +1,65 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.List;
+
+/**
+ * A {@link BlobStoreListener} able to process tile events in batches, when registered through an
+ * {@link AsyncBlobStoreListener}.
+ * <p>
+ * The events of a batch are all of the same type and keep the order in which they were sent.
+ * The default implementations deliver them one by one.
+ * </p>
+ */
+public interface BatchBlobStoreListener extends BlobStoreListener {
+
+    /**
+     * Notifies that the blob store stored new tiles
+     *
+     * @see #tileStored
+     */
+    default void tilesStored(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            tileStored(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize());
+        }
+    }
+
+    /**
+     * Notifies that the blob store deleted tiles
+     *
+     * @see #tileDeleted
+     */
+    default void tilesDeleted(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            tileDeleted(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize());
+        }
+    }
+
+    /**
+     * Notifies that the blob store replaced existing tiles
+     *
+     * @see #tileUpdated
+     */
+    default void tilesUpdated(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            tileUpdated(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(),
+                    e.getParametersId(), e.getX(), e.getY(), e.getZ(), e.getBlobSize(),
+                    e.getOldSize());
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.geowebcache.storage;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -32,6 +33,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.BlobStoreConfig;
+import org.geowebcache.config.Configuration;
 import org.geowebcache.config.ConfigurationException;
 import org.geowebcache.config.FileBlobStoreConfig;
 import org.geowebcache.config.XMLConfiguration;
@@ -401,8 +403,65 @@ public class CompositeBlobStore implements BlobStore {
         return readFunction(()->store(layerName).getParameterIds(layerName));
     }
 
+    /**
+     * Returns the live instance of a configured blob store, to work on it regardless of the layers
+     * using it, for example to copy tiles between stores.
+     * 
+     * @param storeId the blob store id, or {@code null} for the default store
+     * @throws StorageException if there is no such blob store, or it is disabled
+     */
+    public BlobStore getBlobStore(@Nullable String storeId) throws StorageException {
+        return readFunctionUnsafe(() -> {
+            LiveStore store = storeId == null ? defaultStore() : blobStores.get(storeId);
+            if (store == null) {
+                throw new StorageException("No BlobStore with id '" + storeId + "' found");
+            }
+            if (!store.config.isEnabled()) {
+                throw new StorageException("Attempted to use a blob store that's disabled: "
+                        + store.config.getId());
+            }
+            return store.liveInstance;
+        });
+    }
+
+    /**
+     * Switches a layer to another blob store and saves its configuration.
+     * <p>
+     * The switch waits for the tile operations in progress and holds the new ones until done, so
+     * that each operation goes entirely to either the previous or the new store.
+     * 
+     * @param layerName the layer to switch
+     * @param storeId the id of the new blob store, or {@code null} for the default store
+     * @param beforeSwitch run once no tile operation is in progress, right before switching, e.g.
+     *        to copy the last tiles changed in the previous store; the layer is not switched if it
+     *        fails
+     */
+    public void switchBlobStore(String layerName, @Nullable String storeId,
+            @Nullable StorageAction beforeSwitch) throws StorageException, GeoWebCacheException {
+        Configuration configuration;
+        configLock.writeLock().lock();
+        try {
+            // fails if missing or disabled
+            getBlobStore(storeId);
+            TileLayer layer = layers.getTileLayer(layerName);
+            if (beforeSwitch != null) {
+                beforeSwitch.run();
+            }
+            layer.setBlobStoreId(storeId);
+            configuration = layers.modify(layer);
+        } finally {
+            configLock.writeLock().unlock();
+        }
+        try {
+            configuration.save();
+        } catch (IOException e) {
+            throw new StorageException("Switched layer " + layerName + " to blob store "
+                    + storeId + " but failed to save its configuration", e);
+        }
+    }
+
     @FunctionalInterface
-    static interface StorageAction {
+    public static interface StorageAction {
         void run() throws StorageException;
     }
     @FunctionalInterface
@@ -24,6 +24,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.stats.RequestTrace;
+import org.geowebcache.stats.RequestTrace.Stage;
 
 /**
  * Handles cacheable objects (tiles, wfs responses) both in terms of data storage and metadata
@@ -86,11 +88,21 @@ public class DefaultStorageBroker implements StorageBroker {
     }
 
     public boolean get(TileObject tileObj) throws StorageException {
-        return blobStore.get(tileObj);
+        final long start = RequestTrace.start();
+        try {
+            return blobStore.get(tileObj);
+        } finally {
+            RequestTrace.stop(Stage.BLOBSTORE_GET, start);
+        }
     }
 
     public boolean put(TileObject tileObj) throws StorageException {
-        blobStore.put(tileObj);
+        final long start = RequestTrace.start();
+        try {
+            blobStore.put(tileObj);
+        } finally {
+            RequestTrace.stop(Stage.BLOBSTORE_PUT, start);
+        }
         return true;
     }
 
@@ -108,19 +120,14 @@ public class DefaultStorageBroker implements StorageBroker {
 
     public boolean getTransient(TileObject tile) {
         String key = TransientCache.computeTransientKey(tile);
-        Resource resource;
-        synchronized (transientCache) {
-            resource = transientCache.get(key);
-        }
+        Resource resource = transientCache.get(key);
         tile.setBlob(resource); 
         return resource != null;
     }
 
     public void putTransient(TileObject tile) {
         String key = TransientCache.computeTransientKey(tile);
-        synchronized (transientCache) {
-            transientCache.put(key, tile.getBlob());
-        }
+        transientCache.put(key, tile.getBlob());
     }
 
     /**
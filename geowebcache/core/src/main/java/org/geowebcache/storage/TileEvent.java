@@ -0,0 +1,127 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+/**
+ * A tile stored, deleted or updated in a blob store, as delivered in batches to a
+ * {@link BatchBlobStoreListener}.
+ *
+ * @see BlobStoreListener#tileStored
+ * @see BlobStoreListener#tileDeleted
+ * @see BlobStoreListener#tileUpdated
+ */
+public final class TileEvent {
+
+    public static enum Type {
+        STORED, DELETED, UPDATED
+    }
+
+    private final Type type;
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String blobFormat;
+
+    private final String parametersId;
+
+    private final long x;
+
+    private final long y;
+
+    private final int z;
+
+    private final long blobSize;
+
+    private final long oldSize;
+
+    public TileEvent(Type type, String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        this.type = type;
+        this.layerName = layerName;
+        this.gridSetId = gridSetId;
+        this.blobFormat = blobFormat;
+        this.parametersId = parametersId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.blobSize = blobSize;
+        this.oldSize = oldSize;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getGridSetId() {
+        return gridSetId;
+    }
+
+    public String getBlobFormat() {
+        return blobFormat;
+    }
+
+    public String getParametersId() {
+        return parametersId;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * @return the size of the stored blob, or of the freed one for a {@link Type#DELETED deleted}
+     *         tile
+     */
+    public long getBlobSize() {
+        return blobSize;
+    }
+
+    /**
+     * @return the size of the replaced blob of an {@link Type#UPDATED updated} tile, {@code 0}
+     *         otherwise
+     */
+    public long getOldSize() {
+        return oldSize;
+    }
+
+    /**
+     * @return a copy of this event with another type and sizes
+     */
+    TileEvent with(Type type, long blobSize, long oldSize) {
+        return new TileEvent(type, layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                blobSize, oldSize);
+    }
+
+    @Override
+    public String toString() {
+        return "TileEvent[" + type + " " + layerName + " " + gridSetId + " " + blobFormat + " "
+                + parametersId + " {" + x + "," + y + "," + z + "} " + blobSize + " " + oldSize
+                + "]";
+    }
+}
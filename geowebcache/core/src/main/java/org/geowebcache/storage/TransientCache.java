@@ -15,10 +15,13 @@
 package org.geowebcache.storage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
@@ -27,10 +30,23 @@ import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Ticker;
+import com.google.common.io.ByteStreams;
 
 /**
- * Non-thread safe Resource cache. Currently in-memory only.
- * 
+ * Thread safe, in-memory Resource cache holding the tiles of a metatile that are published but not
+ * cached to disk, until they are requested.
+ * <p>
+ * The entries are spread over segments, each with its own lock and kept in insertion order, so
+ * that concurrent requests for different tiles do not contend on a single monitor. The bounds on
+ * the number of tiles and the storage are global: when exceeded, the oldest entries of the
+ * segment just written to are evicted first, then those of the other segments. Small caches use
+ * a single segment, hence evict strictly the oldest entries first.
+ * </p>
+ * <p>
+ * A resource is removed from the cache when it is retrieved, and handed over as is, without
+ * being copied again.
+ * </p>
+ *
  * @author Ian Schneider <ischneider@opengeo.org>
  * @author Kevin Smith, Boundless
  */
@@ -40,11 +56,21 @@ public class TransientCache {
 
     private final int maxStorage;
 
-    private final long expireDelay; 
+    private final long expireDelay;
+
+    private final AtomicInteger currentTiles = new AtomicInteger();
+
+    private final AtomicLong currentStorage = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
 
-    private long currentStorage;
-    
-    private Ticker ticker = Ticker.systemTicker();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    private volatile Ticker ticker = Ticker.systemTicker();
 
     /**
      * A path generator that uses the key set as its key to build keys suitable for usage in the in
@@ -52,17 +78,7 @@ public class TransientCache {
      */
     private static FilePathGenerator keyGenerator = new FilePathGenerator("");
 
-    private Map<String, CachedResource> cache = new LinkedHashMap<String, CachedResource>() {
-
-        /** serialVersionUID */
-        private static final long serialVersionUID = -4106644240603796847L;
-
-        @Override
-        protected boolean removeEldestEntry(Entry<String, CachedResource> eldest) {
-            return removeEntries(eldest);
-        }
-
-    };
+    private final Segment[] segments;
 
     /**
      * @deprecated Use {@link #TransientCache(int,int,long)} instead
@@ -72,15 +88,45 @@ public class TransientCache {
     }
 
     /**
-     * 
+     *
      * @param maxTiles Maximum number of tiles in cache
      * @param maxStorageKB Maximum size of cached data in KiB
      * @param expireDelay Duration for which the cached resource is valid in ms
      */
     public TransientCache(int maxTiles, int maxStorageKB, long expireDelay) {
+        this(maxTiles, maxStorageKB, expireDelay, defaultConcurrencyLevel(maxTiles));
+    }
+
+    /**
+     *
+     * @param maxTiles Maximum number of tiles in cache
+     * @param maxStorageKB Maximum size of cached data in KiB
+     * @param expireDelay Duration for which the cached resource is valid in ms
+     * @param concurrencyLevel Number of segments the cache is split in, rounded up to a power of
+     *        two
+     */
+    public TransientCache(int maxTiles, int maxStorageKB, long expireDelay, int concurrencyLevel) {
+        Preconditions.checkArgument(concurrencyLevel > 0, "concurrencyLevel shall be positive");
         this.maxTiles = maxTiles;
         this.maxStorage = maxStorageKB * 1024;
         this.expireDelay = expireDelay;
+        int count = Integer.highestOneBit(concurrencyLevel);
+        if (count < concurrencyLevel) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * One segment per 16 tiles, up to the number of processors, so that small caches behave as a
+     * plain LRU cache
+     */
+    private static int defaultConcurrencyLevel(int maxTiles) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, maxTiles / 16));
     }
 
     /**
@@ -88,7 +134,7 @@ public class TransientCache {
      * @return
      */
     public int size() {
-        return cache.size();
+        return currentTiles.get();
     }
 
     /**
@@ -96,68 +142,154 @@ public class TransientCache {
      * @return
      */
     public long storageSize() {
-        return currentStorage;
+        return currentStorage.get();
+    }
+
+    /**
+     * @return the number of {@link #get(String)} calls that found a resource
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of {@link #get(String)} calls that found no resource, or an expired one
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of resources removed to keep within the tiles and storage bounds
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of resources removed because they expired before being retrieved
+     */
+    public long getExpirationCount() {
+        return expirations.get();
     }
 
     /**
      * Store a resource
      * @param key key to store the resource under
-     * @param r the resource to cache
+     * @param r the resource to cache, copied as the caller may reuse it
      */
     public void put(String key, Resource r) {
-        byte[] buf = new byte[(int) r.getSize()];
+        final long size = r.getSize();
+        if (size > maxStorage || maxTiles <= 0) {
+            return;
+        }
+        byte[] buf = new byte[(int) size];
         try {
-            r.getInputStream().read(buf);
+            InputStream in = r.getInputStream();
+            try {
+                ByteStreams.readFully(in, buf);
+            } finally {
+                in.close();
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
-        CachedResource blob = new CachedResource(new ByteArrayResource(buf));
-        currentStorage += r.getSize();
-        cache.put(key, blob);
+        CachedResource blob = new CachedResource(new ByteArrayResource(buf), currentTime());
+
+        final int index = segmentIndex(key);
+        Segment segment = segments[index];
+        synchronized (segment) {
+            // removed first so that a replaced entry moves to the end
+            CachedResource previous = segment.entries.remove(key);
+            if (previous != null) {
+                release(previous);
+            }
+            segment.entries.put(key, blob);
+            currentTiles.incrementAndGet();
+            currentStorage.addAndGet(size);
+            segment.expire(blob.time);
+        }
+        evict(index);
     }
-    
+
     /**
      * Retrieve a resource
      * @param key
      * @return The resource cached under the given key, or null if no resource is cached.
      */
     public Resource get(String key) {
-        CachedResource cached = cache.get(key);
-        if (cached != null) {
-            cache.remove(key);
-            currentStorage -= cached.content.getSize();
-            
-            if( cached.time+expireDelay < currentTime() ) {
-                return null;
-            } else {
-                return cached.content;
+        Segment segment = segments[segmentIndex(key)];
+        CachedResource cached;
+        synchronized (segment) {
+            cached = segment.entries.remove(key);
+            if (cached != null) {
+                release(cached);
             }
         }
-        return null;
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (cached.time + expireDelay < currentTime()) {
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.content;
     }
-    
+
     /**
      * A timestamp in milliseconds
      * @return
      */
     protected long currentTime() {
-        return ticker.read()/1000;
-    }
-    
-    // Gets called by overridden LinkedHashMap.removeEldestEntry
-    private boolean removeEntries(Entry<String, CachedResource> eldest) {
-        // iterator returns items in order added so oldest items are first
-        Iterator<CachedResource> items = cache.values().iterator();
-        while (items.hasNext() && (currentStorage>maxStorage || cache.size()>maxTiles)) {
-            CachedResource r = items.next();
-            currentStorage -= r.content.getSize();
-            items.remove();
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private int segmentIndex(String key) {
+        int h = key.hashCode();
+        // spread the bits, file paths of neighbouring tiles differ in a few characters only
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (segments.length - 1);
+    }
+
+    private void release(CachedResource removed) {
+        currentTiles.decrementAndGet();
+        currentStorage.addAndGet(-removed.content.getSize());
+    }
+
+    /**
+     * Removes the oldest entries until the cache is within bounds again, starting with the
+     * segment at {@code start}
+     */
+    private void evict(final int start) {
+        int emptySegments = 0;
+        for (int i = start; isOverBounds() && emptySegments < segments.length; i = (i + 1)
+                % segments.length) {
+            Segment segment = segments[i];
+            synchronized (segment) {
+                Iterator<CachedResource> items = segment.entries.values().iterator();
+                if (!items.hasNext()) {
+                    emptySegments++;
+                    continue;
+                }
+                emptySegments = 0;
+                // iterator returns items in order added so oldest items are first
+                while (items.hasNext() && isOverBounds()) {
+                    CachedResource r = items.next();
+                    items.remove();
+                    release(r);
+                    evictions.incrementAndGet();
+                }
+            }
         }
-        assert currentStorage<=maxStorage;
-        assert currentStorage>=0;
-        assert cache.size()<=maxStorage;
-        
-        return false;
+    }
+
+    private boolean isOverBounds() {
+        return currentStorage.get() > maxStorage || currentTiles.get() > maxTiles;
     }
 
     public static String computeTransientKey(TileObject tile) {
@@ -169,21 +301,38 @@ public class TransientCache {
         }
     }
 
-    private class CachedResource {
-        Resource content;
-        long time;
-        
+    private static class CachedResource {
+        final Resource content;
+        final long time;
+
         public CachedResource(Resource content, long time) {
             super();
             this.content = content;
             this.time = time;
         }
-        
-        public CachedResource(Resource content) {
-            this(content, currentTime());
+    }
+
+    private class Segment {
+
+        final Map<String, CachedResource> entries = new LinkedHashMap<String, CachedResource>();
+
+        /**
+         * Drops the expired entries at the head of the segment, shall be called holding its lock
+         */
+        void expire(long now) {
+            Iterator<CachedResource> items = entries.values().iterator();
+            while (items.hasNext()) {
+                CachedResource r = items.next();
+                if (r.time + expireDelay >= now) {
+                    break;
+                }
+                items.remove();
+                release(r);
+                expirations.incrementAndGet();
+            }
         }
     }
-    
+
     /**
      * Set a time source for computing expiry.
      * @param ticker
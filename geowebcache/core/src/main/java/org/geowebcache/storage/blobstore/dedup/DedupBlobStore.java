@@ -0,0 +1,780 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.dedup;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.filter.parameters.ParametersUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.StorageObject.Status;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.Blob;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.Tile;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.TileKey;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.TileSet;
+import org.geowebcache.storage.blobstore.dedup.SegmentStore.Location;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A {@link BlobStore} storing each distinct tile payload once, whatever the number of tiles,
+ * layers or parameter combinations sharing it, e.g. the empty ocean or uniform land tiles of
+ * sparse global layers.
+ * <p>
+ * Payloads are identified by their SHA-256 hash and appended to segment files in the
+ * {@code segments} directory. Tiles are mapped to the hash of their payload by an in memory index,
+ * which also counts the tiles referring to each payload. The index is persisted as a journal of
+ * changes, {@code index.journal}, replayed on startup.
+ * </p>
+ * <p>
+ * Payloads no longer referenced are reclaimed by a background compaction, which rewrites the live
+ * payloads of the segments holding too much garbage into the active segment and deletes them, and
+ * rewrites the journal once it holds too many records compared to the live tiles.
+ * </p>
+ * <p>
+ * The index is guarded by a single read write lock, held only for in memory work: payloads are
+ * read and appended to the segments, and the journal records written, outside of it. Puts and
+ * deletes still update the index one at a time, which bounds their throughput to what a single
+ * thread can do on an in memory hash table, far above what the disk allows.
+ * </p>
+ * <p>
+ * On startup the headers of all the payloads are read from the segments to locate them, which
+ * takes time proportional to the number of distinct payloads, not to the number of tiles.
+ * </p>
+ * <p>
+ * Listeners are notified with the size of each tile payload, as if it was stored on its own.
+ * </p>
+ */
+public class DedupBlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(DedupBlobStore.class);
+
+    private static final HashFunction HASH = Hashing.sha256();
+
+    private static final int HASH_LENGTH = HASH.bits() / 8;
+
+    /**
+     * The journal is not rewritten before it holds at least this many records
+     */
+    static final long MIN_JOURNAL_REWRITE = 10000;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final DedupIndex index = new DedupIndex();
+
+    private final SegmentStore segments;
+
+    private final IndexJournal journal;
+
+    private final double compactionThreshold;
+
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * @param baseDirectory the directory holding the segments and the index journal
+     * @param maxSegmentSize the size, in bytes, past which payloads are appended to a new segment
+     * @param compactionIntervalSeconds the time between compactions, {@code 0} to never compact
+     *        in the background
+     * @param compactionThreshold the fraction of a segment no longer referenced past which it is
+     *        compacted, between 0 and 1
+     */
+    public DedupBlobStore(String baseDirectory, long maxSegmentSize,
+            int compactionIntervalSeconds, double compactionThreshold) throws StorageException {
+        checkNotNull(baseDirectory, "baseDirectory");
+        checkArgument(maxSegmentSize > 0, "maxSegmentSize must be a positive integer");
+        checkArgument(compactionIntervalSeconds >= 0,
+                "compactionIntervalSeconds can't be negative");
+        checkArgument(compactionThreshold > 0 && compactionThreshold <= 1,
+                "compactionThreshold must be greater than 0 and at most 1");
+        this.compactionThreshold = compactionThreshold;
+        final File directory = new File(baseDirectory);
+        try {
+            this.segments = new SegmentStore(new File(directory, "segments"), maxSegmentSize,
+                    HASH_LENGTH);
+            segments.scan((hash, segment, offset, length) -> index.foundBlob(
+                    HashCode.fromBytes(hash), segment, offset, length));
+            this.journal = new IndexJournal(new File(directory, "index.journal"), HASH_LENGTH);
+            journal.open(index);
+        } catch (IOException e) {
+            throw new StorageException("Unable to open deduplicating blob store in "
+                    + directory.getAbsolutePath(), e);
+        }
+        int garbage = index.dropUnreferenced();
+        log.info(String.format("Opened deduplicating blob store %s: %d tiles sharing %d payloads, "
+                + "%d unreferenced payloads left for compaction", directory.getAbsolutePath(),
+                index.tileCount(), index.blobCount(), garbage));
+
+        if (compactionIntervalSeconds > 0) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                    "GWC dedup blob store compaction-");
+            tf.setDaemon(true);
+            tf.setThreadPriority(Thread.MIN_PRIORITY);
+            this.compactor = Executors.newSingleThreadScheduledExecutor(tf);
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (StorageException | RuntimeException e) {
+                    log.warn("Compaction of deduplicating blob store failed", e);
+                }
+            }, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    private static TileSet tileSet(TileObject obj) {
+        String parametersId = obj.getParametersId();
+        if (parametersId == null) {
+            parametersId = ParametersUtils.getId(obj.getParameters());
+            obj.setParametersId(parametersId);
+        }
+        return new TileSet(obj.getLayerName(), obj.getGridSetId(), obj.getBlobFormat(),
+                parametersId, (int) obj.getXYZ()[2]);
+    }
+
+    private static byte[] toByteArray(Resource resource) throws IOException {
+        if (resource instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) resource).getContents();
+            return contents == null ? new byte[0] : contents;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) resource.getSize());
+        resource.transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    @Override
+    public boolean get(TileObject obj) throws StorageException {
+        final TileSet tileSet = tileSet(obj);
+        final long[] xyz = obj.getXYZ();
+        final int segment;
+        final long offset;
+        final int length;
+        final long created;
+        lock.readLock().lock();
+        try {
+            Tile tile = index.get(tileSet, xyz[0], xyz[1]);
+            if (tile == null) {
+                obj.setStatus(Status.MISS);
+                return false;
+            }
+            segment = tile.blob.segment;
+            offset = tile.blob.offset;
+            length = tile.blob.length;
+            created = tile.created;
+        } finally {
+            lock.readLock().unlock();
+        }
+        byte[] data;
+        try {
+            data = segments.read(segment, offset, length);
+        } catch (IOException e) {
+            // the payload was moved by compaction and its segment deleted meanwhile
+            data = readLocked(obj, tileSet, xyz);
+            if (data == null) {
+                obj.setStatus(Status.MISS);
+                return false;
+            }
+        }
+        ByteArrayResource resource = new ByteArrayResource(data);
+        resource.setLastModified(created);
+        obj.setBlob(resource);
+        obj.setCreated(created);
+        obj.setBlobSize(data.length);
+        return true;
+    }
+
+    /**
+     * Reads the payload of the tile holding the lock, so that it can't be moved meanwhile
+     *
+     * @return the payload, or {@code null} if the tile is no longer stored
+     */
+    private byte[] readLocked(TileObject obj, TileSet tileSet, long[] xyz)
+            throws StorageException {
+        lock.readLock().lock();
+        try {
+            Tile tile = index.get(tileSet, xyz[0], xyz[1]);
+            if (tile == null) {
+                return null;
+            }
+            return segments.read(tile.blob.segment, tile.blob.offset, tile.blob.length);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read " + obj, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the journal records of the changes made to the index, to be called once the lock is
+     * released
+     */
+    private void flushJournal() throws StorageException {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            throw new StorageException("Unable to write the index journal", e);
+        }
+    }
+
+    @Override
+    public void put(TileObject obj) throws StorageException {
+        final TileSet tileSet = tileSet(obj);
+        final long[] xyz = obj.getXYZ();
+        final byte[] data;
+        try {
+            data = toByteArray(obj.getBlob());
+        } catch (IOException e) {
+            throw new StorageException("Unable to read the contents of " + obj, e);
+        }
+        final HashCode hash = HASH.hashBytes(data);
+        final long created = obj.getCreated() > 0 ? obj.getCreated() : System.currentTimeMillis();
+
+        final boolean known;
+        lock.readLock().lock();
+        try {
+            known = index.containsBlob(hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // new payloads are written without holding the store lock, the segments serialize the
+        // appends on their own
+        Location location = null;
+        if (!known) {
+            try {
+                location = segments.append(hash.asBytes(), data);
+            } catch (IOException e) {
+                throw new StorageException("Unable to store " + obj, e);
+            }
+        }
+
+        final Tile old;
+        lock.writeLock().lock();
+        try {
+            Blob blob = index.getBlob(hash);
+            if (blob == null) {
+                // the payload was released since checked, or its segment was compacted away
+                // before anything referenced it
+                if (location == null || !segments.exists(location.segment)) {
+                    location = segments.append(hash.asBytes(), data);
+                }
+            }
+            // the journal only refers to payloads already written. If another put stored the
+            // same payload meanwhile, the copy appended here is left for compaction.
+            journal.put(tileSet, xyz[0], xyz[1], created, hash);
+            if (blob == null) {
+                blob = index.addBlob(hash, location.segment, location.offset, data.length);
+            }
+            old = index.put(tileSet, xyz[0], xyz[1], blob, created);
+            persistParameterMap(tileSet, obj.getParameters());
+        } catch (IOException e) {
+            throw new StorageException("Unable to store " + obj, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+
+        obj.setBlobSize(data.length);
+        if (old == null) {
+            listeners.sendTileStored(obj);
+        } else {
+            listeners.sendTileUpdated(obj, old.blob.length);
+        }
+    }
+
+    /**
+     * Records the parameters of the parameters id in the layer metadata, as
+     * {@code parameters.<id>}, for {@link #getParametersMapping(String)}
+     */
+    private void persistParameterMap(TileSet tileSet, Map<String, String> parameters)
+            throws IOException {
+        if (tileSet.parametersId == null || parameters == null || parameters.isEmpty()) {
+            return;
+        }
+        final String key = "parameters." + tileSet.parametersId;
+        if (index.getMetadata(tileSet.layerName, key) == null) {
+            final String kvp = ParametersUtils.getKvp(parameters);
+            journal.metadata(tileSet.layerName, key, kvp);
+            index.putMetadata(tileSet.layerName, key, kvp);
+        }
+    }
+
+    @Override
+    public boolean delete(TileObject obj) throws StorageException {
+        final TileSet tileSet = tileSet(obj);
+        final long[] xyz = obj.getXYZ();
+        final Tile old;
+        lock.writeLock().lock();
+        try {
+            if (index.get(tileSet, xyz[0], xyz[1]) == null) {
+                return false;
+            }
+            journal.delete(tileSet, xyz[0], xyz[1]);
+            old = index.remove(tileSet, xyz[0], xyz[1]);
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + obj, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+        obj.setBlobSize(old.blob.length);
+        listeners.sendTileDeleted(obj);
+        return true;
+    }
+
+    @Override
+    public boolean delete(TileRange tileRange) throws StorageException {
+        final String layerName = tileRange.getLayerName();
+        final String gridSetId = tileRange.getGridSetId();
+        final String format = tileRange.getMimeType().getFormat();
+        String rangeParametersId = tileRange.getParametersId();
+        if (rangeParametersId == null) {
+            rangeParametersId = ParametersUtils.getId(tileRange.getParameters());
+        }
+        final String parametersId = rangeParametersId;
+
+        final List<TileKey> deleted = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        IOException journalError = null;
+        lock.writeLock().lock();
+        try {
+            List<TileKey> found = index.findTiles(
+                    t -> t.layerName.equals(layerName) && t.gridSetId.equals(gridSetId)
+                            && t.format.equals(format)
+                            && Objects.equals(t.parametersId, parametersId)
+                            && t.z >= tileRange.getZoomStart() && t.z <= tileRange.getZoomStop(),
+                    (t, x, y) -> tileRange.contains(x, y, t.z));
+            for (TileKey key : found) {
+                journal.delete(key.tileSet, key.x, key.y);
+                Tile old = index.remove(key.tileSet, key.x, key.y);
+                deleted.add(key);
+                lengths.add(old.blob.length);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to truncate " + tileRange, e);
+        } finally {
+            lock.writeLock().unlock();
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                journalError = e;
+            }
+            // notify whatever got deleted, even on failure
+            for (int i = 0; i < deleted.size(); i++) {
+                TileKey key = deleted.get(i);
+                listeners.sendTileDeleted(layerName, gridSetId, format, parametersId, key.x,
+                        key.y, key.tileSet.z, lengths.get(i));
+            }
+        }
+        if (journalError != null) {
+            throw new StorageException("Unable to write the index journal", journalError);
+        }
+        log.info("Truncated " + deleted.size() + " tiles");
+        return true;
+    }
+
+    @Override
+    public boolean delete(String layerName) throws StorageException {
+        final boolean existed;
+        lock.writeLock().lock();
+        try {
+            existed = index.hasLayer(layerName);
+            if (existed) {
+                journal.deleteLayer(layerName);
+                index.removeTileSets(t -> t.layerName.equals(layerName));
+                index.removeMetadata(layerName);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete layer " + layerName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+        if (existed) {
+            listeners.sendLayerDeleted(layerName);
+        }
+        return existed;
+    }
+
+    @Override
+    public boolean deleteByGridsetId(String layerName, String gridSetId) throws StorageException {
+        lock.writeLock().lock();
+        try {
+            journal.deleteGridset(layerName, gridSetId);
+            index.removeTileSets(t -> t.layerName.equals(layerName)
+                    && t.gridSetId.equals(gridSetId));
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete gridset " + gridSetId + " of layer "
+                    + layerName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    @Override
+    public boolean deleteByParametersId(String layerName, String parametersId)
+            throws StorageException {
+        lock.writeLock().lock();
+        try {
+            journal.deleteParameters(layerName, parametersId);
+            index.removeTileSets(t -> t.layerName.equals(layerName)
+                    && parametersId.equals(t.parametersId));
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete parameters " + parametersId
+                    + " of layer " + layerName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+        listeners.sendParametersDeleted(layerName, parametersId);
+        return true;
+    }
+
+    @Override
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        lock.writeLock().lock();
+        try {
+            if (index.hasLayer(newLayerName)) {
+                throw new StorageException("Can't rename layer " + oldLayerName + " to "
+                        + newLayerName + ". Target layer already exists");
+            }
+            if (index.hasLayer(oldLayerName)) {
+                journal.rename(oldLayerName, newLayerName);
+                index.rename(oldLayerName, newLayerName);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to rename layer " + oldLayerName + " to "
+                    + newLayerName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushJournal();
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    @Override
+    public void clear() throws StorageException {
+        throw new StorageException("Not implemented yet!");
+    }
+
+    @Override
+    public void destroy() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            journal.close();
+            segments.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    @Override
+    public String getLayerMetadata(String layerName, String key) {
+        lock.readLock().lock();
+        try {
+            return index.getMetadata(layerName, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putLayerMetadata(String layerName, String key, String value) {
+        lock.writeLock().lock();
+        try {
+            journal.metadata(layerName, key, value);
+            index.putMetadata(layerName, key, value);
+        } catch (IOException e) {
+            log.error("Unable to store metadata " + key + " of layer " + layerName, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            log.error("Unable to store metadata " + key + " of layer " + layerName, e);
+        }
+    }
+
+    @Override
+    public boolean layerExists(String layerName) {
+        lock.readLock().lock();
+        try {
+            return index.hasLayer(layerName);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getParameterIds(String layerName) {
+        Set<String> ids = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<TileSet, ?> e : index.tileSets()) {
+                TileSet tileSet = e.getKey();
+                if (tileSet.layerName.equals(layerName) && tileSet.parametersId != null) {
+                    ids.add(tileSet.parametersId);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ids;
+    }
+
+    @Override
+    public Map<String, Optional<Map<String, String>>> getParametersMapping(String layerName) {
+        final Map<String, String> metadata;
+        lock.readLock().lock();
+        try {
+            metadata = index.getMetadata(layerName);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return getParameterIds(layerName).stream().collect(Collectors.toMap(id -> id, id -> {
+            String kvp = metadata.get("parameters." + id);
+            if (Objects.isNull(kvp)) {
+                return Optional.empty();
+            }
+            return Optional.of(ParametersUtils.getMap(kvp));
+        }));
+    }
+
+    /**
+     * Reclaims the space taken by payloads no longer referenced: rewrites the journal if it grew
+     * too large, and moves the live payloads of the segments holding more garbage than the
+     * compaction threshold to the active segment, deleting them afterwards. Compactions run one at
+     * a time.
+     *
+     * @return the number of segments deleted
+     */
+    public synchronized int compact() throws StorageException {
+        rewriteJournal(false);
+
+        final List<Integer> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            final int active = segments.activeSegment();
+            for (int segment : segments.segments()) {
+                long size = segments.size(segment);
+                long garbage = size - index.liveBytes(segment);
+                if (segment != active && garbage >= size * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int compacted = 0;
+        for (int segment : candidates) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            try {
+                if (compact(segment)) {
+                    compacted++;
+                }
+            } catch (IOException e) {
+                throw new StorageException("Unable to compact segment " + segment, e);
+            }
+        }
+        if (compacted > 0) {
+            log.info("Compacted " + compacted + " segments, " + index.blobCount()
+                    + " payloads left taking " + segments.size() + " bytes");
+        }
+        return compacted;
+    }
+
+    private boolean compact(final int segment) throws IOException {
+        List<Blob> blobs;
+        lock.readLock().lock();
+        try {
+            blobs = index.blobs(segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Blob blob : blobs) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            long offset;
+            lock.readLock().lock();
+            try {
+                if (!index.isLive(blob) || blob.segment != segment) {
+                    continue;
+                }
+                offset = blob.offset;
+            } finally {
+                lock.readLock().unlock();
+            }
+            // only compaction moves payloads and deletes segments, the read needs no lock
+            byte[] data = segments.read(segment, offset, blob.length);
+            // copied without holding the lock, the copy is left for the next compaction if the
+            // payload was released meanwhile
+            Location location = segments.append(blob.hash.asBytes(), data);
+            lock.writeLock().lock();
+            try {
+                if (index.isLive(blob) && blob.segment == segment) {
+                    index.moved(blob, location.segment, location.offset);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (index.liveBytes(segment) > 0) {
+                return false;
+            }
+            segments.delete(segment);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the index journal from the in memory index
+     *
+     * @param force whether to rewrite it even if it did not grow too large
+     */
+    void rewriteJournal(boolean force) throws StorageException {
+        lock.writeLock().lock();
+        try {
+            final long records = journal.records();
+            final long live = index.tileCount() + index.getMetadata().size();
+            if (force || records > MIN_JOURNAL_REWRITE && records > 2 * live) {
+                journal.rewrite(index);
+                log.debug("Rewrote index journal from " + records + " to " + journal.records()
+                        + " records");
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to rewrite the index journal", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of tiles stored
+     */
+    public long getTileCount() {
+        lock.readLock().lock();
+        try {
+            return index.tileCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct payloads shared by the tiles
+     */
+    public int getPayloadCount() {
+        lock.readLock().lock();
+        try {
+            return index.blobCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the total size of the tiles, as they would take if stored one by one
+     */
+    public long getTileBytes() {
+        lock.readLock().lock();
+        try {
+            return index.tileBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the total size of the distinct payloads shared by the tiles
+     */
+    public long getPayloadBytes() {
+        lock.readLock().lock();
+        try {
+            return index.blobBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the total size of the segment files, including the payloads no longer referenced
+     *         and not compacted yet
+     */
+    public long getSegmentBytes() {
+        return segments.size();
+    }
+}
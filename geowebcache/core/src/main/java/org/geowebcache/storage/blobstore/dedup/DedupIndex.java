@@ -0,0 +1,629 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.dedup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * In memory index of a {@link DedupBlobStore}: which payload each tile points to, where each
+ * payload lives in the segments and how many tiles share it, plus the layer metadata.
+ * <p>
+ * Not thread safe, guarded by the store lock.
+ * </p>
+ */
+class DedupIndex {
+
+    /**
+     * The tiles of a layer, gridset, format, parameters id and zoom level, held in a
+     * {@link TileTable} keyed by their {@link #xy(long, long) packed} column and row
+     */
+    static final class TileSet {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parametersId;
+
+        final int z;
+
+        TileSet(String layerName, String gridSetId, String format, String parametersId, int z) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parametersId = parametersId;
+            this.z = z;
+        }
+
+        TileSet rename(String newLayerName) {
+            return new TileSet(newLayerName, gridSetId, format, parametersId, z);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileSet)) {
+                return false;
+            }
+            TileSet t = (TileSet) o;
+            return z == t.z && layerName.equals(t.layerName) && gridSetId.equals(t.gridSetId)
+                    && format.equals(t.format) && Objects.equals(parametersId, t.parametersId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(layerName, gridSetId, format, parametersId, z);
+        }
+    }
+
+    /**
+     * A payload stored in the segments, shared by {@link #refs} tiles
+     */
+    static final class Blob {
+
+        final HashCode hash;
+
+        final int length;
+
+        int segment;
+
+        long offset;
+
+        int refs;
+
+        Blob(HashCode hash, int segment, long offset, int length) {
+            this.hash = hash;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A tile, pointing to its payload. Not kept by the index, only built when looking a tile up.
+     */
+    static final class Tile {
+
+        final Blob blob;
+
+        final long created;
+
+        Tile(Blob blob, long created) {
+            this.blob = blob;
+            this.created = created;
+        }
+    }
+
+    /**
+     * The address of a tile
+     */
+    static final class TileKey {
+
+        final TileSet tileSet;
+
+        final long x;
+
+        final long y;
+
+        TileKey(TileSet tileSet, long xy) {
+            this.tileSet = tileSet;
+            this.x = x(xy);
+            this.y = y(xy);
+        }
+    }
+
+    /**
+     * The tiles of a tile set, in an open addressing hash table with linear probing. Each slot
+     * takes 20 bytes, the packed column and row, the creation time and a reference to the
+     * payload, where a {@code HashMap<Long, Tile>} takes about 80 bytes per tile.
+     */
+    static final class TileTable {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private long[] keys = new long[MIN_CAPACITY];
+
+        private long[] created = new long[MIN_CAPACITY];
+
+        /**
+         * The payload of each slot, {@code null} for the empty ones
+         */
+        private Blob[] blobs = new Blob[MIN_CAPACITY];
+
+        private int size;
+
+        private static int hash(long xy) {
+            xy ^= xy >>> 33;
+            xy *= 0xff51afd7ed558ccdL;
+            xy ^= xy >>> 33;
+            return (int) xy;
+        }
+
+        /**
+         * @return the slot of the tile, or the empty slot it would take
+         */
+        private int slot(long xy) {
+            final int mask = keys.length - 1;
+            int slot = hash(xy) & mask;
+            while (blobs[slot] != null && keys[slot] != xy) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Tile get(long xy) {
+            int slot = slot(xy);
+            return blobs[slot] == null ? null : new Tile(blobs[slot], created[slot]);
+        }
+
+        /**
+         * @return the tile it replaced, or {@code null}
+         */
+        Tile put(long xy, Blob blob, long time) {
+            int slot = slot(xy);
+            Tile old = null;
+            if (blobs[slot] == null) {
+                size++;
+            } else {
+                old = new Tile(blobs[slot], created[slot]);
+            }
+            keys[slot] = xy;
+            created[slot] = time;
+            blobs[slot] = blob;
+            if (size > keys.length / 4 * 3) {
+                resize(keys.length * 2);
+            }
+            return old;
+        }
+
+        Tile remove(long xy) {
+            int slot = slot(xy);
+            if (blobs[slot] == null) {
+                return null;
+            }
+            Tile old = new Tile(blobs[slot], created[slot]);
+            clear(slot);
+            size--;
+            if (keys.length > MIN_CAPACITY && size < keys.length / 8) {
+                resize(keys.length / 2);
+            }
+            return old;
+        }
+
+        /**
+         * Empties a slot, moving back the following tiles of the probe sequence so that they can
+         * still be found
+         */
+        private void clear(int slot) {
+            final int mask = keys.length - 1;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (blobs[next] == null) {
+                    break;
+                }
+                int home = hash(keys[next]) & mask;
+                boolean reachable = slot <= next ? slot < home && home <= next
+                        : slot < home || home <= next;
+                if (!reachable) {
+                    keys[slot] = keys[next];
+                    created[slot] = created[next];
+                    blobs[slot] = blobs[next];
+                    slot = next;
+                }
+            }
+            keys[slot] = 0;
+            created[slot] = 0;
+            blobs[slot] = null;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldCreated = created;
+            Blob[] oldBlobs = blobs;
+            keys = new long[capacity];
+            created = new long[capacity];
+            blobs = new Blob[capacity];
+            for (int i = 0; i < oldBlobs.length; i++) {
+                if (oldBlobs[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    created[slot] = oldCreated[i];
+                    blobs[slot] = oldBlobs[i];
+                }
+            }
+        }
+
+        /**
+         * Walks the tiles, e.g.
+         * {@code for (int slot = tiles.next(0); slot >= 0; slot = tiles.next(slot + 1))}
+         *
+         * @return the first slot holding a tile starting from {@code slot}, or {@code -1}
+         */
+        int next(int slot) {
+            for (int i = slot; i < blobs.length; i++) {
+                if (blobs[i] != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        long xy(int slot) {
+            return keys[slot];
+        }
+
+        long created(int slot) {
+            return created[slot];
+        }
+
+        Blob blob(int slot) {
+            return blobs[slot];
+        }
+    }
+
+    private final Map<TileSet, TileTable> tileSets = new HashMap<>();
+
+    private final Map<HashCode, Blob> blobs = new HashMap<>();
+
+    /**
+     * Payloads found in the segments but not referenced, yet. Some may be referenced while
+     * replaying the journal, the others are garbage.
+     */
+    private final Map<HashCode, Blob> unreferenced = new HashMap<>();
+
+    /**
+     * Whether the index is being rebuilt from the segments and the journal
+     */
+    private boolean loading = true;
+
+    private final Map<Integer, Long> liveBytes = new HashMap<>();
+
+    private final Map<String, Map<String, String>> metadata = new HashMap<>();
+
+    private long tileCount;
+
+    private long tileBytes;
+
+    /**
+     * Packs a tile column and row, both fitting in 32 bits up to zoom level 31
+     */
+    static long xy(long x, long y) {
+        return (x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static long x(long xy) {
+        return xy >>> 32;
+    }
+
+    static long y(long xy) {
+        return xy & 0xFFFFFFFFL;
+    }
+
+    Tile get(TileSet tileSet, long x, long y) {
+        TileTable tiles = tileSets.get(tileSet);
+        return tiles == null ? null : tiles.get(xy(x, y));
+    }
+
+    /**
+     * @return the referenced payload with the given hash, or {@code null}
+     */
+    Blob getBlob(HashCode hash) {
+        Blob blob = blobs.get(hash);
+        if (blob == null) {
+            blob = unreferenced.remove(hash);
+            if (blob != null) {
+                blobs.put(hash, blob);
+                addLive(blob.segment, blob.length);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * @return whether a payload with the given hash is referenced, without the side effects of
+     *         {@link #getBlob(HashCode)}
+     */
+    boolean containsBlob(HashCode hash) {
+        return blobs.containsKey(hash);
+    }
+
+    /**
+     * Registers a payload just written to the segments
+     */
+    Blob addBlob(HashCode hash, int segment, long offset, int length) {
+        Blob blob = new Blob(hash, segment, offset, length);
+        blobs.put(hash, blob);
+        addLive(segment, length);
+        return blob;
+    }
+
+    /**
+     * Registers a payload found while scanning the segments on startup, unreferenced until the
+     * journal says otherwise. If the payload is found twice, e.g. because of a compaction
+     * interrupted by a crash, the latest copy is kept.
+     */
+    void foundBlob(HashCode hash, int segment, long offset, int length) {
+        unreferenced.put(hash, new Blob(hash, segment, offset, length));
+    }
+
+    /**
+     * Forgets about the payloads no tile refers to once the journal has been replayed
+     *
+     * @return the number of payloads dropped
+     */
+    int dropUnreferenced() {
+        int count = unreferenced.size();
+        unreferenced.clear();
+        loading = false;
+        return count;
+    }
+
+    /**
+     * Points a tile to a payload
+     *
+     * @return the tile it replaced, or {@code null}
+     */
+    Tile put(TileSet tileSet, long x, long y, Blob blob, long created) {
+        TileTable tiles = tileSets.get(tileSet);
+        if (tiles == null) {
+            tiles = new TileTable();
+            tileSets.put(tileSet, tiles);
+        }
+        blob.refs++;
+        Tile old = tiles.put(xy(x, y), blob, created);
+        if (old != null) {
+            release(old);
+        } else {
+            tileCount++;
+        }
+        tileBytes += blob.length;
+        return old;
+    }
+
+    Tile remove(TileSet tileSet, long x, long y) {
+        TileTable tiles = tileSets.get(tileSet);
+        if (tiles == null) {
+            return null;
+        }
+        Tile old = tiles.remove(xy(x, y));
+        if (old != null) {
+            tileCount--;
+            release(old);
+            if (tiles.isEmpty()) {
+                tileSets.remove(tileSet);
+            }
+        }
+        return old;
+    }
+
+    private void release(Tile tile) {
+        release(tile.blob);
+    }
+
+    private void release(Blob blob) {
+        tileBytes -= blob.length;
+        if (--blob.refs == 0) {
+            blobs.remove(blob.hash);
+            addLive(blob.segment, -blob.length);
+            if (loading) {
+                // the journal may refer to it again later on
+                unreferenced.put(blob.hash, blob);
+            }
+        }
+    }
+
+    /**
+     * Removes all the tiles of the matching tile sets
+     *
+     * @return the number of tiles removed
+     */
+    long removeTileSets(Predicate<TileSet> filter) {
+        long removed = 0;
+        for (Iterator<Map.Entry<TileSet, TileTable>> it = tileSets.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<TileSet, TileTable> e = it.next();
+            if (filter.test(e.getKey())) {
+                TileTable tiles = e.getValue();
+                for (int slot = tiles.next(0); slot >= 0; slot = tiles.next(slot + 1)) {
+                    release(tiles.blob(slot));
+                }
+                tileCount -= tiles.size();
+                removed += tiles.size();
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the tiles matching a filter, among the matching tile sets
+     */
+    List<TileKey> findTiles(Predicate<TileSet> tileSetFilter, TilePredicate tileFilter) {
+        List<TileKey> found = new ArrayList<>();
+        for (Map.Entry<TileSet, TileTable> e : tileSets.entrySet()) {
+            TileSet tileSet = e.getKey();
+            if (!tileSetFilter.test(tileSet)) {
+                continue;
+            }
+            TileTable tiles = e.getValue();
+            for (int slot = tiles.next(0); slot >= 0; slot = tiles.next(slot + 1)) {
+                long xy = tiles.xy(slot);
+                if (tileFilter.test(tileSet, x(xy), y(xy))) {
+                    found.add(new TileKey(tileSet, xy));
+                }
+            }
+        }
+        return found;
+    }
+
+    interface TilePredicate {
+        boolean test(TileSet tileSet, long x, long y);
+    }
+
+    /**
+     * Moves the tiles and metadata of a layer under a new name
+     */
+    void rename(String oldLayerName, String newLayerName) {
+        Map<TileSet, TileTable> renamed = new HashMap<>();
+        for (Iterator<Map.Entry<TileSet, TileTable>> it = tileSets.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<TileSet, TileTable> e = it.next();
+            if (e.getKey().layerName.equals(oldLayerName)) {
+                renamed.put(e.getKey().rename(newLayerName), e.getValue());
+                it.remove();
+            }
+        }
+        tileSets.putAll(renamed);
+        Map<String, String> md = metadata.remove(oldLayerName);
+        if (md != null) {
+            metadata.put(newLayerName, md);
+        }
+    }
+
+    boolean hasLayer(String layerName) {
+        if (metadata.containsKey(layerName)) {
+            return true;
+        }
+        for (TileSet tileSet : tileSets.keySet()) {
+            if (tileSet.layerName.equals(layerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void removeMetadata(String layerName) {
+        metadata.remove(layerName);
+    }
+
+    String getMetadata(String layerName, String key) {
+        Map<String, String> md = metadata.get(layerName);
+        return md == null ? null : md.get(key);
+    }
+
+    Map<String, String> getMetadata(String layerName) {
+        Map<String, String> md = metadata.get(layerName);
+        return md == null ? new HashMap<String, String>() : new HashMap<>(md);
+    }
+
+    Map<String, Map<String, String>> getMetadata() {
+        return metadata;
+    }
+
+    void putMetadata(String layerName, String key, String value) {
+        Map<String, String> md = metadata.get(layerName);
+        if (md == null) {
+            md = new HashMap<>();
+            metadata.put(layerName, md);
+        }
+        md.put(key, value);
+    }
+
+    Iterable<Map.Entry<TileSet, TileTable>> tileSets() {
+        return tileSets.entrySet();
+    }
+
+    private void addLive(int segment, long bytes) {
+        Long live = liveBytes.get(segment);
+        long value = (live == null ? 0 : live) + bytes;
+        if (value == 0) {
+            liveBytes.remove(segment);
+        } else {
+            liveBytes.put(segment, value);
+        }
+    }
+
+    /**
+     * Records a payload moved to another segment by compaction
+     */
+    void moved(Blob blob, int segment, long offset) {
+        addLive(blob.segment, -blob.length);
+        blob.segment = segment;
+        blob.offset = offset;
+        addLive(segment, blob.length);
+    }
+
+    /**
+     * @return the bytes of the segment still referenced by some tile
+     */
+    long liveBytes(int segment) {
+        Long live = liveBytes.get(segment);
+        return live == null ? 0 : live;
+    }
+
+    /**
+     * @return the referenced payloads stored in the segment
+     */
+    List<Blob> blobs(int segment) {
+        List<Blob> found = new ArrayList<>();
+        for (Blob blob : blobs.values()) {
+            if (blob.segment == segment) {
+                found.add(blob);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return whether the blob is still referenced
+     */
+    boolean isLive(Blob blob) {
+        return blobs.get(blob.hash) == blob;
+    }
+
+    long tileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return the total size of the tiles, as if each one was stored on its own
+     */
+    long tileBytes() {
+        return tileBytes;
+    }
+
+    int blobCount() {
+        return blobs.size();
+    }
+
+    /**
+     * @return the total size of the distinct payloads
+     */
+    long blobBytes() {
+        long bytes = 0;
+        for (Long live : liveBytes.values()) {
+            bytes += live;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.Blob;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.TileSet;
+import org.geowebcache.storage.blobstore.dedup.DedupIndex.TileTable;
+import org.geowebcache.util.FileUtils;
+
+import com.google.common.hash.HashCode;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Append only log of the changes made to a {@link DedupIndex}, replayed on startup to rebuild
+ * it. Tiles are recorded by the hash of their payload, the payload location being found by
+ * scanning the segments, so moving payloads around during compaction needs no journal update.
+ * <p>
+ * The journal grows with every change, it is {@link #rewrite(DedupIndex) rewritten} from the
+ * index once it holds too many records compared to the live tiles.
+ * </p>
+ * <p>
+ * Records are added to an in memory buffer, cheap enough to be done while holding the lock of the
+ * store, in the order of the index changes. They go to the file on {@link #flush()}, called once
+ * the store lock is released, the first caller writing the records of all the others at once.
+ * </p>
+ */
+class IndexJournal {
+
+    private static Log log = LogFactory.getLog(IndexJournal.class);
+
+    private static final byte PUT = 'P';
+
+    private static final byte DELETE = 'D';
+
+    private static final byte DELETE_LAYER = 'L';
+
+    private static final byte DELETE_GRIDSET = 'G';
+
+    private static final byte DELETE_PARAMETERS = 'Q';
+
+    private static final byte RENAME = 'R';
+
+    private static final byte METADATA = 'M';
+
+    private final File file;
+
+    private final int hashLength;
+
+    /** the records not written to the file yet */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private final DataOutputStream pending = new DataOutputStream(buffer);
+
+    /** serializes the writes to the file, so that the records keep their order */
+    private final Object fileLock = new Object();
+
+    private FileOutputStream out;
+
+    private long records;
+
+    IndexJournal(File file, int hashLength) {
+        this.file = file;
+        this.hashLength = hashLength;
+    }
+
+    /**
+     * Replays the journal into the index, then opens it for appending. A record truncated by a
+     * crash is dropped.
+     */
+    void open(DedupIndex index) throws IOException {
+        if (file.exists()) {
+            long valid = replay(index);
+            if (valid < file.length()) {
+                log.warn("Dropping truncated record at the end of " + file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    private long replay(DedupIndex index) throws IOException {
+        long valid = 0;
+        long skipped = 0;
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+                DataInputStream in = new DataInputStream(counting)) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                switch (type) {
+                case PUT: {
+                    TileSet tileSet = readTileSet(in);
+                    long x = in.readLong();
+                    long y = in.readLong();
+                    long created = in.readLong();
+                    byte[] hash = new byte[hashLength];
+                    in.readFully(hash);
+                    Blob blob = index.getBlob(HashCode.fromBytes(hash));
+                    if (blob == null) {
+                        skipped++;
+                    } else {
+                        index.put(tileSet, x, y, blob, created);
+                    }
+                    break;
+                }
+                case DELETE: {
+                    TileSet tileSet = readTileSet(in);
+                    long x = in.readLong();
+                    long y = in.readLong();
+                    index.remove(tileSet, x, y);
+                    break;
+                }
+                case DELETE_LAYER: {
+                    String layerName = readString(in);
+                    index.removeTileSets(t -> t.layerName.equals(layerName));
+                    index.removeMetadata(layerName);
+                    break;
+                }
+                case DELETE_GRIDSET: {
+                    String layerName = readString(in);
+                    String gridSetId = readString(in);
+                    index.removeTileSets(t -> t.layerName.equals(layerName)
+                            && t.gridSetId.equals(gridSetId));
+                    break;
+                }
+                case DELETE_PARAMETERS: {
+                    String layerName = readString(in);
+                    String parametersId = readString(in);
+                    index.removeTileSets(t -> t.layerName.equals(layerName)
+                            && parametersId.equals(t.parametersId));
+                    break;
+                }
+                case RENAME: {
+                    String oldLayerName = readString(in);
+                    String newLayerName = readString(in);
+                    index.rename(oldLayerName, newLayerName);
+                    break;
+                }
+                case METADATA: {
+                    String layerName = readString(in);
+                    String key = readString(in);
+                    String value = readString(in);
+                    index.putMetadata(layerName, key, value);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown record type " + type + " at " + valid
+                            + " in " + file);
+                }
+                records++;
+                valid = counting.getCount();
+            }
+        } catch (EOFException e) {
+            // truncated record, caller will drop it
+        }
+        if (skipped > 0) {
+            log.warn(skipped + " tiles of " + file
+                    + " point to payloads missing from the segments and were dropped");
+        }
+        return valid;
+    }
+
+    private static TileSet readTileSet(DataInputStream in) throws IOException {
+        String layerName = readString(in);
+        String gridSetId = readString(in);
+        String format = readString(in);
+        String parametersId = in.readBoolean() ? readString(in) : null;
+        int z = in.readInt();
+        return new TileSet(layerName, gridSetId, format, parametersId, z);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTileSet(DataOutputStream out, TileSet tileSet) throws IOException {
+        writeString(out, tileSet.layerName);
+        writeString(out, tileSet.gridSetId);
+        writeString(out, tileSet.format);
+        out.writeBoolean(tileSet.parametersId != null);
+        if (tileSet.parametersId != null) {
+            writeString(out, tileSet.parametersId);
+        }
+        out.writeInt(tileSet.z);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writePut(DataOutputStream out, TileSet tileSet, long x, long y,
+            long created, HashCode hash) throws IOException {
+        out.write(PUT);
+        writeTileSet(out, tileSet);
+        out.writeLong(x);
+        out.writeLong(y);
+        out.writeLong(created);
+        out.write(hash.asBytes());
+    }
+
+    private static void writeMetadata(DataOutputStream out, String layerName, String key,
+            String value) throws IOException {
+        out.write(METADATA);
+        writeString(out, layerName);
+        writeString(out, key);
+        writeString(out, value);
+    }
+
+    synchronized void put(TileSet tileSet, long x, long y, long created, HashCode hash)
+            throws IOException {
+        writePut(pending, tileSet, x, y, created, hash);
+        records++;
+    }
+
+    synchronized void delete(TileSet tileSet, long x, long y) throws IOException {
+        pending.write(DELETE);
+        writeTileSet(pending, tileSet);
+        pending.writeLong(x);
+        pending.writeLong(y);
+        records++;
+    }
+
+    synchronized void deleteLayer(String layerName) throws IOException {
+        pending.write(DELETE_LAYER);
+        writeString(pending, layerName);
+        records++;
+    }
+
+    synchronized void deleteGridset(String layerName, String gridSetId) throws IOException {
+        pending.write(DELETE_GRIDSET);
+        writeString(pending, layerName);
+        writeString(pending, gridSetId);
+        records++;
+    }
+
+    synchronized void deleteParameters(String layerName, String parametersId) throws IOException {
+        pending.write(DELETE_PARAMETERS);
+        writeString(pending, layerName);
+        writeString(pending, parametersId);
+        records++;
+    }
+
+    synchronized void rename(String oldLayerName, String newLayerName) throws IOException {
+        pending.write(RENAME);
+        writeString(pending, oldLayerName);
+        writeString(pending, newLayerName);
+        records++;
+    }
+
+    synchronized void metadata(String layerName, String key, String value) throws IOException {
+        writeMetadata(pending, layerName, key, value);
+        records++;
+    }
+
+    /**
+     * Writes the buffered records to the file, along with those of the other threads
+     */
+    void flush() throws IOException {
+        synchronized (fileLock) {
+            final byte[] bytes;
+            synchronized (this) {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                bytes = buffer.toByteArray();
+                buffer.reset();
+            }
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return the number of records in the journal
+     */
+    synchronized long records() {
+        return records;
+    }
+
+    /**
+     * Replaces the journal with the minimal set of records rebuilding the index as it is now. Shall
+     * be called while the index can't change.
+     */
+    void rewrite(DedupIndex index) throws IOException {
+        synchronized (fileLock) {
+            // the current journal stays complete should the rewrite fail
+            flush();
+            rewriteFile(index);
+        }
+    }
+
+    private void rewriteFile(DedupIndex index) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        long written = 0;
+        try (DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)))) {
+            for (Map.Entry<String, Map<String, String>> md : index.getMetadata().entrySet()) {
+                for (Map.Entry<String, String> e : md.getValue().entrySet()) {
+                    writeMetadata(tmp, md.getKey(), e.getKey(), e.getValue());
+                    written++;
+                }
+            }
+            for (Map.Entry<TileSet, TileTable> tileSet : index.tileSets()) {
+                TileTable tiles = tileSet.getValue();
+                for (int slot = tiles.next(0); slot >= 0; slot = tiles.next(slot + 1)) {
+                    long xy = tiles.xy(slot);
+                    writePut(tmp, tileSet.getKey(), DedupIndex.x(xy), DedupIndex.y(xy),
+                            tiles.created(slot), tiles.blob(slot).hash);
+                    written++;
+                }
+            }
+        }
+        out.close();
+        if (!FileUtils.renameFile(temp, file)) {
+            // keep going with the old journal, still valid
+            temp.delete();
+            out = new FileOutputStream(file, true);
+            throw new IOException("Unable to replace " + file + " with " + temp);
+        }
+        out = new FileOutputStream(file, true);
+        synchronized (this) {
+            records = written;
+        }
+    }
+
+    void close() {
+        synchronized (fileLock) {
+            try {
+                if (out != null) {
+                    flush();
+                    out.close();
+                }
+            } catch (IOException e) {
+                log.warn("Error closing " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.dedup;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append only segment files holding the tile payloads of a {@link DedupBlobStore}, each payload
+ * written once whatever the number of tiles sharing it.
+ * <p>
+ * Segments are named after a sequence number, {@code 00000042.seg}, and hold a sequence of records
+ * made of a magic number, the payload hash, the payload length and the payload itself. New
+ * payloads are appended to the active segment until it reaches the maximum segment size. Each
+ * instance starts a new active segment on first append, so that segments written by a previous
+ * one, maybe truncated by a crash, are never appended to. Older segments are never written
+ * again, they are rewritten into the active one and deleted by compaction once enough of their
+ * payloads are no longer referenced.
+ * </p>
+ */
+class SegmentStore {
+
+    private static Log log = LogFactory.getLog(SegmentStore.class);
+
+    static final int MAGIC = 0x47574344;
+
+    private static final String EXTENSION = ".seg";
+
+    /**
+     * Receives the payloads found while scanning the segments
+     */
+    interface Visitor {
+        void found(byte[] hash, int segment, long offset, int length);
+    }
+
+    private final File directory;
+
+    private final long maxSegmentSize;
+
+    private final int hashLength;
+
+    private final ConcurrentMap<Integer, FileChannel> channels = new ConcurrentHashMap<Integer, FileChannel>();
+
+    private final ConcurrentMap<Integer, Long> sizes = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * The segment payloads are appended to, {@code -1} until the first append
+     */
+    private int active = -1;
+
+    private int last = -1;
+
+    SegmentStore(File directory, long maxSegmentSize, int hashLength) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.hashLength = hashLength;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create segments directory " + directory);
+        }
+        for (int segment : list()) {
+            channels.put(segment, open(segment));
+            sizes.put(segment, channels.get(segment).size());
+            last = Math.max(last, segment);
+        }
+    }
+
+    private int headerLength() {
+        return 4 + hashLength + 4;
+    }
+
+    private File file(int segment) {
+        return new File(directory, String.format("%08d%s", segment, EXTENSION));
+    }
+
+    private List<Integer> list() {
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(EXTENSION)) {
+                    try {
+                        segments.add(Integer.valueOf(name.substring(0,
+                                name.length() - EXTENSION.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file " + name + " in " + directory);
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(file(segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads the payload headers of all the segments, in segment order. A segment truncated by a
+     * crash is read up to the last complete record.
+     */
+    void scan(Visitor visitor) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(headerLength());
+        for (int segment : list()) {
+            FileChannel channel = channels.get(segment);
+            final long size = channel.size();
+            long position = 0;
+            while (position + headerLength() <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    log.warn("Corrupted record in " + file(segment) + " at " + position
+                            + ", ignoring the rest of the segment");
+                    break;
+                }
+                byte[] hash = new byte[hashLength];
+                header.get(hash);
+                int length = header.getInt();
+                long offset = position + headerLength();
+                if (length < 0 || offset + length > size) {
+                    log.warn("Truncated record in " + file(segment) + " at " + position
+                            + ", ignoring the rest of the segment");
+                    break;
+                }
+                visitor.found(hash, segment, offset, length);
+                position = offset + length;
+            }
+        }
+    }
+
+    /**
+     * Location of a payload
+     */
+    static final class Location {
+
+        final int segment;
+
+        final long offset;
+
+        Location(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Appends a payload to the active segment, starting a new segment if the active one is full
+     */
+    synchronized Location append(byte[] hash, byte[] data) throws IOException {
+        final int recordLength = headerLength() + data.length;
+        if (active < 0 || sizes.get(active) > 0
+                && sizes.get(active) + recordLength > maxSegmentSize) {
+            roll();
+        }
+        final long position = sizes.get(active);
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(MAGIC).put(hash).putInt(data.length).put(data);
+        record.flip();
+        FileChannel channel = channels.get(active);
+        long at = position;
+        while (record.hasRemaining()) {
+            at += channel.write(record, at);
+        }
+        sizes.put(active, position + recordLength);
+        return new Location(active, position + headerLength());
+    }
+
+    private void roll() throws IOException {
+        int segment = last + 1;
+        channels.put(segment, open(segment));
+        sizes.put(segment, 0L);
+        active = last = segment;
+    }
+
+    /**
+     * @return the segment payloads are currently appended to, {@code -1} if none
+     */
+    synchronized int activeSegment() {
+        return active;
+    }
+
+    byte[] read(int segment, long offset, int length) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null) {
+            throw new IOException("Segment " + segment + " does not exist");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, offset);
+        return buffer.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * @return the segment numbers, in increasing order
+     */
+    List<Integer> segments() {
+        List<Integer> segments = new ArrayList<Integer>(sizes.keySet());
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return the size of the segment file, {@code 0} if it does not exist
+     */
+    long size(int segment) {
+        Long size = sizes.get(segment);
+        return size == null ? 0 : size.longValue();
+    }
+
+    /**
+     * @return whether the segment exists, i.e. was not deleted by compaction
+     */
+    boolean exists(int segment) {
+        return sizes.containsKey(segment);
+    }
+
+    /**
+     * @return the total size of the segment files
+     */
+    long size() {
+        long size = 0;
+        for (Long s : sizes.values()) {
+            size += s;
+        }
+        return size;
+    }
+
+    synchronized void delete(int segment) throws IOException {
+        if (segment == active) {
+            throw new IllegalArgumentException("Can't delete the active segment");
+        }
+        FileChannel channel = channels.remove(segment);
+        sizes.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+        File file = file(segment);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    synchronized void close() {
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing segment", e);
+            }
+        }
+        channels.clear();
+    }
+}
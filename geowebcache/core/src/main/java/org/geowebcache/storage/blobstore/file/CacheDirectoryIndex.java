@@ -0,0 +1,163 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In memory index of the cache directories of the {@link FileBlobStore} layers, the ones named
+ * after the gridset, zoom level and parameters id of their tiles, e.g.
+ * {@code EPSG_4326_05_7a3b...}.
+ * <p>
+ * A layer directory is listed once, then the index is kept up to date by the store as it creates
+ * and deletes cache directories. The layer directory is listed again only if it was modified by
+ * someone else since, e.g. another process sharing the cache directory, as told by its last
+ * modification time.
+ * </p>
+ * <p>
+ * The modification time may not tell, it has a one second resolution on some file systems and
+ * network file systems cache it for a while. Deletes don't rely on it and {@link #reload(File)
+ * list} the layer directory again, so that they don't miss a cache directory created by someone
+ * else.
+ * </p>
+ */
+class CacheDirectoryIndex {
+
+    private final ConcurrentMap<File, Entry> layers = new ConcurrentHashMap<File, Entry>();
+
+    private static class Entry {
+
+        final File layerDir;
+
+        Set<String> dirs;
+
+        long lastModified = -1;
+
+        Entry(File layerDir) {
+            this.layerDir = layerDir;
+        }
+
+        boolean isStale() {
+            return dirs == null || layerDir.lastModified() != lastModified;
+        }
+
+        void load() {
+            Set<String> loaded = new HashSet<String>();
+            // read the time first, so that a change made while listing triggers another listing
+            long modified = layerDir.lastModified();
+            File[] children = layerDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        loaded.add(child.getName());
+                    }
+                }
+            }
+            dirs = loaded;
+            lastModified = modified;
+        }
+
+        /**
+         * Takes into account a change made by the store itself, unless the layer directory was
+         * also changed by someone else
+         */
+        void changed(String dirName, boolean exists, long previousModified) {
+            if (dirs == null) {
+                return;
+            }
+            if (lastModified != previousModified) {
+                // changed behind our back as well, list it again on next use
+                dirs = null;
+                return;
+            }
+            if (exists) {
+                dirs.add(dirName);
+            } else {
+                dirs.remove(dirName);
+            }
+            lastModified = layerDir.lastModified();
+        }
+    }
+
+    private Entry entry(File layerDir) {
+        return layers.computeIfAbsent(layerDir, Entry::new);
+    }
+
+    /**
+     * @return the names of the cache directories of the layer, empty if the layer directory does
+     *         not exist
+     */
+    Set<String> get(File layerDir) {
+        Entry entry = entry(layerDir);
+        synchronized (entry) {
+            if (entry.isStale()) {
+                entry.load();
+            }
+            return Collections.unmodifiableSet(new HashSet<String>(entry.dirs));
+        }
+    }
+
+    /**
+     * Lists the layer directory again, however recent the index is
+     *
+     * @return the names of the cache directories of the layer, empty if the layer directory does
+     *         not exist
+     */
+    Set<String> reload(File layerDir) {
+        Entry entry = entry(layerDir);
+        synchronized (entry) {
+            entry.load();
+            return Collections.unmodifiableSet(new HashSet<String>(entry.dirs));
+        }
+    }
+
+    /**
+     * Records that the store created a cache directory of the layer
+     *
+     * @param previousModified the last modification time of the layer directory before the
+     *        change
+     */
+    void created(File layerDir, String dirName, long previousModified) {
+        Entry entry = entry(layerDir);
+        synchronized (entry) {
+            entry.changed(dirName, true, previousModified);
+        }
+    }
+
+    /**
+     * Records that the store removed a cache directory of the layer
+     *
+     * @param previousModified the last modification time of the layer directory before the
+     *        change
+     */
+    void removed(File layerDir, String dirName, long previousModified) {
+        Entry entry = entry(layerDir);
+        synchronized (entry) {
+            entry.changed(dirName, false, previousModified);
+        }
+    }
+
+    /**
+     * Forgets about a layer directory, deleted or renamed
+     */
+    void discard(File layerDir) {
+        layers.remove(layerDir);
+    }
+}
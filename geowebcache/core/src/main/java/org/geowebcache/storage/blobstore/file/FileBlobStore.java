@@ -22,20 +22,13 @@ import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredLayer
 import static org.geowebcache.storage.blobstore.file.FilePathUtils.findZoomLevel;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.channels.FileChannel;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
@@ -43,11 +36,12 @@ import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -70,6 +64,7 @@ import org.geowebcache.util.FileUtils;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * See BlobStore interface description for details
@@ -95,7 +90,19 @@ public class FileBlobStore implements BlobStore {
 
     private File tmp;
 
-    private ExecutorService deleteExecutorService;
+    private ThreadPoolExecutor deleteExecutorService;
+
+    private volatile RateLimiter deleteRateLimiter;
+
+    private final AtomicInteger pendingDeletes = new AtomicInteger();
+
+    private final AtomicLong deletedFiles = new AtomicLong();
+
+    private final LayerMetadataStore metadata = new LayerMetadataStore();
+
+    private final CacheDirectoryIndex cacheDirs = new CacheDirectoryIndex();
+
+    private volatile TileExistenceIndex tileIndex;
 
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException,
             ConfigurationException {
@@ -142,6 +149,7 @@ public class FileBlobStore implements BlobStore {
     }
 
     private void deletePending(final File pendingDeleteDirectory) {
+        pendingDeletes.incrementAndGet();
         deleteExecutorService.submit(new DefferredDirectoryDeleteTask(pendingDeleteDirectory));
     }
 
@@ -150,7 +158,83 @@ public class FileBlobStore implements BlobStore {
         tf = new CustomizableThreadFactory("GWC FileStore delete directory thread-");
         tf.setDaemon(true);
         tf.setThreadPriority(Thread.MIN_PRIORITY);
-        deleteExecutorService = Executors.newFixedThreadPool(1);
+        deleteExecutorService = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), tf);
+    }
+
+    /**
+     * Sets the number of threads deleting the directories of truncated layers, gridsets and
+     * parameters in the background, one directory per thread. Defaults to 1.
+     */
+    public void setDeleteThreads(int deleteThreads) {
+        Preconditions.checkArgument(deleteThreads > 0, "deleteThreads shall be positive");
+        if (deleteThreads > deleteExecutorService.getMaximumPoolSize()) {
+            deleteExecutorService.setMaximumPoolSize(deleteThreads);
+            deleteExecutorService.setCorePoolSize(deleteThreads);
+        } else {
+            deleteExecutorService.setCorePoolSize(deleteThreads);
+            deleteExecutorService.setMaximumPoolSize(deleteThreads);
+        }
+    }
+
+    /**
+     * Bounds the rate at which the files of truncated layers, gridsets and parameters are deleted
+     * in the background, all delete threads included, so that large truncates do not starve the
+     * tile requests of I/O.
+     *
+     * @param maxDeletesPerSecond maximum number of files deleted per second, {@code 0} for no
+     *        limit, the default
+     */
+    public void setMaxDeletesPerSecond(double maxDeletesPerSecond) {
+        Preconditions.checkArgument(maxDeletesPerSecond >= 0,
+                "maxDeletesPerSecond shall be positive or zero");
+        this.deleteRateLimiter = maxDeletesPerSecond > 0 ? RateLimiter.create(maxDeletesPerSecond)
+                : null;
+    }
+
+    /**
+     * Enables an in memory index of the cached tiles, used to answer cache misses without
+     * checking the file system, which pays off when file metadata operations are slow, e.g. on
+     * network file systems.
+     * <p>
+     * Each tile directory is listed on first use and kept current as tiles are written and
+     * deleted by this store. Changes made by other processes sharing the cache directory are only
+     * seen once the directory expires from the index, so a short expiration should be used when
+     * the cache is shared. Directories always expire, an index never listing them again would
+     * keep missing the tiles written by other processes.
+     * </p>
+     * 
+     * @param maxDirectories the maximum number of tile directories indexed, {@code 0} to disable
+     *        the index, the default
+     * @param expireSeconds the time after which a tile directory is listed again
+     */
+    public void setTileIndex(int maxDirectories, int expireSeconds) {
+        Preconditions.checkArgument(maxDirectories >= 0,
+                "maxDirectories shall be positive or zero");
+        Preconditions.checkArgument(expireSeconds > 0, "expireSeconds shall be positive");
+        this.tileIndex = maxDirectories > 0 ? new TileExistenceIndex(maxDirectories,
+                expireSeconds) : null;
+    }
+
+    private void invalidateTileIndex(File directory) {
+        TileExistenceIndex index = tileIndex;
+        if (index != null) {
+            index.invalidate(directory);
+        }
+    }
+
+    /**
+     * @return the number of directories waiting to be deleted in the background, or being deleted
+     */
+    public int getPendingDeletes() {
+        return pendingDeletes.get();
+    }
+
+    /**
+     * @return the number of files deleted in the background since the store started
+     */
+    public long getDeletedFiles() {
+        return deletedFiles.get();
     }
 
     /**
@@ -158,19 +242,29 @@ public class FileBlobStore implements BlobStore {
      */
     public void destroy() {
         deleteExecutorService.shutdownNow();
+        metadata.destroy();
     }
 
-    private static class DefferredDirectoryDeleteTask implements Runnable {
+    private class DefferredDirectoryDeleteTask implements Runnable {
 
         private final File directory;
 
+        private long deleted;
+
+        private long lastReport;
+
         public DefferredDirectoryDeleteTask(final File directory) {
             this.directory = directory;
         }
 
         public void run() {
+            lastReport = System.currentTimeMillis();
             try {
                 deleteDirectory(directory);
+                if (log.isDebugEnabled()) {
+                    log.debug("Deleted " + deleted + " files of '" + directory.getAbsolutePath()
+                            + "', " + (pendingDeletes.get() - 1) + " directories left to delete");
+                }
             } catch (IOException e) {
                 log.warn("Exception occurred while deleting '" + directory.getAbsolutePath() + "'",
                         e);
@@ -178,6 +272,8 @@ public class FileBlobStore implements BlobStore {
                 log.info("FileStore delete background service interrupted while deleting '"
                         + directory.getAbsolutePath()
                         + "'. Process will be resumed at next start up");
+            } finally {
+                pendingDeletes.decrementAndGet();
             }
         }
 
@@ -197,9 +293,16 @@ public class FileBlobStore implements BlobStore {
                 if (file.isDirectory()) {
                     deleteDirectory(file);
                 } else {
+                    RateLimiter limiter = deleteRateLimiter;
+                    if (limiter != null) {
+                        limiter.acquire();
+                    }
                     if (!file.delete()) {
                         throw new IOException("Unable to delete " + file.getAbsolutePath());
                     }
+                    deleted++;
+                    deletedFiles.incrementAndGet();
+                    reportProgress();
                 }
             }
             if (!directory.delete()) {
@@ -208,6 +311,14 @@ public class FileBlobStore implements BlobStore {
             }
         }
 
+        private void reportProgress() {
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= 60000) {
+                lastReport = now;
+                log.info("Deleted " + deleted + " files of '" + this.directory.getAbsolutePath()
+                        + "' so far, " + pendingDeletes.get() + " directories pending deletion");
+            }
+        }
     }
 
     /**
@@ -216,8 +327,12 @@ public class FileBlobStore implements BlobStore {
     public boolean delete(final String layerName) throws StorageException {
         final File source = getLayerPath(layerName);
         final String target = filteredLayerName(layerName);
-
-        boolean ret = stageDelete(source, target);
+        // no metadata write may recreate the layer directory before it is staged for deletion
+        boolean ret = metadata.discard(getMetadataFile(layerName), () -> {
+            cacheDirs.discard(source);
+            invalidateTileIndex(source);
+            return stageDelete(source, target);
+        });
 
         this.listeners.sendLayerDeleted(layerName);
         return ret;
@@ -251,6 +366,21 @@ public class FileBlobStore implements BlobStore {
         return true;
     }
 
+    /**
+     * Stages the delete of a cache directory of a layer, keeping the index of cache directories up
+     * to date
+     */
+    private boolean stageDeleteCacheDirectory(final File layerPath, final String dirName)
+            throws StorageException {
+        final long layerModified = layerPath.lastModified();
+        final String target = layerPath.getName() + "_" + dirName;
+        final File cacheDir = new File(layerPath, dirName);
+        boolean staged = stageDelete(cacheDir, target);
+        invalidateTileIndex(cacheDir);
+        cacheDirs.removed(layerPath, dirName, layerModified);
+        return staged;
+    }
+
     /**
      * @throws StorageException
      * @see org.geowebcache.storage.BlobStore#deleteByGridsetId(java.lang.String, java.lang.String)
@@ -265,19 +395,11 @@ public class FileBlobStore implements BlobStore {
         }
         final String filteredGridSetId = filteredGridSetId(gridSetId);
 
-        File[] gridSubsetCaches = layerPath.listFiles(new FileFilter() {
-            public boolean accept(File pathname) {
-                if (!pathname.isDirectory()) {
-                    return false;
-                }
-                String dirName = pathname.getName();
-                return dirName.startsWith(filteredGridSetId);
+        // list the cache directories again, the index may miss some created by someone else
+        for (String dirName : cacheDirs.reload(layerPath)) {
+            if (dirName.startsWith(filteredGridSetId)) {
+                stageDeleteCacheDirectory(layerPath, dirName);
             }
-        });
-
-        for (File gridSubsetCache : gridSubsetCaches) {
-            String target = filteredLayerName(layerName) + "_" + gridSubsetCache.getName();
-            stageDelete(gridSubsetCache, target);
         }
 
         listeners.sendGridSubsetDeleted(layerName, gridSetId);
@@ -311,7 +433,13 @@ public class FileBlobStore implements BlobStore {
             log.info(oldLayerPath + " is not writable");
             return false;
         }
-        boolean renamed = FileUtils.renameFile(oldLayerPath, newLayerPath);
+        boolean renamed = metadata.discard(getMetadataFile(oldLayerName), () -> {
+            cacheDirs.discard(oldLayerPath);
+            cacheDirs.discard(newLayerPath);
+            invalidateTileIndex(oldLayerPath);
+            invalidateTileIndex(newLayerPath);
+            return FileUtils.renameFile(oldLayerPath, newLayerPath);
+        });
         if (renamed) {
             this.listeners.sendLayerRenamed(oldLayerName, newLayerName);
         } else {
@@ -343,6 +471,10 @@ public class FileBlobStore implements BlobStore {
             if (!fh.delete()) {
                 throw new StorageException("Unable to delete " + fh.getAbsolutePath());
             }
+            TileExistenceIndex index = tileIndex;
+            if (index != null) {
+                index.deleted(fh, stObj.getXYZ());
+            }
             stObj.setBlobSize((int) padSize(length));
             listeners.sendTileDeleted(stObj);
 
@@ -354,7 +486,9 @@ public class FileBlobStore implements BlobStore {
         // Look at the parent directory to prune it if empty
         File parentDir = fh.getParentFile();
         // Try deleting the directory (will not do it if the directory contains files)
-        parentDir.delete();
+        if (parentDir.delete()) {
+            invalidateTileIndex(parentDir);
+        }
 
         return ret;
     }
@@ -416,8 +550,12 @@ public class FileBlobStore implements BlobStore {
                 }
             }
 
+            invalidateTileIndex(srsZoomParamId);
+
             // Try deleting the zoom directory (will be done only if the directory is empty)
+            final long layerModified = layerPath.lastModified();
             if (srsZoomParamId.delete()) {
+                cacheDirs.removed(layerPath, srsZoomParamId.getName(), layerModified);
                 count++;
                 // listeners.sendDirectoryDeleted(layerName);
             }
@@ -436,7 +574,8 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean get(TileObject stObj) throws StorageException {
         File fh = getFileHandleTile(stObj, false);
-        if (!fh.exists()) {
+        TileExistenceIndex index = tileIndex;
+        if ((index != null && !index.mayExist(fh, stObj.getXYZ())) || !fh.exists()) {
             stObj.setStatus(Status.MISS);
             return false;
         } else {
@@ -456,6 +595,10 @@ public class FileBlobStore implements BlobStore {
         final long oldSize = fh.length();
         final boolean existed = oldSize > 0;
         writeFile(fh, stObj, existed);
+        TileExistenceIndex index = tileIndex;
+        if (index != null) {
+            index.stored(fh, stObj.getXYZ());
+        }
         
         // mark the last modification as the tile creation time if set, otherwise
         // we'll leave it to the writing time
@@ -491,7 +634,18 @@ public class FileBlobStore implements BlobStore {
 
         if (create) {
             File parent = tilePath.getParentFile();
-            mkdirs(parent, stObj);
+            TileExistenceIndex index = tileIndex;
+            boolean known = index != null && index.directoryExists(parent);
+            if (!known && !parent.exists()) {
+                File cacheDir = parent.getParentFile();
+                File layerPath = cacheDir.getParentFile();
+                long layerModified = layerPath.lastModified();
+                boolean newCacheDir = !cacheDir.exists();
+                mkdirs(parent, stObj);
+                if (newCacheDir) {
+                    cacheDirs.created(layerPath, cacheDir.getName(), layerModified);
+                }
+            }
         }
 
         return tilePath;
@@ -562,12 +716,17 @@ public class FileBlobStore implements BlobStore {
 
     }
     
+    /**
+     * Records the parameters of the tile's parameters id in the layer metadata. Only the first
+     * tile of each parameters id actually changes the metadata, written in the background.
+     */
     protected void persistParameterMap(TileObject stObj) {
         if(Objects.nonNull(stObj.getParametersId())) {
             putLayerMetadata(
                     stObj.getLayerName(), 
                     "parameters."+stObj.getParametersId(), 
-                    ParametersUtils.getKvp(stObj.getParameters()));
+                    ParametersUtils.getKvp(stObj.getParameters()),
+                    true);
         }
     }
     
@@ -624,8 +783,7 @@ public class FileBlobStore implements BlobStore {
      * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
      */
     public String getLayerMetadata(final String layerName, final String key) {
-        Properties metadata = getLayerMetadata(layerName);
-        String value = metadata.getProperty(key);
+        String value = metadata.get(getMetadataFile(layerName), key);
         if (value != null) {
             value = urlDecUtf8(value);
         }
@@ -646,71 +804,20 @@ public class FileBlobStore implements BlobStore {
      *      java.lang.String)
      */
     public void putLayerMetadata(final String layerName, final String key, final String value) {
-        Properties metadata = getLayerMetadata(layerName);
-        if (null == value) {
-            metadata.remove(key);
-        } else {
-            try {
-                metadata.setProperty(key, URLEncoder.encode(value, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        final File metadataFile = getMetadataFile(layerName);
+        putLayerMetadata(layerName, key, value, false);
+    }
 
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            OutputStream out;
-            try {
-                if (!metadataFile.getParentFile().exists()) {
-                    metadataFile.getParentFile().mkdirs();
-                }
-                out = new FileOutputStream(metadataFile);
-            } catch (FileNotFoundException e) {
-                throw new UncheckedIOException(e);
-            }
+    private void putLayerMetadata(final String layerName, final String key, final String value,
+            final boolean deferred) {
+        String encoded = null;
+        if (value != null) {
             try {
-                String comments = "auto generated file, do not edit by hand";
-                metadata.store(out, comments);
-            } catch (Exception e) {
+                encoded = URLEncoder.encode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
                 throw new RuntimeException(e);
-            } finally {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    log.warn(e.getMessage(), e);
-                }
-            }
-        }
-    }
-    
-    private Properties getLayerMetadata(final String layerName) {
-        final File metadataFile = getMetadataFile(layerName);
-        Properties properties = new Properties();
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            if (metadataFile.exists()) {
-                FileInputStream in;
-                try {
-                    in = new FileInputStream(metadataFile);
-                } catch (FileNotFoundException e) {
-                    throw new UncheckedIOException(e);
-                }
-                try {
-                    properties.load(in);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        log.warn(e.getMessage(), e);
-                    }
-                }
             }
         }
-        return properties;
+        metadata.put(getMetadataFile(layerName), key, encoded, deferred);
     }
 
     private File getMetadataFile(final String layerName) {
@@ -763,17 +870,11 @@ public class FileBlobStore implements BlobStore {
             return false;
         }
         
-        File[] parameterCaches = layerPath.listFiles((pathname)-> {
-            if (!pathname.isDirectory()) {
-                return false;
+        // list the cache directories again, the index may miss some created by someone else
+        for (String dirName : cacheDirs.reload(layerPath)) {
+            if (dirName.endsWith(parametersId)) {
+                stageDeleteCacheDirectory(layerPath, dirName);
             }
-            String dirName = pathname.getName();
-            return dirName.endsWith(parametersId);
-        });
-        
-        for (File parameterCache : parameterCaches) {
-            String target = filteredLayerName(layerName) + "_" + parameterCache.getName();
-            stageDelete(parameterCache, target);
         }
         
         listeners.sendParametersDeleted(layerName, parametersId);
@@ -781,33 +882,14 @@ public class FileBlobStore implements BlobStore {
         return true;
     }
     
-    private Stream<Path> layerChildStream(final String layerName, DirectoryStream.Filter<Path> filter) throws IOException {
-        final File layerPath = getLayerPath(layerName);
-        if (!layerPath.exists()) {
-            return Stream.of();
-        }
-        final DirectoryStream<Path> layerDirStream = Files.newDirectoryStream(layerPath.toPath(), filter);
-        return StreamSupport.stream(layerDirStream.spliterator(),false)
-             .onClose(()->{
-                 try {
-                    layerDirStream.close();
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-             });
-    }
-    
     public boolean isParameterIdCached(String layerName, final String parametersId) throws IOException {
-        try (Stream<Path> layerChildStream = layerChildStream(layerName, (p)-> Files.isDirectory(p) && p.endsWith(parametersId))) {
-            return layerChildStream
-                .findAny()
-                .isPresent();
-        }
+        return cacheDirs.get(getLayerPath(layerName)).stream()
+            .anyMatch(dirName -> dirName.endsWith(parametersId));
     }
     
     @Override
     public Map<String,Optional<Map<String, String>>> getParametersMapping(String layerName) {
-        Properties p = getLayerMetadata(layerName);
+        Properties p = metadata.getAll(getMetadataFile(layerName));
         return getParameterIds(layerName).stream()
             .collect(Collectors.toMap(
                 (id)->id,
@@ -825,14 +907,9 @@ public class FileBlobStore implements BlobStore {
     
     @Override
     public Set<String> getParameterIds(String layerName) {
-        try (Stream<Path> layerChildStream = layerChildStream(layerName, (p)-> Files.isDirectory(p))) {
-            return layerChildStream
-                .map(p->p.getFileName().toString())
-                .map(s->s.substring(s.lastIndexOf('_')+1))
-                .filter(s->s.length()==paramIdLength) // Zoom level should never be the same length so this should be safe
-                .collect(Collectors.toSet());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return cacheDirs.get(getLayerPath(layerName)).stream()
+            .map(s->s.substring(s.lastIndexOf('_')+1))
+            .filter(s->s.length()==paramIdLength) // Zoom level should never be the same length so this should be safe
+            .collect(Collectors.toSet());
     }
 }
@@ -0,0 +1,309 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.util.FileUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * In memory view of the {@code metadata.properties} files of the {@link FileBlobStore} layers.
+ * <p>
+ * Values are read from the file once, and read again only if the file changed on disk since, which
+ * is checked at most once per {@link #STALE_CHECK_INTERVAL} milliseconds. A put with the value
+ * already stored costs no I/O at all. Changes are written to a temporary file
+ * renamed over the previous one, so readers never see a partially written file, and merged with
+ * whatever is on disk at the time, so that changes made by another process sharing the cache
+ * directory are not lost. {@link #put(File, String, String, boolean) Deferred} changes are written
+ * by a background thread, all the changes of a layer made while the previous write was running
+ * going to the disk at once.
+ * </p>
+ */
+class LayerMetadataStore {
+
+    private static Log log = LogFactory.getLog(LayerMetadataStore.class);
+
+    private static final String COMMENTS = "auto generated file, do not edit by hand";
+
+    /**
+     * Milliseconds during which the values read from a file are used without checking whether the
+     * file changed on disk
+     */
+    static final long STALE_CHECK_INTERVAL = 1000;
+
+    /**
+     * Operation on a layer directory run while its metadata can't be read or changed
+     */
+    interface DirectoryOperation<T> {
+        T run() throws StorageException;
+    }
+
+    private final ConcurrentMap<File, Metadata> metadata = new ConcurrentHashMap<File, Metadata>();
+
+    private final ExecutorService writer;
+
+    private static class Metadata {
+
+        final File file;
+
+        /** the properties as read from the file plus the pending changes */
+        Properties properties = new Properties();
+
+        /** changes not written yet, {@code null} values standing for removals */
+        final Map<String, String> pending = new HashMap<String, String>();
+
+        boolean writeScheduled;
+
+        boolean discarded;
+
+        long lastModified = -1;
+
+        long length = -1;
+
+        /** when the file was last checked for changes, {@code 0} to check it on the next access */
+        long checkedAt;
+
+        Metadata(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @param force whether to check the file even if it was checked less than
+         *        {@link #STALE_CHECK_INTERVAL} milliseconds ago
+         */
+        boolean isStale(boolean force) {
+            long now = System.currentTimeMillis();
+            if (!force && checkedAt != 0 && now - checkedAt < STALE_CHECK_INTERVAL) {
+                return false;
+            }
+            checkedAt = now;
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+
+        void load() {
+            Properties loaded = read(file);
+            for (Map.Entry<String, String> change : pending.entrySet()) {
+                apply(loaded, change.getKey(), change.getValue());
+            }
+            properties = loaded;
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+    }
+
+    LayerMetadataStore() {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                "GWC FileStore metadata writer-");
+        tf.setDaemon(true);
+        writer = Executors.newSingleThreadExecutor(tf);
+    }
+
+    /**
+     * @return the raw value of {@code key}, or {@code null}
+     */
+    String get(final File file, final String key) {
+        Metadata md = load(file);
+        synchronized (md) {
+            return md.properties.getProperty(key);
+        }
+    }
+
+    /**
+     * @return a copy of all the raw values
+     */
+    Properties getAll(final File file) {
+        Metadata md = load(file);
+        synchronized (md) {
+            Properties copy = new Properties();
+            copy.putAll(md.properties);
+            return copy;
+        }
+    }
+
+    /**
+     * Sets {@code key} to {@code value}, doing nothing if it already has that value
+     *
+     * @param value the raw value, or {@code null} to remove the key
+     * @param deferred whether to write the change in the background rather than before returning
+     */
+    void put(final File file, final String key, final String value, final boolean deferred) {
+        final Metadata md = load(file);
+        synchronized (md) {
+            if (!Objects.equals(value, md.properties.getProperty(key))) {
+                apply(md.properties, key, value);
+                md.pending.put(key, value);
+            } else if (md.pending.isEmpty() || (deferred && md.writeScheduled)) {
+                return;
+            }
+            // a change, or a retry of the changes a failed write left pending
+            if (!deferred) {
+                write(md);
+            } else if (!md.writeScheduled) {
+                md.writeScheduled = true;
+                writer.execute(new Runnable() {
+                    public void run() {
+                        synchronized (md) {
+                            md.writeScheduled = false;
+                            try {
+                                write(md);
+                            } catch (RuntimeException e) {
+                                log.error("Error writing " + md.file.getAbsolutePath()
+                                        + ", will retry on the next change", e);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops the cached metadata and pending changes of the file, and runs the deletion or renaming
+     * of its layer directory while the metadata can't be read or changed, so that no write
+     * recreates the directory meanwhile
+     */
+    <T> T discard(final File file, final DirectoryOperation<T> operation) throws StorageException {
+        Metadata md = metadata.computeIfAbsent(file, Metadata::new);
+        synchronized (md) {
+            md.discarded = true;
+            md.pending.clear();
+            try {
+                return operation.run();
+            } finally {
+                // the accesses waiting on the lock start over with a fresh view
+                metadata.remove(file, md);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes and stops the background writer
+     */
+    void destroy() {
+        for (Metadata md : metadata.values()) {
+            synchronized (md) {
+                write(md);
+            }
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Metadata load(final File file) {
+        while (true) {
+            Metadata md = metadata.computeIfAbsent(file, Metadata::new);
+            synchronized (md) {
+                if (md.discarded) {
+                    // lost a race with discard(), start over with a fresh view
+                    continue;
+                }
+                if (md.isStale(false)) {
+                    md.load();
+                }
+            }
+            return md;
+        }
+    }
+
+    /**
+     * Merges the pending changes with the current file contents and replaces the file atomically.
+     * Shall be called holding the lock on {@code md}.
+     */
+    private static void write(final Metadata md) {
+        if (md.discarded || md.pending.isEmpty()) {
+            return;
+        }
+        final File file = md.file;
+        // merge with the changes made by others up to now
+        if (md.isStale(true)) {
+            md.load();
+        }
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(parent, file.getName() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                md.properties.store(out, COMMENTS);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new UncheckedIOException(e);
+        }
+        if (!FileUtils.renameFile(temp, file)) {
+            // on windows renaming over an existing file may fail
+            if (!(file.delete() && FileUtils.renameFile(temp, file))) {
+                temp.delete();
+                log.error("Unable to replace " + file.getAbsolutePath());
+                return;
+            }
+        }
+        md.pending.clear();
+        md.lastModified = file.lastModified();
+        md.length = file.length();
+    }
+
+    private static void apply(Properties properties, String key, String value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private static Properties read(final File file) {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return properties;
+    }
+}
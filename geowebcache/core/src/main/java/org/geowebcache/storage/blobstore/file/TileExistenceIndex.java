@@ -0,0 +1,318 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In memory index of the tiles cached by a {@link FileBlobStore}, so that cache misses can be
+ * answered without touching the file system.
+ * <p>
+ * The index is organized after the store directory layout: each tile directory, the one holding
+ * the tiles of a gridset, zoom level, parameters id and {@code halfx_halfy} block, is listed once
+ * on first use and the positions of its tiles within the block recorded in a sorted array per file
+ * extension. The store then keeps it current as it writes and deletes tiles, and invalidates whole
+ * directories when truncating.
+ * </p>
+ * <p>
+ * The memory used by a directory is proportional to the number of tiles it actually holds, four
+ * bytes per tile, and not to the size of its block, which reaches millions of tiles at the deep
+ * zoom levels.
+ * </p>
+ * <p>
+ * At most {@code maxDirectories} directories are indexed, the least recently used ones being
+ * evicted, and each directory is listed again after {@code expireSeconds}, to pick up changes made
+ * by other processes sharing the cache directory.
+ * </p>
+ */
+class TileExistenceIndex {
+
+    private static final long MAX_ZOOM = 29;
+
+    private final Cache<String, DirectoryTiles> directories;
+
+    private final ConcurrentMap<String, DirectoryTiles> map;
+
+    /**
+     * The tiles of a tile directory
+     */
+    private static class DirectoryTiles {
+
+        /**
+         * Number of tiles along each axis of the directory, as in {@link FilePathGenerator}
+         */
+        final long half;
+
+        final Map<String, Positions> tiles = new HashMap<String, Positions>();
+
+        boolean loaded;
+
+        boolean exists;
+
+        DirectoryTiles(long half) {
+            this.half = half;
+        }
+
+        synchronized void load(File directory) {
+            if (loaded) {
+                return;
+            }
+            String[] names = directory.list();
+            if (names != null) {
+                exists = true;
+                Map<String, Positions> listed = new HashMap<String, Positions>();
+                for (String name : names) {
+                    int dot = name.lastIndexOf('.');
+                    int underscore = name.indexOf('_');
+                    if (dot < 0 || underscore < 0 || underscore > dot) {
+                        continue;
+                    }
+                    try {
+                        long x = Long.parseLong(name.substring(0, underscore));
+                        long y = Long.parseLong(name.substring(underscore + 1, dot));
+                        String extension = name.substring(dot + 1);
+                        Positions positions = listed.get(extension);
+                        if (positions == null) {
+                            positions = new Positions();
+                            listed.put(extension, positions);
+                        }
+                        positions.append(position(x, y));
+                    } catch (NumberFormatException e) {
+                        // not a tile
+                    }
+                }
+                for (Map.Entry<String, Positions> e : listed.entrySet()) {
+                    Positions positions = e.getValue();
+                    positions.sort();
+                    // keep the tiles written or deleted while listing
+                    Positions current = tiles.get(e.getKey());
+                    if (current != null) {
+                        positions.merge(current);
+                    }
+                    tiles.put(e.getKey(), positions);
+                }
+            }
+            loaded = true;
+        }
+
+        private int position(long x, long y) {
+            return (int) ((x % half) * half + (y % half));
+        }
+
+        synchronized boolean contains(String extension, long x, long y) {
+            Positions positions = tiles.get(extension);
+            return positions != null && positions.contains(position(x, y));
+        }
+
+        synchronized void set(String extension, long x, long y, boolean value) {
+            Positions positions = tiles.get(extension);
+            if (positions == null) {
+                if (!value) {
+                    return;
+                }
+                positions = new Positions();
+                tiles.put(extension, positions);
+            }
+            if (value) {
+                positions.add(position(x, y));
+                exists = true;
+            } else {
+                positions.remove(position(x, y));
+            }
+        }
+    }
+
+    /**
+     * Sorted set of tile positions within a directory block, kept in an int array
+     */
+    static class Positions {
+
+        private int[] values = new int[4];
+
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(int position) {
+            return Arrays.binarySearch(values, 0, size, position) >= 0;
+        }
+
+        void add(int position) {
+            int index = Arrays.binarySearch(values, 0, size, position);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            ensureCapacity(size + 1);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = position;
+            size++;
+        }
+
+        void remove(int position) {
+            int index = Arrays.binarySearch(values, 0, size, position);
+            if (index < 0) {
+                return;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            if (values.length > 16 && size < values.length / 4) {
+                values = Arrays.copyOf(values, values.length / 2);
+            }
+        }
+
+        /**
+         * Adds a position without keeping the order, {@link #sort()} shall be called afterwards
+         */
+        void append(int position) {
+            ensureCapacity(size + 1);
+            values[size++] = position;
+        }
+
+        /**
+         * Sorts the appended positions, dropping the duplicates
+         */
+        void sort() {
+            Arrays.sort(values, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || values[i] != values[unique - 1]) {
+                    values[unique++] = values[i];
+                }
+            }
+            size = unique;
+        }
+
+        void merge(Positions other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > values.length) {
+                int grown = values.length + (values.length >> 1);
+                values = Arrays.copyOf(values, Math.max(capacity, grown));
+            }
+        }
+    }
+
+    TileExistenceIndex(int maxDirectories, int expireSeconds) {
+        this.directories = CacheBuilder.newBuilder().maximumSize(maxDirectories)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS).build();
+        this.map = directories.asMap();
+    }
+
+    /**
+     * Directories deeper than zoom level 29 hold more tiles than an int can index
+     */
+    private static boolean isIndexed(long z) {
+        return z <= MAX_ZOOM;
+    }
+
+    private static long half(long z) {
+        return 2L << (z / 2);
+    }
+
+    private static String extension(File tile) {
+        String name = tile.getName();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Tells whether a tile may be cached, listing its directory if not indexed yet
+     * 
+     * @return {@code false} if the tile is known not to be cached, {@code true} if it is or if the
+     *         tile is too deep to be indexed
+     */
+    boolean mayExist(File tile, long[] xyz) {
+        if (!isIndexed(xyz[2])) {
+            return true;
+        }
+        final File directory = tile.getParentFile();
+        final long half = half(xyz[2]);
+        DirectoryTiles entry = map.computeIfAbsent(directory.getPath(),
+                path -> new DirectoryTiles(half));
+        // registered before listing so that concurrent writes and deletes are not lost
+        entry.load(directory);
+        return entry.contains(extension(tile), xyz[0], xyz[1]);
+    }
+
+    /**
+     * @return {@code true} if the directory is indexed and known to exist, {@code false} if
+     *         unknown
+     */
+    boolean directoryExists(File directory) {
+        DirectoryTiles entry = map.get(directory.getPath());
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            return entry.loaded && entry.exists;
+        }
+    }
+
+    /**
+     * Records a tile written by the store
+     */
+    void stored(File tile, long[] xyz) {
+        if (!isIndexed(xyz[2])) {
+            return;
+        }
+        DirectoryTiles entry = map.get(tile.getParent());
+        if (entry != null) {
+            entry.set(extension(tile), xyz[0], xyz[1], true);
+        }
+    }
+
+    /**
+     * Records a tile deleted by the store
+     */
+    void deleted(File tile, long[] xyz) {
+        if (!isIndexed(xyz[2])) {
+            return;
+        }
+        DirectoryTiles entry = map.get(tile.getParent());
+        if (entry != null) {
+            entry.set(extension(tile), xyz[0], xyz[1], false);
+        }
+    }
+
+    /**
+     * Forgets about a directory and all the directories below it, to be listed again on next use
+     */
+    void invalidate(File directory) {
+        final String path = directory.getPath();
+        final String prefix = path + File.separator;
+        map.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+    }
+
+    /**
+     * @return the number of directories currently indexed
+     */
+    long size() {
+        return directories.size();
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.localcache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheIndex.Entry;
+
+/**
+ * A {@link BlobStore} keeping a size bounded copy of the most used tiles of a remote
+ * {@link BlobStore} (e.g. an S3 bucket) on local disk.
+ * <p>
+ * Reads are served from the local disk if the tile is there, otherwise fetched from the remote
+ * store and copied to local disk (read-through). Writes go to the remote store first and then to
+ * local disk (write-through). Deletes and truncates are applied to both. Once the local copy grows
+ * past its maximum size the least recently, or least frequently, used tiles are evicted.
+ * <p>
+ * Optionally local tiles older than a given age are revalidated against the remote store,
+ * comparing their {@link TileObject#getCreated() creation time}, in order to pick up changes made
+ * by other nodes sharing the remote store.
+ * <p>
+ * The local copy does not survive restarts, each instance starts with an empty local cache in a
+ * new session directory and removes the session directories left by previous ones. Nothing else
+ * in the base directory is ever removed.
+ * <p>
+ * Listeners are registered on the remote store, the local copy is not reported to them.
+ */
+public class LocalCacheBlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(LocalCacheBlobStore.class);
+
+    /**
+     * Policy used to pick the tiles to evict once the local cache exceeds its maximum size
+     */
+    public static enum EvictionPolicy {
+        /**
+         * Least recently used tiles are evicted first
+         */
+        LRU {
+            @Override
+            long rank(LocalCacheIndex.Entry e) {
+                return e.lastAccess;
+            }
+        },
+        /**
+         * Least frequently used tiles are evicted first
+         */
+        LFU {
+            @Override
+            long rank(LocalCacheIndex.Entry e) {
+                return e.hits;
+            }
+        };
+
+        /**
+         * @return the eviction rank of the entry, lower ranks being evicted first
+         */
+        abstract long rank(LocalCacheIndex.Entry e);
+    }
+
+    private final BlobStore remote;
+
+    private final FileBlobStore local;
+
+    private final LocalCacheIndex index;
+
+    /**
+     * Prefix of the session directories, each one holding the local copy of an instance
+     */
+    static final String SESSION_PREFIX = "gwc-local-cache-session-";
+
+    /**
+     * File marking a directory as a session directory created by this class
+     */
+    static final String SESSION_MARKER = ".gwc-local-cache-session";
+
+    private final File sessionDirectory;
+
+    private final long revalidateAfterMillis;
+
+    /**
+     * @param remote the store to keep a local copy of
+     * @param baseDirectory the directory where to keep the local copy of the tiles
+     * @param maxSize maximum size, in bytes, of the local copy
+     * @param policy how to choose the tiles to remove once {@code maxSize} is reached
+     * @param revalidateAfterSeconds age, in seconds, after which local tiles are checked against
+     *        the remote store, or {@code 0} not to check them
+     */
+    public LocalCacheBlobStore(BlobStore remote, String baseDirectory, long maxSize,
+            EvictionPolicy policy, int revalidateAfterSeconds) throws StorageException {
+        checkNotNull(remote, "remote");
+        checkNotNull(baseDirectory, "baseDirectory");
+        checkNotNull(policy, "policy");
+        checkArgument(maxSize > 0, "maxSize must be a positive integer");
+        checkArgument(revalidateAfterSeconds >= 0, "revalidateAfterSeconds can't be negative");
+        this.remote = remote;
+        this.index = new LocalCacheIndex(maxSize, policy);
+        this.revalidateAfterMillis = TimeUnit.SECONDS.toMillis(revalidateAfterSeconds);
+        this.sessionDirectory = newSessionDirectory(new File(baseDirectory));
+        this.local = new FileBlobStore(sessionDirectory.getAbsolutePath());
+    }
+
+    /**
+     * The index is not persisted, so tiles left over by a previous instance are unknown and would
+     * only take up space. Start on a fresh directory and remove the session directories of
+     * previous instances in the background. Only directories carrying the session prefix and
+     * marker file are removed, in case the base directory is shared or mistyped.
+     */
+    private static File newSessionDirectory(final File baseDirectory) throws StorageException {
+        final File[] leftOvers = baseDirectory.listFiles(LocalCacheBlobStore::isSessionDirectory);
+        File session = new File(baseDirectory, SESSION_PREFIX + System.currentTimeMillis());
+        if (!session.mkdirs()) {
+            throw new StorageException("Can't create local cache directory " + session);
+        }
+        try {
+            if (!new File(session, SESSION_MARKER).createNewFile()) {
+                throw new IOException("marker file already exists");
+            }
+        } catch (IOException e) {
+            throw new StorageException("Can't mark local cache directory " + session, e);
+        }
+        if (leftOvers != null && leftOvers.length > 0) {
+            Thread cleanUp = new Thread(() -> {
+                for (File f : leftOvers) {
+                    FileUtils.deleteQuietly(f);
+                }
+            }, "GWC local cache clean up " + baseDirectory);
+            cleanUp.setDaemon(true);
+            cleanUp.setPriority(Thread.MIN_PRIORITY);
+            cleanUp.start();
+        }
+        return session;
+    }
+
+    static boolean isSessionDirectory(File f) {
+        return f.isDirectory() && f.getName().startsWith(SESSION_PREFIX)
+                && new File(f, SESSION_MARKER).isFile();
+    }
+
+    @Override
+    public boolean get(TileObject obj) throws StorageException {
+        final Entry entry = index.get(obj);
+        if (entry != null) {
+            final long now = System.currentTimeMillis();
+            entry.touch(now);
+            if (revalidateAfterMillis == 0 || now - entry.validated < revalidateAfterMillis) {
+                if (getLocal(obj)) {
+                    return true;
+                }
+                // evicted or removed concurrently
+            } else {
+                return revalidate(obj, entry, now);
+            }
+        }
+        if (!remote.get(obj)) {
+            return false;
+        }
+        putLocal(obj);
+        return true;
+    }
+
+    private boolean getLocal(TileObject obj) throws StorageException {
+        if (!local.get(obj)) {
+            index.remove(obj);
+            return false;
+        }
+        // read it now, the file may be evicted before the caller gets to the contents
+        Resource resource = obj.getBlob();
+        try {
+            obj.setBlob(toByteArrayResource(resource));
+        } catch (IOException e) {
+            log.debug("Local copy of tile vanished while reading, fetching from remote", e);
+            index.remove(obj);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean revalidate(TileObject obj, Entry entry, long now) throws StorageException {
+        if (!remote.get(obj)) {
+            // removed from the remote store by someone else
+            invalidate(obj);
+            return false;
+        }
+        if (obj.getCreated() == entry.created) {
+            entry.validated = now;
+        } else {
+            putLocal(obj);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(TileObject obj) throws StorageException {
+        remote.put(obj);
+        putLocal(obj);
+    }
+
+    private void putLocal(TileObject obj) {
+        try {
+            Resource blob = obj.getBlob();
+            // the remote store may have handed out a stream that can only be consumed once
+            if (!(blob instanceof ByteArrayResource)) {
+                blob = toByteArrayResource(blob);
+                obj.setBlob(blob);
+            }
+            TileObject copy = TileObject.createCompleteTileObject(obj.getLayerName(),
+                    obj.getXYZ().clone(), obj.getGridSetId(), obj.getBlobFormat(),
+                    obj.getParameters(), blob);
+            copy.setParametersId(LocalCacheIndex.parametersId(obj));
+            if (obj.getCreated() > 0) {
+                copy.setCreated(obj.getCreated());
+            }
+            local.put(copy);
+            index.add(copy, blob.getSize());
+        } catch (IOException | StorageException e) {
+            // the tile is safe on the remote store, not being able to copy it is not fatal
+            log.warn("Unable to store local copy of " + obj, e);
+            invalidate(obj);
+        }
+        evict();
+    }
+
+    private void evict() {
+        List<Entry> evicted = index.evict();
+        for (Entry e : evicted) {
+            try {
+                local.delete(e.toQueryTile());
+            } catch (StorageException ex) {
+                log.warn("Unable to remove evicted tile from local cache", ex);
+            }
+        }
+        if (!evicted.isEmpty() && log.isDebugEnabled()) {
+            log.debug(String.format("Evicted %d tiles, local cache holds %d tiles, %d bytes",
+                    evicted.size(), index.count(), index.size()));
+        }
+    }
+
+    private void invalidate(TileObject obj) {
+        if (index.remove(obj) != null) {
+            TileObject query = TileObject.createQueryTileObject(obj.getLayerName(),
+                    obj.getXYZ(), obj.getGridSetId(), obj.getBlobFormat(), obj.getParameters());
+            query.setParametersId(LocalCacheIndex.parametersId(obj));
+            try {
+                local.delete(query);
+            } catch (StorageException e) {
+                log.warn("Unable to remove tile from local cache", e);
+            }
+        }
+    }
+
+    private static ByteArrayResource toByteArrayResource(Resource resource) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) resource.getSize());
+        resource.transferTo(Channels.newChannel(out));
+        ByteArrayResource bytes = new ByteArrayResource(out.toByteArray());
+        bytes.setLastModified(resource.getLastModified());
+        return bytes;
+    }
+
+    @Override
+    public boolean delete(TileObject obj) throws StorageException {
+        invalidate(obj);
+        return remote.delete(obj);
+    }
+
+    @Override
+    public boolean delete(TileRange tileRange) throws StorageException {
+        index.removeIf(e -> e.matches(tileRange));
+        local.delete(tileRange);
+        return remote.delete(tileRange);
+    }
+
+    @Override
+    public boolean delete(String layerName) throws StorageException {
+        index.removeIf(e -> e.layerName.equals(layerName));
+        local.delete(layerName);
+        return remote.delete(layerName);
+    }
+
+    @Override
+    public boolean deleteByGridsetId(String layerName, String gridSetId) throws StorageException {
+        index.removeIf(e -> e.layerName.equals(layerName) && e.gridSetId.equals(gridSetId));
+        local.deleteByGridsetId(layerName, gridSetId);
+        return remote.deleteByGridsetId(layerName, gridSetId);
+    }
+
+    @Override
+    public boolean deleteByParametersId(String layerName, String parametersId)
+            throws StorageException {
+        index.removeIf(e -> e.layerName.equals(layerName)
+                && parametersId.equals(e.parametersId));
+        local.deleteByParametersId(layerName, parametersId);
+        return remote.deleteByParametersId(layerName, parametersId);
+    }
+
+    @Override
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        // cheaper to drop the local copy than to keep the index in sync with the new name
+        index.removeIf(e -> e.layerName.equals(oldLayerName));
+        local.delete(oldLayerName);
+        return remote.rename(oldLayerName, newLayerName);
+    }
+
+    @Deprecated
+    @Override
+    public void clear() throws StorageException {
+        remote.clear();
+        index.clear();
+        File[] contents = sessionDirectory.listFiles();
+        if (contents == null) {
+            return;
+        }
+        for (File f : contents) {
+            if (SESSION_MARKER.equals(f.getName())) {
+                continue;
+            }
+            try {
+                FileUtils.forceDelete(f);
+            } catch (IOException e) {
+                throw new StorageException("Unable to remove local cache contents " + f, e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            remote.destroy();
+        } finally {
+            index.clear();
+            local.destroy();
+        }
+    }
+
+    @Override
+    public void addListener(BlobStoreListener listener) {
+        remote.addListener(listener);
+    }
+
+    @Override
+    public boolean removeListener(BlobStoreListener listener) {
+        return remote.removeListener(listener);
+    }
+
+    @Override
+    public String getLayerMetadata(String layerName, String key) {
+        return remote.getLayerMetadata(layerName, key);
+    }
+
+    @Override
+    public void putLayerMetadata(String layerName, String key, String value) {
+        remote.putLayerMetadata(layerName, key, value);
+    }
+
+    @Override
+    public boolean layerExists(String layerName) {
+        return remote.layerExists(layerName);
+    }
+
+    @Override
+    public Set<Map<String, String>> getParameters(String layerName) throws StorageException {
+        return remote.getParameters(layerName);
+    }
+
+    @Override
+    public Set<String> getParameterIds(String layerName) throws StorageException {
+        return remote.getParameterIds(layerName);
+    }
+
+    @Override
+    public Map<String, Optional<Map<String, String>>> getParametersMapping(String layerName) {
+        return remote.getParametersMapping(layerName);
+    }
+
+    /**
+     * @return the number of bytes held in the local cache
+     */
+    public long getLocalSize() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of tiles held in the local cache
+     */
+    public int getLocalCount() {
+        return index.count();
+    }
+}
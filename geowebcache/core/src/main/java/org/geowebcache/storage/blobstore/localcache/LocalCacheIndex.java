@@ -0,0 +1,259 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.localcache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import org.geowebcache.filter.parameters.ParametersUtils;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheBlobStore.EvictionPolicy;
+
+/**
+ * In memory index of the tiles held by a {@link LocalCacheBlobStore}, tracking their size and
+ * usage in order to keep the local cache under its size limit.
+ */
+class LocalCacheIndex {
+
+    /**
+     * Eviction candidate with its rank taken once, as entries keep being accessed while sorting
+     */
+    private static final class Candidate {
+
+        final String key;
+
+        final Entry entry;
+
+        final long rank;
+
+        final long lastAccess;
+
+        Candidate(String key, Entry entry, EvictionPolicy policy) {
+            this.key = key;
+            this.entry = entry;
+            this.rank = policy.rank(entry);
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+
+    private static final Comparator<Candidate> EVICTION_ORDER = Comparator
+            .comparingLong((Candidate c) -> c.rank).thenComparingLong(c -> c.lastAccess);
+
+    /**
+     * A tile held in the local cache
+     */
+    static final class Entry {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parametersId;
+
+        final long[] xyz;
+
+        final long size;
+
+        final long created;
+
+        volatile long lastAccess;
+
+        volatile long hits;
+
+        volatile long validated;
+
+        Entry(TileObject tile, String parametersId, long size, long now) {
+            this.layerName = tile.getLayerName();
+            this.gridSetId = tile.getGridSetId();
+            this.format = tile.getBlobFormat();
+            this.parametersId = parametersId;
+            this.xyz = tile.getXYZ().clone();
+            this.size = size;
+            this.created = tile.getCreated();
+            this.lastAccess = now;
+            this.validated = now;
+        }
+
+        void touch(long now) {
+            lastAccess = now;
+            // races may lose some hits, it's only used as an eviction hint
+            hits++;
+        }
+
+        /**
+         * @return a query tile object for this entry, suitable to address it on the local store
+         */
+        TileObject toQueryTile() {
+            TileObject tile = TileObject.createQueryTileObject(layerName, xyz.clone(), gridSetId,
+                    format, null);
+            tile.setParametersId(parametersId);
+            return tile;
+        }
+
+        boolean matches(TileRange range) {
+            return layerName.equals(range.getLayerName())
+                    && gridSetId.equals(range.getGridSetId())
+                    && format.equals(range.getMimeType().getFormat())
+                    && Objects.equals(parametersId, parametersId(range))
+                    && range.contains(xyz);
+        }
+    }
+
+    /**
+     * Fraction of the maximum size the cache is shrunk to once eviction kicks in, so that eviction
+     * happens in batches rather than on every put
+     */
+    static final double LOW_WATER_MARK = 0.9;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final long maxSize;
+
+    private final EvictionPolicy policy;
+
+    public LocalCacheIndex(long maxSize, EvictionPolicy policy) {
+        this.maxSize = maxSize;
+        this.policy = policy;
+    }
+
+    static String parametersId(TileObject tile) {
+        String parametersId = tile.getParametersId();
+        if (parametersId == null) {
+            parametersId = ParametersUtils.getId(tile.getParameters());
+        }
+        return parametersId;
+    }
+
+    static String parametersId(TileRange range) {
+        String parametersId = range.getParametersId();
+        if (parametersId == null) {
+            parametersId = ParametersUtils.getId(range.getParameters());
+        }
+        return parametersId;
+    }
+
+    static String key(String layerName, String gridSetId, String format, String parametersId,
+            long[] xyz) {
+        return new StringBuilder(layerName).append('/').append(gridSetId).append('/')
+                .append(format).append('/').append(parametersId).append('/').append(xyz[2])
+                .append('/').append(xyz[0]).append('/').append(xyz[1]).toString();
+    }
+
+    static String key(TileObject tile) {
+        return key(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                parametersId(tile), tile.getXYZ());
+    }
+
+    public Entry get(TileObject tile) {
+        return entries.get(key(tile));
+    }
+
+    public void add(TileObject tile, long tileSize) {
+        final String parametersId = parametersId(tile);
+        Entry entry = new Entry(tile, parametersId, tileSize, System.currentTimeMillis());
+        Entry old = entries.put(key(tile), entry);
+        size.addAndGet(old == null ? tileSize : tileSize - old.size);
+    }
+
+    public Entry remove(TileObject tile) {
+        Entry old = entries.remove(key(tile));
+        if (old != null) {
+            size.addAndGet(-old.size);
+        }
+        return old;
+    }
+
+    /**
+     * Removes all the entries matching {@code filter}
+     *
+     * @return the number of entries removed
+     */
+    public int removeIf(Predicate<Entry> filter) {
+        int count = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (filter.test(entry) && entries.remove(e.getKey(), entry)) {
+                size.addAndGet(-entry.size);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    public int count() {
+        return entries.size();
+    }
+
+    public boolean isOverSize() {
+        return size.get() > maxSize;
+    }
+
+    /**
+     * If the cache is over its maximum size, removes entries in eviction policy order until it's
+     * down to the {@link #LOW_WATER_MARK low water mark}. Only one thread evicts at a time, others
+     * return immediately.
+     *
+     * @return the evicted entries, for the caller to dispose of their contents
+     */
+    public List<Entry> evict() {
+        List<Entry> evicted = new ArrayList<>();
+        if (!isOverSize() || !evictionLock.tryLock()) {
+            return evicted;
+        }
+        try {
+            final long target = (long) (maxSize * LOW_WATER_MARK);
+            List<Candidate> candidates = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                candidates.add(new Candidate(e.getKey(), e.getValue(), policy));
+            }
+            candidates.sort(EVICTION_ORDER);
+            for (Candidate c : candidates) {
+                if (size.get() <= target) {
+                    break;
+                }
+                Entry entry = c.entry;
+                if (entries.remove(c.key, entry)) {
+                    size.addAndGet(-entry.size);
+                    evicted.add(entry);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return evicted;
+    }
+
+    public void clear() {
+        removeIf(e -> true);
+    }
+}
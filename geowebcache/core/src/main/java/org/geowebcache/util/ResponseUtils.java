@@ -49,6 +49,8 @@ import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.ImageMime;
+import org.geowebcache.stats.RequestTrace;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.springframework.http.MediaType;
@@ -79,7 +81,9 @@ public final class ResponseUtils {
         convTile.setTileLayer(layer);
 
         // Apply the filters
+        long filtersStart = RequestTrace.start();
         layer.applyRequestFilters(convTile);
+        RequestTrace.stop(Stage.FILTERS, filtersStart);
 
         // Keep the URI
         // tile.requestURI = request.getRequestURI();
@@ -89,7 +93,9 @@ public final class ResponseUtils {
             convTile = layer.getTile(convTile);
 
             // A6) Write response
+            long writeStart = RequestTrace.start();
             writeData(convTile, runtimeStats);
+            RequestTrace.stop(Stage.RESPONSE_WRITE, writeStart);
 
             // Alternatively:
         } catch (OutsideCoverageException e) {
@@ -17,9 +17,23 @@
 
 package org.geowebcache.blobstore.file;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.geowebcache.filter.parameters.ParametersUtils;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.blobstore.file.FileBlobStore;
 import org.junit.Rule;
+import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 public class FileBlobStoreComformanceTest extends AbstractBlobStoreTest<FileBlobStore> {
@@ -31,4 +45,63 @@ public class FileBlobStoreComformanceTest extends AbstractBlobStoreTest<FileBlob
     public void createTestUnit() throws Exception {
         this.store = new FileBlobStore(temp.getRoot().getAbsolutePath());
     }
+
+    private void put(Map<String, String> parameters, long x) throws Exception {
+        store.put(TileObject.createCompleteTileObject("testLayer", new long[] { x, 0L, 0L },
+                "testGridSet", "image/png", parameters,
+                new ByteArrayResource("test".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testCacheDirectoriesChangedExternally() throws Exception {
+        Map<String, String> params1 = Collections.singletonMap("testKey", "testValue1");
+        Map<String, String> params2 = Collections.singletonMap("testKey", "testValue2");
+        String params1Id = ParametersUtils.getId(params1);
+        String params2Id = ParametersUtils.getId(params2);
+        put(params1, 0);
+        assertThat(store.getParameterIds("testLayer"), containsInAnyOrder(params1Id));
+
+        // another instance sharing the cache adds a cache directory, within the resolution of
+        // the modification time of the layer directory
+        File layerDir = new File(temp.getRoot(), "testLayer");
+        long modified = layerDir.lastModified();
+        File external = new File(layerDir, "testGridSet_00_" + params2Id);
+        assertThat(external.mkdir(), is(true));
+        layerDir.setLastModified(modified);
+
+        // deletes find it anyway
+        store.deleteByParametersId("testLayer", params2Id);
+        assertThat(external.exists(), is(false));
+        assertThat(store.getParameterIds("testLayer"), containsInAnyOrder(params1Id));
+        assertThat(store.isParameterIdCached("testLayer", params2Id), is(false));
+
+        File otherGridSet = new File(layerDir, "otherGridSet_00_" + params1Id);
+        assertThat(otherGridSet.mkdir(), is(true));
+        layerDir.setLastModified(modified);
+        store.deleteByGridsetId("testLayer", "otherGridSet");
+        assertThat(otherGridSet.exists(), is(false));
+        assertThat(new File(layerDir, "testGridSet_00_" + params1Id).exists(), is(true));
+    }
+
+    @Test
+    public void testThrottledParallelDeletes() throws Exception {
+        store.setDeleteThreads(2);
+        store.setMaxDeletesPerSecond(1000);
+        Map<String, String> params1 = Collections.singletonMap("testKey", "testValue1");
+        Map<String, String> params2 = Collections.singletonMap("testKey", "testValue2");
+        for (long x = 0; x < 10; x++) {
+            put(params1, x);
+            put(params2, x);
+        }
+        store.deleteByParametersId("testLayer", ParametersUtils.getId(params1));
+        store.deleteByParametersId("testLayer", ParametersUtils.getId(params2));
+        assertThat(store.getParameterIds("testLayer"), empty());
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (store.getPendingDeletes() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat(store.getPendingDeletes(), is(0));
+        assertThat(store.getDeletedFiles(), is(20L));
+    }
 }
@@ -0,0 +1,64 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.geowebcache.blobstore.file;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBlobStoreWithTileIndexComformanceTest extends AbstractBlobStoreTest<FileBlobStore> {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Override
+    public void createTestUnit() throws Exception {
+        this.store = new FileBlobStore(temp.getRoot().getAbsolutePath());
+        this.store.setTileIndex(100, 300);
+    }
+
+    private TileObject query(long x, long y) {
+        return TileObject.createQueryTileObject("testLayer", new long[] { x, y, 0L },
+                "testGridSet", "image/png", null);
+    }
+
+    @Test
+    public void testMissAnsweredFromIndex() throws Exception {
+        store.put(TileObject.createCompleteTileObject("testLayer", new long[] { 0L, 0L, 0L },
+                "testGridSet", "image/png", null,
+                new ByteArrayResource("test".getBytes(StandardCharsets.UTF_8))));
+        assertThat(store.get(query(0, 0)), is(true));
+        assertThat(store.get(query(1, 0)), is(false));
+
+        // written behind the store back, not seen until the directory is listed again
+        File tile = new File(temp.getRoot(), "testLayer/testGridSet_00/0_0/01_00.png");
+        assertThat(tile.createNewFile(), is(true));
+        assertThat(store.get(query(1, 0)), is(false));
+
+        store.setTileIndex(100, 300);
+        assertThat(store.get(query(1, 0)), is(true));
+    }
+}
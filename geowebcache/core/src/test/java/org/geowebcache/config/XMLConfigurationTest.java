@@ -31,6 +31,8 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.BalancedWMSHttpHelper;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.junit.Before;
 import org.junit.Rule;
@@ -131,6 +133,70 @@ public class XMLConfigurationTest {
         }
     }
 
+    @Test
+    public void testLazyLayerInitialization() throws Exception {
+        XMLConfiguration lazy = new XMLConfiguration(null, configDir.getAbsolutePath());
+        lazy.setInitializationThreads(2);
+        lazy.setLazyLayerInitialization(true);
+        lazy.initialize(new GridSetBroker(true, true));
+
+        assertEquals(config.getTileLayerNames(), lazy.getTileLayerNames());
+        String name = lazy.getTileLayerNames().iterator().next();
+        // a layer looked up is initialized, whether or not its turn came already
+        assertFalse(lazy.getTileLayer(name).getGridSubsets().isEmpty());
+        for (TileLayer layer : lazy.getLayers()) {
+            assertFalse(layer.getGridSubsets().isEmpty());
+        }
+    }
+
+    @Test
+    public void testLazyLayerInitializationFailure() throws Exception {
+        String xml = FileUtils.readFileToString(configFile);
+        FileUtils.writeStringToFile(configFile, xml.replace("<expireCache>7200</expireCache>",
+                "<expireCache>not a number</expireCache>"));
+        XMLConfiguration lazy = new XMLConfiguration(null, configDir.getAbsolutePath());
+        lazy.setLazyLayerInitialization(true);
+        lazy.initialize(new GridSetBroker(true, true));
+
+        // the failed layer is not served
+        assertNull(lazy.getTileLayer("topp:states2"));
+        assertNotNull(lazy.getTileLayer("topp:states"));
+        for (TileLayer layer : lazy.getLayers()) {
+            assertFalse("topp:states2".equals(layer.getName()));
+        }
+        assertFalse(lazy.getTileLayerNames().contains("topp:states2"));
+        assertEquals(0, lazy.getPendingLayerCount());
+        assertEquals(1, lazy.getFailedLayerCount());
+
+        // but is not dropped from the configuration
+        lazy.save();
+        assertTrue(FileUtils.readFileToString(configFile).contains("topp:states2"));
+    }
+
+    @Test
+    public void testFailedLayerNotListedByDispatcher() throws Exception {
+        String xml = FileUtils.readFileToString(configFile);
+        FileUtils.writeStringToFile(configFile, xml.replace("<expireCache>7200</expireCache>",
+                "<expireCache>not a number</expireCache>"));
+        XMLConfiguration lazy = new XMLConfiguration(null, configDir.getAbsolutePath());
+        lazy.setLazyLayerInitialization(true);
+        @SuppressWarnings("deprecation")
+        TileLayerDispatcher tld = new TileLayerDispatcher(new GridSetBroker(true, true),
+                Arrays.<Configuration> asList(lazy));
+
+        // index built while the layers may still be initializing
+        tld.getLayerCount();
+
+        // waits for all the layers, topp:states2 fails and is no longer listed
+        tld.getLayerList().iterator();
+        assertEquals(1, tld.getFailedLayerCount());
+        assertEquals(config.getTileLayerCount() - 1, tld.getLayerCount());
+        assertFalse(tld.getLayerNames().contains("topp:states2"));
+        for (String name : tld.getLayerNames()) {
+            assertNotNull(tld.getTileLayer(name));
+        }
+    }
+
     @Test
     public void testTemplate() throws Exception {
         assertTrue(configFile.delete());
@@ -144,6 +210,21 @@ public class XMLConfigurationTest {
         assertEquals(3, config.getTileLayerCount());
     }
 
+    @Test
+    public void testBalanceBackendsOptIn() throws Exception {
+        String[] wmsURL = { "http://wms.example.com/1", "http://wms.example.com/2" };
+        WMSLayer layer = new WMSLayer("testLayer", wmsURL, null, "states",
+                Arrays.asList("image/png"), new HashMap<String, GridSubset>(), null, null, null,
+                false, null);
+        // several URLs fail over in turn unless asked otherwise
+        config.setDefaultValues(layer);
+        assertFalse(layer.getSourceHelper() instanceof BalancedWMSHttpHelper);
+
+        layer.setBalanceBackends(true);
+        config.setDefaultValues(layer);
+        assertTrue(layer.getSourceHelper() instanceof BalancedWMSHttpHelper);
+    }
+
     @Test
     public void testSave() throws Exception {
         for (String name : config.getTileLayerNames()) {
@@ -129,6 +129,26 @@ public class ParametersUtilsTest {
                 entry(equalTo("test3&"), equalTo("blah3&"))
                 ));
     }
+    
+    @Test
+    public void testIdIndependentOfMapChanges() {
+        Map<String,String> parameters = new TreeMap<>();
+        parameters.put("STYLES", "population");
+        String id = ParametersUtils.getId(parameters);
+        String kvp = ParametersUtils.getKvp(parameters);
+        assertThat(ParametersUtils.getId(Collections.singletonMap("STYLES", "population")), equalTo(id));
+        
+        // changing the map after its id was computed must not return the cached id
+        parameters.put("STYLES", "polygon");
+        assertThat(ParametersUtils.getId(parameters), Matchers.not(equalTo(id)));
+        assertThat(ParametersUtils.getId(parameters), 
+                equalTo(ParametersUtils.buildKey(ParametersUtils.getLegacyParametersKvp(parameters))));
+        assertThat(ParametersUtils.getKvp(parameters), equalTo("STYLES=polygon"));
+        
+        // and the original contents still map to the original id
+        assertThat(ParametersUtils.getId(Collections.singletonMap("STYLES", "population")), equalTo(id));
+        assertThat(ParametersUtils.getKvp(Collections.singletonMap("STYLES", "population")), equalTo(kvp));
+    }
    
     @SafeVarargs
     static <K, V> Matcher<Map<K, V>> hasEntries(Matcher<Entry<K, V>>...entryMatchers) {
@@ -0,0 +1,168 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.ConfigurationListener;
+import org.geowebcache.grid.GridSetBroker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TileLayerDispatcherTest {
+
+    private Configuration config1;
+
+    private Configuration config2;
+
+    private TileLayer layer1;
+
+    private TileLayer layer2;
+
+    private TileLayerDispatcher tld;
+
+    @SuppressWarnings("deprecation")
+    @Before
+    public void setUp() throws Exception {
+        layer1 = mockLayer("layer1");
+        layer2 = mockLayer("layer2");
+        config1 = mockConfig("config1", layer1);
+        config2 = mockConfig("config2", layer2);
+        tld = new TileLayerDispatcher(new GridSetBroker(false, false),
+                Arrays.asList(config1, config2));
+    }
+
+    private TileLayer mockLayer(String name) {
+        TileLayer layer = mock(TileLayer.class);
+        when(layer.getName()).thenReturn(name);
+        when(layer.getId()).thenReturn(name);
+        return layer;
+    }
+
+    private Configuration mockConfig(String id, TileLayer layer) {
+        Configuration config = mock(Configuration.class);
+        when(config.getIdentifier()).thenReturn(id);
+        when(config.getTileLayerNames()).thenReturn(Collections.singleton(layer.getName()));
+        when(config.getTileLayer(layer.getName())).thenReturn(layer);
+        when(config.containsLayer(layer.getName())).thenReturn(true);
+        return config;
+    }
+
+    @Test
+    public void testLookupProbesOnlyTheOwningConfiguration() throws Exception {
+        assertSame(layer2, tld.getTileLayer("layer2"));
+        assertSame(layer2, tld.getTileLayer("layer2"));
+        assertTrue(tld.layerExists("layer1"));
+        assertFalse(tld.layerExists("unknown"));
+
+        verify(config1, never()).getTileLayer("layer2");
+        verify(config2, times(2)).getTileLayer("layer2");
+        verify(config2, never()).getTileLayer("layer1");
+        // the index is built once
+        verify(config1, times(1)).getTileLayerNames();
+
+        assertEquals(new HashSet<String>(Arrays.asList("layer1", "layer2")),
+                tld.getLayerNames());
+        assertEquals(2, tld.getLayerCount());
+    }
+
+    @Test(expected = GeoWebCacheException.class)
+    public void testUnknownLayer() throws Exception {
+        tld.getTileLayer("unknown");
+    }
+
+    @Test
+    public void testIndexFollowsChanges() throws Exception {
+        assertFalse(tld.layerExists("layer3"));
+
+        TileLayer layer3 = mockLayer("layer3");
+        when(config1.canSave(layer3)).thenReturn(true);
+        when(config1.getTileLayerNames()).thenReturn(
+                new HashSet<String>(Arrays.asList("layer1", "layer3")));
+        when(config1.getTileLayer("layer3")).thenReturn(layer3);
+        assertSame(config1, tld.addLayer(layer3));
+
+        assertSame(layer3, tld.getTileLayer("layer3"));
+        assertTrue(tld.getLayerNames().contains("layer3"));
+
+        when(config2.removeLayer("layer2")).thenReturn(true);
+        when(config2.getTileLayerNames()).thenReturn(Collections.<String> emptySet());
+        when(config2.getTileLayer("layer2")).thenReturn(null);
+        assertSame(config2, tld.removeLayer("layer2"));
+
+        assertFalse(tld.layerExists("layer2"));
+        assertFalse(tld.getLayerNames().contains("layer2"));
+    }
+
+    @Test
+    public void testLayerAddedBehindTheDispatcher() throws Exception {
+        assertEquals(2, tld.getLayerCount());
+
+        TileLayer layer3 = mockLayer("layer3");
+        when(config2.getTileLayerNames()).thenReturn(
+                new HashSet<String>(Arrays.asList("layer2", "layer3")));
+        when(config2.getTileLayer("layer3")).thenReturn(layer3);
+
+        assertSame(layer3, tld.getTileLayer("layer3"));
+        assertEquals(3, tld.getLayerCount());
+    }
+
+    @Test
+    public void testChangesReportedByTheConfiguration() throws Exception {
+        TileLayer layer3 = mockLayer("layer3");
+        Configuration config3 = mockConfig("config3", layer3);
+        when(config3.addConfigurationListener(any(ConfigurationListener.class))).thenReturn(true);
+        doReturn(Arrays.asList(layer3)).when(config3).getLayers();
+        TileLayerDispatcherListener dispatcherListener = mock(TileLayerDispatcherListener.class);
+        tld.addListener(dispatcherListener);
+        tld.addConfiguration(config3);
+
+        ArgumentCaptor<ConfigurationListener> listener = ArgumentCaptor
+                .forClass(ConfigurationListener.class);
+        verify(config3).addConfigurationListener(listener.capture());
+
+        // the layers of a configuration reporting its changes are held by the index
+        assertSame(layer3, tld.getTileLayer("layer3"));
+        assertSame(layer3, tld.getTileLayer("layer3"));
+        verify(config3, never()).getTileLayer("layer3");
+
+        // changed directly on the configuration
+        TileLayer layer4 = mockLayer("layer4");
+        doReturn(Arrays.asList(layer3, layer4)).when(config3).getLayers();
+        listener.getValue().layerChanged(config3, "layer4");
+
+        assertTrue(tld.getLayerNames().contains("layer4"));
+        assertEquals(4, tld.getLayerCount());
+        assertSame(layer4, tld.getTileLayer("layer4"));
+        verify(dispatcherListener).layerChanged("layer4");
+    }
+}
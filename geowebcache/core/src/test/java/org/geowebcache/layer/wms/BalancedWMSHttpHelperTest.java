@@ -0,0 +1,217 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileResponseReceiver;
+import org.geowebcache.layer.wms.WMSBackendPool.Backend;
+import org.geowebcache.mime.ImageMime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BalancedWMSHttpHelperTest {
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private WMSBackendPool pool;
+
+    private BalancedWMSHttpHelper helper;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", new Responder(200, 0, "ok"));
+        server.createContext("/slow", new Responder(200, 3000, "slow"));
+        server.createContext("/fail", new Responder(500, 0, "fail"));
+        server.createContext("/empty", new Responder(204, 0, ""));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        pool = new WMSBackendPool();
+        helper = new BalancedWMSHttpHelper(null, null, null, pool);
+        helper.setBackendTimeout(10);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static class Responder implements HttpHandler {
+
+        private final int status;
+
+        private final long delay;
+
+        private final byte[] body;
+
+        Responder(int status, long delay, String body) {
+            this.status = status;
+            this.delay = delay;
+            this.body = body.getBytes();
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private WMSLayer layer(String... paths) {
+        String[] urls = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            urls[i] = baseUrl + paths[i] + "?";
+        }
+        WMSLayer layer = mock(WMSLayer.class);
+        when(layer.getWMSurl()).thenReturn(urls);
+        when(layer.getBackendTimeout()).thenReturn(10);
+        return layer;
+    }
+
+    private byte[] request(WMSLayer layer) throws Exception {
+        ByteArrayResource target = new ByteArrayResource();
+        helper.makeRequest(mock(TileResponseReceiver.class), layer,
+                Collections.singletonMap("REQUEST", "GetMap"), ImageMime.png, target);
+        return target.getContents();
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        pool.setFailureThreshold(1);
+        WMSLayer layer = layer("/fail", "/ok");
+        // make sure the failing backend is tried first
+        pool.getBackend(baseUrl + "/ok?").started();
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals("ok".getBytes(), request(layer));
+        }
+        Backend failing = pool.getBackend(baseUrl + "/fail?");
+        assertFalse(failing.isAvailable(System.currentTimeMillis()));
+        assertEquals(0, failing.getOutstanding());
+        // the ejected backend goes last
+        assertSame(failing, pool.select(layer.getWMSurl()).get(1));
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        WMSLayer layer = layer("/a", "/b", "/c");
+        Backend a = pool.getBackend(baseUrl + "/a?");
+        Backend b = pool.getBackend(baseUrl + "/b?");
+        Backend c = pool.getBackend(baseUrl + "/c?");
+        a.started();
+        a.started();
+        c.started();
+        for (int i = 0; i < 10; i++) {
+            List<Backend> order = pool.select(layer.getWMSurl());
+            assertSame(b, order.get(0));
+            assertSame(c, order.get(1));
+            assertSame(a, order.get(2));
+        }
+    }
+
+    @Test
+    public void testHedgedRequest() throws Exception {
+        pool.setHedgePercentile(50);
+        Backend slow = pool.getBackend(baseUrl + "/slow?");
+        for (int i = 0; i < WMSBackendPool.LATENCY_SAMPLES; i++) {
+            slow.started();
+            slow.succeeded(1000000);
+        }
+        Backend ok = pool.getBackend(baseUrl + "/ok?");
+        // make sure the slow backend is picked first
+        ok.started();
+
+        long start = System.currentTimeMillis();
+        assertArrayEquals("ok".getBytes(), request(layer("/slow", "/ok")));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void testEmptyResponseIsHealthy() throws Exception {
+        pool.setFailureThreshold(1);
+        try {
+            request(layer("/empty"));
+            fail("Expected the empty response to be reported");
+        } catch (GeoWebCacheException e) {
+            // no content to cache
+        }
+        Backend empty = pool.getBackend(baseUrl + "/empty?");
+        assertTrue(empty.isAvailable(System.currentTimeMillis()));
+        assertEquals(0, empty.getOutstanding());
+    }
+
+    @Test
+    public void testHedgeThreadsBusy() throws Exception {
+        pool.setHedgePercentile(50);
+        pool.setHedgeThreads(1);
+        Backend failing = pool.getBackend(baseUrl + "/fail?");
+        for (int i = 0; i < WMSBackendPool.LATENCY_SAMPLES; i++) {
+            failing.started();
+            failing.succeeded(1000000);
+        }
+        // make sure the failing backend is picked first
+        pool.getBackend(baseUrl + "/ok?").started();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.getHedgeExecutor().submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+        try {
+            // both backends are requested in turn by the calling thread
+            assertArrayEquals("ok".getBytes(), request(layer("/fail", "/ok")));
+            assertEquals(0, failing.getOutstanding());
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -42,6 +42,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -62,6 +63,7 @@ import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.TestHelpers;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.parameters.ParameterFilter;
 import org.geowebcache.grid.GridSet;
@@ -70,6 +72,7 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.ExpirationRule;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.layer.wms.WMSLayer.RequestType;
@@ -91,6 +94,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 
 /**
  * Unit test suite for {@link WMSLayer}
@@ -307,6 +311,115 @@ public class WMSLayerTest extends TileLayerTest {
         assertEquals(42, mock.wmsMetaRequestCounter.get());
         assertEquals(218, mock.storagePutCounter.get());
     }
+
+    private StorageBroker staleStorageBroker(final byte[] stale, Capture<TileObject> stored)
+            throws Exception {
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(storageBroker.get((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                tile.setBlob(new ByteArrayResource(stale));
+                // expired two minutes ago
+                tile.setCreated(System.currentTimeMillis() - 180 * 1000);
+                return true;
+            }
+        }).anyTimes();
+        expect(storageBroker.put(capture(stored))).andReturn(true).anyTimes();
+        replay(storageBroker);
+        return storageBroker;
+    }
+
+    private ConveyorTile staleTile(WMSLayer layer, StorageBroker storageBroker, long[] gridLoc) {
+        ReflectionTestUtils.setField(layer, "expireCacheList",
+                new ArrayList<ExpirationRule>(Arrays.asList(new ExpirationRule(0, 60))));
+        return new ConveyorTile(storageBroker, layer.getName(),
+                gridSetBroker.WORLD_EPSG4326.getName(), gridLoc, layer.getMimeTypes().get(0),
+                null, new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setStaleWhileRevalidate(300);
+        StaleTileRefresher refresher = new StaleTileRefresher();
+        layer.setStaleTileRefresher(refresher);
+
+        final AtomicInteger backendRequests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        layer.setSourceHelper(new MockWMSSourceHelper() {
+            @Override
+            protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                    Map<String, String> wmsParams, MimeType expectedMimeType, Resource target)
+                    throws GeoWebCacheException {
+                backendRequests.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new GeoWebCacheException(e);
+                }
+                super.makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, target);
+            }
+        });
+        byte[] stale = "stale".getBytes();
+        Capture<TileObject> stored = new Capture<TileObject>(CaptureType.ALL);
+        StorageBroker storageBroker = staleStorageBroker(stale, stored);
+
+        // two tiles of the same metatile, served right away while the backend is stuck
+        ConveyorTile tile = layer.getTile(staleTile(layer, storageBroker, new long[] { 0, 0, 0 }));
+        assertArrayEquals(stale, ((ByteArrayResource) tile.getBlob()).getContents());
+        assertEquals(200, tile.getStatus());
+        assertEquals(CacheResult.STALE, tile.getCacheResult());
+        tile = layer.getTile(staleTile(layer, storageBroker, new long[] { 1, 0, 0 }));
+        assertArrayEquals(stale, ((ByteArrayResource) tile.getBlob()).getContents());
+        assertEquals(1, refresher.getPendingCount());
+
+        release.countDown();
+        for (int i = 0; i < 100 && refresher.getPendingCount() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, refresher.getPendingCount());
+        // a single refresh of the metatile
+        assertEquals(1, backendRequests.get());
+        assertFalse(stored.getValues().isEmpty());
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setSourceHelper(new MockWMSSourceHelper() {
+            @Override
+            protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                    Map<String, String> wmsParams, MimeType expectedMimeType, Resource target)
+                    throws GeoWebCacheException {
+                throw new GeoWebCacheException("backend down");
+            }
+        });
+        byte[] stale = "stale".getBytes();
+        StorageBroker storageBroker = staleStorageBroker(stale, new Capture<TileObject>());
+
+        try {
+            layer.getTile(staleTile(layer, storageBroker, new long[] { 0, 0, 0 }));
+            fail("Expected the backend failure");
+        } catch (GeoWebCacheException e) {
+            assertEquals("backend down", e.getMessage());
+        }
+
+        layer.setStaleIfError(300);
+        ConveyorTile tile = layer.getTile(staleTile(layer, storageBroker, new long[] { 0, 0, 0 }));
+        assertArrayEquals(stale, ((ByteArrayResource) tile.getBlob()).getContents());
+        assertEquals(200, tile.getStatus());
+        assertEquals(CacheResult.STALE, tile.getCacheResult());
+        assertFalse(tile.getError());
+
+        // too old to be served
+        layer.setStaleIfError(60);
+        try {
+            layer.getTile(staleTile(layer, storageBroker, new long[] { 0, 0, 0 }));
+            fail("Expected the backend failure");
+        } catch (GeoWebCacheException e) {
+            assertEquals("backend down", e.getMessage());
+        }
+    }
     
     @Test
 	public void testGetFeatureInfoQueryLayers() throws MimeException {
@@ -499,10 +612,7 @@ public class WMSLayerTest extends TileLayerTest {
                 public Boolean answer() throws Throwable {
                     TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
                     String key = TransientCache.computeTransientKey(tile);
-                    Resource resource;
-                    synchronized (transientCache) {
-                        resource = transientCache.get(key);
-                    }
+                    Resource resource = transientCache.get(key);
                     if (resource != null) {
                         cacheHits.incrementAndGet();
                     } else {
@@ -518,9 +628,7 @@ public class WMSLayerTest extends TileLayerTest {
                 @Override
                 public void setValue(TileObject tile) {
                     String key = TransientCache.computeTransientKey(tile);
-                    synchronized (transientCache) {
-                        transientCache.put(key, tile.getBlob());
-                    }
+                    transientCache.put(key, tile.getBlob());
                 }
             }));
             expectLastCall().anyTimes();
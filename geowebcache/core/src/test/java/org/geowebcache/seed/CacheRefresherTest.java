@@ -0,0 +1,186 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class CacheRefresherTest {
+
+    private TileBreeder breeder;
+
+    private TileLayerDispatcher dispatcher;
+
+    private TileLayer layer;
+
+    private GWCTask task;
+
+    private long now = 1000000;
+
+    private CacheRefresher refresher;
+
+    @Before
+    public void setUp() throws Exception {
+        breeder = mock(TileBreeder.class);
+        dispatcher = mock(TileLayerDispatcher.class);
+        layer = mock(TileLayer.class);
+        when(layer.getName()).thenReturn("layer");
+        when(layer.getMetaTilingFactors()).thenReturn(new int[] { 4, 4 });
+        // expires after 10 minutes
+        when(layer.getExpireCache(anyInt())).thenReturn(600);
+        when(dispatcher.getTileLayer("layer")).thenReturn(layer);
+        when(dispatcher.getLayerList()).thenReturn(Collections.singletonList(layer));
+
+        task = mock(GWCTask.class);
+        when(task.getState()).thenReturn(GWCTask.STATE.RUNNING);
+        when(breeder.createTasks(any(TileRange.class), eq(layer), eq(GWCTask.TYPE.RESEED),
+                eq(1), anyBoolean())).thenReturn(new GWCTask[] { task });
+
+        refresher = new CacheRefresher(breeder, dispatcher) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        refresher.setMinHits(2);
+        refresher.setRefreshAhead(120);
+    }
+
+    private void request(long x, long y, int z, long created) {
+        ConveyorTile tile = mock(ConveyorTile.class);
+        when(tile.getTileIndex()).thenReturn(new long[] { x, y, z });
+        when(tile.getGridSetId()).thenReturn("EPSG:4326");
+        when(tile.getMimeType()).thenReturn(ImageMime.png);
+        when(tile.getCacheResult()).thenReturn(CacheResult.HIT);
+        TileObject stored = TileObject.createCompleteTileObject("layer", new long[] { x, y, z },
+                "EPSG:4326", "image/png", null, null);
+        stored.setCreated(created);
+        when(tile.getStorageObject()).thenReturn(stored);
+        refresher.tileRequested(layer, tile);
+    }
+
+    @Test
+    public void testRefreshesPopularTilesAboutToExpire() throws Exception {
+        // popular, expires in a minute
+        request(5, 6, 3, now - 540000);
+        request(6, 7, 3, now - 540000);
+        // popular, expires in 9 minutes
+        request(20, 20, 3, now - 60000);
+        request(20, 20, 3, now - 60000);
+        // expires in a minute, but requested once only
+        request(40, 40, 3, now - 540000);
+        assertEquals(3, refresher.getTrackedCount());
+
+        refresher.refresh();
+
+        ArgumentCaptor<TileRange> range = ArgumentCaptor.forClass(TileRange.class);
+        verify(breeder).createTasks(range.capture(), eq(layer), eq(GWCTask.TYPE.RESEED), eq(1),
+                eq(false));
+        assertEquals("layer", range.getValue().getLayerName());
+        assertEquals("EPSG:4326", range.getValue().getGridSetId());
+        assertArrayEquals(new long[] { 5, 6, 5, 6, 3 }, range.getValue().rangeBounds(3));
+        verify(breeder).dispatchTasks(new GWCTask[] { task });
+        assertEquals(1, refresher.getRefreshedCount());
+        // counts are halved, the tile requested once is no longer tracked
+        assertEquals(2, refresher.getTrackedCount());
+    }
+
+    @Test
+    public void testBudgetAndPreviousRun() throws Exception {
+        refresher.setMaxRefreshesPerRun(2);
+        for (int i = 0; i < 3; i++) {
+            for (int hits = 0; hits <= i + 2; hits++) {
+                request(i * 4, 0, 5, now - 600000);
+            }
+        }
+        refresher.refresh();
+        ArgumentCaptor<TileRange> range = ArgumentCaptor.forClass(TileRange.class);
+        verify(breeder, times(2)).createTasks(range.capture(), eq(layer),
+                eq(GWCTask.TYPE.RESEED), eq(1), eq(false));
+        // the most popular first
+        List<TileRange> ranges = range.getAllValues();
+        assertEquals(8, ranges.get(0).rangeBounds(5)[0]);
+        assertEquals(4, ranges.get(1).rangeBounds(5)[0]);
+
+        // the previous reseeds are still running
+        request(0, 0, 5, now - 600000);
+        request(0, 0, 5, now - 600000);
+        refresher.refresh();
+        verify(breeder, times(2)).dispatchTasks(any(GWCTask[].class));
+
+        when(task.getState()).thenReturn(GWCTask.STATE.DONE);
+        refresher.refresh();
+        verify(breeder, times(3)).dispatchTasks(any(GWCTask[].class));
+        verify(breeder, times(3)).createTasks(any(TileRange.class), eq(layer),
+                eq(GWCTask.TYPE.RESEED), eq(1), eq(false));
+    }
+
+    @Test
+    public void testMaxConcurrentRefreshes() throws Exception {
+        refresher.setMaxRefreshesPerRun(3);
+        refresher.setMaxConcurrentRefreshes(1);
+        for (int i = 0; i < 3; i++) {
+            request(i * 4, 0, 5, now - 600000);
+            request(i * 4, 0, 5, now - 600000);
+        }
+        refresher.refresh();
+        verify(breeder, times(3)).createTasks(any(TileRange.class), eq(layer),
+                eq(GWCTask.TYPE.RESEED), eq(1), eq(false));
+        verify(breeder, times(1)).dispatchTasks(any(GWCTask[].class));
+
+        // the others wait for the running one
+        refresher.dispatchQueued();
+        verify(breeder, times(1)).dispatchTasks(any(GWCTask[].class));
+
+        when(task.getState()).thenReturn(GWCTask.STATE.DONE);
+        refresher.dispatchQueued();
+        verify(breeder, times(2)).dispatchTasks(any(GWCTask[].class));
+        refresher.dispatchQueued();
+        verify(breeder, times(3)).dispatchTasks(any(GWCTask[].class));
+    }
+
+    @Test
+    public void testIgnoresLayersWithoutExpiration() throws Exception {
+        when(layer.getExpireCache(anyInt())).thenReturn(0);
+        request(0, 0, 3, now - 600000);
+        request(0, 0, 3, now - 600000);
+        assertEquals(0, refresher.getTrackedCount());
+        refresher.refresh();
+        verify(breeder, never()).dispatchTasks(any(GWCTask[].class));
+    }
+}
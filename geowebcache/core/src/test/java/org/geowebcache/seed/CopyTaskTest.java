@@ -0,0 +1,302 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.seed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSet;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.CompositeBlobStore;
+import org.geowebcache.storage.CompositeBlobStore.StorageAction;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class CopyTaskTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileBlobStore source;
+
+    private FileBlobStore target;
+
+    private TileLayer layer;
+
+    private TileRange range;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new FileBlobStore(temp.newFolder("source").getAbsolutePath());
+        target = new FileBlobStore(temp.newFolder("target").getAbsolutePath());
+        GridSet gridSet = new GridSetBroker(false, false).WORLD_EPSG4326;
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSet,
+                gridSet.getOriginalExtent(), 0, 1);
+        layer = mock(TileLayer.class);
+        when(layer.getName()).thenReturn("layer");
+        when(layer.getGridSubsets()).thenReturn(Collections.singleton("EPSG:4326"));
+        when(layer.getGridSubset("EPSG:4326")).thenReturn(gridSubset);
+        when(layer.getMimeTypes()).thenReturn(Arrays.asList(ImageMime.png));
+        // 2 tiles at zoom 0, 8 at zoom 1, the whole layer
+        range = new TileRange("layer", "EPSG:4326", 0, 1, gridSubset.getCoverages(),
+                ImageMime.png, (Map<String, String>) null);
+    }
+
+    private void put(FileBlobStore store, long x, long y, int z, String content) throws Exception {
+        put(store, x, y, z, null, content);
+    }
+
+    private void put(FileBlobStore store, long x, long y, int z, Map<String, String> parameters,
+            String content) throws Exception {
+        store.put(TileObject.createCompleteTileObject("layer", new long[] { x, y, z },
+                "EPSG:4326", "image/png", parameters, new ByteArrayResource(content.getBytes())));
+    }
+
+    private String get(FileBlobStore store, long x, long y, int z) throws Exception {
+        return get(store, x, y, z, null);
+    }
+
+    private String get(FileBlobStore store, long x, long y, int z, Map<String, String> parameters)
+            throws Exception {
+        TileObject tile = TileObject.createQueryTileObject("layer", new long[] { x, y, z },
+                "EPSG:4326", "image/png", parameters);
+        if (!store.get(tile)) {
+            return null;
+        }
+        try (InputStream in = tile.getBlob().getInputStream()) {
+            return new String(ByteStreams.toByteArray(in));
+        }
+    }
+
+    private CopyTask copyTask() {
+        return configure(new CopyTask(range, layer, source, target));
+    }
+
+    private CopyTask layerCopyTask() {
+        return configure(new CopyTask(layer, source, target));
+    }
+
+    private CopyTask configure(CopyTask task) {
+        task.setReadThreads(2);
+        task.setWriteThreads(2);
+        task.setMaxInFlight(3);
+        return task;
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        put(source, 0, 0, 0, "a");
+        put(source, 1, 0, 0, "b");
+        put(source, 3, 1, 1, "c");
+        // outside of the range
+        put(source, 4, 0, 1, "d");
+
+        CopyTask task = copyTask();
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DONE, task.getState());
+        assertEquals(3, task.getTilesCopied());
+        assertEquals(7, task.getTilesMissing());
+        assertEquals(0, task.getTilesFailed());
+        assertEquals(3, task.getBytesCopied());
+        assertEquals(10, task.getTilesDone());
+        assertEquals("a", get(target, 0, 0, 0));
+        assertEquals("b", get(target, 1, 0, 0));
+        assertEquals("c", get(target, 3, 1, 1));
+        assertEquals(null, get(target, 4, 0, 1));
+        assertEquals(CopyTask.CHECKPOINT_COMPLETE,
+                target.getLayerMetadata("layer", CopyTask.checkpointKey(range)));
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        put(source, 0, 0, 0, "a");
+        put(source, 1, 0, 0, "b");
+        put(source, 3, 1, 1, "c");
+        // the first tile was copied by a previous run
+        target.putLayerMetadata("layer", CopyTask.checkpointKey(range), "1");
+
+        CopyTask task = copyTask();
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DONE, task.getState());
+        assertEquals(2, task.getTilesCopied());
+        assertEquals(null, get(target, 0, 0, 0));
+        assertEquals("b", get(target, 1, 0, 0));
+        assertEquals("c", get(target, 3, 1, 1));
+
+        // once complete, the copy starts over
+        task = copyTask();
+        task.doAction();
+        assertEquals(3, task.getTilesCopied());
+        assertEquals(10, task.getTilesDone());
+        assertEquals("a", get(target, 0, 0, 0));
+    }
+
+    @Test
+    public void testNoSwitchAfterResuming() throws Exception {
+        put(source, 0, 0, 0, "a");
+        target.putLayerMetadata("layer", CopyTask.checkpointKey(range), "1");
+        CompositeBlobStore composite = mock(CompositeBlobStore.class);
+
+        CopyTask task = layerCopyTask();
+        task.setSwitchBlobStore(composite, "target");
+        try {
+            task.doAction();
+            fail("Expected the resumed copy to be refused");
+        } catch (GeoWebCacheException e) {
+            // the changes before resuming are unknown
+        }
+        assertEquals(GWCTask.STATE.DEAD, task.getState());
+        assertEquals(0, task.getTilesCopied());
+        verify(composite, never()).switchBlobStore(any(String.class), any(String.class),
+                any(StorageAction.class));
+
+        // starting over is fine
+        task = layerCopyTask();
+        task.setResume(false);
+        task.setSwitchBlobStore(composite, "target");
+        task.doAction();
+        assertEquals(GWCTask.STATE.DONE, task.getState());
+        verify(composite).switchBlobStore(eq("layer"), eq("target"), any(StorageAction.class));
+    }
+
+    @Test
+    public void testSwitchBlobStore() throws Exception {
+        put(source, 0, 0, 0, "a");
+        put(source, 1, 0, 0, "b");
+        CompositeBlobStore composite = mock(CompositeBlobStore.class);
+        doAnswer(invocation -> {
+            // changed in the source after being copied
+            put(source, 0, 0, 0, "a2");
+            put(source, 2, 1, 1, "e");
+            source.delete(TileObject.createQueryTileObject("layer", new long[] { 1, 0, 0 },
+                    "EPSG:4326", "image/png", null));
+            ((StorageAction) invocation.getArguments()[2]).run();
+            return null;
+        }).when(composite).switchBlobStore(eq("layer"), eq("target"), any(StorageAction.class));
+
+        CopyTask task = layerCopyTask();
+        task.setSwitchBlobStore(composite, "target");
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DONE, task.getState());
+        verify(composite).switchBlobStore(eq("layer"), eq("target"), any(StorageAction.class));
+        assertEquals("a2", get(target, 0, 0, 0));
+        assertEquals(null, get(target, 1, 0, 0));
+        assertEquals("e", get(target, 2, 1, 1));
+
+        // changes made once switched are not tracked anymore
+        put(source, 0, 1, 1, "f");
+        assertEquals(null, get(target, 0, 1, 1));
+    }
+
+    @Test
+    public void testNoSwitchOnFailure() throws Exception {
+        put(source, 0, 0, 0, "a");
+        put(source, 1, 0, 0, "b");
+        CompositeBlobStore composite = mock(CompositeBlobStore.class);
+        FileBlobStore failing = new FileBlobStore(temp.newFolder("failing").getAbsolutePath()) {
+            @Override
+            public void put(TileObject stObj) throws StorageException {
+                if (stObj.getXYZ()[0] == 1) {
+                    throw new StorageException("failed");
+                }
+                super.put(stObj);
+            }
+        };
+        target = failing;
+
+        CopyTask task = layerCopyTask();
+        task.setSwitchBlobStore(composite, "target");
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DEAD, task.getState());
+        assertEquals(1, task.getTilesFailed());
+        verify(composite, never()).switchBlobStore(any(String.class), any(String.class),
+                any(StorageAction.class));
+        // resumes from the failed tile
+        assertEquals("1", target.getLayerMetadata("layer", CopyTask.checkpointKey(range)));
+        assertEquals(1, task.getTilesCopied());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoSwitchForRange() throws Exception {
+        // the other tile sets of the layer would be left in the source
+        copyTask().setSwitchBlobStore(mock(CompositeBlobStore.class), "target");
+    }
+
+    @Test
+    public void testSwitchCopiesAllTileSets() throws Exception {
+        Map<String, String> styles = Collections.singletonMap("STYLES", "dark");
+        put(source, 0, 0, 0, "a");
+        put(source, 1, 0, 0, styles, "b");
+        CompositeBlobStore composite = mock(CompositeBlobStore.class);
+
+        CopyTask task = layerCopyTask();
+        task.setSwitchBlobStore(composite, "target");
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DONE, task.getState());
+        assertEquals(2, task.getTilesCopied());
+        assertEquals("a", get(target, 0, 0, 0));
+        assertEquals("b", get(target, 1, 0, 0, styles));
+        verify(composite).switchBlobStore(eq("layer"), eq("target"), any(StorageAction.class));
+    }
+
+    @Test
+    public void testNoSwitchWithNewTileSet() throws Exception {
+        put(source, 0, 0, 0, "a");
+        CompositeBlobStore composite = mock(CompositeBlobStore.class);
+        doAnswer(invocation -> {
+            // cached with new parameters during the copy
+            put(source, 1, 0, 0, Collections.singletonMap("STYLES", "dark"), "b");
+            ((StorageAction) invocation.getArguments()[2]).run();
+            return null;
+        }).when(composite).switchBlobStore(eq("layer"), eq("target"), any(StorageAction.class));
+
+        CopyTask task = layerCopyTask();
+        task.setSwitchBlobStore(composite, "target");
+        task.doAction();
+
+        assertEquals(GWCTask.STATE.DEAD, task.getState());
+    }
+}
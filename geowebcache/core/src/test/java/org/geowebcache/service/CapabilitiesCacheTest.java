@@ -0,0 +1,179 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.XMLBuilder;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.service.CapabilitiesCache.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class CapabilitiesCacheTest {
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    private TileLayerDispatcher tld;
+
+    private CapabilitiesCache cache;
+
+    private Map<String, Integer> encoded;
+
+    private List<String> layers;
+
+    private String title;
+
+    private CapabilitiesCache.Generator generator = (out, fragments) -> {
+        XMLBuilder xml = new XMLBuilder(out);
+        xml.indentElement("Capabilities");
+        xml.simpleElement("Title", title, true);
+        for (String layer : layers) {
+            fragments.append(xml, layer, "Layer", x -> {
+                encoded.merge(layer, 1, Integer::sum);
+                x.indentElement("Layer").simpleElement("Name", layer, true).endElement();
+            });
+        }
+        xml.endElement();
+    };
+
+    @Before
+    public void setUp() {
+        tld = mock(TileLayerDispatcher.class);
+        cache = new CapabilitiesCache(tld);
+        encoded = new HashMap<>();
+        layers = Arrays.asList("a", "b");
+        title = "title";
+    }
+
+    @Test
+    public void testRegistersAsListener() {
+        verify(tld).addListener(cache);
+        cache.destroy();
+        verify(tld).removeListener(cache);
+    }
+
+    @Test
+    public void testDocumentCached() throws Exception {
+        Document first = cache.getDocument("WMTS http://localhost", UTF8, generator);
+        Document second = cache.getDocument("WMTS http://localhost", UTF8, generator);
+        assertThat(second, sameInstance(first));
+        assertThat(encoded.get("a"), equalTo(1));
+
+        // different keys are different documents
+        Document other = cache.getDocument("WMTS http://example.com", UTF8, generator);
+        assertThat(other, not(sameInstance(first)));
+        assertThat(encoded.get("a"), equalTo(2));
+    }
+
+    @Test
+    public void testSameOutputAsUncached() throws Exception {
+        StringBuilder uncached = new StringBuilder();
+        generator.generate(uncached, CapabilitiesCache.LayerFragments.uncached());
+        cache.getDocument("key", UTF8, generator);
+        cache.layerChanged("b");
+        Document document = cache.getDocument("key", UTF8, generator);
+        assertThat(new String(document.getBody(), UTF8), equalTo(uncached.toString()));
+    }
+
+    @Test
+    public void testLayerChanged() throws Exception {
+        Document first = cache.getDocument("key", UTF8, generator);
+        cache.layerChanged("a");
+        title = "changed";
+        Document second = cache.getDocument("key", UTF8, generator);
+
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.getETag(), not(equalTo(first.getETag())));
+        // only the changed layer is encoded again
+        assertThat(encoded.get("a"), equalTo(2));
+        assertThat(encoded.get("b"), equalTo(1));
+    }
+
+    @Test
+    public void testConfigurationChanged() throws Exception {
+        cache.getDocument("key", UTF8, generator);
+        cache.configurationChanged();
+        cache.getDocument("key", UTF8, generator);
+        assertThat(encoded.get("a"), equalTo(2));
+        assertThat(encoded.get("b"), equalTo(2));
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        cache.setMaxAge(0);
+        Document first = cache.getDocument("key", UTF8, generator);
+        assertThat(cache.getDocument("key", UTF8, generator), sameInstance(first));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        Document document = cache.getDocument("key", UTF8, generator);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", document.getETag());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        int written = CapabilitiesCache.writeResponse(document, request, response, "text/xml",
+                "caps.xml");
+
+        assertThat(written, equalTo(0));
+        assertThat(response.getStatus(), equalTo(304));
+        assertThat(response.getHeader("ETag"), equalTo(document.getETag()));
+        assertThat(response.getContentAsByteArray().length, equalTo(0));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        Document document = cache.getDocument("key", UTF8, generator);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", "deflate, gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CapabilitiesCache.writeResponse(document, request, response, "text/xml", "caps.xml");
+
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getHeader("Content-Encoding"), equalTo("gzip"));
+        byte[] body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(
+                response.getContentAsByteArray())));
+        assertArrayEquals(document.getBody(), body);
+
+        // not compressed for clients not asking for it
+        request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+        response = new MockHttpServletResponse();
+        CapabilitiesCache.writeResponse(document, request, response, "text/xml", "caps.xml");
+        assertThat(response.getHeader("Content-Encoding"), nullValue());
+        assertArrayEquals(document.getBody(), response.getContentAsByteArray());
+    }
+}
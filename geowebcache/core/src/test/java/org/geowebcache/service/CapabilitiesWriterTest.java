@@ -0,0 +1,79 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.service;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.XMLBuilder;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class CapabilitiesWriterTest {
+
+    private CapabilitiesWriter.Body body = out -> {
+        XMLBuilder xml = new XMLBuilder(out);
+        xml.header("1.0", StandardCharsets.UTF_8);
+        xml.indentElement("Capabilities");
+        for (int i = 0; i < 10000; i++) {
+            xml.indentElement("Layer").simpleElement("Name", "layer" + i, true).endElement();
+        }
+        xml.endElement();
+    };
+
+    private String expected() throws Exception {
+        StringBuilder str = new StringBuilder();
+        body.write(str);
+        return str.toString();
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        long written = CapabilitiesWriter.writeResponse(request, response, "text/xml",
+                StandardCharsets.UTF_8, "caps.xml", body);
+
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getContentType(), equalTo("text/xml;charset=UTF-8"));
+        assertThat(response.getHeader("content-disposition"), equalTo("inline;filename=caps.xml"));
+        assertThat(response.getHeader("Content-Encoding"), nullValue());
+        assertThat(written, equalTo((long) response.getContentAsByteArray().length));
+        assertThat(response.getContentAsString(), equalTo(expected()));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        long written = CapabilitiesWriter.writeResponse(request, response, "text/xml",
+                StandardCharsets.UTF_8, "caps.xml", body);
+
+        assertThat(response.getHeader("Content-Encoding"), equalTo("gzip"));
+        byte[] compressed = response.getContentAsByteArray();
+        assertThat(written, equalTo((long) compressed.length));
+        byte[] content = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(
+                compressed)));
+        assertThat(new String(content, StandardCharsets.UTF_8), equalTo(expected()));
+    }
+}
@@ -17,10 +17,27 @@
 
 package org.geowebcache.stats;
 
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.easymock.classextension.EasyMock;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.stats.RequestTrace.Stage;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,4 +62,124 @@ public class RuntimeStatsTest {
         EasyMock.verify(clock);
     }
     
+    @Test
+    public void testLatencies() throws Exception {
+        RuntimeStats stats = new RuntimeStats(60, Arrays.asList(60, 120),
+                Arrays.asList("1 minute", "2 minutes"));
+        stats.start();
+        try {
+            for (int i = 1; i <= 100; i++) {
+                stats.logLatency("wms", "layer1", CacheResult.HIT, TimeUnit.MILLISECONDS.toNanos(i));
+            }
+            stats.rotateLatencies();
+            stats.logLatency("wmts", "layer2", CacheResult.MISS, TimeUnit.SECONDS.toNanos(2));
+            stats.rotateLatencies();
+
+            Map<String, LatencyPercentiles> services = stats.getServiceLatencies(120);
+            assertThat(services.keySet(), contains("wms", "wmts"));
+            LatencyPercentiles wms = services.get("wms");
+            assertThat(wms.getCount(), equalTo(100L));
+            // within the histogram precision
+            assertThat(wms.getP50(), allOf(greaterThanOrEqualTo(50000L), lessThanOrEqualTo(57000L)));
+            assertThat(wms.getP95(), allOf(greaterThanOrEqualTo(95000L), lessThanOrEqualTo(107000L)));
+            assertThat(wms.getP99(), allOf(greaterThanOrEqualTo(99000L), lessThanOrEqualTo(112000L)));
+
+            // the last minute only includes the last poll interval
+            assertThat(stats.getServiceLatencies(60).keySet(), contains("wmts"));
+            assertThat(stats.getLayerLatencies(60).keySet(), contains("layer2"));
+            assertThat(stats.getCacheResultLatencies(120).keySet(), contains("HIT", "MISS"));
+
+            assertThat(stats.getHTMLStats(), containsString("<td>wmts</td><td>1</td>"));
+
+            // layers not requested for the whole window are forgotten
+            stats.rotateLatencies();
+            stats.rotateLatencies();
+            assertTrue(stats.getLayerLatencies(120).isEmpty());
+            assertTrue(stats.layerLatencies.isEmpty());
+        } finally {
+            stats.destroy();
+        }
+    }
+
+    @Test
+    public void testLogConcurrently() throws Exception {
+        RuntimeStats stats = new RuntimeStats(60, Arrays.asList(60), Arrays.asList("1 minute"));
+        stats.start();
+        try {
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                threads.add(new Thread(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        stats.log(10, CacheResult.HIT);
+                        stats.logLatency("wms", "layer", CacheResult.HIT, 1000);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            stats.rotateLatencies();
+
+            assertThat(stats.popIntervalData(), equalTo(new int[] { 800000, 80000 }));
+            assertThat(stats.totalHits.sum(), equalTo(80000L));
+            assertThat(stats.getServiceLatencies(60).get("wms").getCount(), equalTo(80000L));
+        } finally {
+            stats.destroy();
+        }
+    }
+
+    @Test
+    public void testTraceNotSampled() throws Exception {
+        RuntimeStats stats = new RuntimeStats(60, Arrays.asList(60), Arrays.asList("1 minute"));
+        stats.start();
+        try {
+            assertNull(stats.startTrace());
+            assertNull(RequestTrace.current());
+            assertThat(RequestTrace.start(), equalTo(0L));
+            // does not fail without a trace
+            RequestTrace.stop(Stage.BACKEND, 0);
+            stats.endTrace(null, "wms", "layer");
+            assertTrue(stats.getStageLatencies(60).isEmpty());
+        } finally {
+            stats.destroy();
+        }
+    }
+
+    @Test
+    public void testTraceStages() throws Exception {
+        RuntimeStats stats = new RuntimeStats(60, Arrays.asList(60), Arrays.asList("1 minute"));
+        stats.setTraceSampleRate(1);
+        stats.start();
+        try {
+            RequestTrace trace = stats.startTrace();
+            assertSame(trace, RequestTrace.current());
+
+            long start = RequestTrace.start();
+            Thread.sleep(5);
+            RequestTrace.stop(Stage.LOCK_WAIT, start);
+            trace.add(Stage.BLOBSTORE_PUT, TimeUnit.MILLISECONDS.toNanos(2));
+            trace.add(Stage.BLOBSTORE_PUT, TimeUnit.MILLISECONDS.toNanos(3));
+
+            assertThat(trace.getCount(Stage.BLOBSTORE_PUT), equalTo(2));
+            assertThat(trace.getNanos(Stage.BLOBSTORE_PUT), equalTo(TimeUnit.MILLISECONDS.toNanos(5)));
+            assertThat(trace.getNanos(Stage.LOCK_WAIT), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5)));
+            assertThat(trace.toString(), containsString("BLOBSTORE_PUT(2)=5.0ms"));
+
+            stats.endTrace(trace, "wms", "layer");
+            assertNull(RequestTrace.current());
+            stats.rotateLatencies();
+
+            Map<String, LatencyPercentiles> stages = stats.getStageLatencies(60);
+            assertThat(stages.keySet(), contains("BLOBSTORE_PUT", "LOCK_WAIT"));
+            // the stage time of the request, not of each put
+            assertThat(stages.get("BLOBSTORE_PUT").getCount(), equalTo(1L));
+            assertThat(stages.get("BLOBSTORE_PUT").getP50(), allOf(greaterThanOrEqualTo(5000L), lessThanOrEqualTo(5700L)));
+        } finally {
+            RequestTrace.bind(null);
+            stats.destroy();
+        }
+    }
 }
@@ -0,0 +1,195 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.AsyncBlobStoreListener.OverflowPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncBlobStoreListenerTest {
+
+    private AsyncBlobStoreListener async;
+
+    /**
+     * Records the events as strings, and the size of the batches
+     */
+    private static class Recorder implements BatchBlobStoreListener {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        /** released to let the first delivery proceed */
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        void await() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            await();
+            events.add("stored " + x + " " + blobSize);
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            await();
+            events.add("deleted " + x + " " + blobSize);
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            await();
+            events.add("updated " + x + " " + blobSize + " " + oldSize);
+        }
+
+        @Override
+        public void tilesStored(List<TileEvent> events) {
+            batches.add(events.size());
+            BatchBlobStoreListener.super.tilesStored(events);
+        }
+
+        public void layerDeleted(String layerName) {
+            await();
+            events.add("layerDeleted " + layerName);
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+        }
+
+        public void parametersDeleted(String layerName, String parametersId) {
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (async != null) {
+            async.dispose();
+        }
+    }
+
+    private void stored(long x, long size) {
+        async.tileStored("layer", "EPSG:4326", "image/png", null, x, 0, 0, size);
+    }
+
+    @Test
+    public void testBatchedInOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        async = new AsyncBlobStoreListener(recorder, 100, 10, OverflowPolicy.BLOCK);
+        stored(0, 1);
+        recorder.started.await(10, TimeUnit.SECONDS);
+        // queued while the first event is being delivered
+        for (int i = 1; i <= 25; i++) {
+            stored(i, 1);
+        }
+        async.layerDeleted("layer");
+        async.tileDeleted("layer", "EPSG:4326", "image/png", null, 1, 0, 0, 1);
+        recorder.release.countDown();
+        assertTrue(async.flush(10, TimeUnit.SECONDS));
+
+        assertEquals(28, recorder.events.size());
+        for (int i = 0; i <= 25; i++) {
+            assertEquals("stored " + i + " 1", recorder.events.get(i));
+        }
+        assertEquals("layerDeleted layer", recorder.events.get(26));
+        assertEquals("deleted 1 1", recorder.events.get(27));
+        // the events queued meanwhile are delivered in batches of at most 10
+        assertEquals(Integer.valueOf(1), recorder.batches.get(0));
+        assertEquals(Integer.valueOf(10), recorder.batches.get(1));
+        assertEquals(Integer.valueOf(10), recorder.batches.get(2));
+        assertEquals(Integer.valueOf(5), recorder.batches.get(3));
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        Recorder recorder = new Recorder();
+        async = new AsyncBlobStoreListener(recorder, 5, 10, OverflowPolicy.DROP);
+        stored(0, 1);
+        recorder.started.await(10, TimeUnit.SECONDS);
+        for (int i = 1; i <= 8; i++) {
+            stored(i, 1);
+        }
+        assertEquals(3, async.getDroppedCount());
+        recorder.release.countDown();
+        assertTrue(async.flush(10, TimeUnit.SECONDS));
+        assertEquals(6, recorder.events.size());
+        assertEquals("stored 5 1", recorder.events.get(5));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        Recorder recorder = new Recorder();
+        async = new AsyncBlobStoreListener(recorder, 100, 100, OverflowPolicy.COALESCE);
+        stored(0, 1);
+        recorder.started.await(10, TimeUnit.SECONDS);
+
+        // stored then updated twice, is stored with the last size
+        stored(1, 10);
+        async.tileUpdated("layer", "EPSG:4326", "image/png", null, 1, 0, 0, 20, 10);
+        async.tileUpdated("layer", "EPSG:4326", "image/png", null, 1, 0, 0, 30, 20);
+        // stored then deleted, is nothing
+        stored(2, 10);
+        async.tileDeleted("layer", "EPSG:4326", "image/png", null, 2, 0, 0, 10);
+        // deleted then stored, is updated
+        async.tileDeleted("layer", "EPSG:4326", "image/png", null, 3, 0, 0, 10);
+        stored(3, 15);
+        // not merged across other events
+        async.layerDeleted("layer");
+        async.tileDeleted("layer", "EPSG:4326", "image/png", null, 1, 0, 0, 30);
+        assertEquals(4, async.getCoalescedCount());
+
+        recorder.release.countDown();
+        assertTrue(async.flush(10, TimeUnit.SECONDS));
+        assertEquals(5, recorder.events.size());
+        assertEquals("stored 0 1", recorder.events.get(0));
+        assertEquals("stored 1 30", recorder.events.get(1));
+        assertEquals("updated 3 15 10", recorder.events.get(2));
+        assertEquals("layerDeleted layer", recorder.events.get(3));
+        assertEquals("deleted 1 30", recorder.events.get(4));
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.release.countDown();
+        async = new AsyncBlobStoreListener(recorder);
+        stored(0, 1);
+        async.dispose();
+        assertEquals(1, recorder.events.size());
+        // delivered right away once disposed
+        stored(1, 1);
+        assertEquals(2, recorder.events.size());
+    }
+}
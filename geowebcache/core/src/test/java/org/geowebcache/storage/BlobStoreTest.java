@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import junit.framework.TestCase;
 
@@ -251,4 +252,28 @@ public class BlobStoreTest extends TestCase {
         assertEquals("value 1_1", fbs.getLayerMetadata(layerName, key1));
         assertNull(fbs.getLayerMetadata(layerName, key2));
     }
+
+    public void testParametersMappingPersisted() throws Exception {
+        BlobStore fbs = setup();
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        parameters.put("b", "ø");
+        for (long x = 0; x < 10; x++) {
+            long[] xyz = { x, 2L, 3L };
+            fbs.put(TileObject.createCompleteTileObject("test:123123 112", xyz, "EPSG:4326",
+                    "image/jpeg", parameters, new ByteArrayResource("test".getBytes())));
+        }
+        Map<String, Optional<Map<String, String>>> mapping = fbs
+                .getParametersMapping("test:123123 112");
+        assertEquals(1, mapping.size());
+        assertEquals(parameters, mapping.values().iterator().next().get());
+
+        // deferred writes are flushed on destroy
+        fbs.destroy();
+        BlobStore reopened = new FileBlobStore(StorageBrokerTest.findTempDir() + File.separator
+                + TEST_BLOB_DIR_NAME);
+        assertEquals(mapping, reopened.getParametersMapping("test:123123 112"));
+        reopened.destroy();
+    }
 }
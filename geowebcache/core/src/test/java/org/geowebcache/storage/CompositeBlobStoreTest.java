@@ -35,6 +35,7 @@ import java.util.Map;
 
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.BlobStoreConfig;
+import org.geowebcache.config.Configuration;
 import org.geowebcache.config.ConfigurationException;
 import org.geowebcache.config.FileBlobStoreConfig;
 import org.geowebcache.config.XMLConfiguration;
@@ -285,6 +286,29 @@ public class CompositeBlobStoreTest {
         store.get(tile);
     }
 
+    @Test
+    public void switchBlobStore() throws Exception {
+        configs.add(config("store1", false, true, tmpFolder.newFolder().getAbsolutePath(), 1024));
+        configs.add(config("store2", false, false, tmpFolder.newFolder().getAbsolutePath(), 1024));
+        store = create();
+        Configuration layerConfig = mock(Configuration.class);
+        when(layers.modify(defaultLayer)).thenReturn(layerConfig);
+
+        assertSame(store.blobStores.get("store1").liveInstance, store.getBlobStore("store1"));
+        assertSame(store.blobStores.get(CompositeBlobStore.DEFAULT_STORE_DEFAULT_ID).liveInstance,
+                store.getBlobStore(null));
+
+        final boolean[] ran = { false };
+        store.switchBlobStore(DEFAULT_LAYER, "store1", () -> ran[0] = true);
+        assertTrue(ran[0]);
+        verify(defaultLayer).setBlobStoreId("store1");
+        verify(layerConfig).save();
+
+        ex.expect(StorageException.class);
+        ex.expectMessage("Attempted to use a blob store that's disabled");
+        store.switchBlobStore(DEFAULT_LAYER, "store2", null);
+    }
+
     private FileBlobStoreConfig config(String id, boolean isDefault, boolean isEnabled,
             String baseDirectory, int fileSystemBlockSize) {
         FileBlobStoreConfig c = new FileBlobStoreConfig(id);
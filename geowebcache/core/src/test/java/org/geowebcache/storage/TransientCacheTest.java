@@ -18,7 +18,14 @@ package org.geowebcache.storage;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
@@ -138,6 +145,77 @@ public class TransientCacheTest {
         assertThat(result2, notNullValue()); // Should still be cached
     }
     
+    @Test
+    public void testStatistics() throws Exception {
+        transCache.put("foo", new ByteArrayResource(new byte[]{1,2,3}));
+        transCache.put("bar", new ByteArrayResource(new byte[]{1,2,3}));
+        assertThat(transCache.get("foo"), notNullValue());
+        assertThat(transCache.get("foo"), nullValue());
+        ticker.advanceMilli(EXPIRE_TIME+1);
+        assertThat(transCache.get("bar"), nullValue());
+
+        assertThat(transCache.getHitCount(), is(1L));
+        assertThat(transCache.getMissCount(), is(2L));
+        assertThat(transCache.getExpirationCount(), is(1L));
+        for (int i = 0; i<=MAX_TILES; i++) {
+            transCache.put("foo"+i, new ByteArrayResource(new byte[]{1}));
+        }
+        assertThat(transCache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void testCopiesWholeResource() throws Exception {
+        // a resource whose stream returns a single byte per read
+        Resource r = new ByteArrayResource(new byte[]{1,2,3}) {
+            @Override
+            public SeekableInputStream getInputStream() throws IOException {
+                return new SeekableInputStream(this) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        return super.read(b, off, Math.min(1, len));
+                    }
+                };
+            }
+        };
+        transCache.put("foo", r);
+        Resource result = transCache.get("foo");
+        assertArrayEquals(new byte[]{1,2,3}, ((ByteArrayResource) result).getContents());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final TransientCache cache = new TransientCache(64, 1024, 60000, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int hits = 0;
+                    for (int i = 0; i < 1000; i++) {
+                        String key = thread + "_" + i;
+                        cache.put(key, new ByteArrayResource(new byte[]{(byte) i}));
+                        Resource r = cache.get(key);
+                        if (r != null) {
+                            assertThat(((ByteArrayResource) r).getContents()[0], is((byte) i));
+                            hits++;
+                        }
+                    }
+                    return hits;
+                }
+            }));
+        }
+        long hits = 0;
+        for (Future<Integer> f : futures) {
+            hits += f.get();
+        }
+        executor.shutdown();
+        assertThat(cache.size(), is(0));
+        assertThat(cache.storageSize(), is(0L));
+        assertThat(cache.getHitCount(), is(hits));
+        assertThat(cache.getHitCount() + cache.getMissCount(), is(8000L));
+    }
+
     static private class TestTicker extends Ticker {
         long time;
 
@@ -154,7 +232,7 @@ public class TransientCacheTest {
         }
         
         public void advanceMilli(long millis) {
-            advanceNano(millis*1000);
+            advanceNano(millis*1000000);
         }
         public void advanceNano(long nanos) {
             time+=nanos;
@@ -0,0 +1,249 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.dedup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DedupBlobStoreTest {
+
+    private static final int TILE_SIZE = 30;
+
+    /**
+     * Magic number, SHA-256 hash and length in front of each payload
+     */
+    private static final int RECORD_SIZE = 4 + 32 + 4 + TILE_SIZE;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private DedupBlobStore store;
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.destroy();
+        }
+    }
+
+    private DedupBlobStore newStore(long maxSegmentSize) throws StorageException {
+        return new DedupBlobStore(temp.getRoot().getAbsolutePath(), maxSegmentSize, 0, 0.5);
+    }
+
+    private DedupBlobStore reopen(long maxSegmentSize) throws StorageException {
+        store.destroy();
+        store = newStore(maxSegmentSize);
+        return store;
+    }
+
+    private static byte[] contents(byte value) {
+        byte[] contents = new byte[TILE_SIZE];
+        Arrays.fill(contents, value);
+        return contents;
+    }
+
+    private static TileObject tile(long x, byte value) {
+        return TileObject.createCompleteTileObject("testLayer", new long[] { x, 0, 5 },
+                "testGridSet", "image/png", null, new ByteArrayResource(contents(value)));
+    }
+
+    private static TileObject query(long x) {
+        return TileObject.createQueryTileObject("testLayer", new long[] { x, 0, 5 },
+                "testGridSet", "image/png", null);
+    }
+
+    private void assertTile(long x, byte value) throws StorageException {
+        TileObject query = query(x);
+        assertTrue(store.get(query));
+        assertArrayEquals(contents(value), ((ByteArrayResource) query.getBlob()).getContents());
+    }
+
+    @Test
+    public void testIdenticalTilesStoredOnce() throws Exception {
+        store = newStore(1024 * 1024);
+        for (long x = 0; x < 10; x++) {
+            store.put(tile(x, (byte) (x % 2)));
+        }
+        assertEquals(10, store.getTileCount());
+        assertEquals(2, store.getPayloadCount());
+        assertEquals(10 * TILE_SIZE, store.getTileBytes());
+        assertEquals(2 * TILE_SIZE, store.getPayloadBytes());
+        assertEquals(2 * RECORD_SIZE, store.getSegmentBytes());
+        assertTile(7, (byte) 1);
+
+        // replacing a tile releases its payload only once no other tile shares it
+        store.put(tile(0, (byte) 2));
+        assertEquals(3, store.getPayloadCount());
+        assertTrue(store.delete(query(1)));
+        assertEquals(3, store.getPayloadCount());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        store = newStore(1024 * 1024);
+        store.put(tile(0, (byte) 0));
+        store.put(tile(1, (byte) 1));
+        store.put(tile(2, (byte) 1));
+        store.delete(query(1));
+        store.putLayerMetadata("testLayer", "key", "value");
+
+        reopen(1024 * 1024);
+        assertEquals(2, store.getTileCount());
+        assertEquals(2, store.getPayloadCount());
+        assertTile(0, (byte) 0);
+        assertFalse(store.get(query(1)));
+        assertTile(2, (byte) 1);
+        assertEquals("value", store.getLayerMetadata("testLayer", "key"));
+
+        store.delete("testLayer");
+        reopen(1024 * 1024);
+        assertEquals(0, store.getTileCount());
+        assertFalse(store.layerExists("testLayer"));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        // two payloads per segment
+        store = newStore(2 * RECORD_SIZE);
+        store.put(tile(0, (byte) 0));
+        store.put(tile(1, (byte) 1));
+        store.put(tile(2, (byte) 2));
+        store.put(tile(3, (byte) 3));
+        assertEquals(4 * RECORD_SIZE, store.getSegmentBytes());
+
+        store.delete(query(0));
+        store.delete(query(2));
+        assertEquals(2, store.getPayloadCount());
+        assertEquals(4 * RECORD_SIZE, store.getSegmentBytes());
+
+        // the first segment is half garbage, its live payload moves to a new segment, the
+        // second one is being appended to and left alone
+        assertEquals(1, store.compact());
+        assertEquals(3 * RECORD_SIZE, store.getSegmentBytes());
+        assertTile(1, (byte) 1);
+        assertTile(3, (byte) 3);
+
+        // payloads moved by compaction are found again on startup
+        reopen(2 * RECORD_SIZE);
+        assertEquals(2, store.getTileCount());
+        assertTile(1, (byte) 1);
+        assertTile(3, (byte) 3);
+
+        store.delete(query(3));
+        assertEquals(1, store.compact());
+        assertEquals(RECORD_SIZE, store.getSegmentBytes());
+        reopen(2 * RECORD_SIZE);
+        assertEquals(1, store.getTileCount());
+        assertTile(1, (byte) 1);
+    }
+
+    @Test
+    public void testRewriteJournal() throws Exception {
+        store = newStore(1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            for (long x = 0; x < 10; x++) {
+                store.put(tile(x, (byte) i));
+            }
+        }
+        store.delete(query(9));
+        store.putLayerMetadata("testLayer", "key", "value");
+        store.rewriteJournal(true);
+
+        reopen(1024 * 1024);
+        assertEquals(9, store.getTileCount());
+        assertEquals(1, store.getPayloadCount());
+        assertTile(0, (byte) 4);
+        assertFalse(store.get(query(9)));
+        assertEquals("value", store.getLayerMetadata("testLayer", "key"));
+    }
+
+    @Test
+    public void testManyTiles() throws Exception {
+        store = newStore(1024 * 1024);
+        for (long x = 0; x < 1000; x++) {
+            store.put(tile(x, (byte) (x % 4)));
+        }
+        for (long x = 0; x < 1000; x += 2) {
+            assertTrue(store.delete(query(x)));
+        }
+        assertEquals(500, store.getTileCount());
+        assertEquals(2, store.getPayloadCount());
+        for (long x = 0; x < 1000; x++) {
+            if (x % 2 == 0) {
+                assertFalse(store.get(query(x)));
+            } else {
+                assertTile(x, (byte) (x % 4));
+            }
+        }
+
+        for (long x = 1; x < 990; x += 2) {
+            assertTrue(store.delete(query(x)));
+        }
+        reopen(1024 * 1024);
+        assertEquals(5, store.getTileCount());
+        for (long x = 991; x < 1000; x += 2) {
+            assertTile(x, (byte) (x % 4));
+        }
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        store = newStore(1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final long first = t * 100;
+                futures.add(executor.submit(() -> {
+                    for (long x = first; x < first + 100; x++) {
+                        store.put(tile(x, (byte) 1));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(400, store.getTileCount());
+        // the payload may have been appended more than once, but only one copy is referenced
+        assertEquals(1, store.getPayloadCount());
+        assertEquals(TILE_SIZE, store.getPayloadBytes());
+        assertTile(399, (byte) 1);
+
+        reopen(1024 * 1024);
+        assertEquals(400, store.getTileCount());
+        assertTile(0, (byte) 1);
+    }
+}
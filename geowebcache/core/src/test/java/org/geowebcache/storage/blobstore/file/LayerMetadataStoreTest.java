@@ -0,0 +1,91 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.geowebcache.storage.blobstore.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LayerMetadataStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private LayerMetadataStore store = new LayerMetadataStore();
+
+    @After
+    public void tearDown() {
+        store.destroy();
+    }
+
+    @Test
+    public void testFailedWriteIsRetried() throws Exception {
+        File layerDir = temp.newFile("layer");
+        File file = new File(layerDir, "metadata.properties");
+        try {
+            // the layer directory can't be created, a file is in the way
+            store.put(file, "key", "value", false);
+            fail("Expected the write to fail");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        assertFalse(file.exists());
+
+        assertTrue(layerDir.delete());
+        // same value, but still to be written
+        store.put(file, "key", "value", false);
+        assertTrue(file.exists());
+        assertEquals("value", new LayerMetadataStore().get(file, "key"));
+    }
+
+    @Test
+    public void testDiscardBlocksWrites() throws Exception {
+        final File layerDir = new File(temp.getRoot(), "layer");
+        final File file = new File(layerDir, "metadata.properties");
+        store.put(file, "key", "value", false);
+
+        final Thread writer = new Thread() {
+            public void run() {
+                store.put(file, "key", "other", false);
+            }
+        };
+        store.discard(file, () -> {
+            writer.start();
+            // the writer waits for the directory to be gone
+            try {
+                writer.join(200);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            assertTrue(writer.isAlive());
+            for (File child : layerDir.listFiles()) {
+                child.delete();
+            }
+            return layerDir.delete();
+        });
+        writer.join();
+        assertEquals("other", store.get(file, "key"));
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.geowebcache.storage.blobstore.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.geowebcache.storage.blobstore.file.TileExistenceIndex.Positions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileExistenceIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testPositions() {
+        Positions positions = new Positions();
+        for (int i = 100; i > 0; i -= 2) {
+            positions.add(i);
+        }
+        positions.add(50);
+        assertEquals(50, positions.size());
+        assertTrue(positions.contains(2));
+        assertTrue(positions.contains(100));
+        assertFalse(positions.contains(51));
+
+        for (int i = 2; i <= 100; i += 4) {
+            positions.remove(i);
+        }
+        positions.remove(3);
+        assertEquals(25, positions.size());
+        assertFalse(positions.contains(2));
+        assertTrue(positions.contains(4));
+        assertTrue(positions.contains(100));
+    }
+
+    @Test
+    public void testPositionsSort() {
+        Positions positions = new Positions();
+        positions.append(7);
+        positions.append(3);
+        positions.append(7);
+        positions.append(1);
+        positions.sort();
+        assertEquals(3, positions.size());
+        assertTrue(positions.contains(1));
+        assertTrue(positions.contains(3));
+        assertTrue(positions.contains(7));
+    }
+
+    @Test
+    public void testDeepDirectory() throws Exception {
+        // a directory at zoom level 28 spans 2^30 tile positions, only the stored ones are kept
+        TileExistenceIndex index = new TileExistenceIndex(10, 300);
+        File directory = temp.newFolder("EPSG_4326_28", "123_456");
+        long[] xyz = { 1L << 27, 3L << 20, 28 };
+        File tile = new File(directory, xyz[0] + "_" + xyz[1] + ".png");
+        assertTrue(tile.createNewFile());
+
+        assertTrue(index.mayExist(tile, xyz));
+        long[] other = { xyz[0] + 1, xyz[1], 28 };
+        File otherTile = new File(directory, other[0] + "_" + other[1] + ".png");
+        assertFalse(index.mayExist(otherTile, other));
+
+        index.stored(otherTile, other);
+        assertTrue(index.mayExist(otherTile, other));
+        index.deleted(tile, xyz);
+        assertFalse(index.mayExist(tile, xyz));
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.localcache;
+
+import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheBlobStore.EvictionPolicy;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalCacheBlobStoreComformanceTest extends AbstractBlobStoreTest<LocalCacheBlobStore> {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Override
+    public void createTestUnit() throws Exception {
+        // a file blob store stands in for the remote one
+        FileBlobStore remote = new FileBlobStore(temp.newFolder("remote").getAbsolutePath());
+        this.store = new LocalCacheBlobStore(remote, temp.newFolder("local").getAbsolutePath(),
+                1024 * 1024, EvictionPolicy.LRU, 0);
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.localcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.localcache.LocalCacheBlobStore.EvictionPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalCacheBlobStoreTest {
+
+    private static final int TILE_SIZE = 30;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileBlobStore remote;
+
+    private LocalCacheBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        remote = new FileBlobStore(temp.newFolder("remote").getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.destroy();
+        }
+    }
+
+    private LocalCacheBlobStore newStore(long maxSize, EvictionPolicy policy,
+            int revalidateAfterSeconds) throws StorageException {
+        File local = new File(temp.getRoot(), "local");
+        return new LocalCacheBlobStore(remote, local.getAbsolutePath(), maxSize, policy,
+                revalidateAfterSeconds);
+    }
+
+    private static TileObject tile(long x, byte value) {
+        byte[] contents = new byte[TILE_SIZE];
+        Arrays.fill(contents, value);
+        return TileObject.createCompleteTileObject("testLayer", new long[] { x, 0, 5 },
+                "testGridSet", "image/png", null, new ByteArrayResource(contents));
+    }
+
+    private static TileObject query(long x) {
+        return TileObject.createQueryTileObject("testLayer", new long[] { x, 0, 5 },
+                "testGridSet", "image/png", null);
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        remote.put(tile(0, (byte) 1));
+        assertEquals(0, store.getLocalCount());
+
+        assertTrue(store.get(query(0)));
+        assertEquals(1, store.getLocalCount());
+        assertEquals(TILE_SIZE, store.getLocalSize());
+
+        // served locally even if gone from the remote store
+        remote.delete(query(0));
+        TileObject local = query(0);
+        assertTrue(store.get(local));
+        assertEquals(TILE_SIZE, local.getBlobSize());
+    }
+
+    @Test
+    public void testWriteThrough() throws Exception {
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        store.put(tile(0, (byte) 1));
+        assertEquals(1, store.getLocalCount());
+        assertTrue(remote.get(query(0)));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        store = newStore(3 * TILE_SIZE + 10, EvictionPolicy.LRU, 0);
+        store.put(tile(0, (byte) 0));
+        Thread.sleep(5);
+        store.put(tile(1, (byte) 1));
+        Thread.sleep(5);
+        store.put(tile(2, (byte) 2));
+        Thread.sleep(5);
+        store.get(query(0));
+        Thread.sleep(5);
+        // over the limit, shrinks down to 90% of it evicting the least recently used
+        store.put(tile(3, (byte) 3));
+        assertEquals(3, store.getLocalCount());
+        assertEquals(3 * TILE_SIZE, store.getLocalSize());
+
+        // evicted tiles are still in the remote store
+        assertTrue(store.get(query(1)));
+        assertEquals(3, store.getLocalCount());
+
+        remote.delete(query(0));
+        remote.delete(query(1));
+        remote.delete(query(2));
+        remote.delete(query(3));
+        assertTrue(store.get(query(0)));
+        assertTrue(store.get(query(1)));
+        assertFalse(store.get(query(2)));
+        assertTrue(store.get(query(3)));
+    }
+
+    @Test
+    public void testEvictLeastFrequentlyUsed() throws Exception {
+        store = newStore(3 * TILE_SIZE + 10, EvictionPolicy.LFU, 0);
+        store.put(tile(0, (byte) 0));
+        store.put(tile(1, (byte) 1));
+        store.put(tile(2, (byte) 2));
+        store.get(query(1));
+        store.get(query(1));
+        store.get(query(2));
+        Thread.sleep(5);
+        // tiles 0 and 3 were never read, 0 is the older one
+        store.put(tile(3, (byte) 3));
+        assertEquals(3, store.getLocalCount());
+
+        remote.delete(query(0));
+        remote.delete(query(1));
+        remote.delete(query(2));
+        remote.delete(query(3));
+        assertFalse(store.get(query(0)));
+        assertTrue(store.get(query(1)));
+        assertTrue(store.get(query(2)));
+        assertTrue(store.get(query(3)));
+    }
+
+    @Test
+    public void testTruncateInvalidatesLocalCopy() throws Exception {
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        store.put(tile(0, (byte) 0));
+        store.put(tile(1, (byte) 1));
+
+        long[][] bounds = { { 0, 0, 0, 0, 5 } };
+        TileRange range = new TileRange("testLayer", "testGridSet", 5, 5, bounds, ImageMime.png,
+                (Map<String, String>) null);
+        store.delete(range);
+
+        assertEquals(1, store.getLocalCount());
+        assertFalse(store.get(query(0)));
+        assertTrue(store.get(query(1)));
+    }
+
+    @Test
+    public void testDeleteLayerInvalidatesLocalCopy() throws Exception {
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        store.put(tile(0, (byte) 0));
+        store.delete("testLayer");
+        assertEquals(0, store.getLocalCount());
+        assertFalse(store.get(query(0)));
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        store = newStore(1024, EvictionPolicy.LRU, 1);
+        store.put(tile(0, (byte) 0));
+
+        // another node removes the tile from the remote store
+        remote.delete(query(0));
+        assertTrue(store.get(query(0)));
+        Thread.sleep(1100);
+        assertFalse(store.get(query(0)));
+        assertEquals(0, store.getLocalCount());
+    }
+
+    @Test
+    public void testOnlyRemovesPreviousSessionDirectories() throws Exception {
+        File base = new File(temp.getRoot(), "local");
+        File userFile = new File(base, "important.txt");
+        File userDir = new File(base, "data");
+        File unmarked = new File(base, LocalCacheBlobStore.SESSION_PREFIX + "1");
+        File previous = new File(base, LocalCacheBlobStore.SESSION_PREFIX + "2");
+        assertTrue(userDir.mkdirs());
+        assertTrue(unmarked.mkdirs());
+        assertTrue(previous.mkdirs());
+        assertTrue(userFile.createNewFile());
+        assertTrue(new File(previous, LocalCacheBlobStore.SESSION_MARKER).createNewFile());
+
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        // removed in the background
+        for (int i = 0; i < 100 && previous.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(previous.exists());
+        assertTrue(userFile.exists());
+        assertTrue(userDir.exists());
+        assertTrue(unmarked.exists());
+    }
+
+    @Test
+    public void testClearRemovesLocalFiles() throws Exception {
+        remote = new FileBlobStore(temp.newFolder("clearable").getAbsolutePath()) {
+            @Override
+            public void clear() {
+                // not supported by FileBlobStore
+            }
+        };
+        store = newStore(1024, EvictionPolicy.LRU, 0);
+        store.put(tile(0, (byte) 0));
+        File[] sessions = new File(temp.getRoot(), "local")
+                .listFiles(LocalCacheBlobStore::isSessionDirectory);
+        assertEquals(1, sessions.length);
+        assertEquals(2, sessions[0].list().length);
+
+        store.clear();
+        assertEquals(0, store.getLocalCount());
+        assertEquals(Arrays.asList(LocalCacheBlobStore.SESSION_MARKER),
+                Arrays.asList(sessions[0].list()));
+    }
+}
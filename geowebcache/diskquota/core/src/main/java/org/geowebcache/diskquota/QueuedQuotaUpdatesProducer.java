@@ -17,14 +17,18 @@
  */
 package org.geowebcache.diskquota;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.storage.AsyncBlobStoreListener;
+import org.geowebcache.storage.BatchBlobStoreListener;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.DefaultStorageBroker;
+import org.geowebcache.storage.TileEvent;
 import org.springframework.util.Assert;
 
 /**
@@ -34,12 +38,16 @@ import org.springframework.util.Assert;
  * {@link QuotaUpdate}s to the provided {@link BlockingQueue}. Another thread is responsible of
  * taking the {@link QuotaUpdate} off the queue and updating the quota store as appropriate.
  * </p>
+ * <p>
+ * It is registered through an {@link AsyncBlobStoreListener}, so that the threads storing tiles
+ * don't wait for room in the queue, and receives the tile events in batches.
+ * </p>
  * 
  * @author groldan
  * @see DiskQuotaMonitor
  * @see QueuedQuotaUpdatesConsumer
  */
-class QueuedQuotaUpdatesProducer implements BlobStoreListener {
+class QueuedQuotaUpdatesProducer implements BatchBlobStoreListener {
 
     private static final Log log = LogFactory.getLog(QueuedQuotaUpdatesProducer.class);
 
@@ -47,7 +55,7 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
 
     private final BlockingQueue<QuotaUpdate> queuedUpdates;
 
-    private boolean cancelled;
+    private volatile boolean cancelled;
 
     private final QuotaStore quotaStore;
     
@@ -124,6 +132,52 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         quotaUpdate(layerName, gridSetId, blobFormat, parametersId, delta, tileIndex);
     }
 
+    /**
+     * @see BatchBlobStoreListener#tilesStored(List)
+     */
+    public void tilesStored(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            if (cancelled(e.getLayerName())) {
+                return;
+            }
+            if (e.getBlobSize() != 0) {
+                quotaUpdate(e, e.getBlobSize());
+            }
+        }
+    }
+
+    /**
+     * @see BatchBlobStoreListener#tilesDeleted(List)
+     */
+    public void tilesDeleted(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            if (cancelled(e.getLayerName())) {
+                return;
+            }
+            quotaUpdate(e, -1 * e.getBlobSize());
+        }
+    }
+
+    /**
+     * @see BatchBlobStoreListener#tilesUpdated(List)
+     */
+    public void tilesUpdated(List<TileEvent> events) {
+        for (TileEvent e : events) {
+            if (cancelled(e.getLayerName())) {
+                return;
+            }
+            long delta = e.getBlobSize() - e.getOldSize();
+            if (delta != 0) {
+                quotaUpdate(e, delta);
+            }
+        }
+    }
+
+    private void quotaUpdate(TileEvent e, long amount) {
+        quotaUpdate(e.getLayerName(), e.getGridSetId(), e.getBlobFormat(), e.getParametersId(),
+                amount, new long[] { e.getX(), e.getY(), e.getZ() });
+    }
+
     /**
      * @see org.geowebcache.storage.BlobStoreListener#layerDeleted(java.lang.String)
      * @see QuotaStore#deleteLayer(String)
@@ -24,6 +24,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.storage.AsyncBlobStoreListener;
 import org.geowebcache.storage.StorageBroker;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
@@ -47,6 +48,8 @@ public class QuotaUpdatesMonitor {
 
     private QueuedQuotaUpdatesProducer quotaDiffsProducer;
 
+    private AsyncBlobStoreListener quotaDiffsListener;
+
     private QueuedQuotaUpdatesConsumer quotaUsageUpdatesConsumer;
 
     public QuotaUpdatesMonitor(final DiskQuotaConfig quotaConfig,
@@ -79,25 +82,34 @@ public class QuotaUpdatesMonitor {
         // the task that takes quota updates from the queue and saves them to the store
         quotaUsageUpdatesConsumer = new QueuedQuotaUpdatesConsumer(quotaStore, sharedQueue);
 
-        // the listener that puts quota updates on the queue
-        storageBroker.addBlobStoreListener(quotaDiffsProducer);
+        // the listener that puts quota updates on the queue, from a thread of its own so that
+        // storing tiles does not wait for room in the queue
+        quotaDiffsListener = new AsyncBlobStoreListener(quotaDiffsProducer);
+        storageBroker.addBlobStoreListener(quotaDiffsListener);
 
         executorService.submit(quotaUsageUpdatesConsumer);
     }
 
-    private void shutDown(final boolean cancel) {
-        log.info("Shutting down quota usage monitor...");
+    private void stopListening(final boolean cancel) {
         try {
-            storageBroker.removeBlobStoreListener(quotaDiffsProducer);
+            storageBroker.removeBlobStoreListener(quotaDiffsListener);
         } catch (RuntimeException e) {
             log.error(
                     "Unexpected exception while removing the disk quota monitor listener from the StorageBroker."
                             + " Ignoring in order to continue with the monitor's shutdown "
                             + "process", e);
         }
-        
         if (cancel) {
             quotaDiffsProducer.setCancelled(true);
+        }
+        // hands the events received so far over to the consumer, unless cancelled
+        quotaDiffsListener.dispose();
+    }
+
+    private void shutDown(final boolean cancel) {
+        log.info("Shutting down quota usage monitor...");
+        if (cancel) {
+            stopListening(cancel);
             executorService.shutdownNow();
         } else {
             executorService.shutdown();
@@ -116,8 +128,9 @@ public class QuotaUpdatesMonitor {
      * Calls for a shut down and waits until any remaining task finishes before returning
      */
     public void shutDown() {
-        quotaUsageUpdatesConsumer.shutdown();
         final boolean cancel = false;
+        stopListening(cancel);
+        quotaUsageUpdatesConsumer.shutdown();
         shutDown(cancel);
 
         final int maxAttempts = 6;
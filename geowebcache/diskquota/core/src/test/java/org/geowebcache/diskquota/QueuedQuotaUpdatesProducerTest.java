@@ -0,0 +1,84 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.storage.AsyncBlobStoreListener;
+import org.geowebcache.storage.TileEvent;
+import org.geowebcache.storage.TileEvent.Type;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueuedQuotaUpdatesProducerTest {
+
+    private LinkedBlockingQueue<QuotaUpdate> queue;
+
+    private QueuedQuotaUpdatesProducer producer;
+
+    @Before
+    public void setUp() {
+        queue = new LinkedBlockingQueue<QuotaUpdate>();
+        producer = new QueuedQuotaUpdatesProducer(new DiskQuotaConfig(), queue,
+                EasyMock.createMock(QuotaStore.class));
+    }
+
+    private static TileEvent event(Type type, long x, long blobSize, long oldSize) {
+        return new TileEvent(type, "layer", "EPSG:4326", "image/png", null, x, 0, 3, blobSize,
+                oldSize);
+    }
+
+    @Test
+    public void testBatches() {
+        producer.tilesStored(Arrays.asList(event(Type.STORED, 1, 100, 0),
+                event(Type.STORED, 2, 0, 0)));
+        producer.tilesUpdated(Arrays.asList(event(Type.UPDATED, 3, 50, 50),
+                event(Type.UPDATED, 4, 80, 50)));
+        producer.tilesDeleted(Arrays.asList(event(Type.DELETED, 5, 70, 0)));
+
+        // the empty tile and the same size update make no difference
+        assertEquals(3, queue.size());
+        QuotaUpdate update = queue.poll();
+        assertEquals(100, update.getSize());
+        assertArrayEquals(new long[] { 1, 0, 3 }, update.getTileIndex());
+        assertEquals(30, queue.poll().getSize());
+        assertEquals(-70, queue.poll().getSize());
+    }
+
+    @Test
+    public void testCancelled() {
+        producer.setCancelled(true);
+        producer.tilesStored(Arrays.asList(event(Type.STORED, 1, 100, 0)));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testAsyncDelivery() throws Exception {
+        AsyncBlobStoreListener listener = new AsyncBlobStoreListener(producer);
+        for (int i = 0; i < 100; i++) {
+            listener.tileStored("layer", "EPSG:4326", "image/png", null, i, 0, 3, 10);
+        }
+        assertTrue(listener.flush(10, TimeUnit.SECONDS));
+        listener.dispose();
+        assertEquals(100, queue.size());
+    }
+}
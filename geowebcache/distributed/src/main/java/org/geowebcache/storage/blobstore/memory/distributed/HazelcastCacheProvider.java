@@ -15,7 +15,8 @@
 package org.geowebcache.storage.blobstore.memory.distributed;
 
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,13 +29,10 @@ import org.geowebcache.storage.blobstore.memory.CacheStatistics;
 import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
 import org.springframework.beans.factory.DisposableBean;
 
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.IMap;
-import com.hazelcast.map.EntryBackupProcessor;
-import com.hazelcast.map.EntryProcessor;
 import com.hazelcast.monitor.LocalMapStats;
-import com.hazelcast.query.EntryObject;
-import com.hazelcast.query.Predicate;
-import com.hazelcast.query.PredicateBuilder;
 
 /**
  * This class is an implementation of the {@link CacheProvider} interface for a distributed configuration using Hazelcast. This class requires a
@@ -43,6 +41,10 @@ import com.hazelcast.query.PredicateBuilder;
  * result. There could happen that the number cache HITS is bigger than the number of total operations. This is caused by the fact that HITS number
  * indicates the number of hits on the local entries considering also the requests made by other cluster instances while the total operation count
  * indicates only the number of GET operations requested on the local cluster instance.
+ * <p>
+ * The tile keys are prefixed by the generation of their layer, kept in a second map. Removing a layer only increments its generation, so that
+ * its tiles can no longer be reached and are evicted like any other unused entry, instead of scanning the entries of the whole cluster. Each
+ * instance keeps a local copy of the generations, updated by a listener on the generations map.
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
@@ -54,6 +56,9 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
     /** Fixed name for the Hazelcast map */
     public static final String HAZELCAST_MAP_DEFINITION = "CacheProviderMap";
 
+    /** Fixed name for the Hazelcast map containing the generation of each layer */
+    public static final String HAZELCAST_LAYERS_DEFINITION = "CacheProviderLayers";
+
     /** Converter from Mb to Bytes */
     public static final long MB_TO_BYTES = 1048576;
 
@@ -63,6 +68,15 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
     /** Hazelcast {@link IMap} */
     private final IMap<String, TileObject> map;
 
+    /** Hazelcast {@link IMap} containing the generation of the layers whose tiles were removed */
+    private final IMap<String, Long> layers;
+
+    /** Local copy of the layer generations */
+    private final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<String, Long>();
+
+    /** Id of the listener updating the local generations */
+    private final String layersListenerId;
+
     /** Boolean indicating that the Cache has been configured */
     private final boolean configured;
 
@@ -75,6 +89,8 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
         // cacheProvider parameters are defined
         if (configured) {
             map = loader.getInstance().getMap(HAZELCAST_MAP_DEFINITION);
+            layers = loader.getInstance().getMap(HAZELCAST_LAYERS_DEFINITION);
+            layersListenerId = layers.addEntryListener(new GenerationsListener(generations), true);
             totalSize = loader.getInstance().getConfig().getMapConfig(HAZELCAST_MAP_DEFINITION)
                     .getMaxSizeConfig().getSize()
                     * MB_TO_BYTES;
@@ -83,6 +99,8 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             }
         } else {
             map = null;
+            layers = null;
+            layersListenerId = null;
             totalSize = 0;
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Hazelcast Cache not configured");
@@ -96,7 +114,7 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Getting TileObject:" + obj);
             }
-            String key = GuavaCacheProvider.generateTileKey(obj);
+            String key = generateTileKey(obj);
             return map.get(key);
         } else {
             if (LOGGER.isDebugEnabled()) {
@@ -112,8 +130,9 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Adding TileObject:" + obj);
             }
-            String key = GuavaCacheProvider.generateTileKey(obj);
-            map.put(key, obj);
+            String key = generateTileKey(obj);
+            // set() does not send back the previous value like put() does
+            map.set(key, obj);
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -127,8 +146,8 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Removing TileObject:" + obj);
             }
-            String key = GuavaCacheProvider.generateTileKey(obj);
-            map.remove(key);
+            String key = generateTileKey(obj);
+            map.delete(key);
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -142,13 +161,11 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Removing Layer:" + layername);
             }
-            // Creation of the Predicate
-            EntryObject e = new PredicateBuilder().getEntryObject();
-            Predicate predicate = e.get("layer_name").equal(layername);
-            // Creation of the processor
-            CacheEntryProcessor entryProcessor = new CacheEntryProcessor();
-            // Execution of the Processor
-            map.executeOnEntries(entryProcessor, predicate);
+            // The tiles of the previous generation can no longer be reached, they will be
+            // evicted as the least used entries
+            long generation = incrementGeneration(layername);
+            // the listener may have applied a later remove from another member already
+            updateGeneration(generations, layername, generation);
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -162,6 +179,7 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Clearing cache");
             }
+            // keep the layer generations, the tiles of the current ones are cleared anyway
             map.clear();
         } else {
             if (LOGGER.isDebugEnabled()) {
@@ -190,6 +208,7 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Destroying cache");
             }
+            layers.removeEntryListener(layersListenerId);
             map.destroy();
         } else {
             if (LOGGER.isDebugEnabled()) {
@@ -253,6 +272,75 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
         return HAZELCAST_NAME;
     }
 
+    /**
+     * Generates the key of a tile, prefixed by the generation of its layer
+     */
+    String generateTileKey(TileObject obj) {
+        return getGeneration(obj.getLayerName()) + "_" + GuavaCacheProvider.generateTileKey(obj);
+    }
+
+    private long getGeneration(String layername) {
+        return generations.computeIfAbsent(layername, name -> {
+            // first access to the layer on this instance
+            Long generation = layers.get(name);
+            return generation == null ? 0L : generation;
+        });
+    }
+
+    private long incrementGeneration(String layername) {
+        while (true) {
+            Long current = layers.get(layername);
+            if (current == null) {
+                if (layers.putIfAbsent(layername, 1L) == null) {
+                    return 1L;
+                }
+            } else if (layers.replace(layername, current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * Keeps the local copy of the layer generations up to date
+     */
+    static class GenerationsListener extends EntryAdapter<String, Long> {
+
+        private final ConcurrentMap<String, Long> generations;
+
+        GenerationsListener(ConcurrentMap<String, Long> generations) {
+            this.generations = generations;
+        }
+
+        @Override
+        public void entryAdded(EntryEvent<String, Long> event) {
+            updateGeneration(generations, event.getKey(), event.getValue());
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, Long> event) {
+            updateGeneration(generations, event.getKey(), event.getValue());
+        }
+    }
+
+    /**
+     * Sets the local generation of a layer, unless it already holds a later one. Updates may be
+     * applied out of order, generations only increase.
+     */
+    static void updateGeneration(ConcurrentMap<String, Long> generations, String layername,
+            Long generation) {
+        while (true) {
+            Long current = generations.get(layername);
+            if (current == null) {
+                if (generations.putIfAbsent(layername, generation) == null) {
+                    return;
+                }
+            } else if (current >= generation
+                    || generations.replace(layername, current, generation)) {
+                return;
+            }
+        }
+    }
+
     /**
      * {@link CacheStatistics} extensions used for handling local map statistics
      * 
@@ -290,25 +378,4 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             setEvictionCount(-1);
         }
     }
-
-    /**
-     * {@link EntryProcessor} implementation used for removing defined entries
-     * 
-     * @author Nicola Lagomarsini Geosolutions
-     */
-    static class CacheEntryProcessor implements EntryProcessor<String, TileObject> {
-
-        @Override
-        public Object process(Entry<String, TileObject> entry) {
-            // By setting the entry value to null the entry is evicted
-            entry.setValue(null);
-            return null;
-
-        }
-
-        @Override
-        public EntryBackupProcessor<String, TileObject> getBackupProcessor() {
-            return null;
-        }
-    }
 }
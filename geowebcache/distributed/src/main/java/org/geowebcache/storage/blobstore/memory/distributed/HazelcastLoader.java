@@ -23,12 +23,14 @@ import org.apache.commons.io.filefilter.NameFileFilter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Logger;
+import org.geowebcache.storage.TileObject;
 import org.springframework.beans.factory.InitializingBean;
 
 import com.hazelcast.config.Config;
 import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.MaxSizeConfig;
 import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.config.SerializerConfig;
 import com.hazelcast.config.XmlConfigBuilder;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -37,7 +39,8 @@ import com.hazelcast.core.HazelcastInstance;
  * This class is used for handling configuration of the Hazelcast cluster. User can directly inject an Hazelcast instance or can setup a file called
  * hazelcast.xml and define its directory with the hazelcast.config.dir Java property. Note that the configuration must contain a map with name
  * "CacheProviderMap" with a specific size in MB, an eviction policy equal to LRU or LFU. Also if NearCache is enabled, user must be careful that the
- * max size is not bigger or equal to Integer.MAX_VALUE
+ * max size is not bigger or equal to Integer.MAX_VALUE. The {@link TileObjectSerializer} is added to the configurations loaded from
+ * hazelcast.xml, injected instances should configure it themselves.
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
@@ -87,6 +90,7 @@ public class HazelcastLoader implements InitializingBean {
                             if (LOGGER.isDebugEnabled()) {
                                 LOGGER.debug("Hazelcast instance validated");
                             }
+                            addTileSerializer(config);
                             instance = Hazelcast.newHazelcastInstance(config);
                         } else {
                             if (LOGGER.isInfoEnabled()) {
@@ -98,6 +102,13 @@ public class HazelcastLoader implements InitializingBean {
             }
         } else if (!configAccepted(instance.getConfig())) {
             instance = null;
+        } else if (!hasTileSerializer(instance.getConfig())) {
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("No serializer configured for the TileObjects, "
+                        + "Java serialization will be used. Consider adding "
+                        + TileObjectSerializer.class.getName()
+                        + " to the serialization configuration");
+            }
         }
         if (LOGGER.isDebugEnabled() && instance == null) {
             LOGGER.debug("Hazelcast instance invalid or not found");
@@ -174,4 +185,25 @@ public class HazelcastLoader implements InitializingBean {
 
         return configAccepted;
     }
+
+    /**
+     * Registers the {@link TileObjectSerializer} on a configuration loaded from file, unless a
+     * serializer for the {@link TileObject}s is already configured
+     */
+    private void addTileSerializer(Config config) {
+        if (!hasTileSerializer(config)) {
+            config.getSerializationConfig().addSerializerConfig(TileObjectSerializer.newConfig());
+        }
+    }
+
+    private boolean hasTileSerializer(Config config) {
+        for (SerializerConfig serializerConfig : config.getSerializationConfig()
+                .getSerializerConfigs()) {
+            if (TileObject.class.equals(serializerConfig.getTypeClass())
+                    || TileObject.class.getName().equals(serializerConfig.getTypeClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
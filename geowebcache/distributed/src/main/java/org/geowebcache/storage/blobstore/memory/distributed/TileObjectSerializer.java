@@ -0,0 +1,158 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.distributed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.TileObject;
+
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+/**
+ * Hazelcast serializer for the {@link TileObject}s stored by the {@link HazelcastCacheProvider}.
+ * It writes the tile fields and contents directly, rather than the Java serialization of the
+ * object graph with its class descriptors. The {@link HazelcastLoader} registers it on the
+ * configurations it loads; it must be registered on all the members of the cluster.
+ *
+ * @see #newConfig()
+ */
+public class TileObjectSerializer implements StreamSerializer<TileObject> {
+
+    /** Hazelcast type id, unique among the custom serializers of the cluster */
+    public static final int TYPE_ID = 0x6777;
+
+    /** Version of the format, written first to allow changing it */
+    private static final byte VERSION = 1;
+
+    /**
+     * @return the configuration registering this serializer for {@link TileObject}s
+     */
+    public static SerializerConfig newConfig() {
+        return new SerializerConfig().setTypeClass(TileObject.class).setImplementation(
+                new TileObjectSerializer());
+    }
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void write(ObjectDataOutput out, TileObject tile) throws IOException {
+        out.writeByte(VERSION);
+        writeString(out, tile.getLayerName());
+        writeString(out, tile.getGridSetId());
+        writeString(out, tile.getBlobFormat());
+        writeString(out, tile.getParametersId());
+        long[] xyz = tile.getXYZ();
+        out.writeLong(xyz[0]);
+        out.writeLong(xyz[1]);
+        out.writeLong(xyz[2]);
+        out.writeLong(tile.getCreated());
+
+        Map<String, String> parameters = tile.getParameters();
+        if (parameters == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(parameters.size());
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+
+        Resource blob = tile.getBlob();
+        if (blob == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] contents;
+            if (blob instanceof ByteArrayResource) {
+                contents = ((ByteArrayResource) blob).getContents();
+                if (contents == null) {
+                    contents = new byte[0];
+                }
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                blob.transferTo(Channels.newChannel(bytes));
+                contents = bytes.toByteArray();
+            }
+            out.writeInt(contents.length);
+            out.write(contents);
+            out.writeLong(blob.getLastModified());
+        }
+    }
+
+    @Override
+    public TileObject read(ObjectDataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported tile serialization version " + version);
+        }
+        String layerName = readString(in);
+        String gridSetId = readString(in);
+        String format = readString(in);
+        String parametersId = readString(in);
+        long[] xyz = { in.readLong(), in.readLong(), in.readLong() };
+        long created = in.readLong();
+
+        Map<String, String> parameters = null;
+        int size = in.readInt();
+        if (size >= 0) {
+            parameters = new HashMap<String, String>(size * 2);
+            for (int i = 0; i < size; i++) {
+                parameters.put(readString(in), readString(in));
+            }
+        }
+
+        ByteArrayResource blob = null;
+        int length = in.readInt();
+        if (length >= 0) {
+            byte[] contents = new byte[length];
+            in.readFully(contents);
+            blob = new ByteArrayResource(contents);
+            blob.setLastModified(in.readLong());
+        }
+
+        TileObject tile = TileObject.createCompleteTileObject(layerName, xyz, gridSetId, format,
+                parameters, blob);
+        tile.setParametersId(parametersId);
+        tile.setCreated(created);
+        return tile;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static void writeString(ObjectDataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(ObjectDataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
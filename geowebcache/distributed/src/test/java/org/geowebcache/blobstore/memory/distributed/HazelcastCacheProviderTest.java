@@ -201,6 +201,42 @@ public class HazelcastCacheProviderTest {
         assertNull(to6);
     }
 
+    @Test
+    public void testLayerRemove() throws Exception {
+        // Clearing cache
+        cache1.clear();
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        long[] xyz = { 1L, 2L, 3L };
+        TileObject to = TileObject.createCompleteTileObject("test:removed", xyz, "EPSG:4326",
+                "image/png", null, bytes);
+        TileObject other = TileObject.createCompleteTileObject("test:kept", xyz, "EPSG:4326",
+                "image/png", null, bytes);
+        cache1.putTileObj(to);
+        cache1.putTileObj(other);
+        assertNotNull(cache2.getTileObj(to));
+
+        // Remove the layer from the other instance
+        cache2.removeLayer("test:removed");
+
+        assertNull(cache2.getTileObj(to));
+        assertNotNull(cache2.getTileObj(other));
+        // the first instance is notified asynchronously
+        long timeout = System.currentTimeMillis() + 10000;
+        while (cache1.getTileObj(to) != null && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertNull(cache1.getTileObj(to));
+        assertNotNull(cache1.getTileObj(other));
+
+        // The layer can be cached again
+        cache1.putTileObj(to);
+        TileObject cached = cache2.getTileObj(to);
+        assertNotNull(cached);
+        checkInputStreams(bytes.getInputStream(), cached.getBlob().getInputStream());
+        assertEquals("image/png", cached.getBlobFormat());
+    }
+
     @AfterClass
     public static void afterClass() throws Exception {
         // Blobstore destroy
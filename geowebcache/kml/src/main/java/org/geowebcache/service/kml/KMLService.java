@@ -19,6 +19,10 @@ package org.geowebcache.service.kml;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -43,6 +47,11 @@ import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * The flow through this service is roughly as follows:
@@ -52,7 +61,7 @@ import org.geowebcache.storage.StorageBroker;
  * Overlay (possibly KMZ with packaged data) -> handleOverlay() -> check cache, or call
  * createOverlay and package
  */
-public class KMLService extends Service {
+public class KMLService extends Service implements DisposableBean {
     private static Log log = LogFactory.getLog(org.geowebcache.service.kml.KMLService.class);
 
     public static final String SERVICE_KML = "kml";
@@ -71,6 +80,18 @@ public class KMLService extends Service {
 
     private RuntimeStats stats;
 
+    // Threads checking whether the children of an overlay have data, shared by all requests
+    private int linkCheckThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+    // Seconds to remember whether a tile has data, 0 not to remember
+    private int linkCacheExpiration = 300;
+
+    private int linkCacheSize = 100000;
+
+    private ExecutorService linkCheckExecutor;
+
+    private Cache<String, Boolean> linkCache;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -467,7 +488,7 @@ public class KMLService extends Service {
      * @return
      * @throws ServiceException
      */
-    private static String createOverlay(ConveyorKMLTile tile, boolean isPackaged)
+    private String createOverlay(ConveyorKMLTile tile, boolean isPackaged)
             throws ServiceException, GeoWebCacheException {
         boolean isRaster = (tile.getMimeType() instanceof ImageMime);
 
@@ -502,7 +523,8 @@ public class KMLService extends Service {
 
         // 3) Apply secondary filter against linking to empty tiles
         linkGridLocs = KMZHelper.filterGridLocs(tile.getStorageBroker(), tileLayer,
-                gridSubset.getName(), tile.getMimeType(), linkGridLocs);
+                gridSubset.getName(), tile.getMimeType(), linkGridLocs, getLinkCheckExecutor(),
+                getLinkCache());
 
         // int moreData = 0;
         for (int i = 0; i < 4; i++) {
@@ -707,4 +729,61 @@ public class KMLService extends Service {
         double dz = p1[2] - p2[2];
         return Math.sqrt(dx * dx + dy * dy + dz * dz);
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the number of threads checking whether the children of an overlay have data, shared by
+     * all requests. 1 or less checks them on the request thread.
+     */
+    public void setLinkCheckThreads(int linkCheckThreads) {
+        this.linkCheckThreads = linkCheckThreads;
+    }
+
+    /**
+     * Sets how long, in seconds, to remember whether a tile has data before checking it again. 0
+     * or less checks the children of every overlay requested.
+     */
+    public void setLinkCacheExpiration(int linkCacheExpiration) {
+        this.linkCacheExpiration = linkCacheExpiration;
+    }
+
+    /**
+     * Sets the maximum number of tiles to remember whether they have data
+     */
+    public void setLinkCacheSize(int linkCacheSize) {
+        this.linkCacheSize = linkCacheSize;
+    }
+
+    private synchronized ExecutorService getLinkCheckExecutor() {
+        if (linkCheckExecutor == null && linkCheckThreads > 1) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                    "GWC KML Link Check-");
+            threadFactory.setDaemon(true);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(linkCheckThreads,
+                    linkCheckThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    threadFactory);
+            executor.allowCoreThreadTimeOut(true);
+            linkCheckExecutor = executor;
+        }
+        return linkCheckExecutor;
+    }
+
+    private synchronized Cache<String, Boolean> getLinkCache() {
+        if (linkCache == null && linkCacheExpiration > 0 && linkCacheSize > 0) {
+            linkCache = CacheBuilder.newBuilder().maximumSize(linkCacheSize)
+                    .expireAfterWrite(linkCacheExpiration, TimeUnit.SECONDS).build();
+        }
+        return linkCache;
+    }
+
+    /**
+     * Stops the threads checking the children of overlays
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public synchronized void destroy() {
+        if (linkCheckExecutor != null) {
+            linkCheckExecutor.shutdownNow();
+            linkCheckExecutor = null;
+        }
+    }
+}
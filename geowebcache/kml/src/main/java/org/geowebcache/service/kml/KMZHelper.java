@@ -21,6 +21,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -35,8 +41,11 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
 import org.geowebcache.service.ServiceException;
+import org.geowebcache.stats.RequestTrace;
 import org.geowebcache.storage.StorageBroker;
 
+import com.google.common.cache.Cache;
+
 /**
  * Just a helper class for KMZ experimentation stuff
  * 
@@ -63,51 +72,149 @@ public class KMZHelper {
     public static long[][] filterGridLocs(StorageBroker sb, TileLayer tileLayer,
             String gridSetId, MimeType mime, long[][] linkGridLocs) 
     throws GeoWebCacheException {
-        
-        for(int i=0;i<linkGridLocs.length; i++) {
-            if(linkGridLocs[i][2] > 0) {
-                
-                ConveyorTile tile = new ConveyorTile(sb,
-                        tileLayer.getName(), gridSetId, 
-                        linkGridLocs[i], mime, null, null, null);
-                
-                tile.setTileLayer(tileLayer);
-                
-                // Apply request filters
-                try {
-                    tileLayer.applyRequestFilters(tile);
-                } catch(GreenTileException e) {
-                    // We will link to this one
-                } catch(RequestFilterException e) {
+        return filterGridLocs(sb, tileLayer, gridSetId, mime, linkGridLocs, null, null);
+    }
+
+    /**
+     * Filters the given gridlocations, marking the ones without data with a -1 zoom level.
+     * 
+     * The locations that are not in the cache of answers are checked together, in parallel if an
+     * executor is provided. For regionated KML each check is an actual tile request.
+     * 
+     * @param executor checks the locations in parallel, or {@code null} to check them on the
+     *        calling thread
+     * @param hasData the answers of previous checks, by {@link #hasDataKey}, or {@code null}
+     * @return linkGridLocs
+     */
+    public static long[][] filterGridLocs(final StorageBroker sb, final TileLayer tileLayer,
+            final String gridSetId, final MimeType mime, long[][] linkGridLocs,
+            ExecutorService executor, Cache<String, Boolean> hasData)
+    throws GeoWebCacheException {
+
+        List<Integer> unknown = new ArrayList<Integer>(linkGridLocs.length);
+        String[] keys = new String[linkGridLocs.length];
+        for (int i = 0; i < linkGridLocs.length; i++) {
+            if (linkGridLocs[i][2] > 0) {
+                keys[i] = hasDataKey(tileLayer, gridSetId, mime, linkGridLocs[i]);
+                Boolean cached = hasData == null ? null : hasData.getIfPresent(keys[i]);
+                if (cached == null) {
+                    unknown.add(i);
+                } else if (!cached) {
                     linkGridLocs[i][2] = -1;
-                    continue;
                 }
-                
-                // Special treatment for regionated KML
-                if (mime.equals(XMLMime.kml)) {
-                    try {
-                        tileLayer.getTile(tile);
-                    } catch (IOException ioe) {
-                        log.error(ioe.getMessage());
-                        linkGridLocs[i][2] = -1;
-                    } catch (GeoWebCacheException gwce) {
-                        linkGridLocs[i][2] = -1;
-                    }
+            }
+        }
+        if (unknown.isEmpty()) {
+            return linkGridLocs;
+        }
 
-                    // If it's a 204 it means no content -> don't link to it
-                    if (tile.getStatus() == 204) {
-                        linkGridLocs[i][2] = -1;
-                    } else if (tile.getStatus() != 200) {
-                        throw new GeoWebCacheException(
-                                "Unexpected response code from server "
-                                + tile.getStatus());
+        Boolean[] results = new Boolean[linkGridLocs.length];
+        if (executor == null || unknown.size() == 1) {
+            for (int i : unknown) {
+                results[i] = hasData(sb, tileLayer, gridSetId, mime, linkGridLocs[i]);
+            }
+        } else {
+            // the calling thread checks the first location while the pool does the others
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(unknown.size());
+            final RequestTrace trace = RequestTrace.current();
+            for (int i : unknown.subList(1, unknown.size())) {
+                final long[] gridLoc = linkGridLocs[i];
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        RequestTrace.bind(trace);
+                        try {
+                            return hasData(sb, tileLayer, gridSetId, mime, gridLoc);
+                        } finally {
+                            RequestTrace.bind(null);
+                        }
                     }
+                }));
+            }
+            try {
+                int first = unknown.get(0);
+                results[first] = hasData(sb, tileLayer, gridSetId, mime, linkGridLocs[first]);
+                for (int j = 0; j < futures.size(); j++) {
+                    results[unknown.get(j + 1)] = futures.get(j).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted while filtering grid locations");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GeoWebCacheException) {
+                    throw (GeoWebCacheException) e.getCause();
+                }
+                throw new GeoWebCacheException(e.getCause());
+            } finally {
+                for (Future<Boolean> future : futures) {
+                    future.cancel(false);
                 }
             }
         }
-        
+
+        for (int i : unknown) {
+            if (results[i] == null || !results[i]) {
+                linkGridLocs[i][2] = -1;
+            }
+            // failures may be transient, don't remember them
+            if (results[i] != null && hasData != null) {
+                hasData.put(keys[i], results[i]);
+            }
+        }
         return linkGridLocs;
     }
+
+    /**
+     * @return the key of a tile in the cache of {@link #filterGridLocs} answers
+     */
+    static String hasDataKey(TileLayer tileLayer, String gridSetId, MimeType mime, long[] gridLoc) {
+        return tileLayer.getName() + "/" + gridSetId + "/" + mime.getFormat() + "/" + gridLoc[0]
+                + "/" + gridLoc[1] + "/" + gridLoc[2];
+    }
+
+    /**
+     * Checks whether a network link should point to the given tile
+     * 
+     * @return whether the tile has data, or {@code null} if it could not be determined
+     */
+    private static Boolean hasData(StorageBroker sb, TileLayer tileLayer, String gridSetId,
+            MimeType mime, long[] gridLoc) throws GeoWebCacheException {
+        ConveyorTile tile = new ConveyorTile(sb,
+                tileLayer.getName(), gridSetId, 
+                gridLoc, mime, null, null, null);
+        
+        tile.setTileLayer(tileLayer);
+        
+        // Apply request filters
+        try {
+            tileLayer.applyRequestFilters(tile);
+        } catch(GreenTileException e) {
+            // We will link to this one
+        } catch(RequestFilterException e) {
+            return Boolean.FALSE;
+        }
+        
+        // Special treatment for regionated KML
+        if (mime.equals(XMLMime.kml)) {
+            try {
+                tileLayer.getTile(tile);
+            } catch (IOException ioe) {
+                log.error(ioe.getMessage());
+                return null;
+            } catch (GeoWebCacheException gwce) {
+                return null;
+            }
+
+            // If it's a 204 it means no content -> don't link to it
+            if (tile.getStatus() == 204) {
+                return Boolean.FALSE;
+            } else if (tile.getStatus() != 200) {
+                throw new GeoWebCacheException(
+                        "Unexpected response code from server "
+                        + tile.getStatus());
+            }
+        }
+        return Boolean.TRUE;
+    }
     
     /**
      * 
@@ -0,0 +1,65 @@
+package org.geowebcache.service.kml;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.XMLMime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+public class KMZHelperTest extends TestCase {
+
+    private TileLayer layer;
+
+    private GridSubset gridSubset;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        layer = KMLDebugGridLayer.getInstance();
+        gridSubset = layer.getGridSubset(layer.getGridSubsets().iterator().next());
+    }
+
+    public void testFilterGridLocs() throws Exception {
+        long[][] linkGridLocs = gridSubset.getSubGrid(new long[] { 0, 0, 0 });
+
+        KMZHelper.filterGridLocs(null, layer, gridSubset.getName(), XMLMime.kml, linkGridLocs);
+
+        for (long[] gridLoc : linkGridLocs) {
+            assertEquals(1, gridLoc[2]);
+        }
+    }
+
+    public void testFilterGridLocsCached() throws Exception {
+        long[][] linkGridLocs = gridSubset.getSubGrid(new long[] { 0, 0, 0 });
+        String gridSetId = gridSubset.getName();
+
+        String[] keys = new String[linkGridLocs.length];
+        for (int i = 0; i < linkGridLocs.length; i++) {
+            keys[i] = KMZHelper.hasDataKey(layer, gridSetId, XMLMime.kml, linkGridLocs[i]);
+        }
+        Cache<String, Boolean> hasData = CacheBuilder.newBuilder().build();
+        hasData.put(keys[0], false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            KMZHelper.filterGridLocs(null, layer, gridSetId, XMLMime.kml, linkGridLocs, executor,
+                    hasData);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the cached answer is used, the others are checked and remembered
+        assertEquals(-1, linkGridLocs[0][2]);
+        assertEquals(Boolean.FALSE, hasData.getIfPresent(keys[0]));
+        for (int i = 1; i < linkGridLocs.length; i++) {
+            assertEquals(1, linkGridLocs[i][2]);
+            assertEquals(Boolean.TRUE, hasData.getIfPresent(keys[i]));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.health;
+
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.rest.GWCRestlet;
+import org.geowebcache.rest.RestletException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+
+/**
+ * Reports whether all the layers are initialized and ready to be served, answering with a
+ * {@code 503 Service Unavailable} status while some are still being initialized in the
+ * background, or if some failed to initialize, so that it can be used as a readiness probe.
+ */
+public class HealthRestlet extends GWCRestlet {
+
+    private final TileLayerDispatcher layerDispatcher;
+
+    public HealthRestlet(TileLayerDispatcher layerDispatcher) {
+        this.layerDispatcher = layerDispatcher;
+    }
+
+    public void handle(Request request, Response response) {
+        try {
+            if (!request.getMethod().equals(Method.GET)) {
+                throw new RestletException("Method not allowed",
+                        Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+            }
+            String extension = (String) request.getAttributes().get("extension");
+            if (!"json".equals(extension)) {
+                throw new RestletException("Unknown or missing format extension : " + extension,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+            int pending = layerDispatcher.getPendingLayerCount();
+            int failed = layerDispatcher.getFailedLayerCount();
+            boolean ready = pending == 0 && failed == 0;
+            JSONObject json = new JSONObject();
+            json.put("ready", ready);
+            json.put("layers", layerDispatcher.getLayerCount());
+            json.put("pendingLayers", pending);
+            json.put("failedLayers", failed);
+            response.setEntity(new JsonRepresentation(json));
+            response.setStatus(ready ? Status.SUCCESS_OK
+                    : Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+        } catch (RestletException re) {
+            response.setEntity(re.getRepresentation());
+            response.setStatus(re.getStatus());
+        } catch (JSONException e) {
+            response.setEntity(e.getMessage(), MediaType.TEXT_PLAIN);
+            response.setStatus(Status.SERVER_ERROR_INTERNAL);
+        }
+    }
+}
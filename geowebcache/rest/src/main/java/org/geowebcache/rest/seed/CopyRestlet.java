@@ -0,0 +1,116 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.seed;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.rest.GWCRestlet;
+import org.geowebcache.rest.RestletException;
+import org.geowebcache.seed.CopyTask;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.CompositeBlobStore;
+import org.geowebcache.storage.StorageException;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+/**
+ * Starts the copy of a whole layer from its current blob store to another one, through the
+ * {@link TileBreeder}, optionally switching the layer to the target store once copied.
+ * <p>
+ * The form posted to {@code /rest/copy/{layer}} holds the {@code target} blob store id, and
+ * optionally {@code switch}, {@code verify} and {@code resume}, see {@link CopyTask}.
+ * </p>
+ */
+public class CopyRestlet extends GWCRestlet {
+
+    private static Log log = LogFactory.getLog(CopyRestlet.class);
+
+    private final TileLayerDispatcher layerDispatcher;
+
+    private final CompositeBlobStore blobStore;
+
+    private final TileBreeder breeder;
+
+    public CopyRestlet(TileLayerDispatcher layerDispatcher, CompositeBlobStore blobStore,
+            TileBreeder breeder) {
+        this.layerDispatcher = layerDispatcher;
+        this.blobStore = blobStore;
+        this.breeder = breeder;
+    }
+
+    public void handle(Request request, Response response) {
+        try {
+            if (!request.getMethod().equals(Method.POST)) {
+                throw new RestletException("Method not allowed",
+                        Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+            }
+            doPost(request, response);
+        } catch (RestletException re) {
+            response.setEntity(re.getRepresentation());
+            response.setStatus(re.getStatus());
+        }
+    }
+
+    public void doPost(Request req, Response resp) throws RestletException {
+        final String layerName = (String) req.getAttributes().get("layer");
+        Form form = req.getEntityAsForm();
+        String targetStoreId = form == null ? null : form.getFirstValue("target");
+        if (layerName == null || targetStoreId == null || targetStoreId.isEmpty()) {
+            throw new RestletException("A layer and a target blob store are required",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+
+        TileLayer layer;
+        try {
+            layer = layerDispatcher.getTileLayer(layerName);
+        } catch (GeoWebCacheException e) {
+            throw new RestletException(e.getMessage(), Status.CLIENT_ERROR_NOT_FOUND);
+        }
+
+        CopyTask task;
+        try {
+            BlobStore source = blobStore.getBlobStore(layer.getBlobStoreId());
+            BlobStore target = blobStore.getBlobStore(targetStoreId);
+            task = new CopyTask(layer, source, target);
+            task.setVerify(parseBoolean(form, "verify", true));
+            task.setResume(parseBoolean(form, "resume", true));
+            if (parseBoolean(form, "switch", false)) {
+                task.setSwitchBlobStore(blobStore, targetStoreId);
+            }
+        } catch (StorageException | IllegalArgumentException e) {
+            throw new RestletException(e.getMessage(), Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+
+        breeder.dispatchTasks(new GWCTask[] { task });
+        log.info("Dispatched copy task " + task.getTaskId() + " of layer " + layerName
+                + " to blob store " + targetStoreId);
+        resp.setEntity("Copy of layer " + layerName + " to blob store " + targetStoreId
+                + " started as task " + task.getTaskId(), MediaType.TEXT_PLAIN);
+    }
+
+    private static boolean parseBoolean(Form form, String name, boolean defaultValue) {
+        String value = form.getFirstValue(name);
+        return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -760,6 +760,10 @@ public class SeedFormRestlet extends GWCRestlet {
         }
 
         TYPE type = GWCTask.TYPE.valueOf(form.getFirst("type").getValue().toUpperCase());
+        if (type == TYPE.COPY) {
+            throw new RestletException("Copy tasks can't be started from the seed form",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
 
         final String layerName = tl.getName();
         SeedRequest sr = new SeedRequest(layerName, bounds, gridSetId, threadCount, zoomStart,
@@ -0,0 +1,103 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.statistics;
+
+import java.util.Map;
+
+import org.geowebcache.rest.GWCRestlet;
+import org.geowebcache.rest.RestletException;
+import org.geowebcache.stats.LatencyPercentiles;
+import org.geowebcache.stats.RuntimeStats;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.resource.Representation;
+
+/**
+ * Reports the response time percentiles of the {@link RuntimeStats}, per service, layer and cache
+ * result, and the time spent in each stage of the tile pipeline by the traced requests, for each of
+ * the configured intervals. Times are in microseconds.
+ */
+public class RuntimeStatsRestlet extends GWCRestlet {
+
+    private final RuntimeStats runtimeStats;
+
+    public RuntimeStatsRestlet(RuntimeStats runtimeStats) {
+        this.runtimeStats = runtimeStats;
+    }
+
+    public void handle(Request request, Response response) {
+        try {
+            if (!request.getMethod().equals(Method.GET)) {
+                throw new RestletException("Method not allowed",
+                        Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+            }
+            String extension = (String) request.getAttributes().get("extension");
+            if (!"json".equals(extension)) {
+                throw new RestletException("Unknown or missing format extension : " + extension,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+            response.setEntity(doGetInternal());
+            response.setStatus(Status.SUCCESS_OK);
+        } catch (RestletException re) {
+            response.setEntity(re.getRepresentation());
+            response.setStatus(re.getStatus());
+        } catch (JSONException e) {
+            response.setEntity(e.getMessage(), MediaType.TEXT_PLAIN);
+            response.setStatus(Status.SERVER_ERROR_INTERNAL);
+        }
+    }
+
+    protected Representation doGetInternal() throws JSONException {
+        int[] intervals = runtimeStats.getIntervals();
+        String[] descriptions = runtimeStats.getIntervalDescriptions();
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < intervals.length; i++) {
+            JSONObject interval = new JSONObject();
+            interval.put("interval", intervals[i]);
+            interval.put("description", descriptions[i]);
+            interval.put("services", toJSON(runtimeStats.getServiceLatencies(intervals[i])));
+            interval.put("cacheResults",
+                    toJSON(runtimeStats.getCacheResultLatencies(intervals[i])));
+            interval.put("layers", toJSON(runtimeStats.getLayerLatencies(intervals[i])));
+            interval.put("stages", toJSON(runtimeStats.getStageLatencies(intervals[i])));
+            array.put(interval);
+        }
+        JSONObject json = new JSONObject();
+        json.put("latencies", array);
+        return new JsonRepresentation(json);
+    }
+
+    private JSONObject toJSON(Map<String, LatencyPercentiles> latencies) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, LatencyPercentiles> entry : latencies.entrySet()) {
+            LatencyPercentiles percentiles = entry.getValue();
+            JSONObject obj = new JSONObject();
+            obj.put("count", percentiles.getCount());
+            obj.put("p50", percentiles.getP50());
+            obj.put("p95", percentiles.getP95());
+            obj.put("p99", percentiles.getP99());
+            json.put(entry.getKey(), obj);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+public class HealthRestletTest {
+
+    private Response get(TileLayerDispatcher tld) {
+        Request request = new Request();
+        request.setMethod(Method.GET);
+        request.getAttributes().put("extension", "json");
+        Response response = new Response(request);
+        new HealthRestlet(tld).handle(request, response);
+        return response;
+    }
+
+    @Test
+    public void testReady() throws Exception {
+        TileLayerDispatcher tld = EasyMock.createMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getPendingLayerCount()).andReturn(0);
+        EasyMock.expect(tld.getFailedLayerCount()).andReturn(0);
+        EasyMock.expect(tld.getLayerCount()).andReturn(12);
+        EasyMock.replay(tld);
+
+        Response response = get(tld);
+        assertEquals(Status.SUCCESS_OK, response.getStatus());
+        JSONObject json = new JSONObject(response.getEntity().getText());
+        assertTrue(json.getBoolean("ready"));
+        assertEquals(12, json.getInt("layers"));
+        assertEquals(0, json.getInt("pendingLayers"));
+        assertEquals(0, json.getInt("failedLayers"));
+        EasyMock.verify(tld);
+    }
+
+    @Test
+    public void testInitializing() throws Exception {
+        TileLayerDispatcher tld = EasyMock.createMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getPendingLayerCount()).andReturn(5);
+        EasyMock.expect(tld.getFailedLayerCount()).andReturn(0);
+        EasyMock.expect(tld.getLayerCount()).andReturn(12);
+        EasyMock.replay(tld);
+
+        Response response = get(tld);
+        assertEquals(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, response.getStatus());
+        JSONObject json = new JSONObject(response.getEntity().getText());
+        assertFalse(json.getBoolean("ready"));
+        assertEquals(5, json.getInt("pendingLayers"));
+    }
+
+    @Test
+    public void testFailedLayers() throws Exception {
+        TileLayerDispatcher tld = EasyMock.createMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getPendingLayerCount()).andReturn(0);
+        EasyMock.expect(tld.getFailedLayerCount()).andReturn(1);
+        EasyMock.expect(tld.getLayerCount()).andReturn(11);
+        EasyMock.replay(tld);
+
+        Response response = get(tld);
+        assertEquals(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, response.getStatus());
+        JSONObject json = new JSONObject(response.getEntity().getText());
+        assertFalse(json.getBoolean("ready"));
+        assertEquals(1, json.getInt("failedLayers"));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.seed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.seed.CopyTask;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.CompositeBlobStore;
+import org.geowebcache.storage.StorageException;
+import org.junit.Before;
+import org.junit.Test;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+public class CopyRestletTest {
+
+    private TileLayerDispatcher tld;
+
+    private CompositeBlobStore composite;
+
+    private List<GWCTask> dispatched = new ArrayList<GWCTask>();
+
+    private CopyRestlet restlet;
+
+    @Before
+    public void setUp() throws Exception {
+        TileLayer layer = EasyMock.createNiceMock(TileLayer.class);
+        EasyMock.expect(layer.getName()).andStubReturn("layer");
+        EasyMock.expect(layer.getBlobStoreId()).andStubReturn("source");
+        EasyMock.expect(layer.getGridSubsets()).andStubReturn(Collections.<String> emptySet());
+        EasyMock.replay(layer);
+        tld = EasyMock.createNiceMock(TileLayerDispatcher.class);
+        EasyMock.expect(tld.getTileLayer("layer")).andStubReturn(layer);
+        EasyMock.replay(tld);
+
+        composite = EasyMock.createNiceMock(CompositeBlobStore.class);
+        EasyMock.expect(composite.getBlobStore("source")).andStubReturn(
+                EasyMock.createNiceMock(BlobStore.class));
+        EasyMock.expect(composite.getBlobStore("target")).andStubReturn(
+                EasyMock.createNiceMock(BlobStore.class));
+        EasyMock.expect(composite.getBlobStore("unknown")).andStubThrow(
+                new StorageException("No BlobStore with id 'unknown' found"));
+        EasyMock.replay(composite);
+
+        TileBreeder breeder = new TileBreeder() {
+            @Override
+            public void dispatchTasks(GWCTask[] tasks) {
+                Collections.addAll(dispatched, tasks);
+            }
+        };
+        restlet = new CopyRestlet(tld, composite, breeder);
+    }
+
+    private Response post(String form) {
+        Request request = new Request();
+        request.setMethod(Method.POST);
+        request.getAttributes().put("layer", "layer");
+        request.setEntity(new Form(form).getWebRepresentation());
+        Response response = new Response(request);
+        restlet.handle(request, response);
+        return response;
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        Response response = post("target=target&switch=true");
+        assertEquals(Status.SUCCESS_OK, response.getStatus());
+        assertEquals(1, dispatched.size());
+        assertTrue(dispatched.get(0) instanceof CopyTask);
+        assertEquals(GWCTask.TYPE.COPY, dispatched.get(0).getType());
+        assertEquals("layer", dispatched.get(0).getLayerName());
+    }
+
+    @Test
+    public void testMissingTarget() throws Exception {
+        Response response = post("switch=true");
+        assertEquals(Status.CLIENT_ERROR_BAD_REQUEST, response.getStatus());
+        assertTrue(dispatched.isEmpty());
+    }
+
+    @Test
+    public void testUnknownTarget() throws Exception {
+        Response response = post("target=unknown");
+        assertEquals(Status.CLIENT_ERROR_BAD_REQUEST, response.getStatus());
+        assertTrue(dispatched.isEmpty());
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.rest.statistics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.stats.LatencyPercentiles;
+import org.geowebcache.stats.RuntimeStats;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+public class RuntimeStatsRestletTest {
+
+    @Test
+    public void testLatenciesJSON() throws Exception {
+        SortedMap<String, LatencyPercentiles> services = new TreeMap<>();
+        services.put("wms", new LatencyPercentiles(10, 1000, 2000, 3000));
+        SortedMap<String, LatencyPercentiles> stages = new TreeMap<>();
+        stages.put("BACKEND", new LatencyPercentiles(2, 500, 900, 900));
+
+        RuntimeStats stats = EasyMock.createMock(RuntimeStats.class);
+        EasyMock.expect(stats.getIntervals()).andReturn(new int[] { 60 });
+        EasyMock.expect(stats.getIntervalDescriptions()).andReturn(new String[] { "1 minute" });
+        EasyMock.expect(stats.getServiceLatencies(60)).andReturn(services);
+        EasyMock.expect(stats.getCacheResultLatencies(60))
+                .andReturn(Collections.<String, LatencyPercentiles> emptySortedMap());
+        EasyMock.expect(stats.getLayerLatencies(60))
+                .andReturn(Collections.<String, LatencyPercentiles> emptySortedMap());
+        EasyMock.expect(stats.getStageLatencies(60)).andReturn(stages);
+        EasyMock.replay(stats);
+
+        Request request = new Request();
+        request.setMethod(Method.GET);
+        request.getAttributes().put("extension", "json");
+        Response response = new Response(request);
+        new RuntimeStatsRestlet(stats).handle(request, response);
+
+        assertEquals(Status.SUCCESS_OK, response.getStatus());
+        JSONObject interval = new JSONObject(response.getEntity().getText())
+                .getJSONArray("latencies").getJSONObject(0);
+        assertEquals(60, interval.getInt("interval"));
+        assertEquals("1 minute", interval.getString("description"));
+        JSONObject wms = interval.getJSONObject("services").getJSONObject("wms");
+        assertEquals(10, wms.getLong("count"));
+        assertEquals(1000, wms.getLong("p50"));
+        assertEquals(2000, wms.getLong("p95"));
+        assertEquals(3000, wms.getLong("p99"));
+        assertEquals(0, interval.getJSONObject("layers").length());
+        JSONObject backend = interval.getJSONObject("stages").getJSONObject("BACKEND");
+        assertEquals(2, backend.getLong("count"));
+        assertEquals(500, backend.getLong("p50"));
+        EasyMock.verify(stats);
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        Request request = new Request();
+        request.setMethod(Method.GET);
+        request.getAttributes().put("extension", "xml");
+        Response response = new Response(request);
+        new RuntimeStatsRestlet(EasyMock.createMock(RuntimeStats.class)).handle(request, response);
+
+        assertEquals(Status.CLIENT_ERROR_BAD_REQUEST, response.getStatus());
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.s3;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import org.geowebcache.storage.StorageException;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded pipeline of tile uploads to S3.
+ * <p>
+ * Uploads are run by a fixed number of threads off a bounded queue. When the queue is full the
+ * storing thread runs the upload itself, which throttles producers (e.g. seeding threads saving
+ * meta tiles) down to what the connection pool can sustain instead of growing the backlog
+ * unbounded.
+ * <p>
+ * The contents of queued uploads are kept by key until the upload finished, so that
+ * {@link S3BlobStore#get} sees the tiles it was just asked to store. Deletes
+ * {@link #cancel(String) cancel} the uploads of the tiles they remove, so that a queued upload
+ * does not write a deleted tile back.
+ * <p>
+ * Failed uploads are logged and reported to the next {@link #checkFailures()} call of the thread
+ * that submitted them, so that the storing code, e.g. a seed task, notices the failures of its own
+ * tiles, and only those.
+ */
+class S3AsyncUploader {
+
+    /**
+     * A tile upload waiting for, or being run by, the upload pool
+     */
+    static final class PendingUpload {
+
+        private static final int QUEUED = 0;
+
+        private static final int RUNNING = 1;
+
+        private static final int DONE = 2;
+
+        private static final int CANCELLED = 3;
+
+        final byte[] contents;
+
+        final String contentType;
+
+        final long created;
+
+        private int state = QUEUED;
+
+        PendingUpload(byte[] contents, String contentType) {
+            this.contents = contents;
+            this.contentType = contentType;
+            this.created = System.currentTimeMillis();
+        }
+
+        /**
+         * @return {@code false} if the upload was cancelled before it started
+         */
+        synchronized boolean start() {
+            if (state == CANCELLED) {
+                return false;
+            }
+            state = RUNNING;
+            return true;
+        }
+
+        synchronized void finish() {
+            state = DONE;
+            notifyAll();
+        }
+
+        /**
+         * Prevents the upload from starting, or waits for it to finish if already running
+         */
+        synchronized void cancel() {
+            if (state == QUEUED) {
+                state = CANCELLED;
+                return;
+            }
+            try {
+                while (state == RUNNING) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Failed uploads of a submitting thread not reported yet
+     */
+    private static final class Failures {
+
+        final int count;
+
+        final String lastKey;
+
+        final RuntimeException last;
+
+        Failures(int count, String lastKey, RuntimeException last) {
+            this.count = count;
+            this.lastKey = lastKey;
+            this.last = last;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<String, PendingUpload> pending = new ConcurrentHashMap<>();
+
+    /** by submitting thread, weakly referenced so that failures of dead threads go away */
+    private final ConcurrentMap<Thread, Failures> unreportedFailures = new MapMaker().weakKeys()
+            .makeMap();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Runs the upload on the calling thread when the queue is full, unless the pool was shut
+     * down, in which case the upload is refused instead of silently dropped
+     */
+    private static final RejectedExecutionHandler CALLER_RUNS = (upload, executor) -> {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("S3 upload pool is shut down");
+        }
+        upload.run();
+    };
+
+    public S3AsyncUploader(final String bucketName, final int threads, final int queueSize) {
+        checkArgument(threads > 0, "threads must be a positive integer");
+        checkArgument(queueSize > 0, "queueSize must be a positive integer");
+        ThreadFactory tf = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("GWC S3BlobStore upload thread-%d. Bucket: " + bucketName).build();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), tf, CALLER_RUNS);
+    }
+
+    /**
+     * Schedules {@code upload} to store {@code contents} under {@code key}
+     *
+     * @throws StorageException if the uploader is shut down
+     */
+    public void submit(final String key, final PendingUpload contents, final Runnable upload)
+            throws StorageException {
+        final Thread submitter = Thread.currentThread();
+        PendingUpload replaced = pending.put(key, contents);
+        if (replaced != null) {
+            // no point in uploading contents about to be overwritten
+            replaced.cancel();
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!contents.start()) {
+                        return;
+                    }
+                    try {
+                        upload.run();
+                    } catch (RuntimeException e) {
+                        failed(submitter, key, e);
+                    } finally {
+                        contents.finish();
+                        // a newer upload for the same key may have replaced this one meanwhile
+                        pending.remove(key, contents);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key, contents);
+            throw new StorageException("Unable to upload " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void failed(Thread submitter, String key, RuntimeException e) {
+        S3BlobStore.log.error("Asynchronous upload of " + key + " failed", e);
+        failures.incrementAndGet();
+        unreportedFailures.merge(submitter, new Failures(1, key, e),
+                (previous, failure) -> new Failures(previous.count + 1, key, e));
+    }
+
+    /**
+     * Reports the uploads submitted by the calling thread that failed since its last call
+     *
+     * @throws StorageException if any of them failed, with the last failure as cause
+     */
+    public void checkFailures() throws StorageException {
+        Failures failed = unreportedFailures.remove(Thread.currentThread());
+        if (failed != null) {
+            throw new StorageException(failed.count + " asynchronous uploads to S3 failed, last "
+                    + "one of " + failed.lastKey + ": " + failed.last.getMessage(), failed.last);
+        }
+    }
+
+    /**
+     * @return the number of uploads that failed since the uploader was created
+     */
+    public long getFailedCount() {
+        return failures.get();
+    }
+
+    /**
+     * Cancels the upload for {@code key} if it did not start yet, or waits for it to finish if
+     * it did
+     *
+     * @return the cancelled upload, or {@code null} if there was none
+     */
+    @Nullable
+    public PendingUpload cancel(String key) {
+        PendingUpload upload = pending.remove(key);
+        if (upload != null) {
+            upload.cancel();
+        }
+        return upload;
+    }
+
+    /**
+     * Cancels the uploads whose key matches {@code filter}, waiting for those already running
+     *
+     * @return the number of uploads cancelled
+     */
+    public int cancel(Predicate<String> filter) {
+        int cancelled = 0;
+        for (Iterator<Map.Entry<String, PendingUpload>> it = pending.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<String, PendingUpload> e = it.next();
+            if (filter.test(e.getKey()) && pending.remove(e.getKey(), e.getValue())) {
+                e.getValue().cancel();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the contents of a not yet finished upload for {@code key}, or {@code null}
+     */
+    @Nullable
+    public PendingUpload getPending(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * @return the number of uploads waiting or in progress
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops accepting uploads and waits for the queued ones to be uploaded, logging progress
+     * every {@code logInterval}, and giving up on those still pending after {@code timeout}
+     */
+    public void shutDown(long logInterval, long timeout, TimeUnit unit) {
+        executor.shutdown();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (!executor.awaitTermination(
+                    Math.min(logInterval, unit.convert(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS)), unit)) {
+                if (System.nanoTime() - deadline >= 0) {
+                    S3BlobStore.log.warn(String.format(
+                            "Timed out waiting for S3 uploads to finish, %d uploads discarded",
+                            pending.size()));
+                    executor.shutdownNow();
+                    break;
+                }
+                S3BlobStore.log.info(String.format(
+                        "Waiting for %d pending S3 uploads to finish", pending.size()));
+            }
+        } catch (InterruptedException e) {
+            S3BlobStore.log.warn(String.format(
+                    "Interrupted while waiting for S3 uploads to finish, %d uploads discarded",
+                    pending.size()));
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        pending.clear();
+    }
+}
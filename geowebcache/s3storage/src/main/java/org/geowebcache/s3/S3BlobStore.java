@@ -22,6 +22,7 @@ import static java.util.Objects.isNull;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
@@ -30,6 +31,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -44,6 +47,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.locks.LockProvider;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.s3.S3AsyncUploader.PendingUpload;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.BlobStoreListenerList;
@@ -76,6 +80,11 @@ public class S3BlobStore implements BlobStore {
 
     static Log log = LogFactory.getLog(S3BlobStore.class);
 
+    /**
+     * Seconds {@link #destroy()} waits for the queued uploads before discarding them
+     */
+    static final long UPLOAD_SHUTDOWN_TIMEOUT = 300;
+
     private final BlobStoreListenerList listeners = new BlobStoreListenerList();
 
     private AmazonS3Client conn;
@@ -88,6 +97,19 @@ public class S3BlobStore implements BlobStore {
 
     private final S3Ops s3Ops;
 
+    /**
+     * Uploads tiles in the background if the store is configured to
+     * {@link S3BlobStoreConfig#isAsyncPut() asyncPut}, {@code null} otherwise
+     */
+    @Nullable
+    private final S3AsyncUploader uploader;
+
+    /**
+     * Keys of the parameters metadata objects known to be up to date, so they're written once per
+     * layer and parameters id instead of once per tile
+     */
+    private final Set<String> storedParametersMetadata = ConcurrentHashMap.newKeySet();
+
     public S3BlobStore(S3BlobStoreConfig config, TileLayerDispatcher layers,
             LockProvider lockProvider) throws StorageException {
         checkNotNull(config);
@@ -113,11 +135,36 @@ public class S3BlobStore implements BlobStore {
         }
 
         this.s3Ops = new S3Ops(conn, bucketName, keyBuilder, lockProvider);
+
+        if (Boolean.TRUE.equals(config.isAsyncPut())) {
+            int threads = uploadThreads(config);
+            int queueSize = config.getMaxPendingUploads() == null ? 16 * threads
+                    : config.getMaxPendingUploads();
+            this.uploader = new S3AsyncUploader(bucketName, threads, queueSize);
+        } else {
+            this.uploader = null;
+        }
+    }
+
+    /**
+     * Upload threads default to half the connection pool, leaving room for concurrent reads
+     */
+    private static int uploadThreads(S3BlobStoreConfig config) {
+        if (config.getUploadThreads() != null) {
+            return config.getUploadThreads();
+        }
+        int maxConnections = config.getMaxConnections() == null ? 50 : config
+                .getMaxConnections();
+        return Math.max(1, maxConnections / 2);
     }
 
     @Override
     public void destroy() {
         this.shutDown = true;
+        if (uploader != null) {
+            // uploads queued before shutting down still reach the bucket, unless it takes too long
+            uploader.shutDown(30, UPLOAD_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        }
         AmazonS3Client conn = this.conn;
         this.conn = null;
         if (conn != null) {
@@ -155,6 +202,31 @@ public class S3BlobStore implements BlobStore {
         }
         objectMetadata.setContentType(mimeType);
 
+        final byte[] bytes = toByteArray(blob);
+
+        putParametersMetadata(obj.getLayerName(), obj.getParametersId(), obj.getParameters());
+
+        if (uploader == null) {
+            upload(obj, key, bytes, objectMetadata);
+            return;
+        }
+        // report uploads failed in the background to the storing code, e.g. a seed task
+        uploader.checkFailures();
+        // the blob may be reused by the caller once put() returns (e.g. the meta tile encoding
+        // buffers), and ByteArrayResource may hand out its backing array, so upload a private copy
+        final byte[] contents = blob instanceof ByteArrayResource ? bytes.clone() : bytes;
+        uploader.submit(key, new PendingUpload(contents, mimeType), () -> {
+            try {
+                upload(obj, key, contents, objectMetadata);
+            } catch (StorageException e) {
+                throw Throwables.propagate(e);
+            }
+        });
+    }
+
+    private void upload(TileObject obj, String key, byte[] bytes, ObjectMetadata objectMetadata)
+            throws StorageException {
+
         // don't bother for the extra call if there are no listeners
         final boolean existed;
         ObjectMetadata oldObj;
@@ -166,15 +238,13 @@ public class S3BlobStore implements BlobStore {
             existed = oldObj != null;
         }
 
-        final ByteArrayInputStream input = toByteArray(blob);
+        final ByteArrayInputStream input = new ByteArrayInputStream(bytes);
         PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, key, input,
                 objectMetadata).withCannedAcl(CannedAccessControlList.PublicRead);
 
         log.trace(log.isTraceEnabled() ? ("Storing " + key) : "");
         s3Ops.putObject(putObjectRequest);
-        
-        putParametersMetadata(obj.getLayerName(), obj.getParametersId(), obj.getParameters());
-        
+
         /*
          * This is important because listeners may be tracking tile existence
          */
@@ -188,7 +258,7 @@ public class S3BlobStore implements BlobStore {
         }
     }
 
-    private ByteArrayInputStream toByteArray(final Resource blob) throws StorageException {
+    private byte[] toByteArray(final Resource blob) throws StorageException {
         final byte[] bytes;
         if (blob instanceof ByteArrayResource) {
             bytes = ((ByteArrayResource) blob).getContents();
@@ -202,28 +272,54 @@ public class S3BlobStore implements BlobStore {
             }
             bytes = out.toByteArray();
         }
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
-        return input;
+        return bytes;
     }
 
     @Override
     public boolean get(TileObject obj) throws StorageException {
         final String key = keyBuilder.forTile(obj);
+        if (uploader != null) {
+            PendingUpload pending = uploader.getPending(key);
+            if (pending != null) {
+                obj.setBlobSize(pending.contents.length);
+                obj.setBlob(new ByteArrayResource(pending.contents));
+                obj.setCreated(pending.created);
+                return true;
+            }
+        }
         final S3Object object = s3Ops.getObject(key);
         if (object == null) {
             return false;
         }
         try (S3ObjectInputStream in = object.getObjectContent()) {
-            byte[] bytes = ByteStreams.toByteArray(in);
+            final ObjectMetadata metadata = object.getObjectMetadata();
+            byte[] bytes = readContents(in, metadata.getContentLength());
             obj.setBlobSize(bytes.length);
             obj.setBlob(new ByteArrayResource(bytes));
-            obj.setCreated(object.getObjectMetadata().getLastModified().getTime());
+            obj.setCreated(metadata.getLastModified().getTime());
         } catch (IOException e) {
             throw new StorageException("Error getting " + key, e);
         }
         return true;
     }
 
+    /**
+     * Reads the object contents straight into a buffer of the advertised content length, avoiding
+     * the intermediate buffer growth and final copy of reading an unknown length stream
+     */
+    static byte[] readContents(InputStream in, long contentLength) throws IOException {
+        if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+            return ByteStreams.toByteArray(in);
+        }
+        byte[] bytes = new byte[(int) contentLength];
+        ByteStreams.readFully(in, bytes);
+        if (in.read() != -1) {
+            throw new IOException("Object contents longer than its content length of "
+                    + contentLength + " bytes");
+        }
+        return bytes;
+    }
+
     private class TileToKey implements Function<long[], KeyVersion> {
 
         private final String coordsPrefix;
@@ -251,8 +347,9 @@ public class S3BlobStore implements BlobStore {
     public boolean delete(final TileRange tileRange) throws StorageException {
 
         final String coordsPrefix = keyBuilder.coordinatesPrefix(tileRange);
+        int cancelled = cancelUploads(coordsPrefix, tileRange);
         if (!s3Ops.prefixExists(coordsPrefix)) {
-            return false;
+            return cancelled > 0;
         }
 
         final Iterator<long[]> tileLocations = new AbstractIterator<long[]>() {
@@ -310,10 +407,12 @@ public class S3BlobStore implements BlobStore {
         final String layerPrefix = keyBuilder.forLayer(layerName);
 
         s3Ops.deleteObject(metadataKey);
+        forgetParametersMetadata(keyBuilder.parametersMetadataPrefix(layerName));
+        final int cancelled = cancelUploads(layerPrefix);
 
         boolean layerExists;
         try {
-            layerExists = s3Ops.scheduleAsyncDelete(layerPrefix);
+            layerExists = s3Ops.scheduleAsyncDelete(layerPrefix) || cancelled > 0;
         } catch (GeoWebCacheException e) {
             throw Throwables.propagate(e);
         }
@@ -331,10 +430,11 @@ public class S3BlobStore implements BlobStore {
         checkNotNull(gridSetId, "gridSetId");
 
         final String gridsetPrefix = keyBuilder.forGridset(layerName, gridSetId);
+        final int cancelled = cancelUploads(gridsetPrefix);
 
         boolean prefixExists;
         try {
-            prefixExists = s3Ops.scheduleAsyncDelete(gridsetPrefix);
+            prefixExists = s3Ops.scheduleAsyncDelete(gridsetPrefix) || cancelled > 0;
         } catch (GeoWebCacheException e) {
             throw Throwables.propagate(e);
         }
@@ -347,16 +447,19 @@ public class S3BlobStore implements BlobStore {
     @Override
     public boolean delete(TileObject obj) throws StorageException {
         final String key = keyBuilder.forTile(obj);
+        // a queued upload would write the tile back, one in progress is waited for
+        final boolean cancelled = uploader != null && uploader.cancel(key) != null;
 
         // don't bother for the extra call if there are no listeners
         if (listeners.isEmpty()) {
-            return s3Ops.deleteObject(key);
+            return s3Ops.deleteObject(key) || cancelled;
         }
 
         ObjectMetadata oldObj = s3Ops.getObjectMetadata(key);
 
         if (oldObj == null) {
-            return false;
+            // listeners were not told about an upload cancelled before it started
+            return cancelled;
         }
 
         s3Ops.deleteObject(key);
@@ -365,6 +468,39 @@ public class S3BlobStore implements BlobStore {
         return true;
     }
 
+    /**
+     * Cancels the pending uploads of the tiles under {@code prefix}, waiting for the ones in
+     * progress, so that they are not written back once deleted
+     */
+    private int cancelUploads(String prefix) {
+        if (uploader == null) {
+            return 0;
+        }
+        return uploader.cancel(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Cancels the pending uploads of the tiles of {@code tileRange}, whose keys are
+     * {@code coordsPrefix} followed by {@code z/x/y.extension}
+     */
+    private int cancelUploads(String coordsPrefix, TileRange tileRange) {
+        if (uploader == null) {
+            return 0;
+        }
+        return uploader.cancel(key -> {
+            if (!key.startsWith(coordsPrefix)) {
+                return false;
+            }
+            String[] zxy = key.substring(coordsPrefix.length()).split("[/.]");
+            try {
+                return zxy.length == 4 && tileRange.contains(Long.parseLong(zxy[1]),
+                        Long.parseLong(zxy[2]), Integer.parseInt(zxy[0]));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        });
+    }
+
     @Override
     public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
         log.debug("No need to rename layers, S3BlobStore uses layer id as key root");
@@ -409,16 +545,25 @@ public class S3BlobStore implements BlobStore {
         if(isNull(parametersId)) {
             return;
         }
+        String resourceKey = keyBuilder.parametersMetadata(layerName, parametersId);
+        // the parameters id is a hash of the parameters, so the contents never change for a key
+        if (storedParametersMetadata.contains(resourceKey)) {
+            return;
+        }
         Properties properties = new Properties();
         parameters.forEach(properties::setProperty);
-        String resourceKey = keyBuilder.parametersMetadata(layerName, parametersId);
         try {
             s3Ops.putProperties(resourceKey, properties);
+            storedParametersMetadata.add(resourceKey);
         } catch (StorageException e) {
             Throwables.propagate(e);
         }
     }
 
+    private void forgetParametersMetadata(String keyPrefix) {
+        storedParametersMetadata.removeIf(key -> key.startsWith(keyPrefix));
+    }
+
     @Override
     public boolean layerExists(String layerName) {
         final String coordsPrefix = keyBuilder.forLayer(layerName);
@@ -431,11 +576,13 @@ public class S3BlobStore implements BlobStore {
             throws StorageException {
         checkNotNull(layerName, "layerName");
         checkNotNull(parametersId, "parametersId");
-        
+
+        storedParametersMetadata.remove(keyBuilder.parametersMetadata(layerName, parametersId));
         boolean prefixExists = keyBuilder.forParameters(layerName, parametersId).stream()
             .map(prefix->{
                 try {
-                    return s3Ops.scheduleAsyncDelete(prefix);
+                    final int cancelled = cancelUploads(prefix);
+                    return s3Ops.scheduleAsyncDelete(prefix) || cancelled > 0;
                 } catch (RuntimeException|GeoWebCacheException e) {
                     throw Throwables.propagate(e);
                 }
@@ -73,6 +73,18 @@ public class S3BlobStoreConfig extends BlobStoreConfig {
 
     private Boolean useGzip;
 
+    private Integer connectionTimeout;
+
+    private Integer socketTimeout;
+
+    private Integer connectionTTL;
+
+    private Boolean asyncPut;
+
+    private Integer uploadThreads;
+
+    private Integer maxPendingUploads;
+
     /**
      * @return the name of the AWS S3 bucket where to store tiles
      */
@@ -285,6 +297,106 @@ public class S3BlobStoreConfig extends BlobStoreConfig {
         this.useGzip = use;
     }
 
+    /**
+     * @return the amount of time to wait, in milliseconds, when initially establishing a
+     *         connection before giving up, or {@code null} for the client's default
+     */
+    @Nullable
+    public Integer getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Sets the amount of time to wait, in milliseconds, when initially establishing a connection
+     * before giving up
+     */
+    public void setConnectionTimeout(Integer connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @return the amount of time to wait, in milliseconds, for data to be transferred over an
+     *         established connection before giving up, or {@code null} for the client's default
+     */
+    @Nullable
+    public Integer getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets the amount of time to wait, in milliseconds, for data to be transferred over an
+     * established connection before giving up
+     */
+    public void setSocketTimeout(Integer socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return the time, in milliseconds, a pooled connection may be kept alive and reused, or
+     *         {@code null} for connections to never expire
+     */
+    @Nullable
+    public Integer getConnectionTTL() {
+        return connectionTTL;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a pooled connection may be kept alive and reused
+     */
+    public void setConnectionTTL(Integer connectionTTL) {
+        this.connectionTTL = connectionTTL;
+    }
+
+    /**
+     * @return whether tiles are uploaded asynchronously by a bounded pool of upload threads
+     *         (defaults to false)
+     */
+    public Boolean isAsyncPut() {
+        return asyncPut;
+    }
+
+    /**
+     * Sets whether tiles are uploaded asynchronously by a bounded pool of upload threads instead
+     * of by the thread storing the tile
+     */
+    public void setAsyncPut(Boolean asyncPut) {
+        this.asyncPut = asyncPut;
+    }
+
+    /**
+     * @return the number of threads uploading tiles when {@link #isAsyncPut() asyncPut} is
+     *         enabled, or {@code null} to derive it from {@link #getMaxConnections()
+     *         maxConnections}
+     */
+    @Nullable
+    public Integer getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * Sets the number of threads uploading tiles when {@link #isAsyncPut() asyncPut} is enabled
+     */
+    public void setUploadThreads(Integer uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * @return the maximum number of tile uploads that can be queued when {@link #isAsyncPut()
+     *         asyncPut} is enabled before storing threads perform uploads themselves
+     */
+    @Nullable
+    public Integer getMaxPendingUploads() {
+        return maxPendingUploads;
+    }
+
+    /**
+     * Sets the maximum number of tile uploads that can be queued when {@link #isAsyncPut()
+     * asyncPut} is enabled
+     */
+    public void setMaxPendingUploads(Integer maxPendingUploads) {
+        this.maxPendingUploads = maxPendingUploads;
+    }
+
     @Override
     public boolean equals(Object o) {
         return EqualsBuilder.reflectionEquals(this, o);
@@ -346,6 +458,15 @@ public class S3BlobStoreConfig extends BlobStoreConfig {
         if (null != useGzip) {
             clientConfig.setUseGzip(useGzip);
         }
+        if (null != connectionTimeout && connectionTimeout >= 0) {
+            clientConfig.setConnectionTimeout(connectionTimeout);
+        }
+        if (null != socketTimeout && socketTimeout >= 0) {
+            clientConfig.setSocketTimeout(socketTimeout);
+        }
+        if (null != connectionTTL && connectionTTL > 0) {
+            clientConfig.setConnectionTTL(connectionTTL);
+        }
         log.debug("Initializing AWS S3 connection");
         return new AmazonS3Client(awsCredentials, clientConfig);
     }
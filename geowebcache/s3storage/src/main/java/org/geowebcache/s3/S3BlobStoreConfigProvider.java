@@ -55,6 +55,14 @@ public class S3BlobStoreConfigProvider implements XMLConfigurationProvider {
         xs.registerLocalConverter(S3BlobStoreConfig.class, "proxyPort", NullableIntConverter);
         xs.registerLocalConverter(S3BlobStoreConfig.class, "useHTTPS", NullableBooleanConverter);
         xs.registerLocalConverter(S3BlobStoreConfig.class, "useGzip", NullableBooleanConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "connectionTimeout",
+                NullableIntConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "socketTimeout", NullableIntConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "connectionTTL", NullableIntConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "asyncPut", NullableBooleanConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "uploadThreads", NullableIntConverter);
+        xs.registerLocalConverter(S3BlobStoreConfig.class, "maxPendingUploads",
+                NullableIntConverter);
         return xs;
     }
 
@@ -0,0 +1,290 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.s3.S3AsyncUploader.PendingUpload;
+import org.geowebcache.storage.StorageException;
+import org.junit.Test;
+
+public class S3AsyncUploaderTest {
+
+    @Test
+    public void testPendingUntilUploaded() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        PendingUpload contents = new PendingUpload(new byte[] { 1, 2, 3 }, "image/png");
+        uploader.submit("a/b/c.png", contents, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertSame(contents, uploader.getPending("a/b/c.png"));
+        assertEquals(1, uploader.getPendingCount());
+
+        release.countDown();
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertNull(uploader.getPending("a/b/c.png"));
+        assertEquals(0, uploader.getPendingCount());
+    }
+
+    @Test
+    public void testFailedUploadIsNotPending() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        uploader.submit("key", new PendingUpload(new byte[1], "image/png"), () -> {
+            throw new IllegalStateException("expected");
+        });
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertNull(uploader.getPending("key"));
+    }
+
+    @Test
+    public void testFailuresReportedOnce() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        uploader.submit("k1", new PendingUpload(new byte[1], "image/png"), () -> {
+            throw new IllegalStateException("expected");
+        });
+        uploader.submit("k2", new PendingUpload(new byte[1], "image/png"), () -> {
+            throw new IllegalStateException("expected");
+        });
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertEquals(2, uploader.getFailedCount());
+        try {
+            uploader.checkFailures();
+            fail("Expected StorageException");
+        } catch (StorageException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 asynchronous uploads"));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // already reported
+        uploader.checkFailures();
+    }
+
+    @Test
+    public void testFailuresReportedToTheirSubmitter() throws Exception {
+        final S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        Thread other = new Thread(() -> {
+            try {
+                uploader.submit("other", new PendingUpload(new byte[1], "image/png"), () -> {
+                    throw new IllegalStateException("expected");
+                });
+            } catch (StorageException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        other.start();
+        other.join();
+        uploader.submit("mine", new PendingUpload(new byte[1], "image/png"), () -> {
+        });
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertEquals(1, uploader.getFailedCount());
+        // the failure of the other thread's tile is not reported here
+        uploader.checkFailures();
+    }
+
+    @Test
+    public void testShutDownTimeout() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger uploads = new AtomicInteger();
+        Runnable blocking = () -> {
+            try {
+                release.await();
+                uploads.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        uploader.submit("k1", new PendingUpload(new byte[1], "image/png"), blocking);
+        uploader.submit("k2", new PendingUpload(new byte[1], "image/png"), blocking);
+        uploader.shutDown(10, 100, TimeUnit.MILLISECONDS);
+        // the running upload was interrupted, the queued one discarded
+        assertEquals(0, uploads.get());
+        assertEquals(0, uploader.getPendingCount());
+    }
+
+    @Test
+    public void testCancelQueued() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        uploader.submit("busy", new PendingUpload(new byte[1], "image/png"), () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final AtomicInteger uploads = new AtomicInteger();
+        uploader.submit("layer/a.png", new PendingUpload(new byte[1], "image/png"),
+                uploads::incrementAndGet);
+        uploader.submit("layer/b.png", new PendingUpload(new byte[1], "image/png"),
+                uploads::incrementAndGet);
+        uploader.submit("other/c.png", new PendingUpload(new byte[1], "image/png"),
+                uploads::incrementAndGet);
+
+        assertNull(uploader.cancel("missing"));
+        assertTrue(uploader.cancel("layer/a.png") != null);
+        assertEquals(1, uploader.cancel(key -> key.startsWith("layer/")));
+        assertNull(uploader.getPending("layer/b.png"));
+
+        release.countDown();
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        // only other/c.png was uploaded
+        assertEquals(1, uploads.get());
+    }
+
+    @Test
+    public void testCancelWaitsForRunningUpload() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean uploaded = new AtomicBoolean();
+        uploader.submit("key", new PendingUpload(new byte[1], "image/png"), () -> {
+            started.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            uploaded.set(true);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(uploader.cancel("key") != null);
+        // the delete that cancelled it can now safely remove the object
+        assertTrue(uploaded.get());
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testNewerUploadCancelsQueuedOne() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        uploader.submit("busy", new PendingUpload(new byte[1], "image/png"), () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final AtomicInteger uploads = new AtomicInteger();
+        uploader.submit("key", new PendingUpload(new byte[1], "image/png"),
+                uploads::incrementAndGet);
+        PendingUpload newer = new PendingUpload(new byte[2], "image/png");
+        uploader.submit("key", newer, uploads::incrementAndGet);
+        assertSame(newer, uploader.getPending("key"));
+
+        release.countDown();
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertEquals(1, uploads.get());
+    }
+
+    @Test
+    public void testShutDownDrainsQueue() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 16);
+        final AtomicInteger uploads = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            uploader.submit("k" + i, new PendingUpload(new byte[1], "image/png"), () -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                uploads.incrementAndGet();
+            });
+        }
+        // shorter than the time it takes to upload them all
+        uploader.shutDown(50, 10000, TimeUnit.MILLISECONDS);
+        assertEquals(10, uploads.get());
+        assertEquals(0, uploader.getPendingCount());
+    }
+
+    @Test
+    public void testSubmitAfterShutDownFails() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 4);
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        final AtomicBoolean uploaded = new AtomicBoolean();
+        try {
+            uploader.submit("key", new PendingUpload(new byte[1], "image/png"),
+                    () -> uploaded.set(true));
+            fail("Expected StorageException");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertFalse(uploaded.get());
+        assertNull(uploader.getPending("key"));
+    }
+
+    @Test
+    public void testCallerRunsWhenQueueFull() throws Exception {
+        S3AsyncUploader uploader = new S3AsyncUploader("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger uploads = new AtomicInteger();
+        Runnable blocking = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            uploads.incrementAndGet();
+        };
+        uploader.submit("k1", new PendingUpload(new byte[1], "image/png"), blocking);
+        uploader.submit("k2", new PendingUpload(new byte[1], "image/png"), blocking);
+        // pool thread busy and queue full, this one runs on the calling thread
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger ranOnCaller = new AtomicInteger();
+        uploader.submit("k3", new PendingUpload(new byte[1], "image/png"), () -> {
+            if (Thread.currentThread() == caller) {
+                ranOnCaller.incrementAndGet();
+            }
+        });
+        assertEquals(1, ranOnCaller.get());
+        release.countDown();
+        uploader.shutDown(10, 10, TimeUnit.SECONDS);
+        assertEquals(2, uploads.get());
+    }
+
+    @Test
+    public void testReadContents() throws IOException {
+        byte[] data = { 1, 2, 3, 4, 5 };
+        assertArrayEquals(data, S3BlobStore.readContents(new ByteArrayInputStream(data), 5));
+        // unknown content length
+        assertArrayEquals(data, S3BlobStore.readContents(new ByteArrayInputStream(data), -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadContentsShorterThanLength() throws IOException {
+        S3BlobStore.readContents(new ByteArrayInputStream(new byte[3]), 5);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadContentsLongerThanLength() throws IOException {
+        S3BlobStore.readContents(new ByteArrayInputStream(new byte[6]), 5);
+    }
+}
@@ -90,12 +90,14 @@ public class S3BlobStoreIntegrationTest {
 
     private S3BlobStore blobStore;
 
+    private TileLayerDispatcher layers;
+
     @Before
     public void before() throws Exception {
         Assume.assumeTrue(tempFolder.isConfigured());
         S3BlobStoreConfig config = tempFolder.getConfig();
 
-        TileLayerDispatcher layers = mock(TileLayerDispatcher.class);
+        layers = mock(TileLayerDispatcher.class);
         LockProvider lockProvider = new NoOpLockProvider();
         TileLayer layer = mock(TileLayer.class);
         when(layers.getTileLayer(eq(DEFAULT_LAYER))).thenReturn(layer);
@@ -205,6 +207,62 @@ public class S3BlobStoreIntegrationTest {
                 eq(tile.getBlobFormat()), anyString(), eq(22L), eq(30L), eq(12), eq(1024L));
     }
 
+    private S3BlobStore newAsyncStore() throws StorageException {
+        S3BlobStoreConfig config = tempFolder.getConfig();
+        config.setAsyncPut(true);
+        config.setUploadThreads(1);
+        config.setMaxPendingUploads(100);
+        return new S3BlobStore(config, layers, new NoOpLockProvider());
+    }
+
+    @Test
+    public void testAsyncPutGet() throws Exception {
+        S3BlobStore asyncStore = newAsyncStore();
+        byte[] bytes = new byte[1024];
+        Arrays.fill(bytes, (byte) 0xaf);
+        TileObject tile = queryTile(20, 30, 12);
+        tile.setBlob(new ByteArrayResource(bytes));
+        asyncStore.put(tile);
+
+        // served whether or not the upload finished
+        TileObject queryTile = queryTile(20, 30, 12);
+        assertTrue(asyncStore.get(queryTile));
+        assertEquals(bytes.length, queryTile.getBlob().getSize());
+
+        // uploaded once the store is shut down
+        asyncStore.destroy();
+        assertTrue(blobStore.get(queryTile(20, 30, 12)));
+    }
+
+    @Test
+    public void testAsyncDeleteCancelsPendingUploads() throws Exception {
+        S3BlobStore asyncStore = newAsyncStore();
+        TileObject tile = queryTile(0, 0, 12);
+        for (long x = 0; x < 50; x++) {
+            tile.getXYZ()[0] = x;
+            tile.setBlob(new ByteArrayResource(new byte[1024]));
+            asyncStore.put(tile);
+        }
+        assertTrue(asyncStore.delete(queryTile(0, 0, 12)));
+        assertFalse(asyncStore.get(queryTile(0, 0, 12)));
+
+        TileRange range = tileRange(DEFAULT_LAYER, DEFAULT_GRIDSET, 12, 12,
+                new long[][] { { 1, 0, 24, 0, 12 } }, MimeType.createFromExtension(DEFAULT_FORMAT),
+                null);
+        assertTrue(asyncStore.delete(range));
+        assertFalse(asyncStore.get(queryTile(24, 0, 12)));
+        assertTrue(asyncStore.get(queryTile(25, 0, 12)));
+
+        // nothing written back once the remaining uploads are drained
+        asyncStore.destroy();
+        for (long x = 0; x < 25; x++) {
+            assertFalse(blobStore.get(queryTile(x, 0, 12)));
+        }
+        for (long x = 25; x < 50; x++) {
+            assertTrue(blobStore.get(queryTile(x, 0, 12)));
+        }
+    }
+
     @Test
     public void testDeleteLayer() throws Exception {
         byte[] bytes = new byte[1024];
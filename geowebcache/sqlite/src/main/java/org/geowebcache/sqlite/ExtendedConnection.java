@@ -31,27 +31,62 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
 
 /**
- * Extended connection that allow us to keep track if a connection was closed or not.
+ * Extended connection that allow us to keep track if a connection was closed or not. It also gives
+ * access to the prepared statements cached by the pooled connection it wraps.
  */
 final class ExtendedConnection implements Connection {
 
     private final Connection connection;
 
+    private final Map<String, PreparedStatement> statementsCache;
+
     private boolean closed = false;
 
     public ExtendedConnection(Connection connection) {
+        this(connection, null);
+    }
+
+    ExtendedConnection(Connection connection, Map<String, PreparedStatement> statementsCache) {
         this.connection = connection;
+        this.statementsCache = statementsCache;
     }
 
     boolean closeInvoked() {
         return closed;
     }
 
+    /**
+     * Returns a prepared statement for the provided SQL that is kept open and reused by the
+     * underlying connection, the caller should not close it. If this connection has no statements
+     * cache NULL is returned.
+     */
+    PreparedStatement prepareCachedStatement(String sql) throws SQLException {
+        if (statementsCache == null) {
+            return null;
+        }
+        PreparedStatement statement = statementsCache.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statementsCache.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the statements cached so far, mainly useful for testing.
+     */
+    Map<String, PreparedStatement> getStatementsCache() {
+        return statementsCache == null ? Collections.emptyMap() : statementsCache;
+    }
+
     @Override
     public void close() throws SQLException {
         closed = true;
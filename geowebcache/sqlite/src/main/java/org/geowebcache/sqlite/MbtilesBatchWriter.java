@@ -0,0 +1,343 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.sqlite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileObject;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups the pending writes of tiles, and of tiles create time, per database file so they can be
+ * written in a single transaction. A batch is written by the thread that fills it up to the
+ * configured size, or by a background thread once its oldest write is older than the configured
+ * delay.
+ * <p>
+ * Pending writes stay visible through {@link #getPending(File, long, long, long)} until they are
+ * committed, this way readers always see the last written tile.
+ * <p>
+ * A batch that fails to be written stays pending and is retried by the next write to the same file,
+ * which reports the failure to its caller, or by the background thread after the configured delay.
+ * The tile added by a write that fails is dropped, as its caller is told it was not stored.
+ */
+final class MbtilesBatchWriter {
+
+    private static Log LOGGER = LogFactory.getLog(MbtilesBatchWriter.class);
+
+    /**
+     * Writes a batch of pending tiles to a database file in a single transaction.
+     */
+    interface Writer {
+        void write(File file, Collection<PendingTile> tiles);
+    }
+
+    /**
+     * A tile, or only the create time of a tile, waiting to be written.
+     */
+    static final class PendingTile {
+
+        final long z;
+        final long x;
+        final long y;
+
+        // NULL if only the create time needs to be written
+        final byte[] data;
+
+        final long createTime;
+
+        // the tile object to report to listeners, NULL if only the create time needs to be written
+        final TileObject tile;
+
+        private PendingTile(long z, long x, long y, byte[] data, long createTime, TileObject tile) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.data = data;
+            this.createTime = createTime;
+            this.tile = tile;
+        }
+
+        static PendingTile tile(long z, long x, long y, byte[] data, long createTime, TileObject tile) {
+            return new PendingTile(z, x, y, data, createTime, tile);
+        }
+
+        static PendingTile createTime(long z, long x, long y, long createTime) {
+            return new PendingTile(z, x, y, null, createTime, null);
+        }
+
+        boolean hasData() {
+            return data != null;
+        }
+    }
+
+    /**
+     * Pending writes of a single database file.
+     */
+    private final class Batch {
+
+        final File file;
+
+        final Map<String, PendingTile> tiles = new ConcurrentHashMap<>();
+
+        // the writes currently being committed, only one set at the time thanks to the write lock
+        volatile Map<String, PendingTile> writing = Collections.emptyMap();
+
+        final ReentrantLock writeLock = new ReentrantLock();
+
+        volatile long oldest;
+
+        // whether the last write of this batch failed, the next write retries it right away
+        volatile boolean failed;
+
+        Batch(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Should be called with exclusive access to this batch entry on the batches map.
+         */
+        void add(PendingTile pending) {
+            String key = key(pending.z, pending.x, pending.y);
+            if (!pending.hasData()) {
+                // a create time update is useless if the tile itself is pending
+                PendingTile existing = tiles.get(key);
+                if (existing != null && existing.hasData()) {
+                    return;
+                }
+            }
+            if (tiles.isEmpty()) {
+                oldest = System.currentTimeMillis();
+            }
+            tiles.put(key, pending);
+        }
+
+        PendingTile get(String key) {
+            PendingTile pending = tiles.get(key);
+            return pending != null ? pending : writing.get(key);
+        }
+
+        /**
+         * Writes the current pending tiles, waiting for any other write of this batch to finish.
+         */
+        void write() {
+            writeLock.lock();
+            try {
+                if (tiles.isEmpty()) {
+                    return;
+                }
+                // the snapshot is visible to readers before being removed from the pending tiles
+                Map<String, PendingTile> snapshot = new HashMap<>(tiles);
+                writing = snapshot;
+                oldest = System.currentTimeMillis();
+                for (Map.Entry<String, PendingTile> entry : snapshot.entrySet()) {
+                    // a newer write for the same tile stays pending
+                    tiles.remove(entry.getKey(), entry.getValue());
+                }
+                try {
+                    writer.write(file, snapshot.values());
+                    failed = false;
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(String.format("Wrote a batch of '%d' tiles to file '%s'.", snapshot.size(), file));
+                    }
+                } catch (RuntimeException exception) {
+                    // back to the pending tiles, unless a newer write of the same tile is pending
+                    for (Map.Entry<String, PendingTile> entry : snapshot.entrySet()) {
+                        tiles.merge(entry.getKey(), entry.getValue(),
+                                (newer, old) -> newer.hasData() || !old.hasData() ? newer : old);
+                    }
+                    failed = true;
+                    throw exception;
+                } finally {
+                    writing = Collections.emptyMap();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Drops the pending tiles without writing them, waiting for any write of this batch to finish.
+         */
+        void discard() {
+            writeLock.lock();
+            try {
+                tiles.clear();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private final Writer writer;
+
+    private final int batchSize;
+
+    private final long batchDelayMs;
+
+    private final Map<File, Batch> batches = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    MbtilesBatchWriter(Writer writer, int batchSize, long batchDelayMs) {
+        Utils.check(batchSize > 0, "The write batch size must be positive.");
+        Utils.check(batchDelayMs > 0, "The write batch delay must be positive.");
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.batchDelayMs = batchDelayMs;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GWC MBTiles batch writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, batchDelayMs / 2);
+        scheduler.scheduleWithFixedDelay(this::writeExpiredBatches, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static String key(long z, long x, long y) {
+        return z + "_" + x + "_" + y;
+    }
+
+    /**
+     * Adds a pending write, if the batch of the database file is full, or its last write failed, it is
+     * written by the current thread. If that write fails the added write is dropped and the failure
+     * thrown, the other tiles of the batch stay pending.
+     */
+    void add(File file, PendingTile pending) {
+        Batch[] toWrite = new Batch[1];
+        batches.compute(file, (key, batch) -> {
+            if (batch == null) {
+                batch = new Batch(file);
+            }
+            batch.add(pending);
+            if (batch.tiles.size() >= batchSize || batch.failed) {
+                toWrite[0] = batch;
+            }
+            return batch;
+        });
+        if (toWrite[0] != null) {
+            try {
+                toWrite[0].write();
+            } catch (RuntimeException exception) {
+                toWrite[0].tiles.remove(key(pending.z, pending.x, pending.y), pending);
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Returns the pending write for a tile, NULL if none.
+     */
+    PendingTile getPending(File file, long z, long x, long y) {
+        Batch batch = batches.get(file);
+        return batch == null ? null : batch.get(key(z, x, y));
+    }
+
+    /**
+     * Removes a pending write for a tile, this will not affect a write being committed.
+     */
+    void remove(File file, long z, long x, long y) {
+        batches.computeIfPresent(file, (key, batch) -> {
+            batch.tiles.remove(key(z, x, y));
+            return batch;
+        });
+    }
+
+    /**
+     * Writes the pending tiles of a database file, when this method returns the writes that
+     * were pending before its invocation are committed.
+     */
+    void flush(File file) {
+        Batch batch = batches.get(file);
+        if (batch != null) {
+            batch.write();
+        }
+    }
+
+    /**
+     * Writes all the pending tiles.
+     */
+    void flushAll() {
+        for (Batch batch : batches.values()) {
+            batch.write();
+        }
+    }
+
+    /**
+     * Drops the pending tiles of a database file, useful when the file is going to be deleted.
+     */
+    void discard(File file) {
+        Batch batch = batches.remove(file);
+        if (batch != null) {
+            batch.discard();
+        }
+    }
+
+    /**
+     * Returns the number of pending writes.
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (Batch batch : batches.values()) {
+            count += batch.tiles.size();
+        }
+        return count;
+    }
+
+    /**
+     * Writes all the pending tiles and stops the background writes.
+     */
+    void destroy() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    private void writeExpiredBatches() {
+        long now = System.currentTimeMillis();
+        for (Batch batch : batches.values()) {
+            if (batch.tiles.isEmpty()) {
+                // nothing pending for a while, forget about this file unless a write is still visible to readers
+                batches.computeIfPresent(batch.file, (key, current) ->
+                        current == batch && batch.tiles.isEmpty() && !batch.writeLock.isLocked() ? null : current);
+                continue;
+            }
+            if (now - batch.oldest >= batchDelayMs) {
+                try {
+                    batch.write();
+                } catch (Exception exception) {
+                    // the tiles stay pending, the next write to the file retries them
+                    if (LOGGER.isErrorEnabled()) {
+                        LOGGER.error(String.format("Error writing batch of tiles to file '%s', it will be retried.",
+                                batch.file), exception);
+                    }
+                }
+            }
+        }
+    }
+}
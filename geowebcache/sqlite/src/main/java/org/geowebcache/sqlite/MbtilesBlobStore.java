@@ -23,7 +23,6 @@ import org.geotools.mbtiles.GeoToolsMbtilesUtils;
 import org.geotools.mbtiles.MBTilesFile;
 import org.geotools.mbtiles.MBTilesMetadata;
 import org.geotools.mbtiles.MBTilesMetadata.t_format;
-import org.geotools.mbtiles.MBTilesTile;
 import org.geotools.sql.SqlUtil;
 import org.geowebcache.filter.parameters.ParametersUtils;
 import org.geowebcache.mime.ApplicationMime;
@@ -41,6 +40,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -62,6 +62,9 @@ import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import static org.geowebcache.sqlite.MbtilesBatchWriter.PendingTile;
+import static org.geowebcache.sqlite.Utils.Tuple;
+
 /**
  * Blobstore that store the tiles in a sqlite database using the mbtiles specification.
  */
@@ -91,6 +94,18 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
 
     // Apply GZIP compression to uncompressed vector tile formats.
     private final boolean gzipVector;
+
+    // groups the tiles writes per database file
+    private final MbtilesBatchWriter batchWriter;
+
+    // layer metadata values known to be stored in the metadata file, indexed per layer and key
+    private final Map<String, Map<String, String>> storedLayerMetadata = new ConcurrentHashMap<>();
+
+    // whether the metadata table is known to exist
+    private volatile boolean metadataTableCreated;
+
+    // zoom levels range known to be in the metadata of each database file, tiles written within it leave it as is
+    private final Map<File, long[]> knownZoomLevels = new ConcurrentHashMap<>();
     
     MbtilesBlobStore(MbtilesConfiguration configuration) {
         // caution this constructor will create a new connection pool
@@ -106,9 +121,13 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         executorService = Executors.newFixedThreadPool(configuration.getExecutorConcurrency());
         listeners = new BlobStoreListenerList();
         gzipVector = configuration.isGzipVector();
+        batchWriter = new MbtilesBatchWriter(this::writeBatch,
+                configuration.getWriteBatchSize(), configuration.getWriteBatchDelayMs());
         initMbtilesLayersMetadata(configuration.getMbtilesMetadataDirectory());
         if (LOGGER.isInfoEnabled()) {
-            LOGGER.info(String.format("MBTiles blob store initiated: [eagerDelete='%b', useCreateTime='%b'.", eagerDelete, useCreateTime));
+            LOGGER.info(String.format("MBTiles blob store initiated: [eagerDelete='%b', useCreateTime='%b', " +
+                            "writeBatchSize='%d', writeBatchDelayMs='%d'].", eagerDelete, useCreateTime,
+                    configuration.getWriteBatchSize(), configuration.getWriteBatchDelayMs()));
         }
     }
     
@@ -123,102 +142,132 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
             LOGGER.debug(String.format("Tile '%s' mapped to file '%s'.", tile, file));
         }
         initDatabaseFileIfNeeded(file, tile.getLayerName(), tile.getBlobFormat());
-        // do work in write mode
+        byte[] data = Utils.resourceToByteArray(tile.getBlob());
+        byte[] bytes;
+        try {
+            if (tileIsGzipped(tile)) {
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzOut = new GZIPOutputStream(byteStream)) {
+                    gzOut.write(data);
+                }
+                bytes = byteStream.toByteArray();
+            } else {
+                bytes = data;
+            }
+        } catch (Exception exception) {
+            throw Utils.exception(exception, "Error saving tile '%s' in file '%s'.", tile, file);
+        }
+        // the tile may be written later, listeners will get a copy not affected by changes made by the caller
+        TileObject storedTile = null;
+        if (!listeners.isEmpty()) {
+            storedTile = TileObject.createCompleteTileObject(tile.getLayerName(), tile.getXYZ().clone(),
+                    tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters(), Utils.byteArrayToResource(data));
+            storedTile.setParametersId(tile.getParametersId());
+        }
+        // the tile will be written with the current batch of the file, which may be right now
+        batchWriter.add(file, PendingTile.tile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1],
+                bytes, System.currentTimeMillis(), storedTile));
+        
+        persistParameterMap(tile);
+    }
+
+    /**
+     * Writes a batch of tiles, and tiles create time, in a single transaction.
+     */
+    private void writeBatch(File file, Collection<PendingTile> tiles) {
+        List<Tuple<TileObject, byte[]>> stored = new ArrayList<>();
         connectionManager.doWork(file, false, connection -> {
-            // instantiating geotools needed objects
-            MBTilesFile mbtiles = GeoToolsMbtilesUtils.getMBTilesFile(connection, file);
-            MBTilesTile gtTile = new MBTilesTile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
             try {
-                final boolean gzipped = tileIsGzipped(tile);
-                
-                byte[] bytes;
-                if (gzipped) {
-                    try (
-                            ByteArrayOutputStream byteStream  = new ByteArrayOutputStream();
-                            GZIPOutputStream gzOut = new GZIPOutputStream(byteStream);
-                    ) {
-                        bytes = byteStream.toByteArray();
+                connection.setAutoCommit(false);
+                try {
+                    if (useCreateTime) {
+                        createTilesMetadataTable(connection);
                     }
-                } else {
-                    bytes = Utils.resourceToByteArray(tile.getBlob());
-                }
-                gtTile.setData(bytes);
-                
-                // if necessary getting old data size for listeners
-                byte[] olData = null;
-                if (!listeners.isEmpty()) {
-                    olData = mbtiles.loadTile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]).getData();
-                }
-                // saving the tile
-                mbtiles.saveTile(gtTile);
-                if (useCreateTime) {
-                    // we need to store this tile create time
-                    putTileCreateTime(connection, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1], System.currentTimeMillis());
-                }
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(String.format("Tile '%s' saved in file '%s'.", tile, file));
-                }
-                if (listeners.isEmpty()) {
-                    // no listeners to update we are done
-                    return;
-                }
-                if (olData == null) {
-                    // this was new tile
-                    listeners.sendTileStored(tile);
-                } else {
-                    // this an update
-                    listeners.sendTileUpdated(tile, olData.length);
+                    long minZoom = Long.MAX_VALUE;
+                    long maxZoom = Long.MIN_VALUE;
+                    for (PendingTile pending : tiles) {
+                        if (pending.hasData()) {
+                            minZoom = Math.min(minZoom, pending.z);
+                            maxZoom = Math.max(maxZoom, pending.z);
+                            // if necessary getting old data size for listeners
+                            byte[] olData = null;
+                            if (pending.tile != null) {
+                                olData = loadTile(connection, pending.z, pending.x, pending.y);
+                                stored.add(Tuple.tuple(pending.tile, olData));
+                            }
+                            // saving the tile
+                            saveTile(connection, pending.z, pending.x, pending.y, pending.data);
+                        }
+                        if (useCreateTime) {
+                            // we need to store this tile create time
+                            saveTileCreateTime(connection, pending.z, pending.x, pending.y, pending.createTime);
+                        }
+                    }
+                    // writers of a file are serialized, the known zoom levels can't change meanwhile
+                    long[] known = knownZoomLevels.get(file);
+                    boolean extendsZoomLevels = minZoom <= maxZoom
+                            && (known == null || minZoom < known[0] || maxZoom > known[1]);
+                    if (extendsZoomLevels) {
+                        updateZoomLevelsMetadata(connection);
+                    }
+                    connection.commit();
+                    if (extendsZoomLevels) {
+                        // the file may hold other zoom levels, a narrower range only costs an extra update
+                        knownZoomLevels.put(file, known == null ? new long[]{minZoom, maxZoom}
+                                : new long[]{Math.min(minZoom, known[0]), Math.max(maxZoom, known[1])});
+                    }
+                } catch (Exception exception) {
+                    connection.rollback();
+                    throw exception;
+                } finally {
+                    connection.setAutoCommit(true);
                 }
             } catch (Exception exception) {
-                throw Utils.exception(exception, "Error saving tile '%s' in file '%s'.", tile, file);
+                throw Utils.exception(exception, "Error saving '%d' tiles in file '%s'.", tiles.size(), file);
             }
         });
-        
-        persistParameterMap(tile);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("'%d' tiles saved in file '%s'.", tiles.size(), file));
+        }
+        // updating the listeners once the tiles are committed
+        for (Tuple<TileObject, byte[]> tile : stored) {
+            if (tile.second == null) {
+                // this was new tile
+                listeners.sendTileStored(tile.first);
+            } else {
+                // this an update
+                listeners.sendTileUpdated(tile.first, tile.second.length);
+            }
+        }
     }
 
-    
     @Override
     public boolean get(final TileObject tile) throws StorageException {
         File file = fileManager.getFile(tile);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("Tile '%s' mapped to file '%s'.", tile, file));
         }
+        // the tile may not be written yet
+        PendingTile pending = batchWriter.getPending(file, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
+        if (pending != null && pending.hasData()) {
+            tile.setBlob(Utils.byteArrayToResource(decodeTile(tile, file, pending.data)));
+            tile.setCreated(useCreateTime ? pending.createTime : System.currentTimeMillis());
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("Tile '%s' found in the pending writes of file '%s'.", tile, file));
+            }
+            return true;
+        }
         initDatabaseFileIfNeeded(file, tile.getLayerName(), tile.getBlobFormat());
         // do work in readonly mode
         boolean exists = connectionManager.doWork(file, true, connection -> {
-            // instantiating geotools mbtiles reader
-            MBTilesFile mbtiles = GeoToolsMbtilesUtils.getMBTilesFile(connection, file);
-            try {
-                
-                final boolean gzipped = tileIsGzipped(tile);
-                
-                // loading the tile using geotools reader
-                MBTilesTile gtTile = mbtiles.loadTile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
-                
-                byte[] bytes = gtTile.getData();
-                if (gtTile.getData() != null) {
-                    if (gzipped) {
-                        try (
-                                ByteArrayOutputStream byteOut  = new ByteArrayOutputStream();
-                                ByteArrayInputStream byteIn  = new ByteArrayInputStream(gtTile.getData());
-                                GZIPInputStream gzIn = new GZIPInputStream(byteIn);
-                        ) {
-                            IOUtils.copy(gzIn, byteOut);
-                            bytes = byteOut.toByteArray();
-                        }
-                    } else {
-                        bytes = gtTile.getData();
-                    }
-                    tile.setBlob(Utils.byteArrayToResource(bytes));
-                    
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug(String.format("Tile '%s' found on file '%s'.", tile, file));
-                    }
-                    return true;
+            // loading the tile
+            byte[] bytes = loadTile(connection, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
+            if (bytes != null) {
+                tile.setBlob(Utils.byteArrayToResource(decodeTile(tile, file, bytes)));
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(String.format("Tile '%s' found on file '%s'.", tile, file));
                 }
-            } catch (Exception exception) {
-                throw Utils.exception(exception, "Error loading tile '%s' from MBTiles file '%s'.", tile, file);
+                return true;
             }
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(String.format("Tile '%s' not found on file '%s'.", tile, file));
@@ -227,12 +276,13 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         });
         if (exists && useCreateTime) {
             // the tile exists and we need to set the create time in the tile object
-            Long createdTime = getTileCreateTime(file, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
+            Long createdTime = pending != null ? Long.valueOf(pending.createTime)
+                    : getTileCreateTime(file, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
             if (createdTime == null) {
                 // no create time associated with this tile let's assume the last modified time
                 createdTime = file.lastModified();
-                // update the create time
-                putTileCreateTime(file, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1], createdTime);
+                // update the create time along with the next batch of writes, this avoids a write per read
+                batchWriter.add(file, PendingTile.createTime(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1], createdTime));
             }
             tile.setCreated(createdTime);
         } else if (exists) {
@@ -242,12 +292,35 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         return exists;
     }
 
+    /**
+     * Helper method that uncompress the tile data if needed.
+     */
+    private byte[] decodeTile(TileObject tile, File file, byte[] bytes) {
+        try {
+            if (!tileIsGzipped(tile)) {
+                return bytes;
+            }
+            try (
+                    ByteArrayOutputStream byteOut  = new ByteArrayOutputStream();
+                    ByteArrayInputStream byteIn  = new ByteArrayInputStream(bytes);
+                    GZIPInputStream gzIn = new GZIPInputStream(byteIn);
+            ) {
+                IOUtils.copy(gzIn, byteOut);
+                return byteOut.toByteArray();
+            }
+        } catch (Exception exception) {
+            throw Utils.exception(exception, "Error loading tile '%s' from MBTiles file '%s'.", tile, file);
+        }
+    }
+
     @Override
     public boolean delete(TileObject tile) throws StorageException {
         File file = fileManager.getFile(tile);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("Tile '%s' mapped to file '%s'.", tile, file));
         }
+        // the pending writes of this file need to be committed, otherwise they could bring back the tile
+        batchWriter.flush(file);
         if (!file.exists()) {
             // database file doesn't exists so nothing to do
             if (LOGGER.isDebugEnabled()) {
@@ -257,16 +330,16 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         }
         // do work on write mode
         return connectionManager.doWork(file, false, connection -> {
-            // instantiating geotools objects without setting the tile data (this way geotools will try to remove the tile)
-            MBTilesFile mbtiles = GeoToolsMbtilesUtils.getMBTilesFile(connection, file);
-            MBTilesTile gtTile = new MBTilesTile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
             try {
                 // getting tile old data and checking if the tile exists
-                byte[] olData = mbtiles.loadTile(tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]).getData();
+                byte[] olData = loadTile(connection, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1]);
                 if (olData != null) {
                     // tile exists so let's remove the tile
                     tile.setBlobSize(olData.length);
-                    mbtiles.saveTile(gtTile);
+                    saveTile(connection, tile.getXYZ()[2], tile.getXYZ()[0], tile.getXYZ()[1], null);
+                    updateZoomLevelsMetadata(connection);
+                    // the range may have shrunk
+                    knownZoomLevels.remove(file);
                     // updating the listener if any
                     listeners.sendTileDeleted(tile);
                     if (useCreateTime) {
@@ -291,10 +364,14 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
     @Override
     public synchronized void putLayerMetadata(String layerName, String key, String value) {
         // storing metadata associated with a layer in the metadata file
-        connectionManager.executeSql(metadataFile,
-                "CREATE TABLE IF NOT EXISTS metadata (layerName text, key text, value text, PRIMARY KEY(layerName, key));");
+        if (!metadataTableCreated) {
+            connectionManager.executeSql(metadataFile,
+                    "CREATE TABLE IF NOT EXISTS metadata (layerName text, key text, value text, PRIMARY KEY(layerName, key));");
+            metadataTableCreated = true;
+        }
         connectionManager.executeSql(metadataFile,
                 "INSERT OR REPLACE INTO metadata VALUES (?, ?, ?);", layerName, key, value);
+        rememberLayerMetadata(layerName, key, value);
         if (LOGGER.isInfoEnabled()) {
             LOGGER.info(String.format("Metadata for layer '%s' for key '%s' inserted or updated on file '%s'.",
                     layerName, key, metadataFile));
@@ -384,8 +461,13 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
             }
             if (eagerDelete) {
                 // we delete the whole file avoiding fragmentation on the database
-                completionService.submit(() -> connectionManager.delete(file), true);
+                completionService.submit(() -> {
+                    discardPendingWrites(file);
+                    connectionManager.delete(file);
+                }, true);
             } else {
+                // the pending writes of this file need to be committed before deleting the tiles
+                batchWriter.flush(file);
                 // we need to delete all tiles that belong to the tiles range and are stored in the current file
                 for (long[] range : entry.getValue()) {
                     if (LOGGER.isDebugEnabled()) {
@@ -419,6 +501,7 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         for (File currentFile : files) {
             String normalizedLayerName = FileManager.normalizePathValue(newLayerName);
             File newFile = new File(currentFile.getPath().replace(oldLayerName, normalizedLayerName));
+            batchWriter.flush(currentFile);
             connectionManager.rename(currentFile, newFile);
         }
         listeners.sendLayerRenamed(oldLayerName, newLayerName);
@@ -437,11 +520,13 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
 
     @Override
     public void clear() throws StorageException {
+        batchWriter.flushAll();
         connectionManager.reapAllConnections();
     }
 
     @Override
     public void destroy() {
+        batchWriter.destroy();
         connectionManager.reapAllConnections();
         connectionManager.stopPoolReaper();
         executorService.shutdown();
@@ -468,7 +553,10 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         CompletionService completionService = new ExecutorCompletionService(executorService);
         int tasks = 0;
         for (File file : files) {
-            completionService.submit(() -> connectionManager.delete(file), true);
+            completionService.submit(() -> {
+                discardPendingWrites(file);
+                connectionManager.delete(file);
+            }, true);
             tasks++;
         }
         // let's wait for the tasks to finish
@@ -485,6 +573,47 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         return true;
     }
 
+    /**
+     * Helper method that loads a tile data using the provided connection, NULL is returned if the tile doesn't exists.
+     * A cached prepared statement is used, this is equivalent to GeoTools MBTilesFile#loadTile.
+     */
+    private byte[] loadTile(Connection connection, long z, long x, long y) {
+        return connectionManager.executeCachedQuery(connection, resultSet -> {
+            if (resultSet.next()) {
+                return resultSet.getBytes(1);
+            }
+            return null;
+        }, "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?;", z, x, y);
+    }
+
+    /**
+     * Helper method that stores a tile data using the provided connection, if the data is NULL the tile is removed.
+     * A cached prepared statement is used, this is equivalent to GeoTools MBTilesFile#saveTile.
+     */
+    private void saveTile(Connection connection, long z, long x, long y, byte[] data) {
+        if (data == null) {
+            connectionManager.executeCachedSql(connection,
+                    "DELETE FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?;", z, x, y);
+        } else {
+            connectionManager.executeCachedSql(connection,
+                    "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?);",
+                    z, x, y, data);
+        }
+    }
+
+    /**
+     * Helper method that keeps the min and max zoom levels of the mbtiles metadata in sync with the
+     * stored tiles, like GeoTools MBTilesFile does. The tiles table index makes this cheap.
+     */
+    private void updateZoomLevelsMetadata(Connection connection) {
+        connectionManager.executeCachedSql(connection,
+                "DELETE FROM metadata WHERE name IN ('minzoom', 'maxzoom');");
+        connectionManager.executeCachedSql(connection,
+                "INSERT INTO metadata (name, value) SELECT 'minzoom', MIN(zoom_level) FROM tiles;");
+        connectionManager.executeCachedSql(connection,
+                "INSERT INTO metadata (name, value) SELECT 'maxzoom', MAX(zoom_level) FROM tiles;");
+    }
+
     /**
      * Helper method that deletes the create time of a tile.
      */
@@ -507,12 +636,14 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         String query = "SELECT create_time FROM tiles_metadata WHERE zoom_level = ? " +
                 "AND tile_column = ? AND tile_row = ?";
         try {
-            return connectionManager.executeQuery(file, resultSet -> {
-                if (resultSet.next()) {
-                    return resultSet.getLong(1);
-                }
-                return null;
-            }, query, z, x, y);
+            return connectionManager.doWork(file, true, connection -> {
+                return connectionManager.executeCachedQuery(connection, resultSet -> {
+                    if (resultSet.next()) {
+                        return resultSet.getLong(1);
+                    }
+                    return null;
+                }, query, z, x, y);
+            });
         } catch (Exception exception) {
             // probably the table doesn't exists
             if(LOGGER.isErrorEnabled()) {
@@ -523,20 +654,11 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
     }
 
     /**
-     * Helper method that puts the create time of a tile opening a connection for it.
-     */
-    private void putTileCreateTime(File file, long z, long x, long y, long createTime) {
-        connectionManager.doWork(file, false, connection -> {
-            putTileCreateTime(connection, z, x, y, createTime);
-        });
-    }
-
-    /**
-     * Helper method that puts the create time of a tile using the provided connection.
+     * Helper method that puts the create time of a tile using the provided connection, the tiles
+     * metadata table should already exist.
      */
-    private void putTileCreateTime(Connection connection, long z, long x, long y, long createTime) {
-        createTilesMetadataTable(connection);
-        connectionManager.executeSql(connection,
+    private void saveTileCreateTime(Connection connection, long z, long x, long y, long createTime) {
+        connectionManager.executeCachedSql(connection,
                 "INSERT OR REPLACE INTO tiles_metadata VALUES (?, ?, ?, ?);", z, x, y, createTime);
     }
 
@@ -547,6 +669,12 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
                         "CONSTRAINT pk_tiles PRIMARY KEY(zoom_level, tile_column,tile_row));");
     }
 
+    @Override
+    void discardPendingWrites(File file) {
+        batchWriter.discard(file);
+        knownZoomLevels.remove(file);
+    }
+
     /**
      * Init database file if it doesn't exists.
      */
@@ -684,12 +812,38 @@ public final class MbtilesBlobStore extends SqliteBlobStore {
         }
     }
     
+    /**
+     * Records the parameters of the tile's parameters id in the layer metadata, unless they are
+     * already known to be stored. The metadata file is queried once per parameters id, and written
+     * only when the mapping is missing or changed.
+     */
     protected void persistParameterMap(TileObject stObj) {
         if(Objects.nonNull(stObj.getParametersId())) {
-            putLayerMetadata(
-                    stObj.getLayerName(), 
-                    "parameters."+stObj.getParametersId(), 
-                    ParametersUtils.getKvp(stObj.getParameters()));
+            String layerName = stObj.getLayerName();
+            String key = "parameters." + stObj.getParametersId();
+            String kvp = ParametersUtils.getKvp(stObj.getParameters());
+            Map<String, String> stored = storedLayerMetadata.get(layerName);
+            if (stored != null && Objects.equals(kvp, stored.get(key))) {
+                return;
+            }
+            if (metadataFile.exists() && Objects.equals(kvp, getLayerMetadata(layerName, key))) {
+                rememberLayerMetadata(layerName, key, kvp);
+                return;
+            }
+            putLayerMetadata(layerName, key, kvp);
+        }
+    }
+
+    private void rememberLayerMetadata(String layerName, String key, String value) {
+        if (layerName == null || key == null) {
+            return;
+        }
+        Map<String, String> stored = storedLayerMetadata.computeIfAbsent(layerName,
+                name -> new ConcurrentHashMap<>());
+        if (value == null) {
+            stored.remove(key);
+        } else {
+            stored.put(key, value);
         }
     }
 
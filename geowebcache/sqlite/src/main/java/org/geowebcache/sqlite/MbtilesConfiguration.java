@@ -40,6 +40,10 @@ public class MbtilesConfiguration extends SqliteConfiguration {
 
     private Boolean gzipVector = false;
 
+    private Integer writeBatchSize;
+
+    private Long writeBatchDelayMs;
+
     public String getMbtilesMetadataDirectory() {
         return mbtilesMetadataDirectory;
     }
@@ -64,6 +68,29 @@ public class MbtilesConfiguration extends SqliteConfiguration {
         this.gzipVector = gzipVector;
     }
 
+    /**
+     * Number of tiles written to a database file in a single transaction, defaults to one which
+     * means that tiles are written when stored.
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize == null ? 1 : writeBatchSize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Maximum time a tile waits for its batch to be full before being written, defaults to one second.
+     */
+    public long getWriteBatchDelayMs() {
+        return writeBatchDelayMs == null ? 1000 : writeBatchDelayMs;
+    }
+
+    public void setWriteBatchDelayMs(long writeBatchDelayMs) {
+        this.writeBatchDelayMs = writeBatchDelayMs;
+    }
+
     @Override
     public BlobStore createInstance(TileLayerDispatcher layers, LockProvider lockProvider) throws StorageException {
         return new MbtilesBlobStore(this, super.getConnectionManager());
@@ -47,6 +47,7 @@ abstract class SqliteBlobStore implements BlobStore {
     void replace(File newFile, String destination) {
         // we ask the connection manager to replace the files
         File destinationFile = new File(configuration.getRootDirectoryFile(), destination);
+        discardPendingWrites(destinationFile);
         connectionManager.replace(destinationFile, newFile);
     }
 
@@ -74,6 +75,7 @@ abstract class SqliteBlobStore implements BlobStore {
         if (!current.isDirectory()) {
             // we have a file let's perform the replace operation
             File destinationFile = new File(configuration.getRootDirectoryFile(), newRelativePath);
+            discardPendingWrites(destinationFile);
             connectionManager.replace(destinationFile, current);
             return;
         }
@@ -88,6 +90,12 @@ abstract class SqliteBlobStore implements BlobStore {
         }
     }
 
+    /**
+     * Drops the writes not yet committed to the provided database file, called before the file is replaced.
+     */
+    void discardPendingWrites(File file) {
+    }
+
     @Override
     public void destroy() {
 
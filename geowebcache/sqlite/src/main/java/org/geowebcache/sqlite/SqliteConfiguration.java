@@ -52,6 +52,10 @@ public abstract class SqliteConfiguration extends BlobStoreConfig {
 
     private boolean useCreateTime = true;
 
+    private Integer readConnections;
+
+    private Boolean walMode;
+
     public File getRootDirectoryFile() {
         File file = new File(rootDirectory);
         if (!file.exists()) {
@@ -124,6 +128,31 @@ public abstract class SqliteConfiguration extends BlobStoreConfig {
         this.useCreateTime = useCreateTime;
     }
 
+    /**
+     * Maximum number of read connections that can be open on a single database file, defaults to
+     * the number of available processors.
+     */
+    public int getReadConnections() {
+        return readConnections == null ? SqliteConnectionManager.DEFAULT_READ_CONNECTIONS : readConnections;
+    }
+
+    public void setReadConnections(int readConnections) {
+        this.readConnections = readConnections;
+    }
+
+    /**
+     * If true the database files will be opened in write ahead log mode, defaults to false. The
+     * journal mode is stored in the database files, once opened in write ahead log mode they stay
+     * so.
+     */
+    public boolean useWalMode() {
+        return walMode != null && walMode;
+    }
+
+    public void setWalMode(boolean walMode) {
+        this.walMode = walMode;
+    }
+
     @Override
     public String getLocation() {
         return rootDirectory;
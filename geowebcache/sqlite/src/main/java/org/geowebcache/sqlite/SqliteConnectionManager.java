@@ -26,35 +26,68 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Manages the connections to sqlite databases files taking care of the concurrent access.
  * The concurrent access are managed by JVM if two JVMs access the same database file the
  * result is unpredictable.
+ * <p>
+ * Each database file has its own small pool of connections: up to a configurable number of read
+ * connections, that can be used concurrently, and a single write connection. When WAL mode is
+ * activated the databases are opened in write ahead log mode and readers are never blocked by the
+ * writer, otherwise the writer needs exclusive access to the database file. Operations that
+ * involve the database file itself (delete, rename, replace, reap) always need exclusive access.
  */
 public final class SqliteConnectionManager {
 
     private static Log LOGGER = LogFactory.getLog(SqliteConnectionManager.class);
 
+    // how long sqlite will wait for a database lock before failing with a busy error
+    static final int BUSY_TIMEOUT_MS = 5000;
+
+    static final int DEFAULT_READ_CONNECTIONS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     private final ConcurrentHashMap<File, PooledConnection> pool = new ConcurrentHashMap<>();
 
+    private final int readConnections;
+
+    private final boolean walMode;
+
+    private final PoolStatistics statistics = new PoolStatistics();
+
     private volatile boolean stopPoolReaper = false;
 
     public SqliteConnectionManager(SqliteConfiguration configuration) {
-        this(configuration.getPoolSize(), configuration.getPoolReaperIntervalMs());
+        this(configuration.getPoolSize(), configuration.getPoolReaperIntervalMs(),
+                configuration.getReadConnections(), configuration.useWalMode());
     }
 
     SqliteConnectionManager(long poolSize, long poolReaperIntervalMs) {
+        this(poolSize, poolReaperIntervalMs, DEFAULT_READ_CONNECTIONS, false);
+    }
+
+    SqliteConnectionManager(long poolSize, long poolReaperIntervalMs, int readConnections, boolean walMode) {
+        Utils.check(readConnections > 0, "The number of read connections per file must be positive.");
+        this.readConnections = readConnections;
+        this.walMode = walMode;
         if (LOGGER.isInfoEnabled()) {
-            LOGGER.info(String.format("Initiating connection poll: [poolSize='%d', poolReaperIntervalMs='%d'].",
-                    poolSize, poolReaperIntervalMs));
+            LOGGER.info(String.format("Initiating connection poll: [poolSize='%d', poolReaperIntervalMs='%d', " +
+                    "readConnections='%d', walMode='%b'].", poolSize, poolReaperIntervalMs, readConnections, walMode));
         }
         // let's load the sqlite driver
         try {
@@ -70,6 +103,7 @@ public final class SqliteConnectionManager {
             while (!stopPoolReaper) {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug(String.format("Current pool size is '%d' and threshold is '%f'.", pool.size(), poolSizeThreshold));
+                    LOGGER.debug(String.format("Connection pool statistics: %s.", getStatistics()));
                 }
                 if (pool.size() > poolSizeThreshold) {
                     // we exceed the pool size threshold, time to reap the less used connections
@@ -144,6 +178,29 @@ public final class SqliteConnectionManager {
         }
     }
 
+    /**
+     * Submit an SQL statement to be executed with the provided connection reusing, if possible,
+     * a prepared statement cached by the connection. This should be used for the statements
+     * executed over and over, like the ones that store tiles.
+     */
+    int executeCachedSql(Connection connection, String sql, Object... parameters) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Executing cached SQL '%s'.", sql));
+        }
+        try {
+            PreparedStatement statement = prepareCachedStatement(connection, sql);
+            if (statement == null) {
+                // no statements cache available
+                try (PreparedStatement uncached = connection.prepareStatement(sql)) {
+                    return executeUpdate(uncached, parameters);
+                }
+            }
+            return executeUpdate(statement, parameters);
+        } catch (Exception exception) {
+            throw Utils.exception(exception, "Error executing SQL '%s'.", sql);
+        }
+    }
+
     /**
      * Submit a query to be executed.
      */
@@ -170,6 +227,54 @@ public final class SqliteConnectionManager {
         }
     }
 
+    /**
+     * Submit a query to be executed with the provided connection reusing, if possible, a prepared
+     * statement cached by the connection. This should be used for the queries executed over and
+     * over, like the ones that load tiles.
+     */
+    <T> T executeCachedQuery(Connection connection, ResultExtractor<T> extractor, String query, Object... parameters) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Executing cached query '%s'.", query));
+        }
+        try {
+            PreparedStatement statement = prepareCachedStatement(connection, query);
+            if (statement == null) {
+                // no statements cache available
+                try (PreparedStatement uncached = connection.prepareStatement(query)) {
+                    return executeQuery(uncached, extractor, parameters);
+                }
+            }
+            return executeQuery(statement, extractor, parameters);
+        } catch (Exception exception) {
+            throw Utils.exception(exception, "Error executing query '%s'.", query);
+        }
+    }
+
+    private static PreparedStatement prepareCachedStatement(Connection connection, String sql) throws SQLException {
+        if (connection instanceof ExtendedConnection) {
+            return ((ExtendedConnection) connection).prepareCachedStatement(sql);
+        }
+        return null;
+    }
+
+    private static int executeUpdate(PreparedStatement statement, Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement.executeUpdate();
+    }
+
+    private static <T> T executeQuery(PreparedStatement statement, ResultExtractor<T> extractor,
+                                      Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        // the result set needs to be closed, otherwise the read transaction would stay open
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return extractor.extract(resultSet);
+        }
+    }
+
     /**
      * Submit some work to be executed.
      */
@@ -197,20 +302,28 @@ public final class SqliteConnectionManager {
         PooledConnection pooledConnection = getPooledConnection(file);
         // acquiring the proper lock on the pooled connection (read or write lock)
         pooledConnection = readOnly ? pooledConnection.getReadLockOnValidConnection() : pooledConnection.getWriteLockOnValidConnection();
-        ExtendedConnection connection = pooledConnection.getExtendedConnection();
         try {
-            // do the work
-            T result = work.doWork(pooledConnection.getExtendedConnection());
-            if (!connection.closeInvoked()) {
-                // the work didn't close the connection, this is fine unless the connection was retained for future usage
+            // borrowing a connection from the pooled connection
+            CachedConnection cachedConnection = readOnly ? pooledConnection.borrowReader() : pooledConnection.getWriter();
+            try {
+                ExtendedConnection connection = cachedConnection.getExtendedConnection();
+                // do the work
+                T result = work.doWork(connection);
+                if (!connection.closeInvoked()) {
+                    // the work didn't close the connection, this is fine unless the connection was retained for future usage
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Close was not invoked on extended connection.");
+                    }
+                }
                 if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Close was not invoked on extended connection.");
+                    LOGGER.debug(String.format("Work on file '%s' is done.", file));
+                }
+                return result;
+            } finally {
+                if (readOnly) {
+                    pooledConnection.returnReader(cachedConnection);
                 }
             }
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(String.format("Work on file '%s' is done.", file));
-            }
-            return result;
         } finally {
             // releasing the acquired lock
             if (readOnly) {
@@ -225,11 +338,11 @@ public final class SqliteConnectionManager {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("Replacing file '%s' with file '%s'.", currentFile, newFile));
         }
-        PooledConnection currentPooledConnection = getPooledConnection(currentFile).getWriteLockOnValidConnection();
+        PooledConnection currentPooledConnection = getPooledConnection(currentFile).getExclusiveLockOnValidConnection();
         try {
             currentPooledConnection.closeConnection();
             pool.remove(currentFile);
-            FileUtils.deleteQuietly(currentFile);
+            deleteDatabaseFile(currentFile);
             FileUtils.moveFile(newFile, currentFile);
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info(String.format("File '%s' replaced with file '%s'.", currentFile, newFile));
@@ -237,7 +350,7 @@ public final class SqliteConnectionManager {
         } catch (Exception exception) {
             throw Utils.exception(exception, "Error replacing file '%s' with file '%s'.", currentFile, newFile);
         } finally {
-            currentPooledConnection.releaseWriteLock();
+            currentPooledConnection.releaseExclusiveLock();
         }
     }
     
@@ -251,10 +364,10 @@ public final class SqliteConnectionManager {
             }
             return;
         }
-        PooledConnection pooledConnection = getPooledConnection(file).getWriteLockOnValidConnection();
+        PooledConnection pooledConnection = getPooledConnection(file).getExclusiveLockOnValidConnection();
         try {
             pooledConnection.closeConnection();
-            FileUtils.deleteQuietly(file);
+            deleteDatabaseFile(file);
             pool.remove(file);
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info(String.format("File '%s' deleted.", file));
@@ -262,7 +375,7 @@ public final class SqliteConnectionManager {
         } catch (Exception exception) {
             throw Utils.exception(exception, "Error deleting file '%s'.", file);
         } finally {
-            pooledConnection.releaseWriteLock();
+            pooledConnection.releaseExclusiveLock();
         }
     }
 
@@ -270,18 +383,39 @@ public final class SqliteConnectionManager {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("Renaming file '%s' to '%s'.", currentFile, newFile));
         }
-        PooledConnection pooledConnection = getPooledConnection(currentFile).getWriteLockOnValidConnection();
+        PooledConnection pooledConnection = getPooledConnection(currentFile).getExclusiveLockOnValidConnection();
         try {
             pooledConnection.closeConnection();
             pool.remove(currentFile);
             FileUtils.moveFile(currentFile, newFile);
+            // sqlite removes the write ahead log when the last connection is closed, but if
+            // something went wrong the log still contains data that belongs to the database
+            for (String suffix : WAL_FILES_SUFFIXES) {
+                File walFile = new File(currentFile.getPath() + suffix);
+                if (walFile.exists()) {
+                    FileUtils.moveFile(walFile, new File(newFile.getPath() + suffix));
+                }
+            }
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info(String.format("File '%s' renamed to '%s'.", currentFile, newFile));
             }
         } catch (Exception exception) {
             throw Utils.exception(exception, "Renaming file '%s' to '%s'.", currentFile, newFile);
         } finally {
-            pooledConnection.releaseWriteLock();
+            pooledConnection.releaseExclusiveLock();
+        }
+    }
+
+    // suffixes of the files sqlite creates side by side the database file when in WAL mode
+    private static final String[] WAL_FILES_SUFFIXES = {"-wal", "-shm"};
+
+    /**
+     * Helper method that deletes a database file and the write ahead log files that may be associated with it.
+     */
+    private static void deleteDatabaseFile(File file) {
+        FileUtils.deleteQuietly(file);
+        for (String suffix : WAL_FILES_SUFFIXES) {
+            FileUtils.deleteQuietly(new File(file.getPath() + suffix));
         }
     }
 
@@ -289,6 +423,13 @@ public final class SqliteConnectionManager {
         return pool;
     }
 
+    /**
+     * Returns a snapshot of the connection pool usage statistics.
+     */
+    public PoolStatistics getStatistics() {
+        return statistics.snapshot(pool.values());
+    }
+
     void reapAllConnections() {
         if (LOGGER.isInfoEnabled()) {
             LOGGER.info("Reaping all connections.");
@@ -315,7 +456,7 @@ public final class SqliteConnectionManager {
                 LOGGER.debug(String.format("Creating pooled connection to file '%s'.", file));
             }
             pooledConnection = new PooledConnection(file);
-            pooledConnection.getWriteLock();
+            pooledConnection.getExclusiveLock();
             try {
                 PooledConnection existing = pool.putIfAbsent(file, pooledConnection);
                 if (existing != null) {
@@ -330,7 +471,7 @@ public final class SqliteConnectionManager {
                 pooledConnection.init();
                 return pooledConnection;
             } finally {
-                pooledConnection.releaseWriteLock();
+                pooledConnection.releaseExclusiveLock();
             }
         } catch (Exception exception) {
             throw Utils.exception(exception, "Error opening connection to file '%s'.", file);
@@ -338,26 +479,194 @@ public final class SqliteConnectionManager {
     }
 
     /**
-     * Helper class that contains all the info associated to an open connection.
+     * Usage statistics of the connection pool. The counters are cumulative since the creation of
+     * the connection manager, the open files and connections are the current ones.
+     */
+    public static final class PoolStatistics {
+
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+        private final LongAdder readWaitNanos = new LongAdder();
+        private final LongAdder writeWaitNanos = new LongAdder();
+        private final LongAdder openedConnections = new LongAdder();
+        private final LongAdder closedConnections = new LongAdder();
+        private final LongAdder reapedFiles = new LongAdder();
+
+        private int openFiles;
+        private int openConnections;
+        private int busyReadConnections;
+
+        private PoolStatistics snapshot(Iterable<PooledConnection> pooledConnections) {
+            PoolStatistics snapshot = new PoolStatistics();
+            snapshot.reads.add(reads.sum());
+            snapshot.writes.add(writes.sum());
+            snapshot.readWaitNanos.add(readWaitNanos.sum());
+            snapshot.writeWaitNanos.add(writeWaitNanos.sum());
+            snapshot.openedConnections.add(openedConnections.sum());
+            snapshot.closedConnections.add(closedConnections.sum());
+            snapshot.reapedFiles.add(reapedFiles.sum());
+            for (PooledConnection pooledConnection : pooledConnections) {
+                snapshot.openFiles++;
+                snapshot.openConnections += pooledConnection.openConnections();
+                snapshot.busyReadConnections += pooledConnection.busyReaders();
+            }
+            return snapshot;
+        }
+
+        /**
+         * Number of read works executed.
+         */
+        public long getReads() {
+            return reads.sum();
+        }
+
+        /**
+         * Number of write works executed.
+         */
+        public long getWrites() {
+            return writes.sum();
+        }
+
+        /**
+         * Total time spent by read works waiting for a read connection, in milliseconds.
+         */
+        public long getReadWaitMs() {
+            return readWaitNanos.sum() / 1000000;
+        }
+
+        /**
+         * Total time spent by write works waiting for the write connection, in milliseconds.
+         */
+        public long getWriteWaitMs() {
+            return writeWaitNanos.sum() / 1000000;
+        }
+
+        /**
+         * Number of database connections opened.
+         */
+        public long getOpenedConnections() {
+            return openedConnections.sum();
+        }
+
+        /**
+         * Number of database connections closed.
+         */
+        public long getClosedConnections() {
+            return closedConnections.sum();
+        }
+
+        /**
+         * Number of database files whose connections were closed by the pool reaper.
+         */
+        public long getReapedFiles() {
+            return reapedFiles.sum();
+        }
+
+        /**
+         * Number of database files with open connections.
+         */
+        public int getOpenFiles() {
+            return openFiles;
+        }
+
+        /**
+         * Number of currently open database connections.
+         */
+        public int getOpenConnections() {
+            return openConnections;
+        }
+
+        /**
+         * Number of read connections currently in use.
+         */
+        public int getBusyReadConnections() {
+            return busyReadConnections;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[reads='%d', writes='%d', readWaitMs='%d', writeWaitMs='%d', " +
+                            "openedConnections='%d', closedConnections='%d', reapedFiles='%d', openFiles='%d', " +
+                            "openConnections='%d', busyReadConnections='%d']",
+                    getReads(), getWrites(), getReadWaitMs(), getWriteWaitMs(), getOpenedConnections(),
+                    getClosedConnections(), getReapedFiles(), openFiles, openConnections, busyReadConnections);
+        }
+    }
+
+    /**
+     * A database connection along with the prepared statements cached for it. It should only be
+     * used by one thread at the time.
+     */
+    private final class CachedConnection {
+
+        private final File file;
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        CachedConnection(File file, Connection connection) {
+            this.file = file;
+            this.connection = connection;
+        }
+
+        ExtendedConnection getExtendedConnection() {
+            return new ExtendedConnection(connection, statements);
+        }
+
+        void close() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (Exception exception) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(String.format("Error closing cached statement of file '%s'.", file), exception);
+                    }
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (Exception exception) {
+                throw Utils.exception(exception, "Error closing connection to file '%s'.", file);
+            }
+            statistics.closedConnections.increment();
+        }
+    }
+
+    /**
+     * Helper class that contains all the info associated to the open connections of a file.
      */
     private final class PooledConnection implements Comparable<PooledConnection> {
 
         private final File file;
-        private Connection connection;
 
+        // protects the database file, exclusive access is needed to close or move the file
         private final ReentrantReadWriteLock lock;
 
-        private long lastAccess;
+        // serializes the writers, only needed in WAL mode
+        private final ReentrantLock writerLock;
+
+        // limits the number of read connections open on this file
+        private final Semaphore readers;
+
+        private final Deque<CachedConnection> idleReaders = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger openReaders = new AtomicInteger();
+
+        private CachedConnection writer;
+
+        private volatile long lastAccess;
         private volatile boolean closed;
 
         PooledConnection(File file) {
             this.file = file;
             lock = new ReentrantReadWriteLock();
+            writerLock = new ReentrantLock();
+            readers = new Semaphore(readConnections, true);
             closed = true;
         }
 
         void init() {
-            connection = openConnection(file);
+            // opening the write connection will also create the database file if needed
+            writer = new CachedConnection(file, openConnection(file));
             lastAccess = System.currentTimeMillis();
             closed = false;
         }
@@ -370,30 +679,82 @@ public final class SqliteConnectionManager {
             return 1;
         }
 
-        ExtendedConnection getExtendedConnection() {
+        int openConnections() {
+            return openReaders.get() + (closed ? 0 : 1);
+        }
+
+        int busyReaders() {
+            return readConnections - readers.availablePermits();
+        }
+
+        /**
+         * Get a read connection, reusing an idle one or opening a new one if the maximum number of
+         * read connections was not reached yet. The read lock should be hold.
+         */
+        CachedConnection borrowReader() {
             lastAccess = System.currentTimeMillis();
-            return new ExtendedConnection(connection);
+            statistics.reads.increment();
+            if (!readers.tryAcquire()) {
+                // all read connections are in use, we need to wait
+                long start = System.nanoTime();
+                readers.acquireUninterruptibly();
+                statistics.readWaitNanos.add(System.nanoTime() - start);
+            }
+            CachedConnection reader = idleReaders.pollFirst();
+            if (reader != null) {
+                return reader;
+            }
+            try {
+                reader = new CachedConnection(file, openConnection(file));
+                openReaders.incrementAndGet();
+                return reader;
+            } catch (RuntimeException exception) {
+                readers.release();
+                throw exception;
+            }
+        }
+
+        void returnReader(CachedConnection reader) {
+            // most recently used connection first, this way the extra connections are rarely touched
+            idleReaders.offerFirst(reader);
+            readers.release();
+        }
+
+        CachedConnection getWriter() {
+            lastAccess = System.currentTimeMillis();
+            statistics.writes.increment();
+            return writer;
         }
 
         void reapConnection() {
-            getWriteLock();
-            closeConnection();
-            pool.remove(file);
-            releaseWriteLock();
+            getExclusiveLock();
+            try {
+                closeConnection();
+                pool.remove(file);
+            } finally {
+                releaseExclusiveLock();
+            }
+            statistics.reapedFiles.increment();
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info(String.format("Connection to file '%s' reaped.", file));
             }
         }
 
+        /**
+         * Closes all the connections to this file, exclusive access to the file should be hold.
+         */
         void closeConnection() {
             if (!closed) {
-                // this connection is open let's close it
-                try {
-                    connection.close();
-                    closed = true;
-                } catch (Exception exception) {
-                    throw Utils.exception("Error closing connection to file '%s'.", file);
+                // this connection is open let's close it, the readers first since in WAL mode
+                // the last connection to be closed will checkpoint the database
+                CachedConnection reader;
+                while ((reader = idleReaders.pollFirst()) != null) {
+                    openReaders.decrementAndGet();
+                    reader.close();
                 }
+                writer.close();
+                writer = null;
+                closed = true;
                 if (LOGGER.isInfoEnabled()) {
                     LOGGER.info(String.format("Connection to file '%s' closed.", file));
                 }
@@ -427,6 +788,7 @@ public final class SqliteConnectionManager {
                 if (!pooledConnection.closed) {
                     return pooledConnection;
                 }
+                pooledConnection.releaseReadLock();
             }
             throw Utils.exception("Could not obtain a valid connection to file '%s'.", file);
         }
@@ -438,13 +800,23 @@ public final class SqliteConnectionManager {
             }
         }
 
+        /**
+         * In WAL mode writers only need to exclude each other, otherwise they need exclusive access.
+         */
         void getWriteLock() {
             String logId = "";
             if (LOGGER.isDebugEnabled()) {
                 logId = UUID.randomUUID().toString();
                 LOGGER.debug(String.format("[%s] Waiting for write lock on file '%s'.", logId, file));
             }
-            lock.writeLock().lock();
+            long start = System.nanoTime();
+            if (walMode) {
+                lock.readLock().lock();
+                writerLock.lock();
+            } else {
+                lock.writeLock().lock();
+            }
+            statistics.writeWaitNanos.add(System.nanoTime() - start);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(String.format("[%s] Write lock on file '%s' obtained.", logId, file));
             }
@@ -465,27 +837,92 @@ public final class SqliteConnectionManager {
                 if (!pooledConnection.closed) {
                     return pooledConnection;
                 }
+                pooledConnection.releaseWriteLock();
             }
             throw Utils.exception("Could not obtain a valid connection to file '%s'.", file);
         }
 
         void releaseWriteLock() {
-            lock.writeLock().unlock();
+            if (walMode) {
+                writerLock.unlock();
+                lock.readLock().unlock();
+            } else {
+                lock.writeLock().unlock();
+            }
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(String.format("Write lock on file '%s' released.", file));
             }
         }
 
+        void getExclusiveLock() {
+            String logId = "";
+            if (LOGGER.isDebugEnabled()) {
+                logId = UUID.randomUUID().toString();
+                LOGGER.debug(String.format("[%s] Waiting for exclusive lock on file '%s'.", logId, file));
+            }
+            lock.writeLock().lock();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("[%s] Exclusive lock on file '%s' obtained.", logId, file));
+            }
+        }
+
+        PooledConnection getExclusiveLockOnValidConnection() {
+            getExclusiveLock();
+            if (!closed) {
+                // this connection is ok
+                return this;
+            }
+            releaseExclusiveLock();
+            // this connection was closed in the meantime we need to create a new one (trying 10 times)
+            for (int i = 0; i < 10; i++) {
+                PooledConnection pooledConnection = SqliteConnectionManager.this.getPooledConnection(file);
+                // obtain the exclusive lock
+                pooledConnection.getExclusiveLock();
+                if (!pooledConnection.closed) {
+                    return pooledConnection;
+                }
+                pooledConnection.releaseExclusiveLock();
+            }
+            throw Utils.exception("Could not obtain a valid connection to file '%s'.", file);
+        }
+
+        void releaseExclusiveLock() {
+            lock.writeLock().unlock();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("Exclusive lock on file '%s' released.", file));
+            }
+        }
+
         private Connection openConnection(File file) {
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info(String.format("Opening connection to file '%s'.", file));
             }
             Utils.createFileParents(file);
+            Connection connection;
             try {
-                return DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+                connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
             } catch (Exception exception) {
                 throw Utils.exception(exception, "Error opening connection to file '%s'.", file);
             }
+            try (Statement statement = connection.createStatement()) {
+                // with several connections per file sqlite may report the database as busy, let's wait instead
+                statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS + ";");
+                if (walMode) {
+                    // the journal mode is persistent, but it is cheap to check it
+                    statement.execute("PRAGMA journal_mode = WAL;");
+                    // in WAL mode this is still safe against corruption and avoids a sync per transaction
+                    statement.execute("PRAGMA synchronous = NORMAL;");
+                }
+            } catch (Exception exception) {
+                try {
+                    connection.close();
+                } catch (Exception closeException) {
+                    // we are already failing, nothing more we can do
+                }
+                throw Utils.exception(exception, "Error configuring connection to file '%s'.", file);
+            }
+            statistics.openedConnections.increment();
+            return connection;
         }
     }
 }
@@ -0,0 +1,64 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.sqlite;
+
+import org.geowebcache.sqlite.MbtilesBatchWriter.PendingTile;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public final class MbtilesBatchWriterTest {
+
+    @Test
+    public void testFailedBatchIsRetried() throws Exception {
+        File file = new File("tiles-0-0.sqlite");
+        AtomicBoolean failing = new AtomicBoolean(true);
+        List<PendingTile> written = new ArrayList<>();
+        MbtilesBatchWriter batchWriter = new MbtilesBatchWriter((target, tiles) -> {
+            if (failing.get()) {
+                throw new RuntimeException("disk full");
+            }
+            written.addAll(tiles);
+        }, 2, Integer.MAX_VALUE);
+        try {
+            batchWriter.add(file, PendingTile.tile(5, 1, 1, new byte[1], 0, null));
+            try {
+                // fills the batch, whose write fails
+                batchWriter.add(file, PendingTile.tile(5, 2, 1, new byte[1], 0, null));
+                fail("Expected the write to fail");
+            } catch (RuntimeException exception) {
+                // the first tile was accepted, it stays pending, the one of the failed write is dropped
+            }
+            assertThat(batchWriter.getPending(file, 5, 1, 1), notNullValue());
+            assertThat(batchWriter.getPending(file, 5, 2, 1), nullValue());
+            // the next write retries the failed batch right away
+            failing.set(false);
+            batchWriter.add(file, PendingTile.tile(5, 3, 1, new byte[1], 0, null));
+            assertThat(written.size(), is(2));
+            assertThat(batchWriter.getPendingCount(), is(0));
+        } finally {
+            batchWriter.destroy();
+        }
+    }
+}
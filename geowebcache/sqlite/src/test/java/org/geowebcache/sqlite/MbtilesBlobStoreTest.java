@@ -18,6 +18,7 @@ package org.geowebcache.sqlite;
 
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ApplicationMime;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
@@ -71,6 +72,80 @@ public final class MbtilesBlobStoreTest extends TestSupport {
         assertThat(getTile.getBlob(), nullValue());
     }
 
+    @Test
+    public void testBatchedTileWrites() throws Exception {
+        // instantiating the store with a batch size of three tiles and no time based writes
+        MbtilesConfiguration configuration = getDefaultConfiguration();
+        configuration.setWriteBatchSize(3);
+        configuration.setWriteBatchDelayMs(Integer.MAX_VALUE);
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(configuration);
+        MbtilesBlobStore store = new MbtilesBlobStore(configuration, connectionManager);
+        addStoresToClean(store);
+        File file = buildRootFile("EPSG_4326", "africa", "image_png", "5", "tiles-0-0.sqlite");
+        // storing two tiles, they should be pending
+        store.put(TileObject.createCompleteTileObject("africa",
+                new long[]{1, 1, 5}, "EPSG:4326", "image/png", null, stringToResource("IMAGE-1-1-5")));
+        store.put(TileObject.createCompleteTileObject("africa",
+                new long[]{2, 1, 5}, "EPSG:4326", "image/png", null, stringToResource("IMAGE-2-1-5")));
+        assertThat(countTiles(connectionManager, file), is(0));
+        // pending tiles should be visible
+        TileObject getTile = TileObject.createQueryTileObject("africa",
+                new long[]{2, 1, 5}, "EPSG:4326", "image/png", null);
+        assertThat(store.get(getTile), is(true));
+        assertThat(resourceToString(getTile.getBlob()), is("IMAGE-2-1-5"));
+        assertThat(getTile.getCreated(), greaterThan(System.currentTimeMillis() - 60000));
+        // the third tile fills the batch which is written in a single transaction
+        store.put(TileObject.createCompleteTileObject("africa",
+                new long[]{3, 1, 5}, "EPSG:4326", "image/png", null, stringToResource("IMAGE-3-1-5")));
+        assertThat(countTiles(connectionManager, file), is(3));
+        Integer createTimes = connectionManager.executeQuery(file, resultSet -> {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }, "SELECT COUNT(*) FROM tiles_metadata;");
+        assertThat(createTimes, is(3));
+        // deleting a tile commits the pending writes first
+        store.put(TileObject.createCompleteTileObject("africa",
+                new long[]{4, 1, 5}, "EPSG:4326", "image/png", null, stringToResource("IMAGE-4-1-5")));
+        assertThat(store.delete(TileObject.createQueryTileObject("africa",
+                new long[]{4, 1, 5}, "EPSG:4326", "image/png", null)), is(true));
+        assertThat(countTiles(connectionManager, file), is(3));
+    }
+
+    @Test
+    public void testGzipVectorPutGet() throws Exception {
+        MbtilesConfiguration configuration = getDefaultConfiguration();
+        configuration.setGzipVector(true);
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(configuration);
+        MbtilesBlobStore store = new MbtilesBlobStore(configuration, connectionManager);
+        addStoresToClean(store);
+        String format = ApplicationMime.mapboxVector.getFormat();
+        store.put(TileObject.createCompleteTileObject("africa",
+                new long[]{1, 1, 5}, "EPSG:4326", format, null, stringToResource("VECTOR-1-1-5")));
+        TileObject getTile = TileObject.createQueryTileObject("africa",
+                new long[]{1, 1, 5}, "EPSG:4326", format, null);
+        assertThat(store.get(getTile), is(true));
+        assertThat(resourceToString(getTile.getBlob()), is("VECTOR-1-1-5"));
+        // the stored data should be compressed
+        File file = fileForTile(store, getTile);
+        byte[] data = connectionManager.executeQuery(file, resultSet -> {
+            resultSet.next();
+            return resultSet.getBytes(1);
+        }, "SELECT tile_data FROM tiles;");
+        assertThat(data[0], is((byte) 0x1f));
+        assertThat(data[1], is((byte) 0x8b));
+    }
+
+    private static File fileForTile(MbtilesBlobStore store, TileObject tile) {
+        return store.fileManager.getFile(tile);
+    }
+
+    private static int countTiles(SqliteConnectionManager connectionManager, File file) {
+        return connectionManager.executeQuery(file, resultSet -> {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }, "SELECT COUNT(*) FROM tiles;");
+    }
+
     @Test
     public void testTileMetadataOperations() throws Exception {
         // instantiating the store
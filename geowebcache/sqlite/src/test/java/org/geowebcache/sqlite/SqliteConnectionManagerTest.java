@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -40,9 +41,11 @@ import java.util.concurrent.TimeUnit;
 
 import static org.geowebcache.sqlite.Utils.Tuple;
 import static org.geowebcache.sqlite.Utils.Tuple.tuple;
+import static org.hamcrest.Matchers.equalToIgnoringCase;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public final class SqliteConnectionManagerTest extends TestSupport {
@@ -87,6 +90,141 @@ public final class SqliteConnectionManagerTest extends TestSupport {
         });
     }
 
+    @Test
+    public void testWalModeIsActivated() throws StorageException {
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(Integer.MAX_VALUE, 1000, 2, true);
+        connectionManagersToClean.add(connectionManager);
+        File file = buildRootFile("tiles", "data_base.sqlite");
+        String journalMode = connectionManager.doWork(file, true, connection -> {
+            return connectionManager.executeQuery(connection, resultSet -> {
+                resultSet.next();
+                return resultSet.getString(1);
+            }, "PRAGMA journal_mode;");
+        });
+        assertThat(journalMode, equalToIgnoringCase("wal"));
+    }
+
+    @Test
+    public void testWalModeIsOptIn() throws StorageException {
+        SqliteConfiguration configuration = new MbtilesConfiguration();
+        assertThat(configuration.useWalMode(), is(false));
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(Integer.MAX_VALUE, 1000, 2,
+                configuration.useWalMode());
+        connectionManagersToClean.add(connectionManager);
+        File file = buildRootFile("tiles", "data_base.sqlite");
+        String journalMode = connectionManager.doWork(file, true, connection -> {
+            return connectionManager.executeQuery(connection, resultSet -> {
+                resultSet.next();
+                return resultSet.getString(1);
+            }, "PRAGMA journal_mode;");
+        });
+        assertThat(journalMode, equalToIgnoringCase("delete"));
+    }
+
+    @Test
+    public void testConcurrentReadersUseDifferentConnections() throws Exception {
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(Integer.MAX_VALUE, 1000, 2, true);
+        connectionManagersToClean.add(connectionManager);
+        File file = buildRootFile("tiles", "data_base.sqlite");
+        connectionManager.doWork(file, false, connection -> {
+            insertInTestTable(connection, "name", "europe");
+        });
+        // the first reader holds its connection until the second one is done
+        CountDownLatch firstReaderIn = new CountDownLatch(1);
+        CountDownLatch secondReaderDone = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = executor.submit(() -> connectionManager.doWork(file, true, connection -> {
+                firstReaderIn.countDown();
+                try {
+                    assertThat(secondReaderDone.await(10, TimeUnit.SECONDS), is(true));
+                } catch (InterruptedException exception) {
+                    throw Utils.exception(exception, "Interrupted.");
+                }
+                return getFromTestTable(connection, "name");
+            }));
+            assertThat(firstReaderIn.await(10, TimeUnit.SECONDS), is(true));
+            String second = connectionManager.doWork(file, true, connection -> {
+                return getFromTestTable(connection, "name");
+            });
+            assertThat(connectionManager.getStatistics().getBusyReadConnections(), is(1));
+            secondReaderDone.countDown();
+            assertThat(second, is("europe"));
+            assertThat(first.get(10, TimeUnit.SECONDS), is("europe"));
+        } finally {
+            executor.shutdownNow();
+        }
+        // one write connection and two read connections
+        SqliteConnectionManager.PoolStatistics statistics = connectionManager.getStatistics();
+        assertThat(statistics.getOpenFiles(), is(1));
+        assertThat(statistics.getOpenConnections(), is(3));
+        assertThat(statistics.getBusyReadConnections(), is(0));
+        assertThat(statistics.getReads(), is(2L));
+        assertThat(statistics.getWrites(), is(1L));
+        connectionManager.reapAllConnections();
+        statistics = connectionManager.getStatistics();
+        assertThat(statistics.getOpenFiles(), is(0));
+        assertThat(statistics.getOpenedConnections(), is(3L));
+        assertThat(statistics.getClosedConnections(), is(3L));
+    }
+
+    @Test
+    public void testReadersDoNotBlockWriter() throws Exception {
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(Integer.MAX_VALUE, 1000, 2, true);
+        connectionManagersToClean.add(connectionManager);
+        File file = buildRootFile("tiles", "data_base.sqlite");
+        connectionManager.doWork(file, false, connection -> {
+            insertInTestTable(connection, "name", "europe");
+        });
+        // while a reader is active we should still be able to write
+        String value = connectionManager.doWork(file, true, connection -> {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                executor.submit(() -> connectionManager.doWork(file, false, writeConnection -> {
+                    insertInTestTable(writeConnection, "other", "america");
+                })).get(10, TimeUnit.SECONDS);
+            } catch (Exception exception) {
+                throw Utils.exception(exception, "Error writing while reading.");
+            } finally {
+                executor.shutdownNow();
+            }
+            return getFromTestTable(connection, "name");
+        });
+        assertThat(value, is("europe"));
+        assertThat(connectionManager.doWork(file, true, connection -> {
+            return getFromTestTable(connection, "other");
+        }), is("america"));
+    }
+
+    @Test
+    public void testCachedStatementsAreReused() throws StorageException {
+        SqliteConnectionManager connectionManager = new SqliteConnectionManager(Integer.MAX_VALUE, 1000, 1, true);
+        connectionManagersToClean.add(connectionManager);
+        File file = buildRootFile("tiles", "data_base.sqlite");
+        connectionManager.doWork(file, false, connection -> {
+            createTestTable(connection);
+            connectionManager.executeCachedSql(connection, "INSERT INTO test VALUES (?, ?);", "name", "europe");
+            connectionManager.executeCachedSql(connection, "INSERT INTO test VALUES (?, ?);", "other", "america");
+        });
+        String query = "SELECT value FROM test WHERE key = ?;";
+        PreparedStatement[] statements = new PreparedStatement[2];
+        for (int i = 0; i < 2; i++) {
+            int index = i;
+            String value = connectionManager.doWork(file, true, connection -> {
+                statements[index] = ((ExtendedConnection) connection).getStatementsCache().get(query);
+                String result = connectionManager.executeCachedQuery(connection, resultSet -> {
+                    resultSet.next();
+                    return resultSet.getString(1);
+                }, query, index == 0 ? "name" : "other");
+                statements[index] = ((ExtendedConnection) connection).getStatementsCache().get(query);
+                return result;
+            });
+            assertThat(value, is(index == 0 ? "europe" : "america"));
+        }
+        assertThat(statements[0], notNullValue());
+        assertThat(statements[1], sameInstance(statements[0]));
+    }
+
     @Test
     @Ignore
     public void testMultiThreadsWithSingleFile() throws Exception {
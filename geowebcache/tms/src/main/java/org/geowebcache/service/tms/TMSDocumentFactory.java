@@ -89,54 +89,81 @@ public class TMSDocumentFactory {
 
     protected String getTileMapServiceDoc(String baseUrl, String contextPath) {
         StringBuilder str = new StringBuilder();
-        XMLBuilder xml = new XMLBuilder(str);
         try {
-            xml.header("1.0", encoding);
-            xml.indentElement("TileMapService")
-            .attribute("version", "1.0.0")
-            .attribute("services", urlMangler.buildURL(baseUrl, contextPath, ""));
-            // TODO can have these set through Spring
-            xml.simpleElement("Title", "Tile Map Service", true);
-            xml.simpleElement("Abstract", "A Tile Map Service served by GeoWebCache", true);
-            //TODO Optional stuff, note that there is some meta data stuff on the 
-            // TileLayer object that we simply don't use yet
-            
-            // <KeywordList>example tile service</KeywordList>
-            // <ContactInformation>
-            //   <ContactPersonPrimary>
-            //     <ContactPerson>Paul Ramsey</ContactPerson>
-            //     <ContactOrganization>Refractions Research</ContactOrganization>
-            //   </ContactPersonPrimary>
-            //   <ContactPosition>Manager</ContactPosition>
-            //   <ContactAddress>
-            //     <AddressType>postal</AddressType>
-            //     <Address>300 - 1207 Douglas Street</Address>
-            //     <City>Victoria</City>
-            //     <StateOrProvince>British Columbia</StateOrProvince>
-            //     <PostCode>V8W2E7</PostCode>
-            //     <Country>Canada</Country>
-            //   </ContactAddress>
-            //   <ContactVoiceTelephone>12503833022</ContactVoiceTelephone>
-            //   <ContactFacsimileTelephone>12503832140</ContactFacsimileTelephone>
-            //   <ContactElectronicMailAddress>pramsey@refractions.net</ContactElectronicMailAddress>
-            // </ContactInformation>
-            xml.indentElement("TileMaps");
-            Iterable<TileLayer> iter = tld.getLayerList();
-            for (TileLayer layer : iter) {
-                if(!layer.isEnabled() || !layer.isAdvertised()){
-                    continue;
-                }
-                tileMapsForLayer(xml, layer, baseUrl, contextPath);
-            }
-            xml.endElement();
-            xml.endElement();
-            
+            encodeTileMapServiceDoc(str, baseUrl, contextPath);
             return str.toString();
         } catch (IOException ex) {
             // Should not happen
             throw new IllegalStateException(ex);
         }
     }
+
+    /**
+     * Writes the TileMapService document to the provided output, without holding the whole
+     * document in memory if {@link #isTileMapServiceDocStreamed()}, otherwise writing the one of
+     * {@link #getTileMapServiceDoc(String, String)}.
+     */
+    protected void writeTileMapServiceDoc(Appendable out, String baseUrl, String contextPath)
+            throws IOException {
+        if (isTileMapServiceDocStreamed()) {
+            encodeTileMapServiceDoc(out, baseUrl, contextPath);
+        } else {
+            out.append(getTileMapServiceDoc(baseUrl, contextPath));
+        }
+    }
+
+    /**
+     * Whether {@link #writeTileMapServiceDoc(Appendable, String, String)} encodes the document
+     * straight to the output. Only true for this class, as subclasses may override
+     * {@link #getTileMapServiceDoc(String, String)}, those that don't can return true.
+     */
+    protected boolean isTileMapServiceDocStreamed() {
+        return getClass() == TMSDocumentFactory.class;
+    }
+
+    private void encodeTileMapServiceDoc(Appendable out, String baseUrl, String contextPath)
+            throws IOException {
+        XMLBuilder xml = new XMLBuilder(out);
+        xml.header("1.0", encoding);
+        xml.indentElement("TileMapService")
+        .attribute("version", "1.0.0")
+        .attribute("services", urlMangler.buildURL(baseUrl, contextPath, ""));
+        // TODO can have these set through Spring
+        xml.simpleElement("Title", "Tile Map Service", true);
+        xml.simpleElement("Abstract", "A Tile Map Service served by GeoWebCache", true);
+        //TODO Optional stuff, note that there is some meta data stuff on the 
+        // TileLayer object that we simply don't use yet
+        
+        // <KeywordList>example tile service</KeywordList>
+        // <ContactInformation>
+        //   <ContactPersonPrimary>
+        //     <ContactPerson>Paul Ramsey</ContactPerson>
+        //     <ContactOrganization>Refractions Research</ContactOrganization>
+        //   </ContactPersonPrimary>
+        //   <ContactPosition>Manager</ContactPosition>
+        //   <ContactAddress>
+        //     <AddressType>postal</AddressType>
+        //     <Address>300 - 1207 Douglas Street</Address>
+        //     <City>Victoria</City>
+        //     <StateOrProvince>British Columbia</StateOrProvince>
+        //     <PostCode>V8W2E7</PostCode>
+        //     <Country>Canada</Country>
+        //   </ContactAddress>
+        //   <ContactVoiceTelephone>12503833022</ContactVoiceTelephone>
+        //   <ContactFacsimileTelephone>12503832140</ContactFacsimileTelephone>
+        //   <ContactElectronicMailAddress>pramsey@refractions.net</ContactElectronicMailAddress>
+        // </ContactInformation>
+        xml.indentElement("TileMaps");
+        Iterable<TileLayer> iter = tld.getLayerList();
+        for (TileLayer layer : iter) {
+            if(!layer.isEnabled() || !layer.isAdvertised()){
+                continue;
+            }
+            tileMapsForLayer(xml, layer, baseUrl, contextPath);
+        }
+        xml.endElement();
+        xml.endElement();
+    }
     
     protected void tileMapsForLayer(XMLBuilder xml, TileLayer layer,
             String baseUrl, String contextPath) throws IOException {
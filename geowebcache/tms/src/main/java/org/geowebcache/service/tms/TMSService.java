@@ -39,6 +39,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesWriter;
 import org.geowebcache.service.HttpErrorCodeException;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
@@ -207,7 +208,7 @@ public class TMSService extends Service {
         String context = ServletUtils.getServletContextPath(conv.servletReq, TMSDocumentFactory.SERVICE_PATH, servletPrefix);
         
         final Charset encoding = StandardCharsets.UTF_8;
-        String ret = null;
+        final CapabilitiesWriter.Body body;
         
         if(paramsLength < 2) {
             throw new GeoWebCacheException("Path is too short to be a valid TMS path");
@@ -216,7 +217,8 @@ public class TMSService extends Service {
             if(! version.equals("1.0.0")) {
                 throw new GeoWebCacheException("Unknown version " + version + ", only 1.0.0 is supported.");
             } else {
-                ret = tmsFactory.getTileMapServiceDoc(servletBase, context);
+                // the list of all tile maps can be large, stream it
+                body = out -> tmsFactory.writeTileMapServiceDoc(out, servletBase, context);
             }
         } else {
             String layerNameAndSRS = params[2];
@@ -226,17 +228,14 @@ public class TMSService extends Service {
             TileLayer tl = tld.getTileLayer(layerSRSFormatExtension[0]);
             GridSubset gridSub = tl.getGridSubset(layerSRSFormatExtension[1]);
             MimeType mimeType =  MimeType.createFromExtension(layerSRSFormatExtension[2]);
-            ret = tmsFactory.getTileMapDoc(tl, gridSub, mimeType, servletBase, context);
+            String ret = tmsFactory.getTileMapDoc(tl, gridSub, mimeType, servletBase, context);
+            body = out -> out.append(ret);
         }
         
-        byte[] data = ret.getBytes(encoding);
-        stats.log(data.length, CacheResult.OTHER);
-        
-        conv.servletResp.setStatus(200);
-        conv.servletResp.setContentType("text/xml");
-        conv.servletResp.setHeader("content-disposition", "inline;filename=tms-getcapabilities.xml");
         try {
-            conv.servletResp.getOutputStream().write(data);
+            long written = CapabilitiesWriter.writeResponse(conv.servletReq, conv.servletResp,
+                    "text/xml", encoding, "tms-getcapabilities.xml", body);
+            stats.log((int) written, CacheResult.OTHER);
         } catch (IOException e) {
             // TODO log error
         }
@@ -18,7 +18,6 @@
 package org.geowebcache.service.wms;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -53,6 +52,10 @@ import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.meta.MetadataURL;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
+import org.geowebcache.service.CapabilitiesCache.Document;
+import org.geowebcache.service.CapabilitiesCache.LayerFragments;
+import org.geowebcache.service.CapabilitiesWriter;
 import org.geowebcache.util.ServletUtils;
 import org.geowebcache.util.URLMangler;
 
@@ -68,9 +71,24 @@ public class WMSGetCapabilities {
 
     private boolean includeVendorSpecific = false;
 
+    private final HttpServletRequest servReq;
+
+    private final CapabilitiesCache capabilitiesCache;
+
     protected WMSGetCapabilities(TileLayerDispatcher tld, HttpServletRequest servReq, String baseUrl,
             String contextPath, URLMangler urlMangler) {
+        this(tld, servReq, baseUrl, contextPath, urlMangler, null);
+    }
+
+    /**
+     * @param capabilitiesCache cache for the generated documents, or {@code null} to generate them
+     *        on every request
+     */
+    protected WMSGetCapabilities(TileLayerDispatcher tld, HttpServletRequest servReq, String baseUrl,
+            String contextPath, URLMangler urlMangler, CapabilitiesCache capabilitiesCache) {
         this.tld = tld;
+        this.servReq = servReq;
+        this.capabilitiesCache = capabilitiesCache;
         
         urlStr = urlMangler.buildURL(baseUrl, contextPath, WMSService.SERVICE_PATH) + "?SERVICE=WMS&";
 
@@ -86,17 +104,18 @@ public class WMSGetCapabilities {
     protected void writeResponse(HttpServletResponse response) {
 
         final Charset encoding = StandardCharsets.UTF_8;
-        byte[] data = generateGetCapabilities(encoding).getBytes(encoding);
-
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("application/vnd.ogc.wms_xml");
-        response.setCharacterEncoding(encoding.name());
-        response.setContentLength(data.length);
-        response.setHeader("content-disposition", "inline;filename=wms-getcapabilities.xml");
-
-        try (OutputStream os = response.getOutputStream();){
-            os.write(data);
-            os.flush();
+        try {
+            if (capabilitiesCache != null) {
+                Document document = capabilitiesCache.getDocument(
+                        "WMS " + urlStr + " " + includeVendorSpecific, encoding,
+                        (out, fragments) -> generateGetCapabilities(out, encoding, fragments));
+                CapabilitiesCache.writeResponse(document, servReq, response,
+                        "application/vnd.ogc.wms_xml", "wms-getcapabilities.xml");
+            } else {
+                CapabilitiesWriter.writeResponse(servReq, response, "application/vnd.ogc.wms_xml",
+                        encoding, "wms-getcapabilities.xml",
+                        out -> generateGetCapabilities(out, encoding, LayerFragments.uncached()));
+            }
         } catch (IOException ioe) {
             log.debug("Caught IOException" + ioe.getMessage());
         }
@@ -104,37 +123,41 @@ public class WMSGetCapabilities {
 
     String generateGetCapabilities(Charset encoding) {
         StringBuilder str = new StringBuilder();
-        XMLBuilder xml = new XMLBuilder(str);
-        
         try {
-            xml.header("1.0", encoding);
-            xml.appendUnescaped("<!DOCTYPE WMT_MS_Capabilities SYSTEM \"http://schemas.opengis.net/wms/1.1.1/capabilities_1_1_1.dtd\" ");
-            if (includeVendorSpecific) {
-                xml.appendUnescaped("[\n");
-                xml.appendUnescaped("<!ELEMENT VendorSpecificCapabilities (TileSet*) >\n");
-                xml.appendUnescaped("<!ELEMENT TileSet (SRS, BoundingBox?, Resolutions, Width, Height, Format, Layers*, Styles*) >\n");
-                xml.appendUnescaped("<!ELEMENT Resolutions (#PCDATA) >\n");
-                xml.appendUnescaped("<!ELEMENT Width (#PCDATA) >\n");
-                xml.appendUnescaped("<!ELEMENT Height (#PCDATA) >\n");
-                xml.appendUnescaped("<!ELEMENT Layers (#PCDATA) >\n");
-                xml.appendUnescaped("<!ELEMENT Styles (#PCDATA) >\n");
-                xml.appendUnescaped("]");
-            }
-            xml.appendUnescaped(">\n");
-            xml.indentElement("WMT_MS_Capabilities").attribute("version", "1.1.1");
-    
-            // The actual meat
-            service(xml);
-            capability(xml);
-            xml.endElement();
+            generateGetCapabilities(str, encoding, LayerFragments.uncached());
         } catch (IOException e) {
             // Should not happen as StringBuilder doesn't throw IOException
             throw new IllegalStateException(e);
         }
-
         return str.toString();
     }
 
+    void generateGetCapabilities(Appendable out, Charset encoding, LayerFragments fragments)
+            throws IOException {
+        XMLBuilder xml = new XMLBuilder(out);
+
+        xml.header("1.0", encoding);
+        xml.appendUnescaped("<!DOCTYPE WMT_MS_Capabilities SYSTEM \"http://schemas.opengis.net/wms/1.1.1/capabilities_1_1_1.dtd\" ");
+        if (includeVendorSpecific) {
+            xml.appendUnescaped("[\n");
+            xml.appendUnescaped("<!ELEMENT VendorSpecificCapabilities (TileSet*) >\n");
+            xml.appendUnescaped("<!ELEMENT TileSet (SRS, BoundingBox?, Resolutions, Width, Height, Format, Layers*, Styles*) >\n");
+            xml.appendUnescaped("<!ELEMENT Resolutions (#PCDATA) >\n");
+            xml.appendUnescaped("<!ELEMENT Width (#PCDATA) >\n");
+            xml.appendUnescaped("<!ELEMENT Height (#PCDATA) >\n");
+            xml.appendUnescaped("<!ELEMENT Layers (#PCDATA) >\n");
+            xml.appendUnescaped("<!ELEMENT Styles (#PCDATA) >\n");
+            xml.appendUnescaped("]");
+        }
+        xml.appendUnescaped(">\n");
+        xml.indentElement("WMT_MS_Capabilities").attribute("version", "1.1.1");
+
+        // The actual meat
+        service(xml);
+        capability(xml, fragments);
+        xml.endElement();
+    }
+
     private void service(XMLBuilder xml) throws IOException {
         ServiceInformation servInfo = tld.getServiceInformation();
         xml.indentElement("Service");
@@ -210,7 +233,7 @@ public class WMSGetCapabilities {
         xml.endElement();
     }
 
-    private void capability(XMLBuilder xml) throws IOException {
+    private void capability(XMLBuilder xml, LayerFragments fragments) throws IOException {
         xml.indentElement("Capability");
         xml.indentElement("Request");
         capabilityRequestGetCapabilities(xml);
@@ -221,9 +244,9 @@ public class WMSGetCapabilities {
         xml.endElement();
         capabilityException(xml);
         if (this.includeVendorSpecific) {
-            capabilityVendorSpecific(xml);
+            capabilityVendorSpecific(xml, fragments);
         }
-        capabilityLayerOuter(xml);
+        capabilityLayerOuter(xml, fragments);
         xml.endElement();
 
     }
@@ -334,42 +357,46 @@ public class WMSGetCapabilities {
         xml.endElement();
     }
 
-    private void capabilityVendorSpecific(XMLBuilder xml) throws IOException {
+    private void capabilityVendorSpecific(XMLBuilder xml, LayerFragments fragments) throws IOException {
         xml.indentElement("VendorSpecificCapabilities");
         Iterable<TileLayer> layerIter = tld.getLayerList();
         for (TileLayer layer : layerIter) {
             if (!layer.isEnabled()  || !layer.isAdvertised()) {
                 continue;
             }
+            fragments.append(xml, layer.getName(), "TileSets",
+                    x -> capabilityVendorSpecificTilesets(x, layer));
+        }
+        xml.endElement();
+    }
 
-            for (String gridSetId : layer.getGridSubsets()) {
-                GridSubset grid = layer.getGridSubset(gridSetId);
+    private void capabilityVendorSpecificTilesets(XMLBuilder xml, TileLayer layer) throws IOException {
+        for (String gridSetId : layer.getGridSubsets()) {
+            GridSubset grid = layer.getGridSubset(gridSetId);
 
-                List<String> formats = new ArrayList<String>(2);
+            List<String> formats = new ArrayList<String>(2);
 
-                if (layer.getMimeTypes() != null) {
-                    for (MimeType mime : layer.getMimeTypes()) {
-                        formats.add(mime.getFormat());
-                    }
-                } else {
-                    formats.add(ImageMime.png.getFormat());
-                    formats.add(ImageMime.jpeg.getFormat());
+            if (layer.getMimeTypes() != null) {
+                for (MimeType mime : layer.getMimeTypes()) {
+                    formats.add(mime.getFormat());
                 }
+            } else {
+                formats.add(ImageMime.png.getFormat());
+                formats.add(ImageMime.jpeg.getFormat());
+            }
 
-                List<String> styles = getStyles(layer.getParameterFilters());
-                Map<String, LegendInfo> legendsInfo = layer.getLayerLegendsInfo();
-                for (String format : formats) {
-                    for (String style : styles) {
-                        try {
-                            capabilityVendorSpecificTileset(xml, layer, grid, format, style, legendsInfo.get(style));
-                        } catch (GeoWebCacheException e) {
-                            log.error(e.getMessage());
-                        }
+            List<String> styles = getStyles(layer.getParameterFilters());
+            Map<String, LegendInfo> legendsInfo = layer.getLayerLegendsInfo();
+            for (String format : formats) {
+                for (String style : styles) {
+                    try {
+                        capabilityVendorSpecificTileset(xml, layer, grid, format, style, legendsInfo.get(style));
+                    } catch (GeoWebCacheException e) {
+                        log.error(e.getMessage());
                     }
                 }
             }
         }
-        xml.endElement();
     }
 
     /**
@@ -458,7 +485,7 @@ public class WMSGetCapabilities {
         xml.endElement("LegendURL");
     }
 
-    private void capabilityLayerOuter(XMLBuilder xml) throws IOException {
+    private void capabilityLayerOuter(XMLBuilder xml, LayerFragments fragments) throws IOException {
         xml.indentElement("Layer");
         xml.simpleElement("Title", "GeoWebCache WMS", true);
         xml.simpleElement("Abstract", "Note that not all GeoWebCache instances provide a full WMS service.", true);
@@ -469,11 +496,13 @@ public class WMSGetCapabilities {
             if (!layer.isEnabled()  || !layer.isAdvertised()) {
                 continue;
             }
-            try {
-                capabilityLayerInner(xml, layer);
-            } catch (GeoWebCacheException e) {
-                log.error(e.getMessage());
-            }
+            fragments.append(xml, layer.getName(), "Layer", x -> {
+                try {
+                    capabilityLayerInner(x, layer);
+                } catch (GeoWebCacheException e) {
+                    log.error(e.getMessage());
+                }
+            });
         }
 
         xml.endElement();
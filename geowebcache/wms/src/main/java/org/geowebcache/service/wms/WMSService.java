@@ -25,6 +25,12 @@ import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -50,6 +56,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
@@ -58,12 +65,14 @@ import org.geowebcache.util.NullURLMangler;
 import org.geowebcache.util.ServletUtils;
 import org.geowebcache.util.URLMangler;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import com.thoughtworks.xstream.XStream;
 
-public class WMSService extends Service{
+public class WMSService extends Service implements DisposableBean {
     public static final String SERVICE_WMS = "wms";
     
     static final String SERVICE_PATH = "/"+GeoWebCacheDispatcher.TYPE_SERVICE+"/"+SERVICE_WMS;
@@ -93,6 +102,19 @@ public class WMSService extends Service{
     
     private WMSUtilities utility;
 
+    // Threads fetching and decoding tiles for full WMS requests, shared by all requests
+    private int fuserThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+    // Tile fetches waiting for a fuser thread, past it the request thread fetches them itself
+    private int fuserQueueSize = 100;
+
+    // Time budget in milliseconds to fetch the tiles of a full WMS request, 0 for no limit
+    private long fuserTimeout = 60000;
+
+    private ExecutorService fuserExecutor;
+
+    private CapabilitiesCache capabilitiesCache;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -284,7 +306,7 @@ public class WMSService extends Service{
 
         if (tile.getHint() != null) {
             if (tile.getHint().equalsIgnoreCase("getcapabilities")) {
-                WMSGetCapabilities wmsCap = new WMSGetCapabilities(tld, tile.servletReq, servletBase, context, urlMangler);
+                WMSGetCapabilities wmsCap = new WMSGetCapabilities(tld, tile.servletReq, servletBase, context, urlMangler, capabilitiesCache);
                 wmsCap.writeResponse(tile.servletResp);
             } else if (tile.getHint().equalsIgnoreCase("getmap")) {
                 WMSTileFuser wmsFuser = new WMSTileFuser(tld, sb, tile.servletReq);
@@ -292,6 +314,8 @@ public class WMSService extends Service{
                 wmsFuser.setApplicationContext(utility.getApplicationContext());
                 // Setting of the hintConfiguration if present
                 wmsFuser.setHintsConfiguration(hintsConfig);
+                wmsFuser.setExecutor(getFuserExecutor());
+                wmsFuser.setTimeout(fuserTimeout);
                 try {
                     wmsFuser.writeResponse(tile.servletResp, stats);
                 } catch (Exception e) {
@@ -458,4 +482,73 @@ public class WMSService extends Service{
     public void setUtility(WMSUtilities utility) {
         this.utility = utility;
     }
+
+    /**
+     * Sets the cache for the capabilities documents, if not set they are generated on every
+     * request
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
+    /**
+     * Sets the number of threads fetching and decoding the tiles of full WMS requests, shared by
+     * all requests. 1 or less fetches the tiles on the request thread.
+     */
+    public void setFuserThreads(int fuserThreads) {
+        this.fuserThreads = fuserThreads;
+    }
+
+    /**
+     * Sets how many tile fetches of full WMS requests may wait for a free thread. Once the queue is
+     * full the request thread fetches the tiles itself, slowing down the requests that flood it.
+     */
+    public void setFuserQueueSize(int fuserQueueSize) {
+        this.fuserQueueSize = fuserQueueSize;
+    }
+
+    /**
+     * Sets the time budget, in milliseconds, to fetch the tiles of a full WMS request. 0 or less
+     * for no limit.
+     */
+    public void setFuserTimeout(long fuserTimeout) {
+        this.fuserTimeout = fuserTimeout;
+    }
+
+    /**
+     * Runs the fetch on the request thread when the queue is full, unless the pool was shut down,
+     * in which case the fetch is refused instead of being left pending
+     */
+    private static final RejectedExecutionHandler CALLER_RUNS = (fetch, executor) -> {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("WMS tile fuser pool is shut down");
+        }
+        fetch.run();
+    };
+
+    private synchronized ExecutorService getFuserExecutor() {
+        if (fuserExecutor == null && fuserThreads > 1) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+                    "GWC WMS Tile Fuser-");
+            threadFactory.setDaemon(true);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(fuserThreads, fuserThreads, 60,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, fuserQueueSize)),
+                    threadFactory, CALLER_RUNS);
+            executor.allowCoreThreadTimeOut(true);
+            fuserExecutor = executor;
+        }
+        return fuserExecutor;
+    }
+
+    /**
+     * Stops the threads used for full WMS requests
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public synchronized void destroy() {
+        if (fuserExecutor != null) {
+            fuserExecutor.shutdownNow();
+            fuserExecutor = null;
+        }
+    }
 }
@@ -23,11 +23,19 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.jai.PlanarImage;
 import javax.servlet.ServletOutputStream;
@@ -54,6 +62,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.stats.RequestTrace;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.util.AccountingOutputStream;
@@ -150,6 +159,12 @@ public class WMSTileFuser{
     /** Hints used for writing the BufferedImage on the canvas*/
     private RenderingHints hints;
 
+    /** Executor fetching and decoding the source tiles, null to do it on the calling thread */
+    private ExecutorService executor;
+
+    /** Time budget for fetching the source tiles, in milliseconds, 0 for no limit */
+    private long timeout;
+
     /**
      *Enum storing the Hints associated to one of the 3 configurations(SPEED, QUALITY, DEFAULT)
      */
@@ -478,9 +493,127 @@ public class WMSTileFuser{
         gfx.addRenderingHints(hintsTemp);
     }
 
+    /**
+     * A source tile and where its relevant part goes on the canvas
+     */
+    static class TilePlacement {
+        final ConveyorTile tile;
+        final int tilex;
+        final int tiley;
+        final int tileWidth;
+        final int tileHeight;
+        final int canvasx;
+        final int canvasy;
+
+        TilePlacement(ConveyorTile tile, int tilex, int tiley, int tileWidth, int tileHeight,
+                int canvasx, int canvasy) {
+            this.tile = tile;
+            this.tilex = tilex;
+            this.tiley = tiley;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.canvasx = canvasx;
+            this.canvasy = canvasy;
+        }
+    }
+
+    /**
+     * A decoded source tile, cut down to the part that goes on the canvas
+     */
+    static class FetchedTile {
+        final TilePlacement placement;
+        final BufferedImage image;
+
+        FetchedTile(TilePlacement placement, BufferedImage image) {
+            this.placement = placement;
+            this.image = image;
+        }
+    }
+
     protected void renderCanvas() throws OutsideCoverageException, GeoWebCacheException,
             IOException,Exception {        
         
+        List<TilePlacement> placements = layoutTiles();
+
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        try {
+            if (executor == null || placements.size() < 2) {
+                for (TilePlacement placement : placements) {
+                    checkDeadline(deadline);
+                    drawTile(fetchTile(placement));
+                }
+            } else {
+                renderConcurrently(placements, deadline);
+            }
+        } finally {
+            gfx.dispose();
+        }
+    }
+
+    /**
+     * Fetches and decodes the tiles on the executor, drawing them on the canvas as they arrive.
+     * Drawing happens on the calling thread only, as the graphics object is not thread safe.
+     */
+    private void renderConcurrently(List<TilePlacement> placements, long deadline)
+            throws Exception {
+        CompletionService<FetchedTile> completion = new ExecutorCompletionService<FetchedTile>(
+                executor);
+        List<Future<FetchedTile>> futures = new ArrayList<Future<FetchedTile>>(placements.size());
+        // the fetches account their stages to the trace of the request, if sampled
+        final RequestTrace trace = RequestTrace.current();
+        try {
+            for (final TilePlacement placement : placements) {
+                futures.add(completion.submit(new Callable<FetchedTile>() {
+                    public FetchedTile call() throws Exception {
+                        // may run on the request thread itself when the pool is saturated
+                        RequestTrace previous = RequestTrace.current();
+                        RequestTrace.bind(trace);
+                        try {
+                            return fetchTile(placement);
+                        } finally {
+                            RequestTrace.bind(previous);
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<FetchedTile> done;
+                while ((done = completion.poll(deadline - System.currentTimeMillis(),
+                        TimeUnit.MILLISECONDS)) == null) {
+                    checkDeadline(deadline);
+                }
+                try {
+                    drawTile(done.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            // no-op for the completed ones, skips the pending ones on errors and timeouts. Running
+            // fetches are left alone, whatever they retrieve still ends up in the cache
+            for (Future<FetchedTile> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private void checkDeadline(long deadline) throws GeoWebCacheException {
+        if (System.currentTimeMillis() >= deadline) {
+            throw new GeoWebCacheException("Timed out after " + timeout
+                    + "ms fetching the tiles for layer " + layer.getName());
+        }
+    }
+
+    /**
+     * Determines the tiles to render and where each of them goes on the canvas
+     */
+    protected List<TilePlacement> layoutTiles() {
+        List<TilePlacement> placements = new ArrayList<TilePlacement>();
+
         // Now we loop over all the relevant tiles and write them to the canvas,
         // Starting at the bottom, moving to the right and up
         
@@ -532,14 +665,6 @@ public class WMSTileFuser{
                     continue;
                 }
 
-                layer.getTile(tile);
-                // Selection of the resource input stream
-                Resource blob = tile.getBlob();
-                // Extraction of the image associated with the defined MimeType
-                String formatName = srcFormat.getMimeType();
-                BufferedImage tileImg = decoderMap.decode(formatName, blob, 
-                        decoderMap.isAggressiveInputStreamSupported(formatName), null);
-
                 int tilex = 0;
                 int canvasx = (int) (gridx - startx) * gridSubset.getTileWidth();
                 int tileWidth = gridSubset.getTileWidth();
@@ -572,23 +697,48 @@ public class WMSTileFuser{
                     continue;
                 }
 
-                // Cut down the tile to the part we want
-                if (tileWidth != gridSubset.getTileWidth()
-                        || tileHeight != gridSubset.getTileHeight()) {
-                    log.debug("tileImg.getSubimage(" + tilex + "," + tiley + "," + tileWidth + ","
-                            + tileHeight + ")");
-                    tileImg = tileImg.getSubimage(tilex, tiley, tileWidth, tileHeight);
-                }
+                placements.add(new TilePlacement(tile, tilex, tiley, tileWidth, tileHeight,
+                        canvasx, canvasy));
+            }
+        }
+        return placements;
+    }
+
+    /**
+     * Fetches and decodes a tile, safe to be called concurrently
+     */
+    private FetchedTile fetchTile(TilePlacement placement) throws GeoWebCacheException,
+            IOException, Exception {
+        ConveyorTile tile = placement.tile;
+        layer.getTile(tile);
+        // Selection of the resource input stream
+        Resource blob = tile.getBlob();
+        // Extraction of the image associated with the defined MimeType
+        String formatName = srcFormat.getMimeType();
+        BufferedImage tileImg = decoderMap.decode(formatName, blob, 
+                decoderMap.isAggressiveInputStreamSupported(formatName), null);
+
+        // Cut down the tile to the part we want
+        if (placement.tileWidth != gridSubset.getTileWidth()
+                || placement.tileHeight != gridSubset.getTileHeight()) {
+            log.debug("tileImg.getSubimage(" + placement.tilex + "," + placement.tiley + ","
+                    + placement.tileWidth + "," + placement.tileHeight + ")");
+            tileImg = tileImg.getSubimage(placement.tilex, placement.tiley, placement.tileWidth,
+                    placement.tileHeight);
+        }
+        return new FetchedTile(placement, tileImg);
+    }
 
-                // Render the tile on the big canvas
-                log.debug("drawImage(subtile," + canvasx + "," + canvasy + ",null) "
-                        + Arrays.toString(gridLoc));
+    private void drawTile(FetchedTile fetched) {
+        TilePlacement placement = fetched.placement;
 
-                gfx.drawImage(tileImg, canvasx, canvasy, null); // imageObserver
-            }
+        // Render the tile on the big canvas
+        if (log.isDebugEnabled()) {
+            log.debug("drawImage(subtile," + placement.canvasx + "," + placement.canvasy
+                    + ",null) " + Arrays.toString(placement.tile.getTileIndex()));
         }
 
-        gfx.dispose();
+        gfx.drawImage(fetched.image, placement.canvasx, placement.canvasy, null); // imageObserver
     }
 
     protected void scaleRaster() {
@@ -670,6 +820,25 @@ public class WMSTileFuser{
         
     }
 
+    /**
+     * Sets the executor used to fetch and decode the source tiles concurrently, if not set they
+     * are fetched one after the other on the calling thread
+     * 
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the time budget for fetching the source tiles of the request
+     * 
+     * @param timeout time in milliseconds, 0 or less for no limit
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * Setting of the hints configuration taken from the WMSService
      * @param hintsConfig
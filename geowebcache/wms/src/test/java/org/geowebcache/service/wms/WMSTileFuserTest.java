@@ -25,6 +25,8 @@ import java.util.Date;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
 
@@ -123,6 +125,37 @@ public class WMSTileFuserTest extends TestCase {
     }
 
     public void testWriteResponse() throws Exception {
+        MockHttpServletResponse response = writeResponse(null, 0, 0);
+        assertTrue(response.getContentAsString().length() > 0);
+    }
+
+    public void testWriteResponseConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MockHttpServletResponse serial = writeResponse(null, 0, 0);
+            MockHttpServletResponse concurrent = writeResponse(executor, 60000, 0);
+            assertTrue(concurrent.getContentAsByteArray().length > 0);
+            assertTrue(Arrays.equals(serial.getContentAsByteArray(),
+                    concurrent.getContentAsByteArray()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testWriteResponseTimeout() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            writeResponse(executor, 100, 1000);
+            fail("Expected the request to time out");
+        } catch (GeoWebCacheException e) {
+            assertTrue(e.getMessage().contains("Timed out"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private MockHttpServletResponse writeResponse(ExecutorService executor, long timeout,
+            final long tileDelay) throws Exception {
     	final TileLayer layer = createWMSLayer();
     	// request larger than -30.0,15.0,45.0,30
         BoundingBox bounds = new BoundingBox(-35.0,14.0,55.0,39);
@@ -160,6 +193,13 @@ public class WMSTileFuserTest extends TestCase {
 					@Override
 					public boolean get(TileObject stObj)
 							throws StorageException {
+						if (tileDelay > 0) {
+							try {
+								Thread.sleep(tileDelay);
+							} catch (InterruptedException e) {
+								throw new StorageException(e.getMessage());
+							}
+						}
 						stObj.setBlob(new FileResource(imageTile));
 			            stObj.setCreated((new Date()).getTime());
 			            stObj.setBlobSize(1000);
@@ -170,6 +210,8 @@ public class WMSTileFuserTest extends TestCase {
 	        );
 	        
 	        WMSTileFuser tileFuser = new WMSTileFuser(dispatcher, broker, request);
+	        tileFuser.setExecutor(executor);
+	        tileFuser.setTimeout(timeout);
 	        	
 	        // Selection of the ApplicationContext associated
 	        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("appContextTest.xml");
@@ -179,7 +221,7 @@ public class WMSTileFuserTest extends TestCase {
             tileFuser.writeResponse(response,
                     new RuntimeStats(1, Arrays.asList(1), Arrays.asList("desc")));
 
-            assertTrue(response.getContentAsString().length() > 0);
+            return response;
         } finally {
         	temp.delete();
         }
@@ -21,7 +21,6 @@ package org.geowebcache.service.wmts;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
@@ -54,6 +53,10 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.meta.MetadataURL;
+import org.geowebcache.service.CapabilitiesCache;
+import org.geowebcache.service.CapabilitiesCache.Document;
+import org.geowebcache.service.CapabilitiesCache.LayerFragments;
+import org.geowebcache.service.CapabilitiesWriter;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.util.ServletUtils;
 import org.geowebcache.util.URLMangler;
@@ -72,6 +75,10 @@ public class WMTSGetCapabilities {
 
     private final Collection<WMTSExtension> extensions;
 
+    private final HttpServletRequest servReq;
+
+    private final CapabilitiesCache capabilitiesCache;
+
     protected WMTSGetCapabilities(TileLayerDispatcher tld, GridSetBroker gsb, HttpServletRequest servReq, String baseUrl,
                                   String contextPath, URLMangler urlMangler) {
         this(tld, gsb, servReq, baseUrl, contextPath, urlMangler, Collections.emptyList());
@@ -79,8 +86,20 @@ public class WMTSGetCapabilities {
 
     protected WMTSGetCapabilities(TileLayerDispatcher tld, GridSetBroker gsb, HttpServletRequest servReq, String baseUrl,
             String contextPath, URLMangler urlMangler, Collection<WMTSExtension> extensions) {
+        this(tld, gsb, servReq, baseUrl, contextPath, urlMangler, extensions, null);
+    }
+
+    /**
+     * @param capabilitiesCache cache for the generated documents, or {@code null} to generate them
+     *        on every request
+     */
+    protected WMTSGetCapabilities(TileLayerDispatcher tld, GridSetBroker gsb, HttpServletRequest servReq, String baseUrl,
+            String contextPath, URLMangler urlMangler, Collection<WMTSExtension> extensions,
+            CapabilitiesCache capabilitiesCache) {
         this.tld = tld;
         this.gsb = gsb;
+        this.servReq = servReq;
+        this.capabilitiesCache = capabilitiesCache;
 
         String forcedBaseUrl = ServletUtils.stringFromMap(servReq.getParameterMap(), servReq.getCharacterEncoding(), "base_url");
 
@@ -97,78 +116,71 @@ public class WMTSGetCapabilities {
     
     protected void writeResponse(HttpServletResponse response, RuntimeStats stats) {
         final Charset encoding = StandardCharsets.UTF_8;
-        byte[] data = generateGetCapabilities(encoding).getBytes(encoding);
-        
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("application/vnd.ogc.wms_xml");
-        response.setCharacterEncoding(encoding.name());
-        response.setContentLength(data.length);
-        response.setHeader("content-disposition", "inline;filename=wmts-getcapabilities.xml");
-        
-        stats.log(data.length, CacheResult.OTHER);
-        
         try {
-            OutputStream os = response.getOutputStream();
-            os.write(data);
-            os.flush();
+            long written;
+            if (capabilitiesCache != null) {
+                Document document = capabilitiesCache.getDocument(
+                        "WMTS " + baseUrl + " " + restBaseUrl, encoding,
+                        (out, fragments) -> generateGetCapabilities(out, encoding, fragments));
+                written = CapabilitiesCache.writeResponse(document, servReq, response,
+                        "application/vnd.ogc.wms_xml", "wmts-getcapabilities.xml");
+            } else {
+                written = CapabilitiesWriter.writeResponse(servReq, response,
+                        "application/vnd.ogc.wms_xml", encoding, "wmts-getcapabilities.xml",
+                        out -> generateGetCapabilities(out, encoding, LayerFragments.uncached()));
+            }
+            stats.log((int) written, CacheResult.OTHER);
         } catch (IOException ioe) {
             log.debug("Caught IOException" + ioe.getMessage());
         }
     }
 
-    private String generateGetCapabilities(Charset encoding) {
-        StringBuilder str = new StringBuilder();
-        XMLBuilder xml = new XMLBuilder(str);
-        
-        try {
-            xml.header("1.0", encoding);
-            xml.indentElement("Capabilities");
-            xml.attribute("xmlns", "http://www.opengis.net/wmts/1.0");
-            xml.attribute("xmlns:ows", "http://www.opengis.net/ows/1.1");
-            xml.attribute("xmlns:xlink", "http://www.w3.org/1999/xlink");
-            xml.attribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-            xml.attribute("xmlns:gml", "http://www.opengis.net/gml");
-            // allow extensions to register their names spaces
-            for(WMTSExtension extension : extensions) {
-                extension.registerNamespaces(xml);
-            }
-            StringBuilder schemasLocations = new StringBuilder("http://www.opengis.net/wmts/1.0 ");
-            schemasLocations.append("http://schemas.opengis.net/wmts/1.0/wmtsGetCapabilities_response.xsd ");
-            // allow extensions to register their schemas locations
-            for(WMTSExtension extension : extensions) {
-                for(String schemaLocation : extension.getSchemaLocations()) {
-                    schemasLocations.append(schemaLocation).append(" ");
-                }
+    private void generateGetCapabilities(Appendable out, Charset encoding, LayerFragments fragments)
+            throws IOException {
+        XMLBuilder xml = new XMLBuilder(out);
+
+        xml.header("1.0", encoding);
+        xml.indentElement("Capabilities");
+        xml.attribute("xmlns", "http://www.opengis.net/wmts/1.0");
+        xml.attribute("xmlns:ows", "http://www.opengis.net/ows/1.1");
+        xml.attribute("xmlns:xlink", "http://www.w3.org/1999/xlink");
+        xml.attribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
+        xml.attribute("xmlns:gml", "http://www.opengis.net/gml");
+        // allow extensions to register their names spaces
+        for(WMTSExtension extension : extensions) {
+            extension.registerNamespaces(xml);
+        }
+        StringBuilder schemasLocations = new StringBuilder("http://www.opengis.net/wmts/1.0 ");
+        schemasLocations.append("http://schemas.opengis.net/wmts/1.0/wmtsGetCapabilities_response.xsd ");
+        // allow extensions to register their schemas locations
+        for(WMTSExtension extension : extensions) {
+            for(String schemaLocation : extension.getSchemaLocations()) {
+                schemasLocations.append(schemaLocation).append(" ");
             }
-            schemasLocations.delete(schemasLocations.length() -1 , schemasLocations.length());
-            // add schemas locations
-            xml.attribute("xsi:schemaLocation", schemasLocations.toString());
-            xml.attribute("version", "1.0.0");
-            // There were some contradictions in the draft schema, haven't checked whether they've fixed those
-            //str.append("xsi:schemaLocation=\"http://www.opengis.net/wmts/1.0 http://geowebcache.org/schema/opengis/wmts/1.0.0/wmtsGetCapabilities_response.xsd\"\n"); 
+        }
+        schemasLocations.delete(schemasLocations.length() -1 , schemasLocations.length());
+        // add schemas locations
+        xml.attribute("xsi:schemaLocation", schemasLocations.toString());
+        xml.attribute("version", "1.0.0");
+        // There were some contradictions in the draft schema, haven't checked whether they've fixed those
+        //str.append("xsi:schemaLocation=\"http://www.opengis.net/wmts/1.0 http://geowebcache.org/schema/opengis/wmts/1.0.0/wmtsGetCapabilities_response.xsd\"\n"); 
 
-            ServiceInformation serviceInformation = getServiceInformation();
+        ServiceInformation serviceInformation = getServiceInformation();
 
-            serviceIdentification(xml, serviceInformation);
-            serviceProvider(xml, serviceInformation);
-            operationsMetadata(xml);
+        serviceIdentification(xml, serviceInformation);
+        serviceProvider(xml, serviceInformation);
+        operationsMetadata(xml);
 
-            contents(xml);
-            xml.indentElement("ServiceMetadataURL")
-                    .attribute("xlink:href", baseUrl + "?REQUEST=getcapabilities&VERSION=1.0.0")
-                    .endElement();
+        contents(xml, fragments);
+        xml.indentElement("ServiceMetadataURL")
+                .attribute("xlink:href", baseUrl + "?REQUEST=getcapabilities&VERSION=1.0.0")
+                .endElement();
 
-            xml.indentElement("ServiceMetadataURL")
-                    .attribute("xlink:href", restBaseUrl + "/WMTSCapabilities.xml")
-                    .endElement();
+        xml.indentElement("ServiceMetadataURL")
+                .attribute("xlink:href", restBaseUrl + "/WMTSCapabilities.xml")
+                .endElement();
 
-            xml.endElement("Capabilities");
-            
-            return str.toString();
-        } catch (IOException e) {
-            // Should not happen as StringBuilder doesn't throw
-            throw new IllegalStateException(e);
-        }
+        xml.endElement("Capabilities");
     }
 
     /**
@@ -399,14 +411,14 @@ public class WMTSGetCapabilities {
         xml.endElement("ows:Operation");
      }
      
-     private void contents(XMLBuilder xml) throws IOException {
+     private void contents(XMLBuilder xml, LayerFragments fragments) throws IOException {
          xml.indentElement("Contents");
          Iterable<TileLayer> iter = tld.getLayerList();
         for (TileLayer layer : iter) {
             if (!layer.isEnabled() || !layer.isAdvertised()) {
                 continue;
             }
-            layer(xml, layer, baseUrl);
+            fragments.append(xml, layer.getName(), "Layer", x -> layer(x, layer, baseUrl));
         }
          
         for (GridSet gset : gsb.getGridSets()) {
@@ -40,6 +40,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
 import org.geowebcache.stats.RuntimeStats;
@@ -75,6 +76,8 @@ public class WMTSService extends Service  {
     // list of this service extensions ordered by their priority
     private final List<WMTSExtension> extensions = new ArrayList<>();
 
+    private CapabilitiesCache capabilitiesCache;
+
     /**
      * Protected no-argument constructor to allow run-time instrumentation
      */
@@ -333,7 +336,7 @@ public class WMTSService extends Service  {
 
         if (tile.getHint() != null) {
             if (tile.getHint().equals("getcapabilities")) {
-                WMTSGetCapabilities wmsGC = new WMTSGetCapabilities(tld, gsb, tile.servletReq, servletBase, context, urlMangler, extensions);
+                WMTSGetCapabilities wmsGC = new WMTSGetCapabilities(tld, gsb, tile.servletReq, servletBase, context, urlMangler, extensions, capabilitiesCache);
                 wmsGC.writeResponse(tile.servletResp, stats);
 
             } else if (tile.getHint().equals("getfeatureinfo")) {
@@ -344,6 +347,14 @@ public class WMTSService extends Service  {
         }
     }
 
+    /**
+     * Sets the cache for the capabilities documents, if not set they are generated on every
+     * request
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
     void addExtension(WMTSExtension extension) {
         extensions.add(extension);
     }
@@ -20,9 +20,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -753,6 +755,67 @@ public class WMTSServiceTest extends TestCase {
                 + "[contains(@template,'&elevation={elevation}&time={time}')])", doc));        
     }
     
+    public void testGetCapStreamsLargeCatalog() throws Exception {
+        final int layerCount = 20000;
+
+        @SuppressWarnings("unchecked")
+        Map<String, String[]> kvp = new CaseInsensitiveMap();
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getCharacterEncoding()).thenReturn("UTF-8");
+        when(req.getParameterMap()).thenReturn(kvp);
+
+        // counts the bytes instead of keeping them, the document is tens of MB
+        final long[] written = { 0 };
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                written[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written[0] += len;
+            }
+        });
+
+        // a synthetic catalog, the same mock renamed as the layers are iterated
+        final String[] layerName = { null };
+        TileLayer tileLayer = mockTileLayer("layer", Arrays.asList("EPSG:4326"),
+                Collections.<ParameterFilter> emptyList());
+        when(tileLayer.getName()).thenAnswer(invocation -> layerName[0]);
+        final long[] writtenBeforeLastLayer = { -1 };
+        when(tld.getLayerList()).thenReturn(() -> new Iterator<TileLayer>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < layerCount;
+            }
+
+            @Override
+            public TileLayer next() {
+                layerName[0] = "layer" + i;
+                if (++i == layerCount) {
+                    writtenBeforeLastLayer[0] = written[0];
+                }
+                return tileLayer;
+            }
+        });
+
+        WMTSGetCapabilities wmsCap = new WMTSGetCapabilities(tld, gridsetBroker, req,
+                "http://localhost:8080", "/geowebcache", new NullURLMangler());
+        long start = System.currentTimeMillis();
+        wmsCap.writeResponse(resp, mock(RuntimeStats.class));
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the document is sent to the client as it's generated, nothing accumulates in memory
+        // but the output buffers and the tile matrix sets following the layers
+        String message = written[0] + " bytes, " + layerCount + " layers in " + elapsed + "ms";
+        assertTrue(message, written[0] > layerCount * 1000L);
+        assertTrue(message, writtenBeforeLastLayer[0] > written[0] * 0.9);
+    }
+
     @SuppressWarnings("unchecked")
     public void testGetTileWithStyle() throws Exception {
         